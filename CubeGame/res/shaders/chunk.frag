@@ -0,0 +1,20 @@
+#version 110
+
+// Repeats the tile of the texture map across the merged quad
+
+uniform sampler2D textureMap;
+
+// amount of tiles across and down the texture map
+uniform vec2 mapSize;
+
+varying vec2 local;
+varying float tile;
+
+void main() {
+	// the tile is the same for each vertex, round away interpolation error
+	float index = floor(tile + 0.5);
+	vec2 tileSize = 1.0 / mapSize;
+	vec2 origin = vec2(mod(index, mapSize.x), floor(index / mapSize.y)) * tileSize;
+
+	gl_FragColor = gl_Color * texture2D(textureMap, origin + fract(local) * tileSize);
+}
@@ -0,0 +1,27 @@
+#version 110
+
+// Chunk shader for greedy meshed chunks.
+// The u texture coordinate holds both the tile of the texture map and the
+// position inside of the quad in cubes: u = tile * tileStride + u
+// (see ChunkMesher.TILE_STRIDE)
+
+uniform float tileStride;
+
+varying vec2 local;
+varying float tile;
+
+void main() {
+	tile = floor(gl_MultiTexCoord0.s / tileStride);
+	local = vec2(gl_MultiTexCoord0.s - tile * tileStride, gl_MultiTexCoord0.t);
+
+	// same lighting the fixed function pipeline does with GL_COLOR_MATERIAL,
+	// the vertex color holds the light of the face (see ChunkMesher)
+	vec3 normal = normalize(gl_NormalMatrix * gl_Normal);
+	vec3 light = normalize(gl_LightSource[0].position.xyz);
+	float diffuse = max(dot(normal, light), 0.0);
+	// the alpha isn't lit, translucent cubes are drawn with it
+	vec4 lighting = gl_LightModel.ambient + gl_LightSource[0].ambient + gl_LightSource[0].diffuse * diffuse;
+	gl_FrontColor = vec4(gl_Color.rgb * lighting.rgb, gl_Color.a);
+
+	gl_Position = ftransform();
+}
@@ -0,0 +1,35 @@
+#version 110
+
+// Chunk shader for the packed vertex format (see MeshBuffer.FORMAT_PACKED).
+// packedPosition: x, y, z relative to the chunk, and the face of the cube
+// packedTexture: u, v inside of the quad in cubes, the tile of the texture map,
+//                and the light of the face: sky light * 16 + block light (see LightEngine)
+
+attribute vec4 packedPosition;
+attribute vec4 packedTexture;
+
+// the normal of each face (see Cube.normals)
+uniform vec3 normals[6];
+
+varying vec2 local;
+varying float tile;
+
+void main() {
+	tile = packedTexture.z;
+	local = packedTexture.xy;
+
+	// the brighter of the sky and block light, every level a fifth darker (see LightEngine.getBrightness)
+	float sky = floor(packedTexture.w / 16.0);
+	float level = max(sky, packedTexture.w - sky * 16.0);
+	float brightness = pow(0.8, 15.0 - level);
+
+	// same lighting the fixed function pipeline does with GL_COLOR_MATERIAL
+	vec3 normal = normalize(gl_NormalMatrix * normals[int(packedPosition.w)]);
+	vec3 light = normalize(gl_LightSource[0].position.xyz);
+	float diffuse = max(dot(normal, light), 0.0);
+	// the alpha isn't lit, translucent cubes are drawn with it
+	vec4 lighting = gl_LightModel.ambient + gl_LightSource[0].ambient + gl_LightSource[0].diffuse * diffuse;
+	gl_FrontColor = vec4(gl_Color.rgb * lighting.rgb * brightness, gl_Color.a);
+
+	gl_Position = gl_ModelViewProjectionMatrix * vec4(packedPosition.xyz, 1.0);
+}
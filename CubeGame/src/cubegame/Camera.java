@@ -47,6 +47,7 @@ import org.lwjgl.util.vector.Matrix;
 import org.lwjgl.util.vector.Matrix4f;
 import org.lwjgl.util.vector.Vector3f;
 
+import math.Frustum;
 import math.Vector3;
 
 public class Camera {
@@ -80,6 +81,22 @@ public class Camera {
 	 */
 	public static final float pitchMin = -1.55f;
 	
+	/**
+	 * Vertical field of view in degrees
+	 */
+	public static final float fieldOfView = 70.0f;
+	
+	/**
+	 * Distance to the near and far clipping planes
+	 */
+	public static final float nearPlane = 0.01f;
+	public static final float farPlane = 200.0f;
+	
+	/**
+	 * The view frustum of the camera, updated with the camera
+	 */
+	private Frustum frustum = new Frustum();
+	
 	/**
 	 * Creates a camera object and initializes it
 	 */
@@ -94,7 +111,7 @@ public class Camera {
 		// initialize the OpenGL camera
 		glMatrixMode(GL_PROJECTION);
 		glLoadIdentity();
-		gluPerspective(70, Graphics.getAspectRatio(), 0.01f, 200.0f);
+		gluPerspective(fieldOfView, Graphics.getAspectRatio(), nearPlane, farPlane);
 		glMatrixMode(GL_MODELVIEW);
 		
 		// set transform
@@ -131,6 +148,54 @@ public class Camera {
 		
 		//Translate the matrix, not sure why Jeff inverted x, but this works
 		glTranslatef(-position.x, position.y, position.z);
+		
+		// keep the frustum in sync with what was just loaded
+		frustum.update(getProjectionMatrix(Graphics.getAspectRatio()), getViewMatrix());
+	}
+	
+	/**
+	 * Gets the view frustum of the camera, as of the last update
+	 * @return the frustum
+	 */
+	public Frustum getFrustum() {
+		return frustum;
+	}
+	
+	/**
+	 * Gets the projection matrix of the camera, the same one that init loads with gluPerspective
+	 * @param aspect the aspect ratio of the window
+	 * @return the projection matrix
+	 */
+	public static Matrix4f getProjectionMatrix(float aspect) {
+		float f = 1.0f / (float)Math.tan(Math.toRadians(fieldOfView) / 2.0);
+		
+		Matrix4f p = new Matrix4f();
+		p.setZero();
+		p.m00 = f / aspect;
+		p.m11 = f;
+		p.m22 = (farPlane + nearPlane) / (nearPlane - farPlane);
+		p.m23 = -1.0f;
+		p.m32 = (2.0f * farPlane * nearPlane) / (nearPlane - farPlane);
+		return p;
+	}
+	
+	/**
+	 * Gets the view matrix of the camera, the same one that update loads as the modelview
+	 * @return the view matrix
+	 */
+	public Matrix4f getViewMatrix() {
+		Matrix4f view = Matrix4f.transpose(getRotationMatrix(), null);
+		Matrix4f.translate(new Vector3f(-position.x, position.y, position.z), view, view);
+		return view;
+	}
+	
+	/**
+	 * Gets the position of the eye in world space.  This differs from getPosition,
+	 * as update translates by the position with the y and z axes flipped.
+	 * @return the eye position
+	 */
+	public Vector3f getEyePosition() {
+		return new Vector3f(position.x, -position.y, -position.z);
 	}
 	
 	/**
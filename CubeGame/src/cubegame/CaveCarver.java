@@ -0,0 +1,372 @@
+//-----------------------------------------------------------------------------
+// CaveCarver.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import math.Noise;
+
+/**
+ * Carves caves and overhangs out of generated terrain with a 3D density field.
+ *
+ * Cubes are carved where the density is above THRESHOLD.  The density is only
+ * sampled on a coarse lattice, every LATTICE_STEP cubes, and trilinearly
+ * interpolated in between: a chunk needs 5 * 5 * 5 samples instead of 4096.
+ * Because the interpolated density never leaves the range of the 8 samples
+ * around it, a lattice cell (or a whole chunk) whose samples are all below the
+ * threshold is skipped without interpolating anything.
+ *
+ * The lattice is filled for a whole column of chunks at once.  The samples on
+ * the sides of a column are shared with the neighbouring columns, so each side
+ * is cached until the column on the other side has taken it.
+ */
+public class CaveCarver {
+	/**
+	 * The distance in cubes between two lattice samples
+	 */
+	public static final int LATTICE_STEP = 4;
+
+	/**
+	 * Cubes where the density is above this are carved out
+	 */
+	public static final float THRESHOLD = 0.3f;
+
+	private static final int SIZE = Chunk.CHUNK_SIZE;
+	private static final int CELLS = SIZE / LATTICE_STEP;
+	private static final int POINTS = CELLS + 1;
+	private static final int HEIGHT_POINTS = TerrainGenerator.HEIGHT_CHUNKS * CELLS + 1;
+
+	/**
+	 * The scale of the density noise, caves are flatter than they are wide
+	 */
+	private static final double HORIZONTAL_SCALE = 1.0 / 48.0;
+	private static final double VERTICAL_SCALE = 1.0 / 24.0;
+	private static final int OCTAVES = 2;
+
+	/**
+	 * Cubes below this are never carved, so the world has a floor
+	 */
+	private static final int FLOOR = 1;
+
+	/**
+	 * The amount of cubes left under the surface of columns below the sea, so water never hangs over a cave
+	 */
+	private static final int WATER_SEAL = 3;
+
+	/**
+	 * The most sides kept for columns that haven't been generated yet
+	 */
+	private static final int MAX_CACHED_SIDES = 4096;
+
+	/**
+	 * The density samples of a column of chunks, and scratch space for carving its chunks
+	 */
+	public static class Lattice {
+		/**
+		 * Indexed like CubeStorage, x first, then z, then y
+		 */
+		final float values[] = new float[POINTS * POINTS * HEIGHT_POINTS];
+		final float density[] = new float[CubeStorage.VOLUME];
+	}
+
+	private final Noise noise;
+
+	/**
+	 * Sides of columns by World.getChunkKey(x, axis, z), see getSide.  Taking a side removes it.
+	 */
+	private final LinkedHashMap<Long, float[]> sides = new LinkedHashMap<Long, float[]>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, float[]> eldest) {
+			return size() > MAX_CACHED_SIDES;
+		}
+	};
+
+	/**
+	 * Stats: lattice samples evaluated, and sides taken from the cache
+	 */
+	private final AtomicLong samples = new AtomicLong();
+	private final AtomicLong sharedSides = new AtomicLong();
+
+	/**
+	 * Creates a carver
+	 * @param seed the seed of the density noise
+	 */
+	public CaveCarver(long seed) {
+		noise = new Noise(seed);
+	}
+
+	/**
+	 * Samples the density at a single cube, without the lattice
+	 * @param x the world x position
+	 * @param y the world y position
+	 * @param z the world z position
+	 * @return the density, roughly -1 to 1
+	 */
+	public float getDensity(int x, int y, int z) {
+		float density = 0.0f;
+		float amplitude = 1.0f;
+		float total = 0.0f;
+		double frequency = 1.0;
+		for (int octave = 0; octave < OCTAVES; octave ++) {
+			density += amplitude * noise.sample(x * HORIZONTAL_SCALE * frequency, y * VERTICAL_SCALE * frequency, z * HORIZONTAL_SCALE * frequency);
+			total += amplitude;
+			amplitude *= 0.5f;
+			frequency *= 2.0;
+		}
+		return density / total;
+	}
+
+	/**
+	 * Fills the lattice of a column of chunks.  This can be called from any thread.
+	 * @param lattice receives the samples
+	 * @param chunkX the chunk x coordinate of the column
+	 * @param chunkZ the chunk z coordinate of the column
+	 */
+	public void fillLattice(Lattice lattice, int chunkX, int chunkZ) {
+		float values[] = lattice.values;
+		int baseX = chunkX * SIZE;
+		int baseZ = chunkZ * SIZE;
+
+		// the inside of the column is never shared
+		for (int ly = 0; ly < HEIGHT_POINTS; ly ++) {
+			for (int lz = 1; lz < CELLS; lz ++) {
+				for (int lx = 1; lx < CELLS; lx ++)
+					values[getLatticeIndex(lx, ly, lz)] = getDensity(baseX + lx * LATTICE_STEP, ly * LATTICE_STEP, baseZ + lz * LATTICE_STEP);
+			}
+		}
+		samples.addAndGet((CELLS - 1) * (CELLS - 1) * HEIGHT_POINTS);
+
+		// the sides, the x sides have z along them and the z sides have x along them
+		float west[] = getSide(0, chunkX, chunkZ);
+		float east[] = getSide(0, chunkX + 1, chunkZ);
+		float north[] = getSide(1, chunkX, chunkZ);
+		float south[] = getSide(1, chunkX, chunkZ + 1);
+		for (int ly = 0; ly < HEIGHT_POINTS; ly ++) {
+			for (int i = 0; i < POINTS; i ++) {
+				values[getLatticeIndex(0, ly, i)] = west[ly * POINTS + i];
+				values[getLatticeIndex(CELLS, ly, i)] = east[ly * POINTS + i];
+				values[getLatticeIndex(i, ly, 0)] = north[ly * POINTS + i];
+				values[getLatticeIndex(i, ly, CELLS)] = south[ly * POINTS + i];
+			}
+		}
+	}
+
+	/**
+	 * Checks if anything of a chunk could be carved
+	 * @param lattice the lattice of the chunk's column
+	 * @param chunkY the chunk y coordinate
+	 * @return false if every cube of the chunk is solid
+	 */
+	public boolean hasCaves(Lattice lattice, int chunkY) {
+		float values[] = lattice.values;
+		int start = getLatticeIndex(0, chunkY * CELLS, 0);
+		int end = getLatticeIndex(0, chunkY * CELLS + CELLS + 1, 0);
+		for (int i = start; i < end; i ++) {
+			if (values[i] > THRESHOLD)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Carves the caves of a chunk.  Air and water are left alone.
+	 * @param lattice the lattice of the chunk's column
+	 * @param cubes the cubes of the chunk
+	 * @param chunkY the chunk y coordinate
+	 * @param heights the top cube of each column of cubes of the chunk, x + z * CHUNK_SIZE
+	 */
+	public void carve(Lattice lattice, CubeStorage cubes, int chunkY, int heights[]) {
+		float density[] = lattice.density;
+		int bottom = chunkY * SIZE;
+		for (int cy = 0; cy < CELLS; cy ++) {
+			for (int cz = 0; cz < CELLS; cz ++) {
+				for (int cx = 0; cx < CELLS; cx ++) {
+					if (!interpolateCell(lattice, cx, chunkY * CELLS + cy, cz, density, true))
+						continue;
+
+					for (int y = cy * LATTICE_STEP; y < (cy + 1) * LATTICE_STEP; y ++) {
+						int worldY = bottom + y;
+						if (worldY < FLOOR)
+							continue;
+						for (int z = cz * LATTICE_STEP; z < (cz + 1) * LATTICE_STEP; z ++) {
+							for (int x = cx * LATTICE_STEP; x < (cx + 1) * LATTICE_STEP; x ++) {
+								int index = CubeStorage.getIndex(x, y, z);
+								if (density[index] <= THRESHOLD)
+									continue;
+
+								int height = heights[x + z * SIZE];
+								if (height < TerrainGenerator.SEA_LEVEL && worldY > height - WATER_SEAL)
+									continue;
+
+								short material = cubes.get(index);
+								if (material != Cube.AIR && material != Cube.WATER)
+									cubes.set(index, Cube.AIR);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Fills the interpolated density of every cube of a chunk
+	 * @param lattice the lattice of the chunk's column
+	 * @param chunkY the chunk y coordinate
+	 * @param out receives the density, indexed like CubeStorage
+	 */
+	public void fillInterpolated(Lattice lattice, int chunkY, float out[]) {
+		for (int cy = 0; cy < CELLS; cy ++) {
+			for (int cz = 0; cz < CELLS; cz ++) {
+				for (int cx = 0; cx < CELLS; cx ++)
+					interpolateCell(lattice, cx, chunkY * CELLS + cy, cz, out, false);
+			}
+		}
+	}
+
+	/**
+	 * Fills the density of every cube of a chunk by sampling each cube, for comparing against the lattice
+	 * @param chunkX the chunk x coordinate
+	 * @param chunkY the chunk y coordinate
+	 * @param chunkZ the chunk z coordinate
+	 * @param out receives the density, indexed like CubeStorage
+	 */
+	public void fillFull(int chunkX, int chunkY, int chunkZ, float out[]) {
+		for (int y = 0; y < SIZE; y ++) {
+			for (int z = 0; z < SIZE; z ++) {
+				for (int x = 0; x < SIZE; x ++)
+					out[CubeStorage.getIndex(x, y, z)] = getDensity(chunkX * SIZE + x, chunkY * SIZE + y, chunkZ * SIZE + z);
+			}
+		}
+	}
+
+	/**
+	 * Gets the amount of lattice samples evaluated so far
+	 * @return the sample count
+	 */
+	public long getLatticeSamples() {
+		return samples.get();
+	}
+
+	/**
+	 * Gets the amount of column sides that were taken from the cache instead of being sampled
+	 * @return the shared side count
+	 */
+	public long getSharedSides() {
+		return sharedSides.get();
+	}
+
+	/**
+	 * Interpolates the density of the cubes of one lattice cell
+	 * @param cy the lattice y cell in the column
+	 * @param skipSolid if a cell that is below the threshold everywhere should be skipped
+	 * @return false if the cell was skipped, nothing is written then
+	 */
+	private static boolean interpolateCell(Lattice lattice, int cx, int cy, int cz, float out[], boolean skipSolid) {
+		float values[] = lattice.values;
+		float c000 = values[getLatticeIndex(cx, cy, cz)];
+		float c100 = values[getLatticeIndex(cx + 1, cy, cz)];
+		float c010 = values[getLatticeIndex(cx, cy + 1, cz)];
+		float c110 = values[getLatticeIndex(cx + 1, cy + 1, cz)];
+		float c001 = values[getLatticeIndex(cx, cy, cz + 1)];
+		float c101 = values[getLatticeIndex(cx + 1, cy, cz + 1)];
+		float c011 = values[getLatticeIndex(cx, cy + 1, cz + 1)];
+		float c111 = values[getLatticeIndex(cx + 1, cy + 1, cz + 1)];
+		if (skipSolid && Math.max(Math.max(Math.max(c000, c100), Math.max(c010, c110)),
+				Math.max(Math.max(c001, c101), Math.max(c011, c111))) <= THRESHOLD)
+			return false;
+
+		int localY = (cy % CELLS) * LATTICE_STEP;
+		for (int y = 0; y < LATTICE_STEP; y ++) {
+			float v = y / (float)LATTICE_STEP;
+			// the cell's bottom and top edges along x, interpolated along y
+			float y00 = c000 + v * (c010 - c000);
+			float y10 = c100 + v * (c110 - c100);
+			float y01 = c001 + v * (c011 - c001);
+			float y11 = c101 + v * (c111 - c101);
+			for (int z = 0; z < LATTICE_STEP; z ++) {
+				float w = z / (float)LATTICE_STEP;
+				float left = y00 + w * (y01 - y00);
+				float right = y10 + w * (y11 - y10);
+				int row = CubeStorage.getIndex(cx * LATTICE_STEP, localY + y, cz * LATTICE_STEP + z);
+				for (int x = 0; x < LATTICE_STEP; x ++)
+					out[row + x] = left + (x / (float)LATTICE_STEP) * (right - left);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets a side of a column from the cache, or samples it
+	 * @param axis 0 for a side at a fixed x, 1 for a side at a fixed z
+	 * @param chunkX the chunk x coordinate the side starts at
+	 * @param chunkZ the chunk z coordinate the side starts at
+	 * @return the samples, ly * POINTS + the position along the side
+	 */
+	private float[] getSide(int axis, int chunkX, int chunkZ) {
+		Long key = World.getChunkKey(chunkX, axis, chunkZ);
+		synchronized (sides) {
+			// the other column has sampled it already, and nobody else needs it
+			float side[] = sides.remove(key);
+			if (side != null) {
+				sharedSides.incrementAndGet();
+				return side;
+			}
+		}
+
+		float side[] = new float[HEIGHT_POINTS * POINTS];
+		for (int ly = 0; ly < HEIGHT_POINTS; ly ++) {
+			for (int i = 0; i < POINTS; i ++) {
+				int x = chunkX * SIZE + (axis == 0 ? 0 : i * LATTICE_STEP);
+				int z = chunkZ * SIZE + (axis == 0 ? i * LATTICE_STEP : 0);
+				side[ly * POINTS + i] = getDensity(x, ly * LATTICE_STEP, z);
+			}
+		}
+		samples.addAndGet(side.length);
+
+		synchronized (sides) {
+			sides.put(key, side);
+		}
+		return side;
+	}
+
+	private static int getLatticeIndex(int lx, int ly, int lz) {
+		return (ly * POINTS + lz) * POINTS + lx;
+	}
+}
@@ -35,79 +35,206 @@
 package cubegame;
 
 import graphics.GL;
+import graphics.MegaBuffer;
+import graphics.MeshBuffer;
+import graphics.QuadIndexBuffer;
 
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL12.*;
-
-import org.lwjgl.opengl.GL11;
-import org.lwjgl.util.vector.Vector2f;
+import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
 
 import math.Vector3;
 
+import org.lwjgl.util.vector.Vector3f;
+
 public class Chunk {	
-	public final int CHUNK_SIZE = 16;
+	public static final int CHUNK_SIZE = 16;
+	
+	/**
+	 * Shift and mask to go from world cube coordinates to chunk coordinates
+	 * (x >> CHUNK_SHIFT) and local cube coordinates (x & CHUNK_MASK)
+	 */
+	public static final int CHUNK_SHIFT = 4;
+	public static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	
+	/**
+	 * The amount of quads a chunk mesh reserves space for up front.
+	 * A solid chunk with all 6 sides exposed needs 6 * 16 * 16 quads.
+	 */
+	static final int INITIAL_MESH_QUADS = 6 * 16 * 16;
+	
+	/**
+	 * The most quads a chunk mesh can have: every other cube solid, with all 6 faces showing
+	 */
+	public static final int MAX_QUADS = CHUNK_SIZE * CHUNK_SIZE * CHUNK_SIZE / 2 * 6;
+	
+	/**
+	 * The smallest range that is allocated for a mesh, in bytes
+	 */
+	private static final int MIN_BUFFER_SIZE = 1024;
+	
+	/**
+	 * Mesh that VBO chunks are built into before they are uploaded.  The data
+	 * lives on the GPU afterwards, so every chunk can share the one buffer.
+	 */
+	private static MeshBuffer sharedMesh;
+	
+	/**
+	 * Mesher and snapshot used to build chunks on the main thread
+	 */
+	private static ChunkMesher mesher = new ChunkMesher();
+	private static ChunkSnapshot snapshot = new ChunkSnapshot();
 	
 	/**
-	 * cubeList holds each cube's type (grass, air, ect)
+	 * cubes holds each cube's type (grass, air, ect)
 	 */
-	private short[][][] cubeList;
+	private CubeStorage cubes;
 	
 	/**
-	 * vertexList holds the vertices that are used for rendering the chunk
+	 * The cubes compressed with ChunkCodec while the chunk is cold, cubes is null then.
+	 * hotMemoryUsage is what the cubes took up before they were compressed, and
+	 * coldVersion their version (see CubeStorage.getVersion).
 	 */
-	private ArrayList<Float> vertexList;
+	private byte compressedCubes[] = null;
+	private int hotMemoryUsage = 0;
+	private long coldVersion = 0;
 	
 	/**
-	 * normalList holds the normals that are used for rendering the chunk
+	 * Which sides of the chunk (bit Cube.FACE_X) have a cube that isn't transparent,
+	 * for the cubes of version opaqueBordersVersion, -1 if not worked out yet.  It is
+	 * worked out when the chunk is made cold, so a cold chunk never has to be
+	 * decompressed for it.
 	 */
-	private ArrayList<Float> normalList; 
+	private int opaqueBorders = -1;
+	private long opaqueBordersVersion = 0;
 	
 	/**
-	 * Texture coord list
+	 * The position of the chunk in the chunk list of the world, -1 if it isn't in the world
 	 */
-	private ArrayList<Float> textureList;
+	int listIndex = -1;
 	
 	/**
-	 * Index list for index'd triangles
+	 * The last time the cubes were accessed, see ChunkTiering.getClock
 	 */
-	private ArrayList<Integer> indexList;
+	private long accessTime = ChunkTiering.getClock();
+	
+	/**
+	 * mesh holds the interleaved vertices, normals and texture coords as well
+	 * as the indices that are used for rendering the chunk.  Legacy GL draws
+	 * straight out of it, so in that case each chunk owns its mesh.
+	 */
+	private MeshBuffer mesh;
 	
 	/**
 	 * The global world position of the chunk
 	 */
 	private Vector3 position;
 	
+	/**
+	 * The position of the chunk in chunk coordinates (world position / CHUNK_SIZE)
+	 */
+	private int chunkX;
+	private int chunkY;
+	private int chunkZ;
+	
 	/**
 	 * The display list id if display lists are used
 	 */
 	private int displayList = -1;
 	
 	/**
-	 * The Vertex Buffer Object ID that is exposed from openGL
+	 * The part of the MegaBuffer that holds the vertices, null if there is none.
+	 * Meshes that fit are uploaded into the existing range.  vertexPage is the
+	 * page of the last range, the world uses it to order the chunks.
 	 */
-	private int vertexBufferId = -1;
+	private MegaBuffer.Range vertexRange = null;
+	private int vertexPage = -1;
 	
 	/**
-	 * The Index Buffer Object ID that is exposed from openGL
+	 * The vertex layout of the mesh that is drawn, MeshBuffer.FORMAT_X
 	 */
-	private int indexBufferId = -1;
+	private int vertexFormat = MeshBuffer.FORMAT_FLOAT;
 	
 	/**
-	 * The indexID when filling the index buffer.  Please note, that this
-	 * is also used to act as the highest number inside of the index list
-	 * and is used when actually drawing the elements for the max. index id used
+	 * The amount of vertices in the mesh that is drawn.  This is used when
+	 * drawing the elements for the max. index id used
 	 */
-	private int indexID = 0;
+	private int vertexCount = 0;
 	
-	// buffers for legacy openGL
-	private FloatBuffer vertexArrayBuffer;
-	private FloatBuffer normalArrayBuffer;
-	private FloatBuffer textureArrayBuffer;
-	private IntBuffer indexArrayBuffer;
+	/**
+	 * The amount of indices in the mesh that is drawn
+	 */
+	private int indexCount = 0;
+	
+	/**
+	 * The first quad of each face direction (Cube.FACE_X) of each layer (MeshBuffer.LAYER_X)
+	 * in the mesh that is drawn, at layer * 6 + face.  The last entry is the end of the mesh.
+	 * If the quads aren't grouped by direction, only the layer starts mean anything.
+	 */
+	private int sectionStart[] = new int[MeshBuffer.LAYERS * 6 + 1];
+	private boolean groupedByFace = false;
+	
+	/**
+	 * Counts the mesh builds that were requested for this chunk.  A mesh
+	 * that was built for an older request is out of date and thrown away.
+	 */
+	private int meshRequest = 0;
+	
+	/**
+	 * True once the chunk has been removed from the world
+	 */
+	private boolean destroyed = false;
+	
+	/**
+	 * True while the chunk is waiting for its mesh to be rebuilt, see World.markDirty
+	 */
+	private boolean dirty = false;
+	
+	/**
+	 * True while the chunk has edits that the ChunkSaver hasn't taken a snapshot of yet
+	 */
+	private boolean unsaved = false;
+	
+	/**
+	 * The sky light (high 4 bits) and block light (low 4 bits) of every cube, by
+	 * CubeStorage.getIndex.  Null while every cube has uniformLight, see LightEngine.
+	 */
+	private byte light[] = null;
+	private byte uniformLight = 0;
+	
+	/**
+	 * True once the LightEngine has lit the chunk, edits only relight chunks that are lit
+	 */
+	private boolean lit = false;
+	
+	/**
+	 * Scratch state of the LightEngine: bit 6 is set once the light of the chunk changed,
+	 * and bit (1 << FACE_X) once the light of a cube on that side changed
+	 */
+	int lightChanges = 0;
+	
+	/**
+	 * Which faces of the chunk can see each other, see ChunkVisibility
+	 */
+	private long visibility = ChunkVisibility.ALL;
+	
+	/**
+	 * Scratch state of the visibility walk in World.render: the frame the chunk was
+	 * last reached in, the face it was entered through and the directions walked to get here
+	 */
+	int visitFrame = -1;
+	int visitFace;
+	int visitDirections;
+	
+	/**
+	 * The last frame the chunk was drawn in, and its distance to the camera
+	 * when the world last sorted the chunks into drawing order
+	 */
+	int drawFrame = -1;
+	int sortDistance;
 	
 	/**
 	 * Creates a chunk of the size CHUNK_SIZE * CHUNK_SIZE * CHUNK_SIZE
@@ -115,285 +242,699 @@ public class Chunk {
 	 * of cube inside of chunk at local position <0, 0, 0>
 	 */
 	public Chunk(Vector3 position) {
-		// someone tell me to optimize this before your computer runs out of ram
-		vertexList = new ArrayList<Float>();
-		normalList = new ArrayList<Float>();
-		textureList = new ArrayList<Float>();
-		indexList = new ArrayList<Integer>();
-		
-		cubeList = new short[CHUNK_SIZE][CHUNK_SIZE][CHUNK_SIZE];
-		this.position = position;
+		this(position, Cube.DIRT);
 		createChunk();
 	}
+	
+	/**
+	 * Creates a chunk of the size CHUNK_SIZE * CHUNK_SIZE * CHUNK_SIZE
+	 * where every cube is the same material.  Such a chunk stores just
+	 * the material until a different cube is set in it.
+	 * @param position the world position of the cube, representing position
+	 * of cube inside of chunk at local position <0, 0, 0>
+	 * @param material the material to fill the chunk with
+	 */
+	public Chunk(Vector3 position, short material) {
+		cubes = new CubeStorage(material);
+		this.position = position;
+		chunkX = (int)Math.floor(position.x / CHUNK_SIZE);
+		chunkY = (int)Math.floor(position.y / CHUNK_SIZE);
+		chunkZ = (int)Math.floor(position.z / CHUNK_SIZE);
+	}
 
 	/**
 	 * Creates the chunk
 	 */
 	private void createChunk() {
-		// create the chunk
+		// create the chunk, the storage starts out as dirt so only the top needs set
 		for (int x = 0; x < CHUNK_SIZE; x ++) {
-			for (int z = 0; z < CHUNK_SIZE; z ++) {
-				for (int y = 0; y < CHUNK_SIZE; y ++) {
-					if (y == CHUNK_SIZE - 1)
-						cubeList[x][y][z] = Cube.COBBLE;
-					else
-						cubeList[x][y][z] = Cube.DIRT;
-				}
-			}
+			for (int z = 0; z < CHUNK_SIZE; z ++)
+				cubes.set(x, CHUNK_SIZE - 1, z, Cube.COBBLE);
 		}
 		
 		System.out.println("Creating a new chunk");
 		
+		// the mesh is built once the chunk is added to the world,
+		// as the neighbouring chunks decide which border faces are visible
+	}
+	
+	/**
+	 * Rebuilds the mesh of the chunk and prepares it for rendering right away
+	 */
+	public void rebuild() {
+		meshRequest ++;
+		
+		// an all air chunk has no mesh, and never gets a VBO
+		if (isEmpty()) {
+			clearMesh();
+			return;
+		}
+		
 		// construct the list
-		buildChunk();
+		// legacy GL keeps its own mesh as it draws straight from it
+		MeshBuffer built;
+		if (GL.isLegacy()) {
+			built = (mesh != null) ? mesh : new MeshBuffer(INITIAL_MESH_QUADS);
+		} else {
+			if (sharedMesh == null || sharedMesh.getFormat() != ChunkMesher.getVertexFormat())
+				sharedMesh = new MeshBuffer(INITIAL_MESH_QUADS, ChunkMesher.getVertexFormat());
+			built = sharedMesh;
+		}
+		snapshot.capture(this);
+		mesher.build(snapshot, built);
+		snapshot.release();
 		
 		// prep it (build display list or vbo)
-		preRenderChunk();
+		preRenderChunk(built, mesher.getVisibility());
 	}
 	
 	/**
-	 * Builds an, optimized chunk
+	 * Requests the mesh of the chunk to be rebuilt by the ChunkBuilder threads.
+	 * The old mesh keeps being drawn until the new one has been uploaded.
+	 * Falls back to rebuild() if the ChunkBuilder isn't running.
 	 */
-	private void buildChunk() {
-		// clear list
-		vertexList.clear();
-		normalList.clear();		
+	public void requestRebuild() {
+		if (!ChunkBuilder.isRunning()) {
+			rebuild();
+			return;
+		}
 		
-		int x, y, z;
-		short material;
-		for (x = 0; x < CHUNK_SIZE; x ++) {
-			for (z = 0; z < CHUNK_SIZE; z ++) {
-				for (y = 0; y < CHUNK_SIZE; y ++) {
-					material = cubeList[x][y][z];
-					// if it is air, we render no sides!
-					if (material == Cube.AIR)
-						continue;
-
-					// back face
-					if (z == 0 || isTransparent(x, y, z - 1))
-						buildFace((float)x, (float)y, (float)z, Cube.FACE_BACK, material);
-					
-					// front face
-					if ((z + 1 == CHUNK_SIZE) || isTransparent(x, y, z + 1))
-						buildFace((float)x, (float)y, (float)z, Cube.FACE_FRONT, material);
-					
-					// left face
-					if (x == 0 || isTransparent(x - 1, y, z))
-						buildFace((float)x, (float)y, (float)z, Cube.FACE_LEFT, material);
-					
-					// right face
-					if ((x + 1 == CHUNK_SIZE) || isTransparent(x + 1, y, z))
-						buildFace((float)x, (float)y, (float)z, Cube.FACE_RIGHT, material);
-					
-					// bottom face
-					if (y == 0 || isTransparent(x, y - 1, z))
-						buildFace((float)x, (float)y, (float)z, Cube.FACE_BOTTOM, material);
-					
-					// top face
-					if ((y + 1 == CHUNK_SIZE) || isTransparent(x, y + 1, z))
-						buildFace((float)x, (float)y, (float)z, Cube.FACE_TOP, material);
-				}
-			}
+		meshRequest ++;
+		if (isEmpty()) {
+			clearMesh();
+			return;
 		}
+		ChunkBuilder.request(this, meshRequest);
 	}
 	
 	/**
-	 * Builds a face for a cube
-	 * @param x cube x position
-	 * @param y cube y position
-	 * @param z cube z position
-	 * @param side the face of the cube
-	 * @param material the material to render on the face
+	 * Gets the latest mesh build that was requested for the chunk
+	 * @return the mesh request counter
 	 */
-	private void buildFace(float x, float y, float z, int side, short material) {
-		float buffer[] = Cube.vertices[side];
-		
-		// normal
-		float normals[] = Cube.normals[side];
-		normalList.add(normals[0]);
-		normalList.add(normals[1]);
-		normalList.add(normals[2]);
-		
-		// build texture coordinates
-		Vector2f coords[] = Cube.getUVTextureMapD(material, World.mapTextureWidth, World.mapTextureHeight);
-		for (Vector2f textCord : coords) {
-			textureList.add(textCord.x);
-			textureList.add(textCord.y);
+	public int getMeshRequest() {
+		return meshRequest;
+	}
+	
+	/**
+	 * Checks to see if the chunk has been removed from the world
+	 * @return true if the chunk was destroyed
+	 */
+	public boolean isDestroyed() {
+		return destroyed;
+	}
+	
+	/**
+	 * Gets which faces of the chunk can see each other through transparent cubes
+	 * @return the visibility bits, see ChunkVisibility.isConnected
+	 */
+	public long getVisibility() {
+		return visibility;
+	}
+	
+	/**
+	 * Gets the MegaBuffer page that last held the mesh of the chunk
+	 * @return the page index, or -1 if the chunk never had a mesh in the MegaBuffer
+	 */
+	public int getVertexPage() {
+		return vertexPage;
+	}
+	
+	/**
+	 * Checks to see if the chunk is waiting to be rebuilt by the world
+	 * @return true if the chunk is dirty
+	 */
+	public boolean isDirty() {
+		return dirty;
+	}
+	
+	/**
+	 * Sets if the chunk is waiting to be rebuilt, only the world should call this
+	 * @param dirty true if the chunk is dirty
+	 */
+	void setDirty(boolean dirty) {
+		this.dirty = dirty;
+	}
+	
+	/**
+	 * Checks to see if the chunk has edits that are waiting to be saved
+	 * @return true if the chunk is unsaved
+	 */
+	public boolean isUnsaved() {
+		return unsaved;
+	}
+	
+	/**
+	 * Sets if the chunk has edits waiting to be saved, only the ChunkSaver should call this
+	 * @param unsaved true if the chunk is unsaved
+	 */
+	void setUnsaved(boolean unsaved) {
+		this.unsaved = unsaved;
+	}
+	
+	/**
+	 * Frees the GL resources of the chunk, call this when it is removed from the world
+	 */
+	public void destroy() {
+		destroyed = true;
+		meshRequest ++;
+		clearMesh();
+	}
+	
+	/**
+	 * Drops the mesh of the chunk and gives its part of the MegaBuffer back, for when
+	 * the chunk is removed or has nothing to draw anymore
+	 */
+	private void clearMesh() {
+		if (vertexRange != null) {
+			MegaBuffer.free(vertexRange);
+			vertexRange = null;
 		}
+		mesh = null;
+		vertexCount = 0;
+		indexCount = 0;
+		Arrays.fill(sectionStart, 0);
+		groupedByFace = false;
+		visibility = ChunkVisibility.ALL;
+	}
+	
+	/**
+	 * Prepares the chunk for rendering (display list or VBO)
+	 * This is called whenever a new mesh was built for the chunk, which happens when it is
+	 * added to the world, when a neighbouring chunk is loaded or unloaded and whenever a new
+	 * cube is set in the chunk (as the displayList / VBO needs updated)
+	 * @param built the mesh that was built for the chunk
+	 * @param visibility which faces of the chunk are connected, see ChunkVisibility
+	 * @return the mesh that the chunk doesn't need anymore, or null if there is none
+	 */
+	MeshBuffer preRenderChunk(MeshBuffer built, long visibility) {
+		this.visibility = visibility;
+		vertexFormat = built.getFormat();
+		vertexCount = built.getVertexCount();
+		indexCount = built.getIndexCount();
+		groupedByFace = built.isGroupedByFace();
+		for (int layer = 0; layer < MeshBuffer.LAYERS; layer ++) {
+			for (int face = 0; face < 6; face ++)
+				sectionStart[layer * 6 + face] = built.getFaceStart(layer, face);
+		}
+		sectionStart[MeshBuffer.LAYERS * 6] = built.getQuadCount();
 		
-		// point 0
-		vertexList.add(buffer[0] + position.x + x);
-		vertexList.add(buffer[1] + position.y + y);
-		vertexList.add(buffer[2] + position.z + z);
-		
-		// point 1
-		vertexList.add(buffer[3] + position.x + x);
-		vertexList.add(buffer[4] + position.y + y);
-		vertexList.add(buffer[5] + position.z + z);
-		
-		// point 2 
-		vertexList.add(buffer[6] + position.x + x);
-		vertexList.add(buffer[7] + position.y + y);
-		vertexList.add(buffer[8] + position.z + z);
+		if (GL.isLegacy()) {
+			// the mesh is already interleaved inside of direct buffers,
+			// so the vertex arrays will just point into it
+			MeshBuffer old = mesh;
+			mesh = built;
+			return (old == built) ? null : old;
+		}
 		
-		// point 3
-		vertexList.add(buffer[9]  + position.x + x);
-		vertexList.add(buffer[10] + position.y + y);
-		vertexList.add(buffer[11] + position.z + z);
+		// only move to a new range when the mesh outgrew the old one, or when it is mostly unused
+		int vertexBytes = built.getVertexCount() * built.getVertexStride();
+		if (vertexRange != null && needsAllocation(vertexBytes, vertexRange.getSize())) {
+			MegaBuffer.free(vertexRange);
+			vertexRange = null;
+		}
+		if (vertexBytes == 0) {
+			// nothing to draw, the range is given back
+			if (vertexRange != null) {
+				MegaBuffer.free(vertexRange);
+				vertexRange = null;
+			}
+			return built;
+		}
+		if (vertexRange == null) {
+			vertexRange = MegaBuffer.allocate(getBufferSize(vertexBytes));
+			
+			// the world draws chunks grouped by page
+			if (vertexRange.getPage() != vertexPage) {
+				vertexPage = vertexRange.getPage();
+				World.invalidateChunkOrder();
+			}
+		}
 		
-		// index! (6 indices, goes 0 1 2 2 3 0)
-		indexList.add(indexID);
-		indexList.add(indexID + 1);
-		indexList.add(indexID + 2);
-		indexList.add(indexID + 2);
-		indexList.add(indexID + 3);
-		indexList.add(indexID);
-		indexID += 4;
+		// upload the interleaved vertices, the indices come from the shared QuadIndexBuffer
+		MegaBuffer.write(vertexRange, built.getVertices());
+		return built;
 	}
-
+	
 	/**
-	 * Prepares the chunk for rendering (display list or VBO)
-	 * This is only called upon chunk creation and whenever a new cube is set in the chunk
-	 * (as the displayList / VBO needs updated)
+	 * Gets the size to allocate for a mesh range.  Some room is left on top
+	 * of the mesh, so that placing a few cubes doesn't reallocate it again.
+	 * @param bytes the size of the mesh data
+	 * @return the size of the range in bytes
+	 */
+	private static int getBufferSize(int bytes) {
+		return Math.max(bytes + bytes / 4, MIN_BUFFER_SIZE);
+	}
+	
+	/**
+	 * Checks to see if a mesh needs a new range
+	 * @param bytes the size of the mesh data
+	 * @param size the size of the current range in bytes
+	 * @return true if the mesh doesn't fit, or would leave most of the range unused
+	 */
+	private static boolean needsAllocation(int bytes, int size) {
+		return bytes > size || (size > MIN_BUFFER_SIZE && bytes < size / 4);
+	}
+	
+	/**
+	 * Renders a layer of the chunk
+	 * @param eye the world position of the camera, the face directions that can't face it
+	 * are skipped.  If null, every face is drawn.
+	 * @param layer the layer to draw, MeshBuffer.LAYER_X
+	 * @return the amount of quads that were drawn
 	 */
-	private void preRenderChunk() {
+	public int render(Vector3f eye, int layer) {
+		// nothing to draw
+		int base = layer * 6;
+		if (indexCount == 0 || sectionStart[base] == sectionStart[base + 6])
+			return 0;
+		int faces = getFacesTowards(eye);
+		if (faces == 0)
+			return 0;
+		
+		// a cold chunk that dropped its mesh has to build it again first
+		if (GL.isLegacy() && mesh == null) {
+			World.markDirty(this);
+			return 0;
+		}
+		
+		// the mesh is relative to the chunk
+		glPushMatrix();
+		glTranslatef(position.x, position.y, position.z);
+		
 		if (GL.isLegacy()) {
-			System.out.println("Legacy GL: Preparing the chunk Vertex Array!");
-			
-			// vertex array
-			float vertexArray[] = new float[vertexList.size()];
-			for (int i = 0; i < vertexList.size(); i ++)
-				vertexArray[i] = vertexList.get(i);
-			
-			// index array
-			int indexArray[] = new int[indexList.size()];
-			for (int i = 0; i < indexList.size(); i ++)
-				indexArray[i] = indexList.get(i);
+			// interleaved client arrays, 36 bytes per vertex
+			ByteBuffer vertices = mesh.getVertices();
+			glVertexPointer(3, GL_FLOAT, MeshBuffer.VERTEX_STRIDE, vertices);
+			glNormalPointer(GL_FLOAT, MeshBuffer.VERTEX_STRIDE, mesh.getNormalView());
+			glTexCoordPointer(2, GL_FLOAT, MeshBuffer.VERTEX_STRIDE, mesh.getTextureView());
+			glColorPointer(4, GL_UNSIGNED_BYTE, MeshBuffer.VERTEX_STRIDE, mesh.getColorView());
+		} else {
+			// render VBO
+			// bind the page of the MegaBuffer (World.render groups chunks by page,
+			// so this is mostly a no-op) and point at the range of this chunk
+			MegaBuffer.bind(vertexRange);
+			int offset = vertexRange.getOffset();
 			
-			// normal array
-			int normalIndex = 0;
-			int tracker = 0;
-			float normalArray[] = new float[normalList.size() * 4];
-			for (int i = 0; i < normalList.size() * 4; i += 3) {
-				normalArray[i]     = normalList.get(normalIndex);
-				normalArray[i + 1] = normalList.get(normalIndex + 1);
-				normalArray[i + 2] = normalList.get(normalIndex + 2);
-				
-				// we have to duplicate normals for 4 verts
-				tracker ++;
-				if (tracker == 4) {
-					normalIndex += 3;
-					tracker = 0;
-				}
+			if (vertexFormat == MeshBuffer.FORMAT_PACKED) {
+				// 8 bytes per vertex, 4 position bytes then 4 texture bytes.
+				// The packed chunk shader turns them into a position, normal and texture coordinate
+				glVertexAttribPointer(MeshBuffer.POSITION_ATTRIBUTE, 4, GL_UNSIGNED_BYTE, false, MeshBuffer.PACKED_VERTEX_STRIDE, offset);
+				glVertexAttribPointer(MeshBuffer.TEXTURE_ATTRIBUTE, 4, GL_UNSIGNED_BYTE, false, MeshBuffer.PACKED_VERTEX_STRIDE, offset + MeshBuffer.PACKED_TEXTURE_OFFSET);
+			} else {
+				// 36 bytes per vertex
+				// sends 3 vertex floats, then 3 normal floats, then 2 texcoord floats, then 4 color bytes
+				// (that's how we get 0, 12, 24, 32 all out of 36)
+				glVertexPointer(3, GL_FLOAT, MeshBuffer.VERTEX_STRIDE, offset);
+				glNormalPointer(GL_FLOAT, MeshBuffer.VERTEX_STRIDE, offset + MeshBuffer.NORMAL_OFFSET);
+				glTexCoordPointer(2, GL_FLOAT, MeshBuffer.VERTEX_STRIDE, offset + MeshBuffer.TEXCOORD_OFFSET);
+				glColorPointer(4, GL_UNSIGNED_BYTE, MeshBuffer.VERTEX_STRIDE, offset + MeshBuffer.COLOR_OFFSET);
 			}
-			
-			// texture array
-			float textureArray[] = new float[textureList.size()];
-			for (int i = 0; i < textureList.size(); i ++)
-				textureArray[i] = textureList.get(i);
-			
-			// now create the buffers
-			vertexArrayBuffer = Util.createBuffer(vertexArray);
-			normalArrayBuffer = Util.createBuffer(normalArray);
-			textureArrayBuffer = Util.createBuffer(textureArray);
-			indexArrayBuffer = Util.createBuffer(indexArray);
+		}
+		
+		// draw! Neighbouring face directions that are both drawn share a draw call
+		int drawn = 0;
+		if (faces == 0x3F) {
+			drawn = sectionStart[base + 6] - sectionStart[base];
+			drawQuads(sectionStart[base], drawn);
 		} else {
-			System.out.println("Preparing the chunk VBO!");
-			
-			// generate a VBO if we do not have one, 
-			// if we already have one, we will just update it
-			if (vertexBufferId == -1) {
-				System.out.println("Creating VBO!");
-				
-				// create the buffer
-				vertexBufferId = GL.genVBO();
-				indexBufferId = GL.genVBO();
-				
-				// prepare the vertex buffer
-				int bufferSize = vertexList.size() + (normalList.size() * 4) + textureList.size();
-				float buffer[] = new float[bufferSize];
-				int index = 0;
-				int normalIndex = 0;
-				int textureIndex = 0;
-				int tracker = 0;
-				for (int i = 0; i < bufferSize; i += 8) {
-					// first the vertex
-					buffer[i]     = vertexList.get(index);
-					buffer[i + 1] = vertexList.get(index + 1);
-					buffer[i + 2] = vertexList.get(index + 2);
-					
-					// and now, the normal
-					buffer[i + 3] = normalList.get(normalIndex);
-					buffer[i + 4] = normalList.get(normalIndex + 1);
-					buffer[i + 5] = normalList.get(normalIndex + 2);
-					
-					// and now the textures!
-					buffer[i + 6] = textureList.get(textureIndex);
-					buffer[i + 7] = textureList.get(textureIndex + 1);
-					
-					index += 3;
-					textureIndex += 2;
-					
-					// we have to duplicate normals for 4 verts
-					tracker ++;
-					if (tracker == 4) {
-						normalIndex += 3;
-						tracker = 0;
-					}
+			int face = 0;
+			while (face < 6) {
+				if ((faces & (1 << face)) == 0) {
+					face ++;
+					continue;
+				}
+				int first = face;
+				while (face < 6 && (faces & (1 << face)) != 0)
+					face ++;
+				int quads = sectionStart[base + face] - sectionStart[base + first];
+				if (quads > 0) {
+					drawQuads(sectionStart[base + first], quads);
+					drawn += quads;
 				}
-				GL.prepareStaticVBO(vertexBufferId, Util.createBuffer(buffer));
-				
-				// prepare the buffer for indices
-				int indexArray[] = new int[indexList.size()];
-				for (int i = 0; i < indexList.size(); i ++)
-					indexArray[i] = indexList.get(i);
-				GL.prepareStaticVBO(indexBufferId, Util.createBuffer(indexArray));
-			} else {
-				System.out.println("Updating the VBO!");
-				
-				// TODO
 			}
 		}
+		
+		glPopMatrix();
+		return drawn;
 	}
 	
 	/**
-	 * Renders the chunk
+	 * Draws a run of quads of the mesh, the vertex pointers have to be set up already
+	 * @param firstQuad the first quad
+	 * @param quads the amount of quads
 	 */
-	public void render() {
+	private void drawQuads(int firstQuad, int quads) {
 		if (GL.isLegacy()) {
-			glVertexPointer(3, 0, vertexArrayBuffer); // 3 floats per vertex, not interleaved
-			glNormalPointer(0, normalArrayBuffer); // not interleaved
-			glTexCoordPointer(2, 0, textureArrayBuffer); // 2 floats per vertex, not interleaved
-
-			glDrawElements(GL_TRIANGLES, indexArrayBuffer);
+			glDrawElements(GL_TRIANGLES, QuadIndexBuffer.getIndices(firstQuad, quads));
 		} else {
-			// render VBO			
-			// bind the VBO and tell openGL the vertex pointer offset
-			GL.bindStaticBuffer(vertexBufferId);
-			
-			// 32 bytes per vertex
-			// sends 3 vertex floats, then 3 normal floats, then 2 texcoord floats
-			// (that's how we get 0, 12, 24 all out of 32)
-			glVertexPointer(3, GL_FLOAT, 32, 0);
-			glNormalPointer(GL_FLOAT, 32, 12);
-			glTexCoordPointer(2, GL_FLOAT, 32, 24);
-			
-			// draw!
-			GL.bindStaticIndexBuffer(indexBufferId);
-			glDrawRangeElements(GL_TRIANGLES, 0, indexID, indexList.size(), GL_UNSIGNED_INT, 0);
+			// World.render binds the shared QuadIndexBuffer for every chunk, 2 bytes per index
+			glDrawRangeElements(GL_TRIANGLES, firstQuad * 4, (firstQuad + quads) * 4 - 1, quads * 6, GL_UNSIGNED_SHORT, firstQuad * 6 * 2);
 		}
 	}
 	
+	/**
+	 * Gets the face directions of the chunk that can face a point.  A face can only
+	 * be seen from in front of it, so for example no top face can be seen from below
+	 * the bottom of the chunk.
+	 * @param eye the world position of the camera, or null
+	 * @return bit (1 << FACE_X) is set for every direction that can be seen
+	 */
+	public int getFacesTowards(Vector3f eye) {
+		if (eye == null || !groupedByFace)
+			return 0x3F;
+		
+		int faces = 0;
+		if (eye.z < position.z + CHUNK_SIZE)
+			faces |= 1 << Cube.FACE_BACK;
+		if (eye.z > position.z)
+			faces |= 1 << Cube.FACE_FRONT;
+		if (eye.x > position.x)
+			faces |= 1 << Cube.FACE_RIGHT;
+		if (eye.x < position.x + CHUNK_SIZE)
+			faces |= 1 << Cube.FACE_LEFT;
+		if (eye.y < position.y + CHUNK_SIZE)
+			faces |= 1 << Cube.FACE_BOTTOM;
+		if (eye.y > position.y)
+			faces |= 1 << Cube.FACE_TOP;
+		return faces;
+	}
+	
 	/**
 	 * Sets the cube's material in a chunk
 	 * @param position the local position of the cube to modify
 	 * @param material the kind of material to use
 	 */
 	public void setCube(Vector3 position, short material) {
-		cubeList[(int)position.x][(int)position.y][(int)position.z] = material;
+		setCube((int)position.x, (int)position.y, (int)position.z, material);
+	}
+	
+	/**
+	 * Sets the cube's material in a chunk.
+	 * The mesh of the chunk is rebuilt on the next update, see World.markDirty
+	 * @param x The local X position
+	 * @param y The local Y position
+	 * @param z The local Z position
+	 * @param material the kind of material to use
+	 */
+	public void setCube(int x, int y, int z, short material) {
+		getCubes().set(x, y, z, material);
+		ChunkSaver.markModified(this);
+		
+		// the other chunks whose light changes are rebuilt on the next update too
+		LightEngine.relight(this, CubeStorage.getIndex(x, y, z));
+		World.markDirty(this);
+	}
+	
+	/**
+	 * Gets the cube's material in a chunk
+	 * @param x The local X position
+	 * @param y The local Y position
+	 * @param z The local Z position
+	 * @return the material of the cube
+	 */
+	public short getCube(int x, int y, int z) {
+		return getCubes().get(x, y, z);
+	}
+	
+	/**
+	 * Checks to see if any cube on one of the sides of the chunk is not transparent.
+	 * If a side is fully transparent, it doesn't hide anything of the neighbouring chunk.
+	 * @param side the side of the chunk (Cube.FACE_X)
+	 * @return true if the side has at least one cube that isn't transparent
+	 */
+	public boolean hasOpaqueBorder(int side) {
+		// the cubes of a cold chunk can't change without decompressing them, so its sides are always known
+		long version = getCubeVersion();
+		if (opaqueBorders == -1 || opaqueBordersVersion != version) {
+			opaqueBorders = getOpaqueBorders(getCubes());
+			opaqueBordersVersion = version;
+		}
+		return (opaqueBorders & (1 << side)) != 0;
+	}
+	
+	/**
+	 * Works out which sides of a chunk have a cube that isn't transparent
+	 * @param cubes the cubes of the chunk
+	 * @return bit Cube.FACE_X is set for every side that has one
+	 */
+	private static int getOpaqueBorders(CubeStorage cubes) {
+		if (cubes.isUniform())
+			return Cube.isTransparent(cubes.get(0)) ? 0 : 0x3F;
+		
+		int sides = 0;
+		int border = CHUNK_SIZE - 1;
+		for (int side = 0; side < 6; side ++) {
+			int offset[] = Cube.offsets[side];
+			search:
+			for (int i = 0; i < CHUNK_SIZE; i ++) {
+				for (int j = 0; j < CHUNK_SIZE; j ++) {
+					// walk the plane of the side
+					int x, y, z;
+					if (offset[0] != 0) {
+						x = offset[0] < 0 ? 0 : border;
+						y = i;
+						z = j;
+					} else if (offset[1] != 0) {
+						x = i;
+						y = offset[1] < 0 ? 0 : border;
+						z = j;
+					} else {
+						x = i;
+						y = j;
+						z = offset[2] < 0 ? 0 : border;
+					}
+					if (!Cube.isTransparent(cubes.get(x, y, z))) {
+						sides |= 1 << side;
+						break search;
+					}
+				}
+			}
+		}
+		return sides;
+	}
+	
+	/**
+	 * Checks to see if the chunk is nothing but air
+	 * @return true if every cube of the chunk is air
+	 */
+	public boolean isEmpty() {
+		// only chunks with more than one material are ever compressed
+		return cubes != null && cubes.isUniform() && cubes.get(0) == Cube.AIR;
+	}
+	
+	/**
+	 * Gets the storage that holds the cubes of the chunk.
+	 * The cubes of a cold chunk are decompressed first, which makes it hot again.
+	 * @return the cube storage
+	 */
+	public CubeStorage getCubes() {
+		if (cubes == null) {
+			cubes = new CubeStorage(Cube.AIR);
+			ChunkTiering.decompress(compressedCubes, cubes);
+			cubes.restoreVersion(coldVersion);
+			compressedCubes = null;
+		}
+		accessTime = ChunkTiering.getClock();
+		return cubes;
+	}
+	
+	/**
+	 * Gets the cubes of the chunk for reading them only, without making a cold chunk
+	 * hot again or counting as an access, so meshing next to a cold chunk leaves it cold.
+	 * @param scratch receives the cubes of a cold chunk, it is left alone if the chunk is hot
+	 * @return the cube storage of a hot chunk, or the scratch storage for a cold one
+	 */
+	public CubeStorage peekCubes(CubeStorage scratch) {
+		if (cubes != null)
+			return cubes;
+		ChunkTiering.peek(compressedCubes, scratch);
+		scratch.restoreVersion(coldVersion);
+		return scratch;
+	}
+	
+	/**
+	 * Gets the amount of heap memory used to store the cubes of the chunk
+	 * @return the memory usage in bytes, compressed if the chunk is cold
+	 */
+	public int getCubeMemoryUsage() {
+		if (cubes == null)
+			return 16 + compressedCubes.length;
+		return cubes.getMemoryUsage();
+	}
+	
+	/**
+	 * Gets the amount of memory used by the mesh the chunk keeps for drawing.  Only
+	 * legacy GL chunks keep their mesh, the others only have it on the GPU.
+	 * @return the size of the mesh buffer in bytes, 0 if the chunk has none
+	 */
+	public int getMeshMemoryUsage() {
+		return (mesh == null) ? 0 : mesh.getVertices().capacity();
+	}
+	
+	/**
+	 * Gets the version of the cubes of the chunk, without decompressing them.
+	 * A snapshot of the cubes with another version is out of date.
+	 * @return the version, see CubeStorage.getVersion
+	 */
+	public long getCubeVersion() {
+		return (cubes == null) ? coldVersion : cubes.getVersion();
+	}
+	
+	/**
+	 * Checks to see if the cubes of the chunk are compressed
+	 * @return true if the chunk is cold
+	 */
+	public boolean isCold() {
+		return cubes == null;
+	}
+	
+	/**
+	 * Gets the last time the cubes of the chunk were accessed
+	 * @return the time in ChunkTiering.getClock milliseconds
+	 */
+	public long getAccessTime() {
+		return accessTime;
+	}
+	
+	/**
+	 * Gets how much memory the chunk saves by being cold
+	 * @return the saved bytes, 0 if the chunk is hot
+	 */
+	public int getSavedMemory() {
+		return (cubes == null) ? hotMemoryUsage - getCubeMemoryUsage() : 0;
+	}
+	
+	/**
+	 * Checks to see if the chunk can be made cold, without touching its access time
+	 * @return true if the chunk is hot and has more than one material
+	 */
+	boolean canFreeze() {
+		return cubes != null && !cubes.isUniform();
+	}
+	
+	/**
+	 * Makes the chunk cold: compresses its cubes, and drops its mesh if it has its own.
+	 * Only the ChunkTiering should call this.
+	 * @param scratch space to compress into, at least ChunkCodec.MAX_ENCODED_SIZE bytes
+	 * @param dropMesh true to drop the mesh, it is rebuilt the next time the chunk is drawn
+	 */
+	void freeze(ByteBuffer scratch, boolean dropMesh) {
+		scratch.clear();
+		ChunkCodec.encode(cubes, scratch);
+		scratch.flip();
+		compressedCubes = new byte[scratch.remaining()];
+		scratch.get(compressedCubes);
 		
-		// re-create the display list or VBO
-		preRenderChunk();
+		hotMemoryUsage = cubes.getMemoryUsage();
+		coldVersion = cubes.getVersion();
+		if (opaqueBorders == -1 || opaqueBordersVersion != coldVersion) {
+			opaqueBorders = getOpaqueBorders(cubes);
+			opaqueBordersVersion = coldVersion;
+		}
+		cubes = null;
+		if (dropMesh)
+			mesh = null;
+	}
+	
+	/**
+	 * Gets the light of a cube
+	 * @param index the index of the cube, see CubeStorage.getIndex
+	 * @return the sky light in the high 4 bits and the block light in the low 4 bits
+	 */
+	public int getLight(int index) {
+		return ((light == null) ? uniformLight : light[index]) & 0xFF;
+	}
+	
+	/**
+	 * Sets the light of a cube, only the LightEngine should call this
+	 * @param index the index of the cube, see CubeStorage.getIndex
+	 * @param value the sky light in the high 4 bits and the block light in the low 4 bits
+	 */
+	void setLight(int index, int value) {
+		if (light == null) {
+			if (value == (uniformLight & 0xFF))
+				return;
+			light = new byte[CubeStorage.VOLUME];
+			Arrays.fill(light, uniformLight);
+		}
+		light[index] = (byte)value;
+	}
+	
+	/**
+	 * Sets every cube of the chunk to the same light, only the LightEngine should call this
+	 * @param value the sky light in the high 4 bits and the block light in the low 4 bits
+	 */
+	void fillLight(int value) {
+		light = null;
+		uniformLight = (byte)value;
+	}
+	
+	/**
+	 * Checks to see if every cube of the chunk has the same light
+	 * @param value the light, see getLight
+	 * @return true if every cube has that light
+	 */
+	boolean isLightUniform(int value) {
+		return light == null && (uniformLight & 0xFF) == value;
+	}
+	
+	/**
+	 * Copies the light of every cube of the chunk
+	 * @param dest receives the light by CubeStorage.getIndex, at least CubeStorage.VOLUME bytes
+	 */
+	public void copyLight(byte dest[]) {
+		if (light == null)
+			Arrays.fill(dest, 0, CubeStorage.VOLUME, uniformLight);
+		else
+			System.arraycopy(light, 0, dest, 0, CubeStorage.VOLUME);
+	}
+	
+	/**
+	 * Checks to see if the LightEngine has lit the chunk
+	 * @return true if the chunk is lit
+	 */
+	public boolean isLit() {
+		return lit;
+	}
+	
+	/**
+	 * Sets if the chunk is lit, only the LightEngine should call this
+	 * @param lit true once the chunk is lit
+	 */
+	void setLit(boolean lit) {
+		this.lit = lit;
+	}
+	
+	/**
+	 * Gets the world position of the chunk
+	 * @return the position of the cube at local position <0, 0, 0>
+	 */
+	public Vector3 getPosition() {
+		return position;
+	}
+	
+	/**
+	 * Gets the x position of the chunk in chunk coordinates
+	 * @return the chunk x coordinate
+	 */
+	public int getChunkX() {
+		return chunkX;
+	}
+	
+	/**
+	 * Gets the y position of the chunk in chunk coordinates
+	 * @return the chunk y coordinate
+	 */
+	public int getChunkY() {
+		return chunkY;
+	}
+	
+	/**
+	 * Gets the z position of the chunk in chunk coordinates
+	 * @return the chunk z coordinate
+	 */
+	public int getChunkZ() {
+		return chunkZ;
 	}
 	
 	/**
@@ -404,11 +945,6 @@ public class Chunk {
 	 * @return true if the cube is transparent at this location
 	 */
 	public boolean isTransparent(int x, int y, int z) {
-		short cube = cubeList[x][y][z];
-		if (cube == Cube.AIR)
-			return true;
-		if (cube == Cube.WATER)
-			return true;
-		return false;
+		return Cube.isTransparent(getCubes().get(x, y, z));
 	}
 }
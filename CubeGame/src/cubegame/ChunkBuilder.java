@@ -0,0 +1,357 @@
+//-----------------------------------------------------------------------------
+// ChunkBuilder.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import graphics.MeshBuffer;
+
+/**
+ * Builds chunk meshes on a pool of worker threads.
+ *
+ * The main thread takes a ChunkSnapshot of the chunk and hands it to a worker,
+ * which meshes it into a MeshBuffer.  Finished meshes are queued back up, and
+ * update() uploads them on the main thread (GL calls can only be made there),
+ * stopping once the upload budget of the frame is used up so that loading a lot
+ * of chunks at once spreads out over several frames instead of hitching.
+ *
+ * A chunk that is changed again while its mesh is being built simply requests
+ * another one, the older mesh is thrown away when it arrives (see Chunk.getMeshRequest).
+ * A mesh is also thrown away when the cubes of the chunk changed since its snapshot
+ * was taken (see Chunk.getCubeVersion), even if no other mesh was requested yet.
+ */
+public class ChunkBuilder {
+	/**
+	 * The worker threads, null when the builder isn't running
+	 */
+	private static ExecutorService workers = null;
+	private static int threadCount = 0;
+
+	/**
+	 * Every worker has its own mesher, as meshers keep scratch buffers around
+	 */
+	private static ThreadLocal<ChunkMesher> meshers = new ThreadLocal<ChunkMesher>() {
+		@Override
+		protected ChunkMesher initialValue() {
+			return new ChunkMesher();
+		}
+	};
+
+	/**
+	 * Snapshots and meshes that aren't in use, so they can be recycled
+	 */
+	private static ConcurrentLinkedQueue<ChunkSnapshot> snapshotPool = new ConcurrentLinkedQueue<ChunkSnapshot>();
+	private static ConcurrentLinkedQueue<MeshBuffer> meshPool = new ConcurrentLinkedQueue<MeshBuffer>();
+
+	/**
+	 * Jobs that have been meshed and are waiting to be uploaded
+	 */
+	private static ConcurrentLinkedQueue<MeshJob> finished = new ConcurrentLinkedQueue<MeshJob>();
+
+	/**
+	 * The amount of jobs waiting for a worker, and waiting to be uploaded
+	 */
+	private static AtomicInteger pendingJobs = new AtomicInteger();
+	private static AtomicInteger finishedJobs = new AtomicInteger();
+
+	/**
+	 * The upload budget of a frame.  At least one mesh is uploaded per frame.
+	 */
+	private static int uploadBudgetBytes = 1024 * 1024;
+	private static long uploadBudgetNanos = 2000000L;
+
+	/**
+	 * Metrics, only touched by the main thread
+	 */
+	private static float averageLatency = 0.0f;
+	private static float maxLatency = 0.0f;
+	private static float averageBuildTime = 0.0f;
+	private static int uploadedLastFrame = 0;
+	private static int discardedMeshes = 0;
+	private static int staleMeshes = 0;
+
+	/**
+	 * Starts the worker threads
+	 * @param threads the amount of worker threads, 0 or less to use one less than the amount of processors
+	 */
+	public static void init(int threads) {
+		if (workers != null)
+			return;
+		if (threads <= 0)
+			threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+		threadCount = threads;
+		workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private int count = 0;
+
+			@Override
+			public synchronized Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "ChunkBuilder-" + (count ++));
+				// never keep the game alive
+				thread.setDaemon(true);
+				thread.setPriority(Thread.NORM_PRIORITY - 1);
+				return thread;
+			}
+		});
+		System.out.println("Chunk builder started with " + threads + " threads.");
+	}
+
+	/**
+	 * Stops the worker threads, meshes that are still being built are thrown away
+	 */
+	public static void shutdown() {
+		if (workers == null)
+			return;
+		workers.shutdownNow();
+		try {
+			workers.awaitTermination(1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		workers = null;
+		finished.clear();
+		pendingJobs.set(0);
+		finishedJobs.set(0);
+	}
+
+	/**
+	 * Checks to see if the worker threads are running
+	 * @return true if meshes are built in the background
+	 */
+	public static boolean isRunning() {
+		return workers != null;
+	}
+
+	/**
+	 * Queues up a mesh build for a chunk, call Chunk.requestRebuild instead.
+	 * The chunk and its neighbours are captured right away, on the calling thread.
+	 * @param chunk the chunk to build
+	 * @param meshRequest the mesh request counter of the chunk
+	 */
+	static void request(Chunk chunk, int meshRequest) {
+		ChunkSnapshot snapshot = snapshotPool.poll();
+		if (snapshot == null)
+			snapshot = new ChunkSnapshot();
+		snapshot.capture(chunk);
+
+		MeshBuffer mesh = meshPool.poll();
+		if (mesh == null || mesh.getFormat() != ChunkMesher.getVertexFormat())
+			mesh = new MeshBuffer(Chunk.INITIAL_MESH_QUADS, ChunkMesher.getVertexFormat());
+
+		pendingJobs.incrementAndGet();
+		workers.execute(new MeshJob(chunk, meshRequest, snapshot, mesh));
+	}
+
+	/**
+	 * Uploads the meshes that have finished building, until the upload budget of the frame
+	 * is used up.  Call this once per frame on the main thread.
+	 */
+	public static void update() {
+		long start = System.nanoTime();
+		int bytes = 0;
+		uploadedLastFrame = 0;
+
+		MeshJob job;
+		while ((job = finished.poll()) != null) {
+			finishedJobs.decrementAndGet();
+			Chunk chunk = job.chunk;
+
+			// the chunk was changed or removed since this mesh was requested
+			if (chunk.isDestroyed() || chunk.getMeshRequest() != job.meshRequest) {
+				discardedMeshes ++;
+				recycle(job.snapshot, job.mesh);
+				continue;
+			}
+
+			// the cubes changed without a new mesh being requested yet, make sure one is
+			if (chunk.getCubeVersion() != job.snapshot.getVersion()) {
+				discardedMeshes ++;
+				staleMeshes ++;
+				recycle(job.snapshot, job.mesh);
+				World.markDirty(chunk);
+				continue;
+			}
+
+			// counted before the upload, as the mesh may go back to the pool with the snapshot
+			bytes += job.mesh.getVertexCount() * job.mesh.getVertexStride();
+			MeshBuffer unused = chunk.preRenderChunk(job.mesh, job.visibility);
+			recycle(job.snapshot, unused);
+
+			float latency = (System.nanoTime() - job.requestTime) / 1000000.0f;
+			averageLatency = averageLatency * 0.9f + latency * 0.1f;
+			averageBuildTime = averageBuildTime * 0.9f + (job.buildTime / 1000000.0f) * 0.1f;
+			if (latency > maxLatency)
+				maxLatency = latency;
+
+			uploadedLastFrame ++;
+			if (bytes >= uploadBudgetBytes || System.nanoTime() - start >= uploadBudgetNanos)
+				break;
+		}
+	}
+
+	/**
+	 * Returns a snapshot and a mesh to their pools
+	 * @param snapshot the snapshot, or null
+	 * @param mesh the mesh, or null
+	 */
+	private static void recycle(ChunkSnapshot snapshot, MeshBuffer mesh) {
+		if (snapshot != null) {
+			snapshot.release();
+			snapshotPool.add(snapshot);
+		}
+		if (mesh != null)
+			meshPool.add(mesh);
+	}
+
+	/**
+	 * Sets the amount of mesh data that may be uploaded per frame
+	 * @param bytes the maximum amount of bytes uploaded per frame
+	 * @param milliseconds the maximum amount of time spent uploading per frame
+	 */
+	public static void setUploadBudget(int bytes, float milliseconds) {
+		uploadBudgetBytes = bytes;
+		uploadBudgetNanos = (long)(milliseconds * 1000000.0f);
+	}
+
+	/**
+	 * Gets the amount of worker threads
+	 * @return the thread count, 0 when not running
+	 */
+	public static int getThreadCount() {
+		return isRunning() ? threadCount : 0;
+	}
+
+	/**
+	 * Gets the amount of meshes that are either being built or waiting to be uploaded
+	 * @return the queue depth
+	 */
+	public static int getQueueDepth() {
+		return pendingJobs.get() + finishedJobs.get();
+	}
+
+	/**
+	 * Gets the average time from requesting a mesh until it is uploaded
+	 * @return the latency in milliseconds
+	 */
+	public static float getAverageLatency() {
+		return averageLatency;
+	}
+
+	/**
+	 * Gets the longest time from requesting a mesh until it was uploaded
+	 * @return the latency in milliseconds
+	 */
+	public static float getMaxLatency() {
+		return maxLatency;
+	}
+
+	/**
+	 * Gets the average time a worker spends meshing a chunk
+	 * @return the build time in milliseconds
+	 */
+	public static float getAverageBuildTime() {
+		return averageBuildTime;
+	}
+
+	/**
+	 * Gets the amount of meshes uploaded during the last update
+	 * @return the upload count
+	 */
+	public static int getUploadedLastFrame() {
+		return uploadedLastFrame;
+	}
+
+	/**
+	 * Gets the amount of meshes that were out of date by the time they finished
+	 * @return the discarded mesh count
+	 */
+	public static int getDiscardedMeshes() {
+		return discardedMeshes;
+	}
+
+	/**
+	 * Gets the amount of meshes that were thrown away because the cubes of their chunk
+	 * changed before any newer mesh was requested
+	 * @return the stale mesh count, included in getDiscardedMeshes
+	 */
+	public static int getStaleMeshes() {
+		return staleMeshes;
+	}
+
+	/**
+	 * A single mesh build, run on a worker thread
+	 */
+	private static class MeshJob implements Runnable {
+		final Chunk chunk;
+		final int meshRequest;
+		final ChunkSnapshot snapshot;
+		final MeshBuffer mesh;
+		final long requestTime;
+		long buildTime;
+		long visibility = ChunkVisibility.ALL;
+
+		MeshJob(Chunk chunk, int meshRequest, ChunkSnapshot snapshot, MeshBuffer mesh) {
+			this.chunk = chunk;
+			this.meshRequest = meshRequest;
+			this.snapshot = snapshot;
+			this.mesh = mesh;
+			this.requestTime = System.nanoTime();
+		}
+
+		@Override
+		public void run() {
+			try {
+				ChunkMesher mesher = meshers.get();
+				mesher.build(snapshot, mesh);
+				buildTime = mesher.getBuildTime();
+				visibility = mesher.getVisibility();
+			} catch (RuntimeException e) {
+				// upload an empty mesh rather than leaving the chunk waiting
+				e.printStackTrace();
+				mesh.clear();
+				mesh.finish();
+			} finally {
+				finishedJobs.incrementAndGet();
+				finished.add(this);
+				pendingJobs.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,324 @@
+//-----------------------------------------------------------------------------
+// ChunkCodec.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the cubes of a chunk into a compact form, for saving.
+ *
+ * An encoded chunk is a format byte, the palette of materials that are actually
+ * used, and then tokens that cover the cubes in CubeStorage index order (y major,
+ * the order they are stored in).  There are two formats:
+ *
+ * FORMAT_RLE only has runs, each a varint length and a varint palette index.
+ * Terrain is made of horizontal layers, so a layer is usually a handful of runs
+ * and a uniform chunk is a single one.
+ *
+ * FORMAT_LZ runs the same runs through a fast LZ pass: a stretch of cubes that
+ * repeats what is a row (16 cubes), a layer (256 cubes) or a hashed earlier
+ * position back is replaced with a match, a varint length and a varint distance.
+ * Layers of dirt with a few grass or water cubes in them mostly become a single
+ * match.  The length of each token is shifted up by one, with the low bit set for
+ * matches.  Matches copy cubes that are already decoded, so decoding writes
+ * straight into the CubeStorage without any buffer in between.
+ */
+public class ChunkCodec {
+	/**
+	 * The format byte of run length encoded chunks
+	 */
+	public static final byte FORMAT_RLE = 1;
+
+	/**
+	 * The format byte of run length encoded chunks with LZ matches
+	 */
+	public static final byte FORMAT_LZ = 2;
+
+	/**
+	 * The most bytes an encoded chunk can take: the header, a different material
+	 * for every cube and a token of at most 2 + 2 bytes for every cube
+	 */
+	public static final int MAX_ENCODED_SIZE = 3 + 6 * CubeStorage.VOLUME;
+
+	/**
+	 * Matches shorter than this are encoded as runs
+	 */
+	private static final int MIN_MATCH = 6;
+
+	private static final int HASH_BITS = 12;
+	private static final int HASH_LENGTH = 4;
+
+	/**
+	 * Scratch space for encoding, one per thread
+	 */
+	private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * Encodes the cubes of a chunk with FORMAT_LZ
+	 * @param cubes the cubes
+	 * @param out receives the encoded chunk at its position, at most MAX_ENCODED_SIZE bytes
+	 */
+	public static void encode(CubeStorage cubes, ByteBuffer out) {
+		encode(cubes, out, FORMAT_LZ);
+	}
+
+	/**
+	 * Encodes the cubes of a chunk
+	 * @param cubes the cubes
+	 * @param out receives the encoded chunk at its position, at most MAX_ENCODED_SIZE bytes
+	 * @param format FORMAT_RLE or FORMAT_LZ
+	 */
+	public static void encode(CubeStorage cubes, ByteBuffer out, byte format) {
+		if (format != FORMAT_RLE && format != FORMAT_LZ)
+			throw new IllegalArgumentException("Unknown chunk format " + format);
+		out.put(format);
+
+		int shift = (format == FORMAT_LZ) ? 1 : 0;
+		if (cubes.isUniform()) {
+			out.putShort((short)1);
+			out.putShort(cubes.get(0));
+			putVarint(out, CubeStorage.VOLUME << shift);
+			putVarint(out, 0);
+			return;
+		}
+
+		// the palette of the storage can hold materials that aren't used anymore, so build a new one
+		Scratch scratch = ChunkCodec.scratch.get();
+		short indices[] = scratch.indices;
+		int paletteStart = out.position();
+		out.putShort((short)0);
+		int paletteSize = 0;
+		for (int i = 0; i < CubeStorage.VOLUME; i ++) {
+			short material = cubes.get(i);
+			int slot = material + 1;
+			if (slot >= scratch.lookup.length) {
+				short grown[] = new short[Math.max(slot + 1, scratch.lookup.length * 2)];
+				System.arraycopy(scratch.lookup, 0, grown, 0, scratch.lookup.length);
+				scratch.lookup = grown;
+			}
+			if (scratch.lookup[slot] == 0) {
+				scratch.palette[paletteSize] = material;
+				scratch.lookup[slot] = (short)(++ paletteSize);
+				out.putShort(material);
+			}
+			indices[i] = (short)(scratch.lookup[slot] - 1);
+		}
+		out.putShort(paletteStart, (short)paletteSize);
+		for (int i = 0; i < paletteSize; i ++)
+			scratch.lookup[scratch.palette[i] + 1] = 0;
+
+		if (format == FORMAT_RLE)
+			encodeRuns(indices, out);
+		else
+			encodeMatches(indices, scratch.hashHeads, out);
+	}
+
+	/**
+	 * Decodes a chunk into a storage, in either format
+	 * @param in the encoded chunk from its position, it is read up to the end of the chunk
+	 * @param cubes receives the cubes, everything in it is overwritten
+	 * @throws IllegalArgumentException if the data isn't an encoded chunk
+	 */
+	public static void decode(ByteBuffer in, CubeStorage cubes) {
+		try {
+			byte format = in.get();
+			if (format != FORMAT_RLE && format != FORMAT_LZ)
+				throw new IllegalArgumentException("Unknown chunk format " + format);
+			int shift = (format == FORMAT_LZ) ? 1 : 0;
+
+			// the palette is read where it is, instead of copying it out
+			int paletteSize = in.getShort() & 0xFFFF;
+			int paletteStart = in.position();
+			if (paletteSize == 0)
+				throw new IllegalArgumentException("Chunk without materials");
+			in.position(paletteStart + paletteSize * 2);
+			cubes.fill(in.getShort(paletteStart));
+
+			int index = 0;
+			while (index < CubeStorage.VOLUME) {
+				int header = getVarint(in);
+				int length = header >>> shift;
+				int value = getVarint(in);
+				if (length <= 0 || index + length > CubeStorage.VOLUME)
+					throw new IllegalArgumentException("Corrupt chunk token at cube " + index);
+
+				if (shift == 0 || (header & 1) == 0) {
+					if (value >= paletteSize)
+						throw new IllegalArgumentException("Corrupt palette index at cube " + index);
+					cubes.setRun(index, length, in.getShort(paletteStart + value * 2));
+				} else {
+					if (value <= 0 || value > index)
+						throw new IllegalArgumentException("Corrupt match at cube " + index);
+					cubes.copyRun(index - value, index, length);
+				}
+				index += length;
+			}
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Chunk data ends early");
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("Chunk palette ends early");
+		}
+	}
+
+	/**
+	 * Writes the cubes as runs only
+	 */
+	private static void encodeRuns(short indices[], ByteBuffer out) {
+		int index = 0;
+		while (index < CubeStorage.VOLUME) {
+			int run = getRunLength(indices, index);
+			putVarint(out, run);
+			putVarint(out, indices[index]);
+			index += run;
+		}
+	}
+
+	/**
+	 * Writes the cubes as runs and matches.  Only the start of each token is hashed,
+	 * which finds fewer matches than hashing every cube but keeps this fast.
+	 */
+	private static void encodeMatches(short indices[], int hashHeads[], ByteBuffer out) {
+		for (int i = 0; i < hashHeads.length; i ++)
+			hashHeads[i] = -1;
+
+		int index = 0;
+		while (index < CubeStorage.VOLUME) {
+			int run = getRunLength(indices, index);
+
+			// the row and the layer below are the most likely to repeat, then whatever hashed the same
+			int bestLength = getMatchLength(indices, index, CubeStorage.SIZE);
+			int bestDistance = CubeStorage.SIZE;
+			int length = getMatchLength(indices, index, CubeStorage.SIZE * CubeStorage.SIZE);
+			if (length > bestLength) {
+				bestLength = length;
+				bestDistance = CubeStorage.SIZE * CubeStorage.SIZE;
+			}
+			if (index + HASH_LENGTH <= CubeStorage.VOLUME) {
+				int hash = getHash(indices, index);
+				int candidate = hashHeads[hash];
+				hashHeads[hash] = index;
+				if (candidate != -1) {
+					length = getMatchLength(indices, index, index - candidate);
+					if (length > bestLength) {
+						bestLength = length;
+						bestDistance = index - candidate;
+					}
+				}
+			}
+
+			if (bestLength >= MIN_MATCH && bestLength > run) {
+				putVarint(out, (bestLength << 1) | 1);
+				putVarint(out, bestDistance);
+				index += bestLength;
+			} else {
+				putVarint(out, run << 1);
+				putVarint(out, indices[index]);
+				index += run;
+			}
+		}
+	}
+
+	private static int getRunLength(short indices[], int index) {
+		int end = index + 1;
+		while (end < CubeStorage.VOLUME && indices[end] == indices[index])
+			end ++;
+		return end - index;
+	}
+
+	/**
+	 * Gets how many cubes from index on repeat the cubes distance back
+	 */
+	private static int getMatchLength(short indices[], int index, int distance) {
+		if (distance > index)
+			return 0;
+		int end = index;
+		while (end < CubeStorage.VOLUME && indices[end] == indices[end - distance])
+			end ++;
+		return end - index;
+	}
+
+	private static int getHash(short indices[], int index) {
+		int hash = 0;
+		for (int i = 0; i < HASH_LENGTH; i ++)
+			hash = hash * 31 + indices[index + i];
+		return (hash * 0x9E3779B1) >>> (32 - HASH_BITS);
+	}
+
+	private static void putVarint(ByteBuffer out, int value) {
+		while ((value & ~0x7F) != 0) {
+			out.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte)value);
+	}
+
+	private static int getVarint(ByteBuffer in) {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IllegalArgumentException("Corrupt varint");
+	}
+
+	/**
+	 * The buffers of an encode, kept around so encoding doesn't allocate
+	 */
+	private static class Scratch {
+		/**
+		 * The palette index of every cube
+		 */
+		final short indices[] = new short[CubeStorage.VOLUME];
+
+		/**
+		 * The palette being built, and the palette index + 1 of each material by material + 1
+		 */
+		final short palette[] = new short[CubeStorage.VOLUME];
+		short lookup[] = new short[16];
+
+		/**
+		 * The last cube each hash was seen at
+		 */
+		final int hashHeads[] = new int[1 << HASH_BITS];
+	}
+}
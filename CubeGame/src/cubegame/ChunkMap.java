@@ -0,0 +1,203 @@
+//-----------------------------------------------------------------------------
+// ChunkMap.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from packed chunk coordinates (see World.getChunkKey)
+ * to chunks.  Keys are kept in a primitive long array, so lookups never box a key
+ * or allocate anything.  Collisions are resolved with linear probing, and removals
+ * shift the following entries back instead of leaving tombstones behind.
+ */
+public class ChunkMap {
+	/**
+	 * Marks an empty slot.  Packed chunk keys only use the lower 63 bits.
+	 */
+	private static final long EMPTY = -1L;
+
+	/**
+	 * The initial amount of slots.  The map doubles once it is more than half full.
+	 */
+	private static final int MIN_CAPACITY = 16;
+
+	private long keys[];
+	private Chunk values[];
+	private int mask;
+	private int size = 0;
+
+	/**
+	 * Creates an empty chunk map
+	 */
+	public ChunkMap() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/**
+	 * Gets the chunk stored under a key
+	 * @param key the packed chunk coordinates
+	 * @return the chunk, or null if there is none
+	 */
+	public Chunk get(long key) {
+		int slot = hash(key) & mask;
+		long k;
+		while ((k = keys[slot]) != EMPTY) {
+			if (k == key)
+				return values[slot];
+			slot = (slot + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Stores a chunk under a key, replacing the chunk that was there
+	 * @param key the packed chunk coordinates
+	 * @param chunk the chunk
+	 * @return the chunk that was replaced, or null
+	 */
+	public Chunk put(long key, Chunk chunk) {
+		int slot = hash(key) & mask;
+		long k;
+		while ((k = keys[slot]) != EMPTY) {
+			if (k == key) {
+				Chunk old = values[slot];
+				values[slot] = chunk;
+				return old;
+			}
+			slot = (slot + 1) & mask;
+		}
+
+		keys[slot] = key;
+		values[slot] = chunk;
+		size ++;
+		if (size * 2 > keys.length)
+			resize(keys.length * 2);
+		return null;
+	}
+
+	/**
+	 * Removes the chunk stored under a key
+	 * @param key the packed chunk coordinates
+	 * @return the chunk that was removed, or null
+	 */
+	public Chunk remove(long key) {
+		int slot = hash(key) & mask;
+		long k;
+		while ((k = keys[slot]) != key) {
+			if (k == EMPTY)
+				return null;
+			slot = (slot + 1) & mask;
+		}
+		Chunk old = values[slot];
+
+		// shift back the entries after it that would no longer be found
+		int next = (slot + 1) & mask;
+		while ((k = keys[next]) != EMPTY) {
+			int home = hash(k) & mask;
+			// move the entry if its home slot isn't cyclically between the hole and it
+			if (((next - home) & mask) >= ((next - slot) & mask)) {
+				keys[slot] = k;
+				values[slot] = values[next];
+				slot = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[slot] = EMPTY;
+		values[slot] = null;
+		size --;
+		return old;
+	}
+
+	/**
+	 * Gets the amount of chunks in the map
+	 * @return the chunk count
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes every chunk from the map
+	 */
+	public void clear() {
+		allocate(MIN_CAPACITY);
+		size = 0;
+	}
+
+	/**
+	 * Mixes the bits of a key so that neighbouring chunks spread over the table
+	 * @param key the packed chunk coordinates
+	 * @return the hash
+	 */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int)key;
+	}
+
+	/**
+	 * Allocates empty tables
+	 * @param capacity the amount of slots, a power of two
+	 */
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Chunk[capacity];
+		mask = capacity - 1;
+		Arrays.fill(keys, EMPTY);
+	}
+
+	/**
+	 * Moves every entry into a larger table
+	 * @param capacity the new amount of slots, a power of two
+	 */
+	private void resize(int capacity) {
+		long oldKeys[] = keys;
+		Chunk oldValues[] = values;
+		allocate(capacity);
+
+		for (int i = 0; i < oldKeys.length; i ++) {
+			long key = oldKeys[i];
+			if (key == EMPTY)
+				continue;
+
+			int slot = hash(key) & mask;
+			while (keys[slot] != EMPTY)
+				slot = (slot + 1) & mask;
+			keys[slot] = key;
+			values[slot] = oldValues[i];
+		}
+	}
+}
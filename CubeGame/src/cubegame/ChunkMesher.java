@@ -0,0 +1,521 @@
+//-----------------------------------------------------------------------------
+// ChunkMesher.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import graphics.MeshBuffer;
+
+/**
+ * The ChunkMesher turns the cubes of a chunk into a mesh.  It supports two modes:
+ *
+ * - Naive: one quad for every exposed cube face, texture coordinates point
+ *   straight into the texture map.
+ * - Greedy: exposed faces of the same material that lie in the same plane are
+ *   merged into larger quads.  Since a merged quad spans several cubes, its texture
+ *   has to repeat inside of a single tile of the texture map, which is done by the
+ *   chunk shader.  Texture coordinates are stored as (tile * TILE_STRIDE + u, v)
+ *   where u and v are in cube units, see res/shaders/chunk.vert.
+ *
+ * Every face is lit with the light of the cube in front of it (see LightEngine).
+ * Float vertices carry it as their color, packed vertices in their last byte,
+ * which the packed chunk shader turns into a brightness.  Greedy meshing only
+ * merges faces with the same light.
+ *
+ * Opaque and translucent cubes (water) go into separate layers of the mesh
+ * (see MeshBuffer.beginLayer), as translucent cubes have to be drawn after
+ * everything else.  No faces are built between two cubes of the same
+ * translucent material.
+ *
+ * A mesher keeps scratch space around, so use one per thread.
+ */
+public class ChunkMesher {
+	public static final int MODE_NAIVE = 0;
+	public static final int MODE_GREEDY = 1;
+
+	/**
+	 * The tile index is stored in the u texture coordinate as a multiple of this.
+	 * It has to be larger than the widest quad (the chunk size).
+	 */
+	public static final int TILE_STRIDE = 32;
+
+	/**
+	 * The axis that is perpendicular to each face (0 = x, 1 = y, 2 = z)
+	 */
+	private static final int FACE_AXIS[] = { 2, 2, 0, 0, 1, 1 };
+
+	/**
+	 * The axes the u and v texture coordinates of each face run along.
+	 * These follow the corners that getUVTextureMapD gives to Cube.vertices.
+	 */
+	private static final int FACE_U_AXIS[] = { 0, 0, 2, 2, 0, 0 };
+	private static final int FACE_V_AXIS[] = { 1, 1, 1, 1, 2, 2 };
+
+	/**
+	 * The texture corner of each of the 4 vertices of a face, in tile units
+	 */
+	private static final float CORNER_U[] = { 0.0f, 1.0f, 1.0f, 0.0f };
+	private static final float CORNER_V[] = { 1.0f, 1.0f, 0.0f, 0.0f };
+
+	/**
+	 * The vertex color of each light value (see Chunk.getLight) as 0xRRGGBB00, the alpha is added per layer
+	 */
+	private static final int LIGHT_COLORS[] = new int[256];
+
+	static {
+		for (int light = 0; light < LIGHT_COLORS.length; light ++) {
+			int gray = Math.round(LightEngine.getBrightness(light) * 255.0f);
+			LIGHT_COLORS[light] = (gray << 24) | (gray << 16) | (gray << 8);
+		}
+	}
+
+	/**
+	 * The alpha of the vertex colors of each layer
+	 */
+	private static final int OPAQUE_ALPHA = 255;
+	private static final int TRANSLUCENT_ALPHA = Math.round(World.TRANSLUCENT_ALPHA * 255.0f);
+
+	/**
+	 * A cell of the greedy mask without a visible face
+	 */
+	private static final int NO_FACE = -1;
+
+	/**
+	 * The mode that chunks are meshed with
+	 */
+	private static int mode = MODE_NAIVE;
+
+	/**
+	 * The vertex layout meshes are built with, MeshBuffer.FORMAT_X
+	 */
+	private static int vertexFormat = MeshBuffer.FORMAT_FLOAT;
+
+	/**
+	 * Statistics of the last chunk that was built
+	 */
+	private int quadCount = 0;
+	private long buildTime = 0;
+
+	/**
+	 * Which faces of the last chunk that was built can see each other
+	 */
+	private ChunkVisibility visibilityGraph = new ChunkVisibility();
+	private long visibility = ChunkVisibility.ALL;
+
+	/**
+	 * Visible faces of one slice of the chunk, used by greedy meshing.  Each is the
+	 * material in the low 16 bits and the light of the face above it, or NO_FACE.
+	 */
+	private int mask[] = new int[Chunk.CHUNK_SIZE * Chunk.CHUNK_SIZE];
+
+	/**
+	 * Scratch space for the texture coordinates of a single face
+	 */
+	private float faceUVs[] = new float[8];
+
+	/**
+	 * Scratch space for the origin and size of the quad being emitted
+	 */
+	private int cell[] = new int[3];
+	private int size[] = new int[3];
+
+	/**
+	 * The light of the quad being emitted
+	 */
+	private int light = 0;
+
+	/**
+	 * True while the translucent layer is built, only translucent cubes get faces then
+	 */
+	private boolean translucent = false;
+
+	/**
+	 * Sets the mode that chunks are meshed with
+	 * @param meshMode MODE_NAIVE or MODE_GREEDY
+	 */
+	public static void setMode(int meshMode) {
+		mode = meshMode;
+	}
+
+	/**
+	 * Gets the mode that chunks are meshed with
+	 * @return MODE_NAIVE or MODE_GREEDY
+	 */
+	public static int getMode() {
+		return mode;
+	}
+
+	/**
+	 * Sets the vertex layout meshes are built with.  The packed layout needs
+	 * the packed chunk shader to draw it.
+	 * @param format MeshBuffer.FORMAT_FLOAT or MeshBuffer.FORMAT_PACKED
+	 */
+	public static void setVertexFormat(int format) {
+		vertexFormat = format;
+	}
+
+	/**
+	 * Gets the vertex layout meshes are built with
+	 * @return MeshBuffer.FORMAT_FLOAT or MeshBuffer.FORMAT_PACKED
+	 */
+	public static int getVertexFormat() {
+		return vertexFormat;
+	}
+
+	/**
+	 * Builds the mesh of a chunk.  Faces on the border of the chunk are culled
+	 * against the neighbouring chunks captured by the snapshot.
+	 * @param chunk the snapshot of the chunk to mesh
+	 * @param mesh the mesh to build into, it is cleared first and finished afterwards
+	 */
+	public void build(ChunkSnapshot chunk, MeshBuffer mesh) {
+		long start = System.nanoTime();
+		mesh.clear();
+
+		CubeStorage cubes = chunk.getCubes();
+		if (cubes.isUniform() && !Cube.isTransparent(cubes.get(0))) {
+			// a solid chunk can only show faces on its outside
+			buildUniform(chunk, mesh);
+		} else if (!cubes.isUniform() || cubes.get(0) != Cube.AIR) {
+			// an all air chunk has nothing to build
+			buildLayer(chunk, mesh, false);
+			if (hasTranslucent(cubes)) {
+				mesh.beginLayer(MeshBuffer.LAYER_TRANSLUCENT);
+				buildLayer(chunk, mesh, true);
+			}
+		}
+
+		// get the buffers ready for openGL
+		mesh.finish();
+		visibility = visibilityGraph.compute(cubes);
+
+		quadCount = mesh.getVertexCount() / 4;
+		buildTime = System.nanoTime() - start;
+	}
+
+	/**
+	 * Gets the amount of quads of the last chunk that was built
+	 * @return the quad count (2 triangles per quad)
+	 */
+	public int getQuadCount() {
+		return quadCount;
+	}
+
+	/**
+	 * Gets which faces of the last chunk that was built are connected
+	 * @return the visibility bits, see ChunkVisibility.isConnected
+	 */
+	public long getVisibility() {
+		return visibility;
+	}
+
+	/**
+	 * Gets how long it took to build the last chunk
+	 * @return the build time in nanoseconds
+	 */
+	public long getBuildTime() {
+		return buildTime;
+	}
+
+	/**
+	 * Builds the faces of either the opaque or the translucent cubes
+	 * @param chunk the snapshot of the chunk to mesh
+	 * @param mesh the mesh to build into
+	 * @param translucentLayer true to build the translucent cubes
+	 */
+	private void buildLayer(ChunkSnapshot chunk, MeshBuffer mesh, boolean translucentLayer) {
+		translucent = translucentLayer;
+		if (mode == MODE_GREEDY)
+			buildGreedy(chunk, mesh);
+		else
+			buildNaive(chunk, mesh);
+		translucent = false;
+	}
+
+	/**
+	 * Checks to see if a chunk may have translucent cubes
+	 * @param cubes the cubes of the chunk
+	 * @return false if none of the materials of the chunk are translucent
+	 */
+	private static boolean hasTranslucent(CubeStorage cubes) {
+		for (int i = 0; i < cubes.getPaletteSize(); i ++) {
+			if (Cube.isTranslucent(cubes.getPaletteMaterial(i)))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Builds one quad for every visible cube face.  The chunk is walked once for
+	 * every face direction, so the quads come out grouped by direction.
+	 * @param chunk the snapshot of the chunk to mesh
+	 * @param mesh the mesh to build into
+	 */
+	private void buildNaive(ChunkSnapshot chunk, MeshBuffer mesh) {
+		int size = Chunk.CHUNK_SIZE;
+
+		int x, y, z;
+		short material;
+		for (int side = 0; side < 6; side ++) {
+			mesh.beginFace(side);
+			for (x = 0; x < size; x ++) {
+				for (z = 0; z < size; z ++) {
+					for (y = 0; y < size; y ++) {
+						// if it is air, or in the other layer, we render no sides!
+						material = getVisibleFace(chunk, x, y, z, side);
+						if (material != Cube.AIR)
+							buildFace(chunk, mesh, x, y, z, side, material);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Builds a face for a cube, lit by the cube in front of it
+	 * @param chunk the snapshot of the chunk to mesh
+	 * @param mesh the mesh to build into
+	 * @param x cube x position
+	 * @param y cube y position
+	 * @param z cube z position
+	 * @param side the face of the cube
+	 * @param material the material to render on the face
+	 */
+	private void buildFace(ChunkSnapshot chunk, MeshBuffer mesh, int x, int y, int z, int side, short material) {
+		int offset[] = Cube.offsets[side];
+		light = chunk.getLight(x + offset[0], y + offset[1], z + offset[2]);
+		cell[0] = x;
+		cell[1] = y;
+		cell[2] = z;
+		size[0] = 1;
+		size[1] = 1;
+		size[2] = 1;
+		buildQuad(mesh, side, material);
+	}
+
+	/**
+	 * Builds the chunk by sweeping every slice of the chunk for each face direction,
+	 * and merging the visible faces of each slice into as few rectangles as possible.
+	 * The quads come out grouped by direction.
+	 * @param chunk the snapshot of the chunk to mesh
+	 * @param mesh the mesh to build into
+	 */
+	private void buildGreedy(ChunkSnapshot chunk, MeshBuffer mesh) {
+		for (int side = 0; side < 6; side ++) {
+			mesh.beginFace(side);
+			for (int slice = 0; slice < Chunk.CHUNK_SIZE; slice ++)
+				buildGreedySlice(chunk, mesh, side, slice);
+		}
+	}
+
+	/**
+	 * Builds the faces of a single slice of the chunk in one direction, merging
+	 * the visible faces into as few rectangles as possible.
+	 * @param chunk the snapshot of the chunk to mesh
+	 * @param mesh the mesh to build into
+	 * @param side the face direction
+	 * @param slice the slice along the axis of the face
+	 */
+	private void buildGreedySlice(ChunkSnapshot chunk, MeshBuffer mesh, int side, int slice) {
+		int chunkSize = Chunk.CHUNK_SIZE;
+		int n = FACE_AXIS[side];
+		int a = (n + 1) % 3;
+		int b = (n + 2) % 3;
+
+		// find the visible faces of this slice, and their light
+		int offset[] = Cube.offsets[side];
+		cell[n] = slice;
+		for (int j = 0; j < chunkSize; j ++) {
+			cell[b] = j;
+			for (int i = 0; i < chunkSize; i ++) {
+				cell[a] = i;
+				short material = getVisibleFace(chunk, cell[0], cell[1], cell[2], side);
+				if (material == Cube.AIR)
+					mask[i + j * chunkSize] = NO_FACE;
+				else
+					mask[i + j * chunkSize] = (chunk.getLight(cell[0] + offset[0], cell[1] + offset[1], cell[2] + offset[2]) << 16) | (material & 0xFFFF);
+			}
+		}
+
+		// merge them into rectangles
+		for (int j = 0; j < chunkSize; j ++) {
+			for (int i = 0; i < chunkSize; ) {
+				int face = mask[i + j * chunkSize];
+				if (face == NO_FACE) {
+					i ++;
+					continue;
+				}
+
+				// grow along a as far as the material and the light go
+				int width = 1;
+				while (i + width < chunkSize && mask[i + width + j * chunkSize] == face)
+					width ++;
+
+				// then grow along b while the whole row matches
+				int height = 1;
+				grow:
+				while (j + height < chunkSize) {
+					for (int k = 0; k < width; k ++) {
+						if (mask[i + k + (j + height) * chunkSize] != face)
+							break grow;
+					}
+					height ++;
+				}
+
+				// emit it and remove it from the mask
+				cell[n] = slice;
+				cell[a] = i;
+				cell[b] = j;
+				size[n] = 1;
+				size[a] = width;
+				size[b] = height;
+				light = face >>> 16;
+				buildQuad(mesh, side, (short)face);
+
+				for (int h = 0; h < height; h ++) {
+					for (int k = 0; k < width; k ++)
+						mask[i + k + (j + h) * chunkSize] = NO_FACE;
+				}
+				i += width;
+			}
+		}
+	}
+
+	/**
+	 * Builds a chunk that is a single opaque material.  Every cube inside of it is
+	 * hidden, so only the outermost slice in each direction is looked at.
+	 * @param chunk the snapshot of the chunk to mesh
+	 * @param mesh the mesh to build into
+	 */
+	private void buildUniform(ChunkSnapshot chunk, MeshBuffer mesh) {
+		int chunkSize = Chunk.CHUNK_SIZE;
+		short material = chunk.getCubes().get(0);
+
+		for (int side = 0; side < 6; side ++) {
+			mesh.beginFace(side);
+			int n = FACE_AXIS[side];
+			int slice = Cube.offsets[side][n] < 0 ? 0 : chunkSize - 1;
+
+			if (mode == MODE_GREEDY) {
+				buildGreedySlice(chunk, mesh, side, slice);
+				continue;
+			}
+
+			int a = (n + 1) % 3;
+			int b = (n + 2) % 3;
+			cell[n] = slice;
+			for (int j = 0; j < chunkSize; j ++) {
+				cell[b] = j;
+				for (int i = 0; i < chunkSize; i ++) {
+					cell[a] = i;
+					if (getVisibleFace(chunk, cell[0], cell[1], cell[2], side) != Cube.AIR)
+						buildFace(chunk, mesh, cell[0], cell[1], cell[2], side, material);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the material of a cube face if the face is visible
+	 * @param chunk the snapshot of the chunk
+	 * @param x cube x position
+	 * @param y cube y position
+	 * @param z cube z position
+	 * @param side the face of the cube
+	 * @return the material of the face, or Cube.AIR if it isn't visible or isn't part of the layer being built
+	 */
+	private short getVisibleFace(ChunkSnapshot chunk, int x, int y, int z, int side) {
+		short material = chunk.getCube(x, y, z);
+		if (material == Cube.AIR || Cube.isTranslucent(material) != translucent)
+			return Cube.AIR;
+
+		int offset[] = Cube.offsets[side];
+		short neighbour = chunk.getCube(x + offset[0], y + offset[1], z + offset[2]);
+		return (Cube.isTransparent(neighbour) && neighbour != material) ? material : Cube.AIR;
+	}
+
+	/**
+	 * Builds a quad from cell and size, which hold the origin and the extent of the
+	 * quad in cubes, lit with light.  The unit face from Cube.vertices is stretched over it.
+	 * Positions are relative to the chunk, the chunk is translated when it is drawn.
+	 * @param mesh the mesh to build into
+	 * @param side the face
+	 * @param material the material to render on the face
+	 */
+	private void buildQuad(MeshBuffer mesh, int side, short material) {
+		float buffer[] = Cube.vertices[side];
+		int uSize = size[FACE_U_AXIS[side]];
+		int vSize = size[FACE_V_AXIS[side]];
+
+		if (mesh.getFormat() == MeshBuffer.FORMAT_PACKED) {
+			// the shader repeats the tile across the quad, and looks up the normal from the face
+			for (int i = 0; i < 4; i ++) {
+				mesh.putPackedVertex(
+					cell[0] + (int)buffer[i * 3]     * size[0],
+					cell[1] + (int)buffer[i * 3 + 1] * size[1],
+					cell[2] + (int)buffer[i * 3 + 2] * size[2],
+					side,
+					(int)CORNER_U[i] * uSize, (int)CORNER_V[i] * vSize,
+					material, light
+				);
+			}
+			return;
+		}
+
+		float normals[] = Cube.normals[side];
+		if (mode == MODE_GREEDY) {
+			// the tile goes into u, see TILE_STRIDE
+			float tile = material * TILE_STRIDE;
+			for (int i = 0; i < 4; i ++) {
+				faceUVs[i * 2] = tile + CORNER_U[i] * uSize;
+				faceUVs[i * 2 + 1] = CORNER_V[i] * vSize;
+			}
+		} else {
+			// a single cube face, texture coordinates straight into the texture map
+			Cube.getUVTextureMapD(material, World.mapTextureWidth, World.mapTextureHeight, faceUVs);
+		}
+
+		// points 0 to 3, each with the face normal, its texture coordinate and the light
+		int color = LIGHT_COLORS[light] | (translucent ? TRANSLUCENT_ALPHA : OPAQUE_ALPHA);
+		for (int i = 0; i < 4; i ++) {
+			mesh.putVertex(
+				cell[0] + buffer[i * 3]     * size[0],
+				cell[1] + buffer[i * 3 + 1] * size[1],
+				cell[2] + buffer[i * 3 + 2] * size[2],
+				normals[0], normals[1], normals[2],
+				faceUVs[i * 2], faceUVs[i * 2 + 1],
+				color
+			);
+		}
+	}
+}
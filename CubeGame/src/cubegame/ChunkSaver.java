@@ -0,0 +1,509 @@
+//-----------------------------------------------------------------------------
+// ChunkSaver.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Saves edited chunks to region files on a background thread (write-behind).
+ *
+ * Editing a chunk (Chunk.setCube, WorldEdit.commit) only marks it unsaved.  Once
+ * per frame update() takes a copy on write snapshot of the cubes of every
+ * unsaved chunk (see CubeStorage.snapshot) and queues it for the I/O thread, so
+ * the game keeps editing the chunk while the snapshot is written.  The queue holds at most one snapshot per chunk: a chunk
+ * that is edited again before the I/O thread gets to it overwrites its queued
+ * snapshot instead of adding another one.
+ *
+ * The I/O thread waits BATCH_DELAY after the first snapshot arrives, so a burst
+ * of edits ends up in one batch, then takes the whole queue, writes it region
+ * by region and flushes every region it wrote to once, instead of once per chunk.
+ *
+ * loadChunk sees the newest version of a chunk, whether it is still queued,
+ * being written or already in its region file.
+ *
+ * init, update, markModified and shutdown may only be called from the main thread.
+ */
+public class ChunkSaver {
+	/**
+	 * How long the I/O thread lets snapshots pile up before it writes them
+	 */
+	private static final long BATCH_DELAY = 500;
+
+	/**
+	 * The directory the region files are in, null when the saver isn't running
+	 */
+	private static File directory = null;
+
+	/**
+	 * The I/O thread.  A thread that shutdown gave up on is kept until it has exited,
+	 * and stopping stays set for it, so init doesn't start a second one next to it.
+	 */
+	private static Thread thread = null;
+	private static volatile boolean stopping = false;
+
+	/**
+	 * Chunks that were edited since the last update, only touched by the main thread
+	 */
+	private static ArrayList<Chunk> modified = new ArrayList<Chunk>();
+
+	/**
+	 * Guards queue, writing and the stats that the I/O thread changes
+	 */
+	private static final Object lock = new Object();
+
+	/**
+	 * Snapshots waiting to be written, by World.getChunkKey, oldest first
+	 */
+	private static LinkedHashMap<Long, SaveEntry> queue = new LinkedHashMap<Long, SaveEntry>();
+
+	/**
+	 * Snapshots the I/O thread has taken and not written yet
+	 */
+	private static HashMap<Long, SaveEntry> writing = new HashMap<Long, SaveEntry>();
+
+	/**
+	 * The open region files by file name, guarded by themselves
+	 */
+	private static HashMap<String, RegionFile> regions = new HashMap<String, RegionFile>();
+
+	/**
+	 * Entries that were written, so they can be reused
+	 */
+	private static ConcurrentLinkedQueue<SaveEntry> entryPool = new ConcurrentLinkedQueue<SaveEntry>();
+
+	/**
+	 * Stats
+	 */
+	private static long queuedSnapshots = 0;
+	private static long coalescedSnapshots = 0;
+	private static long savedChunks = 0;
+	private static long batches = 0;
+	private static long flushes = 0;
+	private static long failedChunks = 0;
+
+	/**
+	 * Starts the I/O thread
+	 * @param directory the directory to keep the region files in, it is created if it doesn't exist
+	 * @throws IOException if the directory can't be created
+	 * @throws IllegalStateException if the I/O thread of the last run is still writing, see isWriting
+	 */
+	public static void init(File directory) throws IOException {
+		if (ChunkSaver.directory != null)
+			return;
+		if (thread != null) {
+			// the writer that shutdown gave up on still owns the queue and the region files
+			if (thread.isAlive())
+				throw new IllegalStateException("The chunk saver is still writing the chunks of its last run");
+			closeRegions();
+			thread = null;
+		}
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Can't create the save directory " + directory);
+
+		final File saveDirectory = directory;
+		ChunkSaver.directory = directory;
+		stopping = false;
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeLoop(saveDirectory);
+			}
+		}, "ChunkSaver");
+		// shutdown() decides how long to wait for the queue, not the JVM
+		thread.setDaemon(true);
+		thread.start();
+		System.out.println("Chunk saver started, saving to " + directory);
+	}
+
+	/**
+	 * Checks to see if edited chunks are being saved
+	 * @return true if the saver is running
+	 */
+	public static boolean isRunning() {
+		return directory != null;
+	}
+
+	/**
+	 * Checks to see if the I/O thread is still writing, which it keeps doing after a
+	 * shutdown that gave up on it until the queue is written
+	 * @return true if the I/O thread hasn't exited yet
+	 */
+	public static boolean isWriting() {
+		return thread != null && thread.isAlive();
+	}
+
+	/**
+	 * Marks a chunk as edited, it is snapshotted and queued on the next update.
+	 * Does nothing while the saver isn't running.
+	 * @param chunk the chunk that was edited
+	 */
+	public static void markModified(Chunk chunk) {
+		if (directory == null || chunk.isUnsaved())
+			return;
+		chunk.setUnsaved(true);
+		modified.add(chunk);
+	}
+
+	/**
+	 * Queues a snapshot of every chunk that was edited since the last update.
+	 * Call this once per frame on the main thread, after the edits of the frame.
+	 */
+	public static void update() {
+		if (modified.isEmpty())
+			return;
+
+		synchronized (lock) {
+			for (int i = 0; i < modified.size(); i ++) {
+				Chunk chunk = modified.get(i);
+				chunk.setUnsaved(false);
+
+				// a chunk that is already queued just gets its snapshot replaced
+				long key = World.getChunkKey(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ());
+				SaveEntry entry = queue.get(key);
+				if (entry != null) {
+					coalescedSnapshots ++;
+				} else {
+					entry = entryPool.poll();
+					if (entry == null)
+						entry = new SaveEntry();
+					entry.x = chunk.getChunkX();
+					entry.y = chunk.getChunkY();
+					entry.z = chunk.getChunkZ();
+					queue.put(key, entry);
+				}
+				entry.cubes = chunk.getCubes().snapshot();
+				queuedSnapshots ++;
+			}
+			lock.notifyAll();
+		}
+		modified.clear();
+	}
+
+	/**
+	 * Loads the newest saved version of a chunk into a storage.  Can be called from any thread.
+	 * @param chunkX the chunk x coordinate
+	 * @param chunkY the chunk y coordinate
+	 * @param chunkZ the chunk z coordinate
+	 * @param cubes receives the cubes, it is left alone if the chunk was never saved
+	 * @return true if the chunk was loaded, false if it was never saved or the saver isn't running
+	 */
+	public static boolean loadChunk(int chunkX, int chunkY, int chunkZ, CubeStorage cubes) {
+		File directory = ChunkSaver.directory;
+		if (directory == null)
+			return false;
+
+		long key = World.getChunkKey(chunkX, chunkY, chunkZ);
+		synchronized (lock) {
+			SaveEntry entry = queue.get(key);
+			if (entry == null)
+				entry = writing.get(key);
+			if (entry != null) {
+				cubes.copyFrom(entry.cubes);
+				return true;
+			}
+		}
+
+		try {
+			RegionFile region = getRegion(directory, RegionFile.getFileName(chunkX, chunkY, chunkZ), false);
+			return region != null && region.readCubes(chunkX, chunkY, chunkZ, cubes);
+		} catch (IOException e) {
+			// a broken chunk is generated again rather than taking the game down
+			System.err.println("Could not load chunk " + chunkX + ", " + chunkY + ", " + chunkZ + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Replaces the cubes of a freshly generated chunk with its saved version, if there is one
+	 * @param chunk the chunk, not in the world yet
+	 * @return true if the chunk was saved before
+	 */
+	public static boolean restore(Chunk chunk) {
+		return loadChunk(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ(), chunk.getCubes());
+	}
+
+	/**
+	 * Queues the last edits, waits for the I/O thread to write everything and closes the region files
+	 * @param timeoutMillis the longest time to wait for the queue to be written
+	 * @return the amount of chunks that were still waiting to be written when giving up, 0 if everything was saved
+	 */
+	public static int shutdown(long timeoutMillis) {
+		if (directory == null)
+			return 0;
+		update();
+
+		long start = System.currentTimeMillis();
+		int pending;
+		synchronized (lock) {
+			stopping = true;
+			lock.notifyAll();
+			long remaining = timeoutMillis;
+			while ((!queue.isEmpty() || !writing.isEmpty()) && remaining > 0) {
+				try {
+					lock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				remaining = timeoutMillis - (System.currentTimeMillis() - start);
+			}
+			pending = queue.size() + writing.size();
+		}
+
+		long elapsed = System.currentTimeMillis() - start;
+		if (pending > 0) {
+			// the thread is left to finish on its own, the region files stay open for it until the next init
+			System.err.println("Chunk saver gave up after " + elapsed + "ms with " + pending + " chunks still unsaved.");
+		} else {
+			try {
+				thread.join(timeoutMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			if (!thread.isAlive()) {
+				closeRegions();
+				thread = null;
+			}
+			System.out.println("Chunk saver stopped after " + elapsed + "ms, " + savedChunks + " chunks saved in " + batches + " batches.");
+		}
+
+		directory = null;
+		for (Chunk chunk : modified)
+			chunk.setUnsaved(false);
+		modified.clear();
+		return pending;
+	}
+
+	/**
+	 * The I/O thread: waits for snapshots, and writes them a batch at a time
+	 * @param directory the directory of the region files, which stays the same even if shutdown gives up on the thread
+	 */
+	private static void writeLoop(File directory) {
+		ArrayList<SaveEntry> batch = new ArrayList<SaveEntry>();
+		LinkedHashMap<String, ArrayList<SaveEntry>> byRegion = new LinkedHashMap<String, ArrayList<SaveEntry>>();
+
+		while (true) {
+			synchronized (lock) {
+				try {
+					while (queue.isEmpty() && !stopping)
+						lock.wait();
+
+					// give the game a moment to add (or replace) more snapshots
+					long deadline = System.currentTimeMillis() + BATCH_DELAY;
+					long remaining = BATCH_DELAY;
+					while (!stopping && remaining > 0) {
+						lock.wait(remaining);
+						remaining = deadline - System.currentTimeMillis();
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (queue.isEmpty())
+					return;
+
+				// taking the whole queue is what lets later edits of a chunk coalesce again
+				for (Iterator<SaveEntry> it = queue.values().iterator(); it.hasNext(); ) {
+					SaveEntry entry = it.next();
+					batch.add(entry);
+					writing.put(World.getChunkKey(entry.x, entry.y, entry.z), entry);
+				}
+				queue.clear();
+			}
+
+			for (SaveEntry entry : batch) {
+				String name = RegionFile.getFileName(entry.x, entry.y, entry.z);
+				ArrayList<SaveEntry> entries = byRegion.get(name);
+				if (entries == null) {
+					entries = new ArrayList<SaveEntry>();
+					byRegion.put(name, entries);
+				}
+				entries.add(entry);
+			}
+			int saved = 0;
+			int failed = 0;
+			int flushed = 0;
+			for (String name : byRegion.keySet()) {
+				ArrayList<SaveEntry> entries = byRegion.get(name);
+				try {
+					RegionFile region = getRegion(directory, name, true);
+					for (SaveEntry entry : entries) {
+						region.writeCubes(entry.x, entry.y, entry.z, entry.cubes);
+						saved ++;
+					}
+					region.flush();
+					flushed ++;
+				} catch (IOException e) {
+					System.err.println("Could not save chunks to " + name + ": " + e.getMessage());
+					failed += entries.size();
+				}
+			}
+			byRegion.clear();
+
+			synchronized (lock) {
+				for (SaveEntry entry : batch) {
+					writing.remove(World.getChunkKey(entry.x, entry.y, entry.z));
+					entry.cubes = null;
+				}
+				savedChunks += saved;
+				failedChunks += failed;
+				flushes += flushed;
+				batches ++;
+				lock.notifyAll();
+			}
+			entryPool.addAll(batch);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Gets an open region file
+	 * @param directory the directory of the region files
+	 * @param name the file name, see RegionFile.getFileName
+	 * @param create true to create the file if it doesn't exist
+	 * @return the region, or null if it doesn't exist and create is false
+	 */
+	private static RegionFile getRegion(File directory, String name, boolean create) throws IOException {
+		synchronized (regions) {
+			RegionFile region = regions.get(name);
+			if (region == null) {
+				File file = new File(directory, name);
+				if (!create && !file.exists())
+					return null;
+				region = new RegionFile(file);
+				regions.put(name, region);
+			}
+			return region;
+		}
+	}
+
+	private static void closeRegions() {
+		synchronized (regions) {
+			for (RegionFile region : regions.values()) {
+				try {
+					region.close();
+				} catch (IOException e) {
+					System.err.println("Could not close a region file: " + e.getMessage());
+				}
+			}
+			regions.clear();
+		}
+	}
+
+	/**
+	 * Gets the amount of chunks waiting to be written, including the ones being written
+	 * @return the queue depth
+	 */
+	public static int getQueueDepth() {
+		synchronized (lock) {
+			return queue.size() + writing.size();
+		}
+	}
+
+	/**
+	 * Gets the amount of snapshots that were taken
+	 * @return the snapshot count
+	 */
+	public static long getQueuedSnapshots() {
+		synchronized (lock) {
+			return queuedSnapshots;
+		}
+	}
+
+	/**
+	 * Gets the amount of snapshots that replaced one that was still queued
+	 * @return the coalesced snapshot count
+	 */
+	public static long getCoalescedSnapshots() {
+		synchronized (lock) {
+			return coalescedSnapshots;
+		}
+	}
+
+	/**
+	 * Gets the amount of chunks written to region files
+	 * @return the saved chunk count
+	 */
+	public static long getSavedChunks() {
+		synchronized (lock) {
+			return savedChunks;
+		}
+	}
+
+	/**
+	 * Gets the amount of batches the I/O thread has written
+	 * @return the batch count
+	 */
+	public static long getBatches() {
+		synchronized (lock) {
+			return batches;
+		}
+	}
+
+	/**
+	 * Gets the amount of times a region file was flushed to the disk
+	 * @return the flush count
+	 */
+	public static long getFlushes() {
+		synchronized (lock) {
+			return flushes;
+		}
+	}
+
+	/**
+	 * Gets the amount of chunks that couldn't be written
+	 * @return the failed chunk count
+	 */
+	public static long getFailedChunks() {
+		synchronized (lock) {
+			return failedChunks;
+		}
+	}
+
+	/**
+	 * A snapshot of a chunk waiting to be written
+	 */
+	private static class SaveEntry {
+		int x;
+		int y;
+		int z;
+		CubeStorage cubes;
+	}
+}
@@ -0,0 +1,241 @@
+//-----------------------------------------------------------------------------
+// ChunkSnapshot.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import java.util.Arrays;
+
+import math.Vector3;
+
+/**
+ * A copy of everything the mesher needs to know about a chunk: its cubes and
+ * their light, and the cubes and light of the neighbouring chunks that touch its
+ * sides.  Snapshots are taken
+ * on the main thread, after which they can be meshed on any thread while the
+ * chunk itself keeps changing.
+ *
+ * The cubes are a copy on write snapshot of the storage of the chunk (see
+ * CubeStorage.snapshot), so capturing them doesn't copy any cubes, and their
+ * version tells if the chunk was changed since.  Snapshots are meant to be
+ * reused, capturing into an existing snapshot keeps the border arrays.
+ *
+ * Capturing doesn't make cold chunks hot again (see ChunkTiering), their cubes
+ * are decompressed into scratch storage of the snapshot instead.
+ */
+public class ChunkSnapshot {
+	private static final int SIZE = Chunk.CHUNK_SIZE;
+
+	/**
+	 * The position of the chunk
+	 */
+	private Vector3 position = new Vector3(0.0f, 0.0f, 0.0f);
+
+	/**
+	 * Nothing, for snapshots that aren't in use
+	 */
+	private static final CubeStorage EMPTY = new CubeStorage(Cube.AIR).snapshot();
+
+	/**
+	 * A snapshot of the cubes of the chunk
+	 */
+	private CubeStorage cubes = EMPTY;
+
+	/**
+	 * The layer of cubes of each neighbouring chunk that touches the chunk, indexed
+	 * by face.  Air is stored if the neighbour isn't loaded, so those faces are kept.
+	 * See getBorderIndex for the layout of a layer.
+	 */
+	private short borders[][] = new short[6][SIZE * SIZE];
+
+	/**
+	 * The light of the cubes of the chunk (see Chunk.getLight), and of the layers of
+	 * the neighbouring chunks.  The open sky is stored if the neighbour isn't loaded.
+	 */
+	private byte light[] = new byte[CubeStorage.VOLUME];
+	private byte borderLight[][] = new byte[6][SIZE * SIZE];
+
+	/**
+	 * Receives the cubes of cold chunks, see Chunk.peekCubes
+	 */
+	private CubeStorage scratch = new CubeStorage(Cube.AIR);
+
+	/**
+	 * Captures a chunk and the sides of its neighbours
+	 * @param chunk the chunk to capture
+	 */
+	public void capture(Chunk chunk) {
+		Vector3 chunkPosition = chunk.getPosition();
+		position.x = chunkPosition.x;
+		position.y = chunkPosition.y;
+		position.z = chunkPosition.z;
+		cubes = chunk.peekCubes(scratch).snapshot();
+		chunk.copyLight(light);
+
+		for (int side = 0; side < 6; side ++) {
+			int offset[] = Cube.offsets[side];
+			Chunk neighbour = World.getChunk(chunk.getChunkX() + offset[0], chunk.getChunkY() + offset[1], chunk.getChunkZ() + offset[2]);
+			captureBorder(side, neighbour);
+		}
+	}
+
+	/**
+	 * Copies the layer of a neighbouring chunk that touches one of the sides
+	 * @param side the side of the chunk the neighbour is on
+	 * @param neighbour the neighbouring chunk, or null if it isn't loaded
+	 */
+	private void captureBorder(int side, Chunk neighbour) {
+		short border[] = borders[side];
+		byte lightBorder[] = borderLight[side];
+		if (neighbour == null) {
+			Arrays.fill(border, Cube.AIR);
+			Arrays.fill(lightBorder, (byte)LightEngine.OPEN_SKY);
+			return;
+		}
+
+		// the layer of the neighbour on the opposite side
+		int offset[] = Cube.offsets[side];
+		int layer = 0;
+		for (int i = 0; i < 3; i ++) {
+			if (offset[i] < 0)
+				layer = SIZE - 1;
+		}
+		CubeStorage neighbourCubes = neighbour.peekCubes(scratch);
+		boolean uniform = neighbourCubes.isUniform();
+		if (uniform)
+			Arrays.fill(border, neighbourCubes.get(0));
+		for (int i = 0; i < SIZE; i ++) {
+			for (int j = 0; j < SIZE; j ++) {
+				int index;
+				if (offset[0] != 0)
+					index = CubeStorage.getIndex(layer, i, j);
+				else if (offset[1] != 0)
+					index = CubeStorage.getIndex(j, layer, i);
+				else
+					index = CubeStorage.getIndex(j, i, layer);
+				if (!uniform)
+					border[(i << 4) | j] = neighbourCubes.get(index);
+				lightBorder[(i << 4) | j] = (byte)neighbour.getLight(index);
+			}
+		}
+	}
+
+	/**
+	 * Gets the world position of the chunk
+	 * @return the position of the cube at local position <0, 0, 0>
+	 */
+	public Vector3 getPosition() {
+		return position;
+	}
+
+	/**
+	 * Lets go of the cubes of the chunk, so a snapshot that waits to be reused doesn't keep them around
+	 */
+	public void release() {
+		cubes = EMPTY;
+	}
+
+	/**
+	 * Gets the snapshot of the cubes of the chunk
+	 * @return the cube storage, read only
+	 */
+	public CubeStorage getCubes() {
+		return cubes;
+	}
+
+	/**
+	 * Gets the version of the cubes of the chunk when they were captured
+	 * @return the version, compare it to Chunk.getCubeVersion
+	 */
+	public long getVersion() {
+		return cubes.getVersion();
+	}
+
+	/**
+	 * Gets the material of a cube.  Coordinates may be one step outside of the
+	 * chunk on a single axis, in which case the cube of the neighbour is returned.
+	 * @param x local x position, -1 to CHUNK_SIZE
+	 * @param y local y position, -1 to CHUNK_SIZE
+	 * @param z local z position, -1 to CHUNK_SIZE
+	 * @return the material, air if the neighbour isn't loaded
+	 */
+	public short getCube(int x, int y, int z) {
+		if (x < 0)
+			return borders[Cube.FACE_LEFT][(y << 4) | z];
+		if (x == SIZE)
+			return borders[Cube.FACE_RIGHT][(y << 4) | z];
+		if (y < 0)
+			return borders[Cube.FACE_BOTTOM][(z << 4) | x];
+		if (y == SIZE)
+			return borders[Cube.FACE_TOP][(z << 4) | x];
+		if (z < 0)
+			return borders[Cube.FACE_BACK][(y << 4) | x];
+		if (z == SIZE)
+			return borders[Cube.FACE_FRONT][(y << 4) | x];
+		return cubes.get(x, y, z);
+	}
+
+	/**
+	 * Gets the light of a cube, the coordinates work like getCube
+	 * @param x local x position, -1 to CHUNK_SIZE
+	 * @param y local y position, -1 to CHUNK_SIZE
+	 * @param z local z position, -1 to CHUNK_SIZE
+	 * @return the light, see Chunk.getLight.  The open sky if the neighbour isn't loaded.
+	 */
+	public int getLight(int x, int y, int z) {
+		if (x < 0)
+			return borderLight[Cube.FACE_LEFT][(y << 4) | z] & 0xFF;
+		if (x == SIZE)
+			return borderLight[Cube.FACE_RIGHT][(y << 4) | z] & 0xFF;
+		if (y < 0)
+			return borderLight[Cube.FACE_BOTTOM][(z << 4) | x] & 0xFF;
+		if (y == SIZE)
+			return borderLight[Cube.FACE_TOP][(z << 4) | x] & 0xFF;
+		if (z < 0)
+			return borderLight[Cube.FACE_BACK][(y << 4) | x] & 0xFF;
+		if (z == SIZE)
+			return borderLight[Cube.FACE_FRONT][(y << 4) | x] & 0xFF;
+		return light[CubeStorage.getIndex(x, y, z)] & 0xFF;
+	}
+
+	/**
+	 * Checks to see if the cube is transparent at the location provided, see getCube
+	 * @param x local x position, -1 to CHUNK_SIZE
+	 * @param y local y position, -1 to CHUNK_SIZE
+	 * @param z local z position, -1 to CHUNK_SIZE
+	 * @return true if the cube is transparent at this location
+	 */
+	public boolean isTransparent(int x, int y, int z) {
+		return Cube.isTransparent(getCube(x, y, z));
+	}
+}
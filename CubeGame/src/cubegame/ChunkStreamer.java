@@ -0,0 +1,379 @@
+//-----------------------------------------------------------------------------
+// ChunkStreamer.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.lwjgl.util.vector.Vector3f;
+
+/**
+ * Loads and unloads columns of chunks around the camera.
+ *
+ * Every column within the load radius of the camera's column is generated on
+ * the TerrainGenerator's workers, nearest first, and added to the world once it
+ * is done.  Columns are only unloaded once they are beyond the unload radius,
+ * which is larger, so moving back and forth over the edge of the load radius
+ * doesn't load and unload the same columns over and over.  Unloading a chunk
+ * frees its part of the MegaBuffer (see World.removeChunk).
+ *
+ * Chunks that were edited and saved by the ChunkSaver replace the generated
+ * ones when their column is loaded again.  Only edited chunks are ever saved,
+ * so for most columns this is a lookup in the region header and nothing else.
+ *
+ * The amount of columns added to and removed from the world per frame is
+ * capped, so crossing into a new column spreads the work out over a few frames.
+ *
+ * Only the main thread may use this.
+ */
+public class ChunkStreamer {
+	/**
+	 * The generator, null when the streamer isn't running
+	 */
+	private static TerrainGenerator generator = null;
+	private static int unloadRadius;
+
+	/**
+	 * The most columns added to and removed from the world per frame, and the most columns being generated at once
+	 */
+	private static int maxLoadsPerFrame = 4;
+	private static int maxUnloadsPerFrame = 8;
+	private static int maxPending = 16;
+
+	/**
+	 * The offsets of every column within the load radius, nearest first
+	 */
+	private static int offsets[] = new int[0];
+
+	/**
+	 * Every column that is loaded or being generated, by World.getChunkKey(x, 0, z)
+	 */
+	private static HashMap<Long, Column> columns = new HashMap<Long, Column>();
+
+	/**
+	 * Columns being generated, in the order they were requested
+	 */
+	private static ArrayList<Column> pending = new ArrayList<Column>();
+
+	/**
+	 * The camera's column, and how far through the offsets the requests have gotten
+	 */
+	private static int centerX;
+	private static int centerZ;
+	private static boolean centered = false;
+	private static int nextOffset = 0;
+
+	/**
+	 * Loaded columns beyond the unload radius, taken from the end so the farthest go first
+	 */
+	private static ArrayList<Column> unloading = new ArrayList<Column>();
+
+	/**
+	 * Stats
+	 */
+	private static int loadedColumns = 0;
+	private static int loadsLastFrame = 0;
+	private static int unloadsLastFrame = 0;
+	private static long totalLoads = 0;
+	private static long totalUnloads = 0;
+
+	/**
+	 * Sorts the columns to unload
+	 */
+	private static final Comparator<Column> NEAREST_FIRST = new Comparator<Column>() {
+		@Override
+		public int compare(Column a, Column b) {
+			return a.getDistance() - b.getDistance();
+		}
+	};
+
+	/**
+	 * Starts streaming terrain
+	 * @param generator the generator the columns come from
+	 * @param loadRadius columns up to this many columns away from the camera are loaded
+	 * @param unloadRadius columns further away than this are unloaded, larger than the load radius
+	 */
+	public static void init(TerrainGenerator generator, int loadRadius, int unloadRadius) {
+		if (unloadRadius <= loadRadius)
+			throw new IllegalArgumentException("The unload radius (" + unloadRadius + ") has to be larger than the load radius (" + loadRadius + ")");
+		shutdown();
+
+		ChunkStreamer.generator = generator;
+		ChunkStreamer.unloadRadius = unloadRadius;
+
+		// every offset in the circle, sorted by distance
+		ArrayList<int[]> list = new ArrayList<int[]>();
+		for (int x = -loadRadius; x <= loadRadius; x ++) {
+			for (int z = -loadRadius; z <= loadRadius; z ++) {
+				if (x * x + z * z <= loadRadius * loadRadius)
+					list.add(new int[] { x, z });
+			}
+		}
+		Collections.sort(list, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] a, int[] b) {
+				return (a[0] * a[0] + a[1] * a[1]) - (b[0] * b[0] + b[1] * b[1]);
+			}
+		});
+		offsets = new int[list.size() * 2];
+		for (int i = 0; i < list.size(); i ++) {
+			offsets[i * 2] = list.get(i)[0];
+			offsets[i * 2 + 1] = list.get(i)[1];
+		}
+	}
+
+	/**
+	 * Stops streaming.  Columns being generated are thrown away, loaded ones stay in the world.
+	 */
+	public static void shutdown() {
+		for (Column column : pending)
+			column.future.cancel(false);
+		pending.clear();
+		unloading.clear();
+		columns.clear();
+		generator = null;
+		centered = false;
+		nextOffset = 0;
+		loadedColumns = 0;
+	}
+
+	/**
+	 * Checks to see if terrain is being streamed
+	 * @return true if the streamer is running
+	 */
+	public static boolean isRunning() {
+		return generator != null;
+	}
+
+	/**
+	 * Sets how much work is done per frame
+	 * @param loads the most columns added to the world per frame
+	 * @param unloads the most columns removed from the world per frame
+	 * @param generating the most columns being generated at once
+	 */
+	public static void setFrameLimits(int loads, int unloads, int generating) {
+		maxLoadsPerFrame = Math.max(loads, 1);
+		maxUnloadsPerFrame = Math.max(unloads, 1);
+		maxPending = Math.max(generating, 1);
+	}
+
+	/**
+	 * Loads and unloads columns around the camera.  Call this once per frame.
+	 * @param eye the position of the camera in the world
+	 */
+	public static void update(Vector3f eye) {
+		loadsLastFrame = 0;
+		unloadsLastFrame = 0;
+		if (generator == null)
+			return;
+
+		int x = (int)Math.floor(eye.x) >> Chunk.CHUNK_SHIFT;
+		int z = (int)Math.floor(eye.z) >> Chunk.CHUNK_SHIFT;
+		if (!centered || x != centerX || z != centerZ)
+			recenter(x, z);
+
+		// add the finished columns to the world, nearest first
+		for (int i = 0; i < pending.size() && loadsLastFrame < maxLoadsPerFrame; i ++) {
+			Column column = pending.get(i);
+			if (!column.future.isDone())
+				continue;
+			pending.remove(i --);
+
+			Chunk chunks[];
+			try {
+				chunks = column.future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// forget about the column, it is requested again the next time the camera moves
+				e.getCause().printStackTrace();
+				columns.remove(column.key);
+				continue;
+			}
+
+			// top down, so the sky light of each chunk falls in from the one above
+			column.chunks = chunks;
+			for (int j = chunks.length - 1; j >= 0; j --) {
+				ChunkSaver.restore(chunks[j]);
+				World.addChunk(chunks[j]);
+			}
+			loadedColumns ++;
+			totalLoads ++;
+			loadsLastFrame ++;
+		}
+
+		// request the nearest missing columns
+		while (pending.size() < maxPending && nextOffset < offsets.length) {
+			int columnX = centerX + offsets[nextOffset];
+			int columnZ = centerZ + offsets[nextOffset + 1];
+			nextOffset += 2;
+
+			long key = World.getChunkKey(columnX, 0, columnZ);
+			if (columns.containsKey(key))
+				continue;
+			Column column = new Column(key, columnX, columnZ);
+			column.future = generator.submitColumn(columnX, columnZ);
+			columns.put(key, column);
+			pending.add(column);
+		}
+
+		// remove the far away columns
+		while (!unloading.isEmpty() && unloadsLastFrame < maxUnloadsPerFrame) {
+			Column column = unloading.remove(unloading.size() - 1);
+			for (int j = 0; j < column.chunks.length; j ++)
+				World.removeChunk(column.chunks[j]);
+			columns.remove(column.key);
+			loadedColumns --;
+			totalUnloads ++;
+			unloadsLastFrame ++;
+		}
+	}
+
+	/**
+	 * Works out what to load and unload after the camera moved into another column
+	 */
+	private static void recenter(int x, int z) {
+		centerX = x;
+		centerZ = z;
+		centered = true;
+		nextOffset = 0;
+
+		// columns still being generated are dropped as soon as they are too far
+		for (int i = 0; i < pending.size(); i ++) {
+			Column column = pending.get(i);
+			if (column.getDistance() > unloadRadius * unloadRadius) {
+				column.future.cancel(false);
+				columns.remove(column.key);
+				pending.remove(i --);
+			}
+		}
+
+		unloading.clear();
+		for (Column column : columns.values()) {
+			if (column.chunks != null && column.getDistance() > unloadRadius * unloadRadius)
+				unloading.add(column);
+		}
+		Collections.sort(unloading, NEAREST_FIRST);
+	}
+
+	/**
+	 * Gets the amount of columns in the world
+	 * @return the loaded column count
+	 */
+	public static int getLoadedColumns() {
+		return loadedColumns;
+	}
+
+	/**
+	 * Gets the amount of columns being generated
+	 * @return the pending column count
+	 */
+	public static int getPendingColumns() {
+		return pending.size();
+	}
+
+	/**
+	 * Checks if every column within the load radius is loaded, and nothing is waiting to be unloaded
+	 * @return true if there is nothing left to do until the camera moves into another column
+	 */
+	public static boolean isSettled() {
+		return pending.isEmpty() && unloading.isEmpty() && nextOffset >= offsets.length;
+	}
+
+	/**
+	 * Gets the amount of columns added to the world during the last update
+	 * @return the load count
+	 */
+	public static int getLoadsLastFrame() {
+		return loadsLastFrame;
+	}
+
+	/**
+	 * Gets the amount of columns removed from the world during the last update
+	 * @return the unload count
+	 */
+	public static int getUnloadsLastFrame() {
+		return unloadsLastFrame;
+	}
+
+	/**
+	 * Gets the amount of columns added to the world since starting
+	 * @return the load count
+	 */
+	public static long getTotalLoads() {
+		return totalLoads;
+	}
+
+	/**
+	 * Gets the amount of columns removed from the world since starting
+	 * @return the unload count
+	 */
+	public static long getTotalUnloads() {
+		return totalUnloads;
+	}
+
+	/**
+	 * A column of chunks, loaded or being generated
+	 */
+	private static class Column {
+		final long key;
+		final int x;
+		final int z;
+		Future<Chunk[]> future;
+
+		/**
+		 * The chunks, null until the column is in the world
+		 */
+		Chunk chunks[] = null;
+
+		Column(long key, int x, int z) {
+			this.key = key;
+			this.x = x;
+			this.z = z;
+		}
+
+		/**
+		 * Gets the squared distance to the camera's column
+		 */
+		int getDistance() {
+			return (x - centerX) * (x - centerX) + (z - centerZ) * (z - centerZ);
+		}
+	}
+}
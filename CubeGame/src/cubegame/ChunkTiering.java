@@ -0,0 +1,371 @@
+//-----------------------------------------------------------------------------
+// ChunkTiering.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import graphics.GL;
+
+import org.lwjgl.util.vector.Vector3f;
+
+/**
+ * Keeps the cubes of chunks that aren't being used compressed in memory.
+ *
+ * A chunk is hot while its cubes are a CubeStorage, and cold once they are
+ * compressed with ChunkCodec (see Chunk.freeze).  A few times per second every
+ * loaded chunk is checked, and a hot chunk is made cold when:
+ * - its cubes haven't been accessed for the idle time, or
+ * - it is further from the camera than the cold distance, and hasn't been
+ *   accessed for a moment (so chunks that are meshed next to newly loaded ones
+ *   don't go back and forth), or
+ * - the cubes and meshes of the loaded chunks take up more than the heap budget,
+ *   then the furthest chunks are made cold first, whenever they were accessed.
+ *
+ * Only chunks with more than one material are made cold, a uniform chunk is
+ * smaller than its compressed cubes.  With legacy GL every chunk keeps its mesh
+ * in memory to draw from, so a cold chunk that hasn't been drawn for a while
+ * also drops its mesh.  The other paths upload their meshes into the MegaBuffer
+ * and don't keep them in memory, so they have no mesh to drop.  The memory of
+ * the kept meshes counts towards the budget, and the memory freed by dropping
+ * them is counted.  Anything that accesses the cubes of a cold chunk through
+ * Chunk.getCubes (meshing, edits, saving, the mesh of a neighbour) transparently
+ * decompresses them and makes the chunk hot again.
+ *
+ * Only the main thread may use this.
+ */
+public class ChunkTiering {
+	/**
+	 * How often the chunks are checked, in milliseconds
+	 */
+	private static final long SWEEP_INTERVAL = 250;
+
+	/**
+	 * How long a chunk beyond the cold distance has to be left alone before it is made cold, in milliseconds
+	 */
+	private static final long MIN_IDLE = 2000;
+
+	/**
+	 * The most chunks made cold per sweep, compressing a chunk takes a few dozen microseconds
+	 */
+	private static final int MAX_FREEZES = 32;
+
+	/**
+	 * The amount of frames a legacy GL chunk has to be hidden for before its mesh is dropped
+	 */
+	private static final int HIDDEN_FRAMES = 60;
+
+	/**
+	 * The policy
+	 */
+	private static int coldDistance = 6;
+	private static long idleTime = 30000;
+	private static long heapBudget = 0;
+
+	/**
+	 * The time of the last update, chunks are stamped with it when their cubes are accessed
+	 */
+	private static long clock = System.currentTimeMillis();
+	private static long lastSweep = 0;
+
+	/**
+	 * Hot chunks that could be made cold, and scratch space to compress into
+	 */
+	private static ArrayList<Chunk> candidates = new ArrayList<Chunk>();
+	private static ByteBuffer encodeBuffer = ByteBuffer.allocate(ChunkCodec.MAX_ENCODED_SIZE);
+
+	/**
+	 * Stats of the last sweep
+	 */
+	private static int hotChunks = 0;
+	private static int coldChunks = 0;
+	private static long cubeMemory = 0;
+	private static long savedMemory = 0;
+	private static long meshMemory = 0;
+
+	/**
+	 * Stats since starting.  WorldEdit applies large edits on its workers, so chunks can be decompressed on any thread.
+	 */
+	private static long freezes = 0;
+	private static long droppedMeshMemory = 0;
+	private static AtomicLong thaws = new AtomicLong();
+	private static AtomicLong peeks = new AtomicLong();
+
+	/**
+	 * The eye position of the current sweep, for sorting
+	 */
+	private static float eyeX;
+	private static float eyeY;
+	private static float eyeZ;
+
+	/**
+	 * Sorts chunks furthest first
+	 */
+	private static final Comparator<Chunk> FURTHEST_FIRST = new Comparator<Chunk>() {
+		@Override
+		public int compare(Chunk a, Chunk b) {
+			return Float.compare(getDistance(b), getDistance(a));
+		}
+	};
+
+	/**
+	 * Sets when chunks are made cold
+	 * @param distance chunks further than this many chunks from the camera are made cold
+	 * @param idleSeconds chunks whose cubes weren't accessed for this long are made cold
+	 * @param budget the most bytes the cubes and meshes of the loaded chunks may use before the furthest are made cold, 0 for no budget
+	 */
+	public static void setPolicy(int distance, float idleSeconds, long budget) {
+		coldDistance = Math.max(distance, 1);
+		idleTime = (long)(idleSeconds * 1000.0f);
+		heapBudget = Math.max(budget, 0);
+	}
+
+	/**
+	 * Makes the chunks that aren't used cold.  Call this once per frame, after the world was updated.
+	 * @param eye the position of the camera in the world
+	 */
+	public static void update(Vector3f eye) {
+		clock = System.currentTimeMillis();
+		if (clock - lastSweep < SWEEP_INTERVAL)
+			return;
+		lastSweep = clock;
+		sweep(eye);
+	}
+
+	/**
+	 * Checks every loaded chunk right away, and makes the ones that aren't used cold
+	 * @param eye the position of the camera in the world
+	 */
+	public static void sweep(Vector3f eye) {
+		clock = System.currentTimeMillis();
+		eyeX = eye.x;
+		eyeY = eye.y;
+		eyeZ = eye.z;
+		float coldDistanceCubes = coldDistance * Chunk.CHUNK_SIZE;
+		int frame = World.getDrawFrame();
+
+		ArrayList<Chunk> chunks = World.getChunkList();
+		hotChunks = 0;
+		coldChunks = 0;
+		cubeMemory = 0;
+		savedMemory = 0;
+		meshMemory = 0;
+		candidates.clear();
+		int frozen = 0;
+		for (int i = 0; i < chunks.size(); i ++) {
+			Chunk chunk = chunks.get(i);
+			meshMemory += chunk.getMeshMemoryUsage();
+			if (chunk.isCold()) {
+				coldChunks ++;
+				cubeMemory += chunk.getCubeMemoryUsage();
+				savedMemory += chunk.getSavedMemory();
+				continue;
+			}
+
+			hotChunks ++;
+			cubeMemory += chunk.getCubeMemoryUsage();
+			// chunks that are about to be meshed or saved would be decompressed again right away
+			if (!chunk.canFreeze() || chunk.isDirty() || chunk.isUnsaved())
+				continue;
+
+			long idle = clock - chunk.getAccessTime();
+			boolean far = getDistance(chunk) > coldDistanceCubes * coldDistanceCubes;
+			if (frozen < MAX_FREEZES && (idle >= idleTime || (far && idle >= MIN_IDLE))) {
+				int saved = freeze(chunk, frame);
+				cubeMemory -= saved;
+				savedMemory += saved;
+				hotChunks --;
+				coldChunks ++;
+				frozen ++;
+			} else {
+				candidates.add(chunk);
+			}
+		}
+
+		// over the budget, the furthest chunks go first whatever their age
+		if (isOverBudget()) {
+			Collections.sort(candidates, FURTHEST_FIRST);
+			for (int i = 0; i < candidates.size() && frozen < MAX_FREEZES && isOverBudget(); i ++) {
+				int saved = freeze(candidates.get(i), frame);
+				cubeMemory -= saved;
+				savedMemory += saved;
+				hotChunks --;
+				coldChunks ++;
+				frozen ++;
+			}
+		}
+		candidates.clear();
+	}
+
+	/**
+	 * Compresses the cubes of a chunk, and drops its mesh if it has one and wasn't drawn for a while
+	 * @return the amount of bytes saved on the cubes
+	 */
+	private static int freeze(Chunk chunk, int frame) {
+		boolean dropMesh = GL.isLegacy() && frame - chunk.drawFrame > HIDDEN_FRAMES;
+		int meshBytes = dropMesh ? chunk.getMeshMemoryUsage() : 0;
+		chunk.freeze(encodeBuffer, dropMesh);
+		meshMemory -= meshBytes;
+		droppedMeshMemory += meshBytes;
+		freezes ++;
+		return chunk.getSavedMemory();
+	}
+
+	/**
+	 * Decompresses the cubes of a cold chunk, only Chunk.getCubes should call this
+	 * @param compressed the compressed cubes
+	 * @param cubes receives the cubes
+	 */
+	static void decompress(byte compressed[], CubeStorage cubes) {
+		ChunkCodec.decode(ByteBuffer.wrap(compressed), cubes);
+		thaws.incrementAndGet();
+	}
+
+	/**
+	 * Decompresses the cubes of a cold chunk for reading them only, the chunk stays
+	 * cold.  Only Chunk.peekCubes should call this.
+	 * @param compressed the compressed cubes
+	 * @param cubes receives the cubes
+	 */
+	static void peek(byte compressed[], CubeStorage cubes) {
+		ChunkCodec.decode(ByteBuffer.wrap(compressed), cubes);
+		peeks.incrementAndGet();
+	}
+
+	/**
+	 * Gets the time chunks are stamped with when their cubes are accessed.  It only
+	 * changes once per frame, so stamping a chunk costs next to nothing.
+	 * @return the time of the last update in milliseconds
+	 */
+	static long getClock() {
+		return clock;
+	}
+
+	/**
+	 * Gets the squared distance from the camera to the center of a chunk
+	 */
+	private static float getDistance(Chunk chunk) {
+		float dx = (chunk.getChunkX() << Chunk.CHUNK_SHIFT) + Chunk.CHUNK_SIZE / 2 - eyeX;
+		float dy = (chunk.getChunkY() << Chunk.CHUNK_SHIFT) + Chunk.CHUNK_SIZE / 2 - eyeY;
+		float dz = (chunk.getChunkZ() << Chunk.CHUNK_SHIFT) + Chunk.CHUNK_SIZE / 2 - eyeZ;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/**
+	 * Gets the amount of loaded chunks whose cubes aren't compressed, as of the last sweep
+	 * @return the hot chunk count
+	 */
+	public static int getHotChunks() {
+		return hotChunks;
+	}
+
+	/**
+	 * Gets the amount of loaded chunks whose cubes are compressed, as of the last sweep
+	 * @return the cold chunk count
+	 */
+	public static int getColdChunks() {
+		return coldChunks;
+	}
+
+	/**
+	 * Gets the memory used by the cubes of the loaded chunks, as of the last sweep
+	 * @return the memory usage in bytes
+	 */
+	public static long getCubeMemory() {
+		return cubeMemory;
+	}
+
+	/**
+	 * Gets the memory the cold chunks save by being compressed, as of the last sweep
+	 * @return the saved bytes
+	 */
+	public static long getSavedMemory() {
+		return savedMemory;
+	}
+
+	/**
+	 * Gets the memory used by the meshes the loaded chunks keep in memory, as of the
+	 * last sweep.  Only legacy GL keeps meshes in memory, this is 0 otherwise.
+	 * @return the memory usage in bytes
+	 */
+	public static long getMeshMemory() {
+		return meshMemory;
+	}
+
+	/**
+	 * Checks to see if the cubes and meshes still took up more than the heap budget after the last sweep
+	 * @return true if the budget is exceeded
+	 */
+	public static boolean isOverBudget() {
+		return heapBudget > 0 && cubeMemory + meshMemory > heapBudget;
+	}
+
+	/**
+	 * Gets the amount of times a chunk was made cold
+	 * @return the freeze count
+	 */
+	public static long getFreezes() {
+		return freezes;
+	}
+
+	/**
+	 * Gets the memory freed by cold chunks dropping their meshes, since starting.
+	 * A dropped mesh is built again when the chunk is drawn.
+	 * @return the freed bytes
+	 */
+	public static long getDroppedMeshMemory() {
+		return droppedMeshMemory;
+	}
+
+	/**
+	 * Gets the amount of times a cold chunk was made hot again
+	 * @return the thaw count
+	 */
+	public static long getThaws() {
+		return thaws.get();
+	}
+
+	/**
+	 * Gets the amount of times the cubes of a cold chunk were read without making it hot,
+	 * see Chunk.peekCubes
+	 * @return the peek count
+	 */
+	public static long getPeeks() {
+		return peeks.get();
+	}
+}
@@ -0,0 +1,181 @@
+//-----------------------------------------------------------------------------
+// ChunkVisibility.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+/**
+ * Works out which faces of a chunk can see each other through its transparent cubes.
+ *
+ * The transparent cubes of the chunk are flood filled, and every pair of faces
+ * that is touched by the same connected pocket of transparent cubes is connected.
+ * The result is packed into a long, bit (a * 6 + b) is set if face a connects to
+ * face b.  The world walks this graph from the chunk the camera is in, so a chunk
+ * that can only be reached through solid terrain is never drawn.
+ *
+ * Each thread that builds chunks needs its own instance, as it keeps scratch buffers.
+ */
+public class ChunkVisibility {
+	private static final int SIZE = Chunk.CHUNK_SIZE;
+	private static final int VOLUME = SIZE * SIZE * SIZE;
+
+	/**
+	 * Every face connects to every other face, used for see through chunks and
+	 * for chunks that haven't been built yet
+	 */
+	public static final long ALL = (1L << 36) - 1;
+
+	/**
+	 * No faces are connected
+	 */
+	public static final long NONE = 0L;
+
+	/**
+	 * Scratch space for the flood fill
+	 */
+	private boolean visited[] = new boolean[VOLUME];
+	private int queue[] = new int[VOLUME];
+
+	/**
+	 * Checks to see if two faces of a chunk are connected
+	 * @param visibility the visibility of the chunk
+	 * @param from the face (FACE_X)
+	 * @param to the other face (FACE_X)
+	 * @return true if the faces can see each other
+	 */
+	public static boolean isConnected(long visibility, int from, int to) {
+		return ((visibility >>> (from * 6 + to)) & 1L) != 0;
+	}
+
+	/**
+	 * Computes the visibility of a chunk
+	 * @param cubes the cubes of the chunk
+	 * @return the visibility bits, see isConnected
+	 */
+	public long compute(CubeStorage cubes) {
+		if (cubes.isUniform())
+			return Cube.isTransparent(cubes.get(0)) ? ALL : NONE;
+
+		// opaque cubes are marked visited up front, so only transparent cubes are filled
+		for (int i = 0; i < VOLUME; i ++)
+			visited[i] = !Cube.isTransparent(cubes.get(i));
+
+		long visibility = NONE;
+		for (int i = 0; i < VOLUME; i ++) {
+			if (visited[i])
+				continue;
+			visibility |= connect(fill(i));
+			if (visibility == ALL)
+				break;
+		}
+		return visibility;
+	}
+
+	/**
+	 * Flood fills the transparent cubes connected to a cube
+	 * @param start the index of the cube to start from (see CubeStorage.getIndex)
+	 * @return bit (1 << FACE_X) is set for every face the filled cubes touch
+	 */
+	private int fill(int start) {
+		int faces = 0;
+		int head = 0;
+		int tail = 0;
+		queue[tail ++] = start;
+		visited[start] = true;
+
+		while (head < tail) {
+			int index = queue[head ++];
+			int x = index & 15;
+			int z = (index >> 4) & 15;
+			int y = index >> 8;
+
+			if (x == 0)
+				faces |= 1 << Cube.FACE_LEFT;
+			else
+				tail = visit(index - 1, tail);
+			if (x == SIZE - 1)
+				faces |= 1 << Cube.FACE_RIGHT;
+			else
+				tail = visit(index + 1, tail);
+			if (z == 0)
+				faces |= 1 << Cube.FACE_BACK;
+			else
+				tail = visit(index - SIZE, tail);
+			if (z == SIZE - 1)
+				faces |= 1 << Cube.FACE_FRONT;
+			else
+				tail = visit(index + SIZE, tail);
+			if (y == 0)
+				faces |= 1 << Cube.FACE_BOTTOM;
+			else
+				tail = visit(index - SIZE * SIZE, tail);
+			if (y == SIZE - 1)
+				faces |= 1 << Cube.FACE_TOP;
+			else
+				tail = visit(index + SIZE * SIZE, tail);
+		}
+		return faces;
+	}
+
+	/**
+	 * Queues up a cube if it wasn't visited yet
+	 * @param index the index of the cube
+	 * @param tail the end of the queue
+	 * @return the new end of the queue
+	 */
+	private int visit(int index, int tail) {
+		if (visited[index])
+			return tail;
+		visited[index] = true;
+		queue[tail] = index;
+		return tail + 1;
+	}
+
+	/**
+	 * Connects every pair of faces in a set
+	 * @param faces bit (1 << FACE_X) is set for every face in the set
+	 * @return the visibility bits of the pairs
+	 */
+	private static long connect(int faces) {
+		long visibility = NONE;
+		for (int a = 0; a < 6; a ++) {
+			if ((faces & (1 << a)) == 0)
+				continue;
+			for (int b = 0; b < 6; b ++) {
+				if ((faces & (1 << b)) != 0)
+					visibility |= 1L << (a * 6 + b);
+			}
+		}
+		return visibility;
+	}
+}
@@ -105,6 +105,69 @@ public class Cube {
 		{ 0.0f, 1.0f, 0.0f } // top
 	};
 	
+	/**
+	 * The offset to the neighbouring cube in the direction of each face
+	 */
+	public static final int offsets[][] = {
+		{ 0, 0, -1 }, // back
+		{ 0, 0, 1 }, // front
+		{ 1, 0, 0 }, // right
+		{-1, 0, 0 }, // left
+		{ 0, -1, 0 }, // bottom
+		{ 0, 1, 0 } // top
+	};
+	
+	/**
+	 * Gets the face on the other side of the cube
+	 * @param side the face (FACE_X)
+	 * @return the opposite face, FACE_FRONT for FACE_BACK and so on
+	 */
+	public static int getOppositeFace(int side) {
+		return side ^ 1;
+	}
+	
+	/**
+	 * Checks to see if a material can be seen through
+	 * @param material the material
+	 * @return true if the material is transparent
+	 */
+	public static boolean isTransparent(short material) {
+		return material == AIR || material == WATER;
+	}
+	
+	/**
+	 * Checks to see if a material is drawn, but can be seen through.  Such cubes
+	 * are drawn blended, after every opaque cube.
+	 * @param material the material
+	 * @return true if the material is translucent
+	 */
+	public static boolean isTranslucent(short material) {
+		return material == WATER;
+	}
+	
+	/**
+	 * Gets how much a material dims light that passes through it, on top of the
+	 * one level light loses for every cube it travels (see LightEngine)
+	 * @param material the material
+	 * @return the opacity, LightEngine.MAX_LIGHT for materials light can't pass through
+	 */
+	public static int getLightOpacity(short material) {
+		if (material == AIR)
+			return 0;
+		if (material == WATER)
+			return 2;
+		return LightEngine.MAX_LIGHT;
+	}
+	
+	/**
+	 * Gets the block light a material gives off
+	 * @param material the material
+	 * @return the light level, 0 if the material doesn't give off light
+	 */
+	public static int getLightEmission(short material) {
+		return (material == LAMP) ? LightEngine.MAX_LIGHT : 0;
+	}
+	
 	/**
 	 * @param offset the texture offset to get (note, recursivly wraps to next column if > length of row)
 	 * @param textureWidth
@@ -153,6 +216,29 @@ public class Cube {
 		return uvs;
 	}
 	
+	/**
+	 * Same as getUVTextureMapD, but writes into the given array instead of
+	 * allocating vectors, so that it can be used while building meshes.
+	 * @param offset the texture offset to get
+	 * @param textureWidth
+	 * @param textureHeight
+	 * @param uvs receives u0, v0, u1, v1, u2, v2, u3, v3 (must hold at least 8 floats)
+	 */
+	public static void getUVTextureMapD(short offset, int textureWidth, int textureHeight, float uvs[]) {
+		int off = (int)offset;
+		int u = off % textureWidth;
+		int v = off / textureHeight;
+		float xOffset = 1.0f / textureWidth;
+		float yOffset = 1.0f / textureHeight;
+		float uOffset = u * xOffset;
+		float vOffset = v * yOffset;
+	
+		uvs[0] = uOffset;           uvs[1] = vOffset + yOffset; // 0, 1 (0)
+		uvs[2] = uOffset + xOffset; uvs[3] = vOffset + yOffset; // 1, 1 (1)
+		uvs[4] = uOffset + xOffset; uvs[5] = vOffset;           // 1, 0 (2)
+		uvs[6] = uOffset;           uvs[7] = vOffset;           // 0, 0 (3)
+	}
+	
 	/**
 	 * List of materials
 	 */
@@ -161,4 +247,5 @@ public class Cube {
 	public static final short GRASS = 1;
 	public static final short COBBLE = 2;
 	public static final short WATER = 3;
+	public static final short LAMP = 4;
 }
@@ -0,0 +1,551 @@
+//-----------------------------------------------------------------------------
+// CubeStorage.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+/**
+ * Palette compressed storage for the cubes of a chunk.
+ *
+ * A storage that holds a single material (most chunks are either all air or
+ * solid all the way through) is uniform: it only has its palette and no cube
+ * data at all.  The first set that breaks uniformity allocates the cube data.
+ *
+ * Each storage keeps a small palette of the materials it uses, and every cube
+ * is stored as an index into that palette, bit packed into long arrays.
+ * The width of an index starts at 1 bit and doubles (1, 2, 4, 8, 16) as the
+ * palette grows, so an index never straddles two longs.  A chunk with two
+ * materials takes 512 bytes instead of 8KB.
+ *
+ * Cubes are stored y major (index = y * 256 + z * 16 + x), and each horizontal
+ * layer is a section with its own array.  A section that was never written to
+ * is null and reads as palette index 0.
+ *
+ * snapshot() returns a read only copy of the storage that shares every array
+ * with it, copy on write: the storage copies a section (or the palette) the
+ * first time it changes it after a snapshot, so a snapshot never sees a change
+ * and can be read from any thread while the main thread keeps editing.  Every
+ * change counts up the version of the storage, and a snapshot keeps the version
+ * it was taken at, so work done on a snapshot can tell if it is out of date.
+ */
+public class CubeStorage {
+	/**
+	 * The amount of cubes along each axis
+	 */
+	public static final int SIZE = Chunk.CHUNK_SIZE;
+
+	/**
+	 * The total amount of cubes in a storage
+	 */
+	public static final int VOLUME = SIZE * SIZE * SIZE;
+
+	/**
+	 * The amount of cubes in a section, one horizontal layer
+	 */
+	public static final int SECTION_VOLUME = SIZE * SIZE;
+	private static final int SECTION_SHIFT = 8;
+	private static final int SECTION_MASK = SECTION_VOLUME - 1;
+
+	/**
+	 * The bits of shared for the sections, and for the palette arrays
+	 */
+	private static final int SHARED_SECTIONS = (1 << SIZE) - 1;
+	private static final int SHARED_PALETTE = 1 << SIZE;
+
+	/**
+	 * The materials used by this storage
+	 */
+	private short palette[];
+	private int paletteSize;
+
+	/**
+	 * Maps (material + 1) to (palette index + 1), 0 if the material isn't in the palette.
+	 * Materials start at Cube.AIR (-1), so this stays tiny.
+	 */
+	private short paletteLookup[];
+
+	/**
+	 * Bits per cube index, and the mask for a single index (0 while uniform)
+	 */
+	private int bits;
+	private long mask;
+
+	/**
+	 * The packed palette indices of each section, null while uniform
+	 */
+	private long sections[][];
+
+	/**
+	 * Bit (1 << section) is set for the sections, and SHARED_PALETTE for the palette,
+	 * that a snapshot may still be reading.  They are copied before they are changed.
+	 */
+	private int shared = 0;
+
+	/**
+	 * Counts the changes to the storage
+	 */
+	private long version = 0;
+
+	/**
+	 * True for snapshots, which can't be changed
+	 */
+	private final boolean readOnly;
+
+	/**
+	 * Creates a uniform storage where every cube is the given material
+	 * @param material the material to fill the storage with
+	 */
+	public CubeStorage(short material) {
+		palette = new short[2];
+		paletteLookup = new short[0];
+		paletteSize = 0;
+		addToPalette(material);
+
+		bits = 0;
+		mask = 0;
+		sections = null;
+		readOnly = false;
+	}
+
+	/**
+	 * Creates a snapshot of a storage
+	 * @param source the storage
+	 */
+	private CubeStorage(CubeStorage source) {
+		palette = source.palette;
+		paletteSize = source.paletteSize;
+		paletteLookup = source.paletteLookup;
+		bits = source.bits;
+		mask = source.mask;
+		sections = (source.sections == null) ? null : source.sections.clone();
+		version = source.version;
+		readOnly = true;
+	}
+
+	/**
+	 * Takes a read only snapshot of the storage.  It only copies the references
+	 * to the sections, the storage copies a section once it changes it.
+	 * @return the snapshot, this storage if it is a snapshot itself
+	 */
+	public CubeStorage snapshot() {
+		if (readOnly)
+			return this;
+		shared = SHARED_SECTIONS | SHARED_PALETTE;
+		return new CubeStorage(this);
+	}
+
+	/**
+	 * Makes this storage a copy of another one, sharing its arrays until either of them changes
+	 * @param other the storage to copy
+	 */
+	public void copyFrom(CubeStorage other) {
+		checkWritable();
+		palette = other.palette;
+		paletteSize = other.paletteSize;
+		paletteLookup = other.paletteLookup;
+		bits = other.bits;
+		mask = other.mask;
+		sections = (other.sections == null) ? null : other.sections.clone();
+		shared = SHARED_SECTIONS | SHARED_PALETTE;
+		if (!other.readOnly)
+			other.shared = SHARED_SECTIONS | SHARED_PALETTE;
+		version ++;
+	}
+
+	/**
+	 * Gets the index of a cube inside of the storage
+	 * @param x the local x position
+	 * @param y the local y position
+	 * @param z the local z position
+	 * @return the index of the cube
+	 */
+	public static int getIndex(int x, int y, int z) {
+		return (y << 8) | (z << 4) | x;
+	}
+
+	/**
+	 * Gets the material of a cube
+	 * @param x the local x position
+	 * @param y the local y position
+	 * @param z the local z position
+	 * @return the material
+	 */
+	public short get(int x, int y, int z) {
+		return get(getIndex(x, y, z));
+	}
+
+	/**
+	 * Gets the material of a cube
+	 * @param index the index of the cube, see getIndex
+	 * @return the material
+	 */
+	public short get(int index) {
+		if (sections == null)
+			return palette[0];
+		long data[] = sections[index >>> SECTION_SHIFT];
+		if (data == null)
+			return palette[0];
+
+		int bit = (index & SECTION_MASK) * bits;
+		return palette[(int)((data[bit >>> 6] >>> (bit & 63)) & mask)];
+	}
+
+	/**
+	 * Sets the material of a cube
+	 * @param x the local x position
+	 * @param y the local y position
+	 * @param z the local z position
+	 * @param material the material
+	 */
+	public void set(int x, int y, int z, short material) {
+		set(getIndex(x, y, z), material);
+	}
+
+	/**
+	 * Sets the material of a cube
+	 * @param index the index of the cube, see getIndex
+	 * @param material the material
+	 */
+	public void set(int index, short material) {
+		checkWritable();
+		int paletteIndex = getPaletteIndex(material);
+		if (paletteIndex == -1) {
+			paletteIndex = addToPalette(material);
+
+			// the new index has to fit
+			if (paletteSize > (1 << bits))
+				resize(bits == 0 ? 1 : bits * 2);
+		} else if (sections == null) {
+			// setting a uniform storage to its own material
+			return;
+		}
+
+		long data[] = getWritableSection(index >>> SECTION_SHIFT);
+		int bit = (index & SECTION_MASK) * bits;
+		int word = bit >>> 6;
+		int shift = bit & 63;
+		data[word] = (data[word] & ~(mask << shift)) | ((long)paletteIndex << shift);
+		version ++;
+	}
+
+	/**
+	 * Sets a run of cubes to the same material, looking it up in the palette once
+	 * @param start the index of the first cube, see getIndex
+	 * @param length the amount of cubes
+	 * @param material the material
+	 */
+	public void setRun(int start, int length, short material) {
+		if (start == 0 && length == VOLUME) {
+			fill(material);
+			return;
+		}
+
+		checkWritable();
+		int paletteIndex = getPaletteIndex(material);
+		if (paletteIndex == -1) {
+			paletteIndex = addToPalette(material);
+			if (paletteSize > (1 << bits))
+				resize(bits == 0 ? 1 : bits * 2);
+		} else if (sections == null) {
+			return;
+		}
+
+		long value = paletteIndex;
+		int index = start;
+		int end = start + length;
+		while (index < end) {
+			int section = index >>> SECTION_SHIFT;
+			int sectionEnd = Math.min(end, (section + 1) << SECTION_SHIFT);
+
+			// a whole section of palette index 0 doesn't need an array
+			if (paletteIndex == 0 && sectionEnd - index == SECTION_VOLUME) {
+				sections[section] = null;
+				shared &= ~(1 << section);
+				index = sectionEnd;
+				continue;
+			}
+
+			long data[] = getWritableSection(section);
+			for (; index < sectionEnd; index ++) {
+				int bit = (index & SECTION_MASK) * bits;
+				int word = bit >>> 6;
+				int shift = bit & 63;
+				data[word] = (data[word] & ~(mask << shift)) | (value << shift);
+			}
+		}
+		version ++;
+	}
+
+	/**
+	 * Copies cubes from earlier in the storage, one at a time from the front, so
+	 * the ranges may overlap (like an LZ77 match)
+	 * @param from the index of the first cube to copy
+	 * @param to the index of the first cube to overwrite, more than from
+	 * @param length the amount of cubes
+	 */
+	public void copyRun(int from, int to, int length) {
+		checkWritable();
+		// every cube is the same already
+		if (sections == null)
+			return;
+
+		for (int i = 0; i < length; i ++) {
+			int index = from + i;
+			long source[] = sections[index >>> SECTION_SHIFT];
+			int bit = (index & SECTION_MASK) * bits;
+			long value = (source == null) ? 0 : (source[bit >>> 6] >>> (bit & 63)) & mask;
+
+			index = to + i;
+			long data[] = getWritableSection(index >>> SECTION_SHIFT);
+			bit = (index & SECTION_MASK) * bits;
+			int word = bit >>> 6;
+			int shift = bit & 63;
+			data[word] = (data[word] & ~(mask << shift)) | (value << shift);
+		}
+		version ++;
+	}
+
+	/**
+	 * Sets every cube of the storage to a material, making it uniform
+	 * @param material the material
+	 */
+	public void fill(short material) {
+		checkWritable();
+		if ((shared & SHARED_PALETTE) != 0) {
+			palette = new short[2];
+			paletteLookup = new short[0];
+			shared &= ~SHARED_PALETTE;
+		} else {
+			for (int i = 0; i < paletteSize; i ++) {
+				int slot = palette[i] + 1;
+				if (slot >= 0)
+					paletteLookup[slot] = 0;
+			}
+		}
+		paletteSize = 0;
+		addToPalette(material);
+
+		bits = 0;
+		mask = 0;
+		sections = null;
+		shared &= ~SHARED_SECTIONS;
+		version ++;
+	}
+
+	/**
+	 * Checks to see if every cube in the storage is the same material.
+	 * @return true if the storage is uniform, use get(0) for the material
+	 */
+	public boolean isUniform() {
+		return sections == null;
+	}
+
+	/**
+	 * Checks to see if this is a snapshot, see snapshot()
+	 * @return true if the storage can't be changed
+	 */
+	public boolean isSnapshot() {
+		return readOnly;
+	}
+
+	/**
+	 * Gets the version of the storage, it counts up with every change.  A snapshot
+	 * has the version of the storage at the time it was taken.
+	 * @return the version
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Sets the version of a storage that replaces another one with the same cubes
+	 * (like a chunk that was decompressed), so snapshots of the old one stay current
+	 * @param version the version of the storage that is replaced
+	 */
+	void restoreVersion(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * Gets the amount of materials in the palette
+	 * @return the palette size
+	 */
+	public int getPaletteSize() {
+		return paletteSize;
+	}
+
+	/**
+	 * Gets a material of the palette.  Materials stay in the palette after the
+	 * last cube of them is overwritten, so not every one is actually used.
+	 * @param index the palette index, less than getPaletteSize
+	 * @return the material
+	 */
+	public short getPaletteMaterial(int index) {
+		return palette[index];
+	}
+
+	/**
+	 * Gets the amount of bits used per cube
+	 * @return the bits per cube
+	 */
+	public int getBitsPerCube() {
+		return bits;
+	}
+
+	/**
+	 * Estimates the amount of heap memory used by this storage, including
+	 * object and array headers (assumed 16 bytes each).  Arrays that are
+	 * shared with snapshots are counted in full.
+	 * @return the memory usage in bytes
+	 */
+	public int getMemoryUsage() {
+		int usage = 16 + 6 * 8; // object header and fields
+		usage += 16 + palette.length * 2;
+		usage += 16 + paletteLookup.length * 2;
+		if (sections != null) {
+			usage += 16 + sections.length * 8;
+			for (int i = 0; i < sections.length; i ++) {
+				if (sections[i] != null)
+					usage += 16 + sections[i].length * 8;
+			}
+		}
+		return usage;
+	}
+
+	/**
+	 * Throws if this storage is a snapshot
+	 */
+	private void checkWritable() {
+		if (readOnly)
+			throw new IllegalStateException("A snapshot of cubes can't be changed");
+	}
+
+	/**
+	 * Gets a section to write to, copying it if a snapshot shares it, or allocating it if it is null
+	 * @param section the section index
+	 * @return the packed indices of the section
+	 */
+	private long[] getWritableSection(int section) {
+		long data[] = sections[section];
+		int bit = 1 << section;
+		if ((shared & bit) != 0) {
+			data = (data == null) ? new long[SECTION_VOLUME * bits / 64] : data.clone();
+			sections[section] = data;
+			shared &= ~bit;
+		} else if (data == null) {
+			data = new long[SECTION_VOLUME * bits / 64];
+			sections[section] = data;
+		}
+		return data;
+	}
+
+	/**
+	 * Finds a material in the palette
+	 * @param material the material
+	 * @return the palette index, or -1 if it isn't in the palette
+	 */
+	private int getPaletteIndex(short material) {
+		int slot = material + 1;
+		if (slot < 0) {
+			// not a regular material, search for it
+			for (int i = 0; i < paletteSize; i ++) {
+				if (palette[i] == material)
+					return i;
+			}
+			return -1;
+		}
+		if (slot >= paletteLookup.length)
+			return -1;
+		return paletteLookup[slot] - 1;
+	}
+
+	/**
+	 * Adds a material to the palette
+	 * @param material the material
+	 * @return the palette index of the material
+	 */
+	private int addToPalette(short material) {
+		if ((shared & SHARED_PALETTE) != 0) {
+			palette = palette.clone();
+			paletteLookup = paletteLookup.clone();
+			shared &= ~SHARED_PALETTE;
+		}
+		if (paletteSize == palette.length) {
+			short grown[] = new short[palette.length * 2];
+			System.arraycopy(palette, 0, grown, 0, paletteSize);
+			palette = grown;
+		}
+		int index = paletteSize ++;
+		palette[index] = material;
+
+		int slot = material + 1;
+		if (slot >= 0) {
+			if (slot >= paletteLookup.length) {
+				short grown[] = new short[slot + 1];
+				System.arraycopy(paletteLookup, 0, grown, 0, paletteLookup.length);
+				paletteLookup = grown;
+			}
+			paletteLookup[slot] = (short)(index + 1);
+		}
+		return index;
+	}
+
+	/**
+	 * Repacks the cube indices with a new width.  Every section gets a new array,
+	 * so none of them is shared with a snapshot afterwards.
+	 * @param newBits the new amount of bits per cube
+	 */
+	private void resize(int newBits) {
+		long newMask = (1L << newBits) - 1;
+		long newSections[][] = new long[SIZE][];
+
+		// a uniform storage is all palette index 0, which is what a null section is
+		for (int section = 0; sections != null && section < SIZE; section ++) {
+			long data[] = sections[section];
+			if (data == null)
+				continue;
+			long newData[] = new long[SECTION_VOLUME * newBits / 64];
+			for (int i = 0; i < SECTION_VOLUME; i ++) {
+				int bit = i * bits;
+				long value = (data[bit >>> 6] >>> (bit & 63)) & mask;
+				int newBit = i * newBits;
+				newData[newBit >>> 6] |= value << (newBit & 63);
+			}
+			newSections[section] = newData;
+		}
+		bits = newBits;
+		mask = newMask;
+		sections = newSections;
+		shared &= ~SHARED_SECTIONS;
+	}
+}
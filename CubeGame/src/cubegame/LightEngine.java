@@ -0,0 +1,692 @@
+//-----------------------------------------------------------------------------
+// LightEngine.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Works out the light of every cube: sky light that falls in from above, and
+ * block light that spreads out from materials that give off light (see
+ * Cube.getLightEmission).
+ *
+ * Every cube has a sky and a block light level from 0 to MAX_LIGHT, stored as
+ * one byte per cube in its chunk (see Chunk.getLight).  Light spreads breadth
+ * first from its sources, losing one level for every cube it travels plus the
+ * opacity of the material it enters (see Cube.getLightOpacity).  Sky light at
+ * full strength falls straight down through clear cubes without losing anything,
+ * so everything under the open sky is fully lit.  The top of a chunk that has
+ * no chunk loaded above it is open sky.
+ *
+ * A chunk is lit once when it is added to the world: its sky light is worked
+ * out column by column, then light spreads between it and its neighbours.  After
+ * that, edits relight incrementally instead of relighting whole chunks:
+ * - the light of the changed cubes is taken out, and a first breadth first pass
+ *   darkens every cube that got its light through them, collecting the lit cubes
+ *   around the darkened area,
+ * - a second pass spreads light back in from those, and from the changed cubes
+ *   themselves if they are sources or were opened up.
+ * Only the cubes whose light changes (and their neighbours) are visited.  The
+ * chunks whose light changed are marked dirty, and so are the neighbours that
+ * have faces looking into them, as the mesher puts the light into the vertices.
+ *
+ * Light that a chunk gave its neighbours stays when the chunk is removed, until
+ * they are relit.  Chunks are best added top down, a chunk that is added above
+ * one that was lit as open sky has to darken it again.
+ *
+ * Only the main thread may use this.
+ */
+public class LightEngine {
+	public static final int MAX_LIGHT = 15;
+
+	/**
+	 * The sky light is in the high 4 bits of the light of a cube, the block light in the low 4 bits
+	 */
+	public static final int SKY_SHIFT = 4;
+	public static final int BLOCK_SHIFT = 0;
+
+	/**
+	 * The light of a cube under the open sky, with no block light
+	 */
+	public static final int OPEN_SKY = MAX_LIGHT << SKY_SHIFT;
+
+	private static final int SIZE = Chunk.CHUNK_SIZE;
+	private static final int LAST = Chunk.CHUNK_SIZE - 1;
+
+	/**
+	 * The step to the neighbouring cube in the direction of each face, in CubeStorage indices
+	 */
+	private static final int INDEX_STEP[] = { -SIZE, SIZE, 1, -1, -SIZE * SIZE, SIZE * SIZE };
+
+	/**
+	 * Set in Chunk.lightChanges once the light of a chunk changed, the low bits are the sides
+	 */
+	private static final int CHANGED = 1 << 6;
+
+	/**
+	 * How bright each light level is drawn, every level is a fifth darker than the next
+	 */
+	private static final float BRIGHTNESS[] = new float[MAX_LIGHT + 1];
+
+	static {
+		for (int level = 0; level <= MAX_LIGHT; level ++)
+			BRIGHTNESS[level] = (float)Math.pow(0.8, MAX_LIGHT - level);
+	}
+
+	/**
+	 * The cubes whose light is taken out (with the level they had), and the cubes light spreads from
+	 */
+	private static LightQueue darkening = new LightQueue();
+	private static LightQueue spreading = new LightQueue();
+
+	/**
+	 * The cubes that changed since the last relight, see markChanged
+	 */
+	private static LightQueue changes = new LightQueue();
+
+	/**
+	 * The chunks whose light changed since they were last marked dirty
+	 */
+	private static ArrayList<Chunk> changedChunks = new ArrayList<Chunk>();
+
+	/**
+	 * The neighbours of the last chunk that was stepped out of.  Bit (1 << FACE_X)
+	 * of neighboursFound is set once the neighbour on that side was looked up.
+	 */
+	private static Chunk neighbourOf = null;
+	private static Chunk neighbours[] = new Chunk[6];
+	private static int neighboursFound = 0;
+
+	/**
+	 * The chunk and the cube the last step went into
+	 */
+	private static Chunk stepChunk;
+	private static int stepIndex;
+
+	/**
+	 * Stats
+	 */
+	private static long visitedCubes = 0;
+	private static long relights = 0;
+	private static long relightTime = 0;
+
+	/**
+	 * Lights a chunk that was just added to the world, and spreads its light into
+	 * the neighbouring chunks and theirs into it.  Only the world should call this.
+	 * @param chunk the chunk
+	 */
+	static void addChunk(Chunk chunk) {
+		neighbourOf = null;
+		chunk.setLit(true);
+		CubeStorage cubes = chunk.getCubes();
+		Chunk above = getNeighbour(chunk, Cube.FACE_TOP);
+
+		if (cubes.isUniform() && Cube.getLightOpacity(cubes.get(0)) == 0 && (above == null || above.isLightUniform(OPEN_SKY))) {
+			// clear all the way through, and nothing but open sky above
+			chunk.fillLight(OPEN_SKY);
+			seedBorders(chunk, SKY_SHIFT, true);
+		} else {
+			chunk.fillLight(0);
+			lightColumns(chunk, cubes, above);
+			seedBorders(chunk, SKY_SHIFT, false);
+			darkenBelow(chunk);
+			darken(SKY_SHIFT);
+		}
+		spread(SKY_SHIFT);
+
+		// the block light of any cube in the chunk that gives off light
+		for (int i = 0; i < cubes.getPaletteSize(); i ++) {
+			if (Cube.getLightEmission(cubes.getPaletteMaterial(i)) == 0)
+				continue;
+			for (int index = 0; index < CubeStorage.VOLUME; index ++) {
+				int emission = Cube.getLightEmission(cubes.get(index));
+				if (emission > 0) {
+					setLevel(chunk, index, BLOCK_SHIFT, emission);
+					spreading.add(chunk, index, 0);
+				}
+			}
+			break;
+		}
+		seedBorders(chunk, BLOCK_SHIFT, true);
+		spread(BLOCK_SHIFT);
+
+		markDirty(null);
+	}
+
+	/**
+	 * Forgets about a chunk that was removed from the world.  Only the world should call this.
+	 * @param chunk the chunk
+	 */
+	static void removeChunk(Chunk chunk) {
+		neighbourOf = null;
+		chunk.setLit(false);
+	}
+
+	/**
+	 * Relights around a cube whose material was changed.  The other chunks whose
+	 * light changed are marked dirty, the chunk of the cube isn't, as the caller
+	 * rebuilds it.  Cubes of chunks that aren't lit are ignored.
+	 * @param chunk the chunk of the cube
+	 * @param index the index of the cube, see CubeStorage.getIndex
+	 */
+	public static void relight(Chunk chunk, int index) {
+		if (!chunk.isLit())
+			return;
+		changes.add(chunk, index, 0);
+		relight(chunk);
+	}
+
+	/**
+	 * Records a cube whose material was changed, to be relit together with the
+	 * other changed cubes by the next relight.  Cubes of chunks that aren't lit are ignored.
+	 * @param chunk the chunk of the cube
+	 * @param index the index of the cube, see CubeStorage.getIndex
+	 */
+	public static void markChanged(Chunk chunk, int index) {
+		if (chunk.isLit())
+			changes.add(chunk, index, 0);
+	}
+
+	/**
+	 * Relights around every cube that was recorded with markChanged since the last relight
+	 * @param rebuilt a chunk that the caller rebuilds itself, so it isn't marked dirty, or null
+	 */
+	public static void relight(Chunk rebuilt) {
+		if (changes.isEmpty())
+			return;
+		long start = System.nanoTime();
+		relightChanges(SKY_SHIFT);
+		relightChanges(BLOCK_SHIFT);
+		changes.clear();
+		markDirty(rebuilt);
+		relights ++;
+		relightTime = System.nanoTime() - start;
+	}
+
+	/**
+	 * Relights one kind of light around the changed cubes
+	 * @param shift SKY_SHIFT or BLOCK_SHIFT
+	 */
+	private static void relightChanges(int shift) {
+		// take the light out of the changed cubes, and out of every cube that got its light through them
+		for (int i = changes.head; i < changes.tail; i ++) {
+			Chunk chunk = changes.chunks[i];
+			int index = changes.indices[i];
+			int level = getLevel(chunk, index, shift);
+			if (level > 0) {
+				setLevel(chunk, index, shift, 0);
+				darkening.add(chunk, index, level);
+			}
+		}
+		darken(shift);
+
+		// then spread it back in from the changed cubes that are sources, and from the lit cubes around them
+		for (int i = changes.head; i < changes.tail; i ++) {
+			Chunk chunk = changes.chunks[i];
+			int index = changes.indices[i];
+			int source = getSource(chunk, index, shift);
+			if (source > getLevel(chunk, index, shift)) {
+				setLevel(chunk, index, shift, source);
+				spreading.add(chunk, index, 0);
+			}
+			for (int face = 0; face < 6; face ++) {
+				if (step(chunk, index, face) && getLevel(stepChunk, stepIndex, shift) > 1)
+					spreading.add(stepChunk, stepIndex, 0);
+			}
+		}
+		spread(shift);
+	}
+
+	/**
+	 * Works out the sky light of a chunk by letting it fall down every column of
+	 * cubes, starting from the chunk above or the open sky
+	 * @param chunk the chunk, its light has to be 0
+	 * @param cubes the cubes of the chunk
+	 * @param above the chunk above, or null for the open sky
+	 */
+	private static void lightColumns(Chunk chunk, CubeStorage cubes, Chunk above) {
+		for (int z = 0; z < SIZE; z ++) {
+			for (int x = 0; x < SIZE; x ++) {
+				int level = (above == null) ? MAX_LIGHT : getLevel(above, CubeStorage.getIndex(x, 0, z), SKY_SHIFT);
+				for (int y = LAST; y >= 0 && level > 0; y --) {
+					int index = CubeStorage.getIndex(x, y, z);
+					level = fall(level, cubes.get(index));
+					if (level > 0) {
+						setLevel(chunk, index, SKY_SHIFT, level);
+						if (level > 1)
+							spreading.add(chunk, index, 0);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes the sky light out of the top of the chunk below a chunk that was just
+	 * added, where the new chunk doesn't let full sky light through.  Until now the
+	 * chunk below may have been lit as if it was under the open sky.
+	 * @param chunk the chunk that was added
+	 */
+	private static void darkenBelow(Chunk chunk) {
+		Chunk below = getNeighbour(chunk, Cube.FACE_BOTTOM);
+		if (below == null)
+			return;
+		for (int z = 0; z < SIZE; z ++) {
+			for (int x = 0; x < SIZE; x ++) {
+				if (getLevel(chunk, CubeStorage.getIndex(x, 0, z), SKY_SHIFT) == MAX_LIGHT)
+					continue;
+				int index = CubeStorage.getIndex(x, LAST, z);
+				int level = getLevel(below, index, SKY_SHIFT);
+				if (level > 0) {
+					setLevel(below, index, SKY_SHIFT, 0);
+					darkening.add(below, index, level);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Lets the light spread between a chunk that was just added and its neighbours
+	 * @param chunk the chunk
+	 * @param shift SKY_SHIFT or BLOCK_SHIFT
+	 * @param ownSides true to spread from the sides of the chunk too, false if its cubes are queued already
+	 */
+	private static void seedBorders(Chunk chunk, int shift, boolean ownSides) {
+		for (int face = 0; face < 6; face ++) {
+			Chunk neighbour = getNeighbour(chunk, face);
+			if (neighbour == null)
+				continue;
+
+			// two chunks that are open sky all the way through have nothing to give each other
+			if (chunk.isLightUniform(OPEN_SKY) && neighbour.isLightUniform(OPEN_SKY))
+				continue;
+			seedSide(neighbour, Cube.getOppositeFace(face), shift);
+			if (ownSides)
+				seedSide(chunk, face, shift);
+		}
+	}
+
+	/**
+	 * Queues the lit cubes on one side of a chunk to spread their light
+	 * @param chunk the chunk
+	 * @param face the side (Cube.FACE_X)
+	 * @param shift SKY_SHIFT or BLOCK_SHIFT
+	 */
+	private static void seedSide(Chunk chunk, int face, int shift) {
+		for (int b = 0; b < SIZE; b ++) {
+			for (int a = 0; a < SIZE; a ++) {
+				int index;
+				switch (face) {
+				case Cube.FACE_BACK:
+					index = CubeStorage.getIndex(a, b, 0);
+					break;
+				case Cube.FACE_FRONT:
+					index = CubeStorage.getIndex(a, b, LAST);
+					break;
+				case Cube.FACE_RIGHT:
+					index = CubeStorage.getIndex(LAST, b, a);
+					break;
+				case Cube.FACE_LEFT:
+					index = CubeStorage.getIndex(0, b, a);
+					break;
+				case Cube.FACE_BOTTOM:
+					index = CubeStorage.getIndex(a, 0, b);
+					break;
+				default:
+					index = CubeStorage.getIndex(a, LAST, b);
+					break;
+				}
+				if (getLevel(chunk, index, shift) > 1)
+					spreading.add(chunk, index, 0);
+			}
+		}
+	}
+
+	/**
+	 * Darkens every cube that got its light through the cubes in the darkening
+	 * queue.  The lit cubes around the darkened area, and the sources inside of it,
+	 * are queued to spread their light back in.
+	 * @param shift SKY_SHIFT or BLOCK_SHIFT
+	 */
+	private static void darken(int shift) {
+		boolean sky = (shift == SKY_SHIFT);
+		while (!darkening.isEmpty()) {
+			int i = darkening.head ++;
+			visitedCubes ++;
+			Chunk chunk = darkening.chunks[i];
+			int index = darkening.indices[i];
+			int level = darkening.levels[i];
+
+			for (int face = 0; face < 6; face ++) {
+				if (!step(chunk, index, face))
+					continue;
+				Chunk neighbour = stepChunk;
+				int neighbourIndex = stepIndex;
+				int neighbourLevel = getLevel(neighbour, neighbourIndex, shift);
+				if (neighbourLevel == 0)
+					continue;
+
+				// dimmer light came from here, and so did full sky light right below
+				if (neighbourLevel < level || (sky && face == Cube.FACE_BOTTOM && level == MAX_LIGHT)) {
+					setLevel(neighbour, neighbourIndex, shift, 0);
+					darkening.add(neighbour, neighbourIndex, neighbourLevel);
+
+					int source = getSource(neighbour, neighbourIndex, shift);
+					if (source > 0) {
+						setLevel(neighbour, neighbourIndex, shift, source);
+						spreading.add(neighbour, neighbourIndex, 0);
+					}
+				} else {
+					spreading.add(neighbour, neighbourIndex, 0);
+				}
+			}
+		}
+		darkening.clear();
+	}
+
+	/**
+	 * Spreads the light of the cubes in the spreading queue, breadth first
+	 * @param shift SKY_SHIFT or BLOCK_SHIFT
+	 */
+	private static void spread(int shift) {
+		boolean sky = (shift == SKY_SHIFT);
+		while (!spreading.isEmpty()) {
+			int i = spreading.head ++;
+			visitedCubes ++;
+			Chunk chunk = spreading.chunks[i];
+			int index = spreading.indices[i];
+			int level = getLevel(chunk, index, shift);
+			if (level <= 1)
+				continue;
+
+			for (int face = 0; face < 6; face ++) {
+				if (!step(chunk, index, face))
+					continue;
+				boolean falling = sky && face == Cube.FACE_BOTTOM && level == MAX_LIGHT;
+				int current = getLevel(stepChunk, stepIndex, shift);
+				if (current >= (falling ? MAX_LIGHT : level - 1))
+					continue;
+
+				int opacity = Cube.getLightOpacity(stepChunk.getCubes().get(stepIndex));
+				int next = (falling && opacity == 0) ? MAX_LIGHT : level - 1 - opacity;
+				if (next > current) {
+					setLevel(stepChunk, stepIndex, shift, next);
+					spreading.add(stepChunk, stepIndex, 0);
+				}
+			}
+		}
+		spreading.clear();
+	}
+
+	/**
+	 * Gets the light a cube has no matter what is around it: the block light of a
+	 * material that gives off light, or the sky light of a cube at the top of a
+	 * chunk with nothing loaded above it
+	 * @param chunk the chunk of the cube
+	 * @param index the index of the cube
+	 * @param shift SKY_SHIFT or BLOCK_SHIFT
+	 * @return the light level
+	 */
+	private static int getSource(Chunk chunk, int index, int shift) {
+		if (shift == BLOCK_SHIFT)
+			return Cube.getLightEmission(chunk.getCubes().get(index));
+		if ((index >>> 8) != LAST || getNeighbour(chunk, Cube.FACE_TOP) != null)
+			return 0;
+		return fall(MAX_LIGHT, chunk.getCubes().get(index));
+	}
+
+	/**
+	 * Gets the sky light that falls into a cube from the cube above it
+	 * @param level the sky light of the cube above
+	 * @param material the material of the cube
+	 * @return the sky light of the cube
+	 */
+	private static int fall(int level, short material) {
+		int opacity = Cube.getLightOpacity(material);
+		if (level == MAX_LIGHT && opacity == 0)
+			return MAX_LIGHT;
+		return Math.max(level - 1 - opacity, 0);
+	}
+
+	/**
+	 * Steps from a cube to its neighbour, into the neighbouring chunk if need be.
+	 * The neighbour is left in stepChunk and stepIndex.
+	 * @param chunk the chunk of the cube
+	 * @param index the index of the cube
+	 * @param face the direction to step in (Cube.FACE_X)
+	 * @return false if the neighbour is in a chunk that isn't loaded
+	 */
+	private static boolean step(Chunk chunk, int index, int face) {
+		boolean inside;
+		switch (face) {
+		case Cube.FACE_BACK:
+			inside = (index & 0xF0) != 0;
+			break;
+		case Cube.FACE_FRONT:
+			inside = (index & 0xF0) != 0xF0;
+			break;
+		case Cube.FACE_RIGHT:
+			inside = (index & 0xF) != 0xF;
+			break;
+		case Cube.FACE_LEFT:
+			inside = (index & 0xF) != 0;
+			break;
+		case Cube.FACE_BOTTOM:
+			inside = (index & 0xF00) != 0;
+			break;
+		default:
+			inside = (index & 0xF00) != 0xF00;
+			break;
+		}
+
+		if (inside) {
+			stepChunk = chunk;
+			stepIndex = index + INDEX_STEP[face];
+			return true;
+		}
+
+		// wrap around to the other side of the neighbour
+		Chunk neighbour = getNeighbour(chunk, face);
+		if (neighbour == null)
+			return false;
+		stepChunk = neighbour;
+		stepIndex = index - INDEX_STEP[face] * LAST;
+		return true;
+	}
+
+	/**
+	 * Gets the neighbour of a chunk, the neighbours of the last chunk are remembered
+	 * @param chunk the chunk
+	 * @param face the side of the chunk (Cube.FACE_X)
+	 * @return the neighbouring chunk, or null if it isn't loaded
+	 */
+	private static Chunk getNeighbour(Chunk chunk, int face) {
+		if (chunk != neighbourOf) {
+			neighbourOf = chunk;
+			neighboursFound = 0;
+		}
+		if ((neighboursFound & (1 << face)) == 0) {
+			int offset[] = Cube.offsets[face];
+			neighbours[face] = World.getChunk(chunk.getChunkX() + offset[0], chunk.getChunkY() + offset[1], chunk.getChunkZ() + offset[2]);
+			neighboursFound |= 1 << face;
+		}
+		return neighbours[face];
+	}
+
+	private static int getLevel(Chunk chunk, int index, int shift) {
+		return (chunk.getLight(index) >>> shift) & MAX_LIGHT;
+	}
+
+	/**
+	 * Sets one kind of light of a cube, and remembers that its chunk changed
+	 */
+	private static void setLevel(Chunk chunk, int index, int shift, int level) {
+		chunk.setLight(index, (chunk.getLight(index) & ~(MAX_LIGHT << shift)) | (level << shift));
+
+		if (chunk.lightChanges == 0)
+			changedChunks.add(chunk);
+		int changes = CHANGED;
+		int x = index & 0xF;
+		int y = index >>> 8;
+		int z = (index >>> 4) & 0xF;
+		if (x == 0)
+			changes |= 1 << Cube.FACE_LEFT;
+		else if (x == LAST)
+			changes |= 1 << Cube.FACE_RIGHT;
+		if (y == 0)
+			changes |= 1 << Cube.FACE_BOTTOM;
+		else if (y == LAST)
+			changes |= 1 << Cube.FACE_TOP;
+		if (z == 0)
+			changes |= 1 << Cube.FACE_BACK;
+		else if (z == LAST)
+			changes |= 1 << Cube.FACE_FRONT;
+		chunk.lightChanges |= changes;
+	}
+
+	/**
+	 * Marks the chunks whose light changed dirty, along with the neighbours whose
+	 * faces look into the cubes that changed on their sides
+	 * @param rebuilt a chunk that isn't marked, or null
+	 */
+	private static void markDirty(Chunk rebuilt) {
+		for (int i = 0; i < changedChunks.size(); i ++) {
+			Chunk chunk = changedChunks.get(i);
+			int changes = chunk.lightChanges;
+			chunk.lightChanges = 0;
+			if (chunk != rebuilt)
+				World.markDirty(chunk);
+			for (int side = 0; side < 6; side ++) {
+				if ((changes & (1 << side)) == 0)
+					continue;
+				Chunk neighbour = getNeighbour(chunk, side);
+				if (neighbour != null && neighbour != rebuilt)
+					World.markDirty(neighbour);
+			}
+		}
+		changedChunks.clear();
+	}
+
+	/**
+	 * Gets how bright a cube is drawn
+	 * @param light the light of the cube, see Chunk.getLight
+	 * @return the brightness, from 0 to 1
+	 */
+	public static float getBrightness(int light) {
+		return BRIGHTNESS[Math.max(light >>> SKY_SHIFT, light & MAX_LIGHT)];
+	}
+
+	/**
+	 * Gets the amount of cubes the light passes have visited since starting
+	 * @return the visited cube count
+	 */
+	public static long getVisitedCubes() {
+		return visitedCubes;
+	}
+
+	/**
+	 * Gets the amount of relights that had changed cubes to relight around since starting
+	 * @return the relight count
+	 */
+	public static long getRelights() {
+		return relights;
+	}
+
+	/**
+	 * Gets how long the last relight took
+	 * @return the relight time in nanoseconds
+	 */
+	public static long getRelightTime() {
+		return relightTime;
+	}
+
+	/**
+	 * A first in, first out queue of cubes, reused from pass to pass
+	 */
+	private static class LightQueue {
+		Chunk chunks[] = new Chunk[1024];
+		int indices[] = new int[1024];
+		byte levels[] = new byte[1024];
+		int head = 0;
+		int tail = 0;
+
+		void add(Chunk chunk, int index, int level) {
+			if (tail == chunks.length)
+				grow();
+			chunks[tail] = chunk;
+			indices[tail] = index;
+			levels[tail] = (byte)level;
+			tail ++;
+		}
+
+		boolean isEmpty() {
+			return head == tail;
+		}
+
+		/**
+		 * Empties the queue, and lets go of the chunks
+		 */
+		void clear() {
+			Arrays.fill(chunks, 0, tail, null);
+			head = 0;
+			tail = 0;
+		}
+
+		/**
+		 * Makes room at the end, by moving the queue to the front or by doubling the arrays
+		 */
+		private void grow() {
+			int size = tail - head;
+			if (head > chunks.length / 2) {
+				System.arraycopy(chunks, head, chunks, 0, size);
+				System.arraycopy(indices, head, indices, 0, size);
+				System.arraycopy(levels, head, levels, 0, size);
+				Arrays.fill(chunks, size, tail, null);
+			} else {
+				Chunk grownChunks[] = new Chunk[chunks.length * 2];
+				int grownIndices[] = new int[chunks.length * 2];
+				byte grownLevels[] = new byte[chunks.length * 2];
+				System.arraycopy(chunks, head, grownChunks, 0, size);
+				System.arraycopy(indices, head, grownIndices, 0, size);
+				System.arraycopy(levels, head, grownLevels, 0, size);
+				chunks = grownChunks;
+				indices = grownIndices;
+				levels = grownLevels;
+			}
+			head = 0;
+			tail = size;
+		}
+	}
+}
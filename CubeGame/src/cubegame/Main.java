@@ -41,6 +41,12 @@ import org.lwjgl.opengl.Display;
 
 public class Main {
 	public static void main(String[] args) {
+		// -greedy builds the chunks with greedy meshing
+		for (String arg : args) {
+			if (arg.equals("-greedy"))
+				ChunkMesher.setMode(ChunkMesher.MODE_GREEDY);
+		}
+		
 		Graphics.init(800, 600);
 		Time.init();
 		World.init();
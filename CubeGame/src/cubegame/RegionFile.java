@@ -0,0 +1,350 @@
+//-----------------------------------------------------------------------------
+// RegionFile.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+import math.Vector3;
+
+/**
+ * A file that stores a region of chunks, REGION_SIZE * REGION_HEIGHT * REGION_SIZE of them.
+ *
+ * The file starts with a header: a magic number, the format version and a table
+ * with the sector and the length of every chunk of the region (0 if the chunk
+ * was never saved).  After that come the chunks, encoded with ChunkCodec, each
+ * starting at a SECTOR_SIZE boundary.
+ *
+ * A chunk is never overwritten in place: it is written to the first free sectors
+ * that fit, then its header entry is switched over to them with a single 8 byte
+ * write.  Its old sectors are only used again after the next flush, so the
+ * header as it was at the last flush still points at intact chunks.  If the
+ * game dies half way, the header points at either the old or the new chunk,
+ * never at a half written one.  (Once the OS has the pages it may write them
+ * to the disk in any order, flush forces them out.)
+ *
+ * The file is memory mapped: reading a chunk decodes it straight out of the
+ * mapping without copying, and writing one copies the encoded chunk into the
+ * mapping, the OS writes the pages back to the disk on its own (or on flush).
+ *
+ * A region file can be used from any thread, calls are serialized (except for
+ * the slow part of flush).
+ */
+public class RegionFile {
+	/**
+	 * The size of a region in chunks, along x and z, and along y
+	 */
+	public static final int REGION_SHIFT = 5;
+	public static final int REGION_HEIGHT_SHIFT = 3;
+	public static final int REGION_SIZE = 1 << REGION_SHIFT;
+	public static final int REGION_HEIGHT = 1 << REGION_HEIGHT_SHIFT;
+
+	/**
+	 * The unit chunks are stored in, in bytes
+	 */
+	public static final int SECTOR_SIZE = 256;
+
+	private static final int MAGIC = 0x43475246; // CGRF
+	private static final int VERSION = 1;
+	private static final int CHUNKS = REGION_SIZE * REGION_HEIGHT * REGION_SIZE;
+	private static final int TABLE_OFFSET = 8;
+	private static final int HEADER_SECTORS = (TABLE_OFFSET + CHUNKS * 8 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+
+	/**
+	 * The mapping grows by at least this much, so it doesn't have to be mapped again for every chunk
+	 */
+	private static final int MAP_GROWTH = 1024 * 1024;
+
+	private final File file;
+	private final RandomAccessFile access;
+	private final FileChannel channel;
+	private MappedByteBuffer map;
+
+	/**
+	 * The sectors that hold the header or a chunk, and the sectors of replaced
+	 * chunks that are freed by the next flush
+	 */
+	private final BitSet usedSectors = new BitSet();
+	private BitSet replacedSectors = new BitSet();
+
+	/**
+	 * Scratch space for encoding a chunk
+	 */
+	private final ByteBuffer encodeBuffer = ByteBuffer.allocate(ChunkCodec.MAX_ENCODED_SIZE);
+
+	/**
+	 * Opens a region file, creating it if it doesn't exist
+	 * @param file the file
+	 * @throws IOException if the file can't be opened or isn't a region file
+	 */
+	public RegionFile(File file) throws IOException {
+		this.file = file;
+		access = new RandomAccessFile(file, "rw");
+		channel = access.getChannel();
+
+		try {
+			long size = channel.size();
+			boolean created = (size == 0);
+			map(Math.max(size, (long)HEADER_SECTORS * SECTOR_SIZE));
+
+			if (created) {
+				map.putInt(0, MAGIC);
+				map.putInt(4, VERSION);
+			} else if (map.getInt(0) != MAGIC) {
+				throw new IOException(file + " is not a region file");
+			} else if (map.getInt(4) != VERSION) {
+				throw new IOException(file + " has region format version " + map.getInt(4) + ", expected " + VERSION);
+			}
+
+			usedSectors.set(0, HEADER_SECTORS);
+			for (int i = 0; i < CHUNKS; i ++) {
+				int sector = map.getInt(TABLE_OFFSET + i * 8);
+				int length = map.getInt(TABLE_OFFSET + i * 8 + 4);
+				if (length == 0)
+					continue;
+				if (sector < HEADER_SECTORS || (long)sector * SECTOR_SIZE + length > map.capacity())
+					throw new IOException(file + " has a broken header entry for chunk " + i);
+				usedSectors.set(sector, sector + getSectorCount(length));
+			}
+		} catch (IOException e) {
+			access.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets the name of the region file that holds a chunk
+	 * @param chunkX the chunk x coordinate
+	 * @param chunkY the chunk y coordinate
+	 * @param chunkZ the chunk z coordinate
+	 * @return the file name
+	 */
+	public static String getFileName(int chunkX, int chunkY, int chunkZ) {
+		return "r." + (chunkX >> REGION_SHIFT) + "." + (chunkY >> REGION_HEIGHT_SHIFT) + "." + (chunkZ >> REGION_SHIFT) + ".region";
+	}
+
+	/**
+	 * Checks if a chunk was saved in this region
+	 * @param chunkX the chunk x coordinate
+	 * @param chunkY the chunk y coordinate
+	 * @param chunkZ the chunk z coordinate
+	 * @return true if the chunk can be read
+	 */
+	public synchronized boolean hasChunk(int chunkX, int chunkY, int chunkZ) {
+		return map.getInt(getEntryOffset(chunkX, chunkY, chunkZ) + 4) != 0;
+	}
+
+	/**
+	 * Reads a chunk
+	 * @param chunkX the chunk x coordinate
+	 * @param chunkY the chunk y coordinate
+	 * @param chunkZ the chunk z coordinate
+	 * @return the chunk, or null if it was never saved
+	 * @throws IOException if the chunk data is broken
+	 */
+	public Chunk readChunk(int chunkX, int chunkY, int chunkZ) throws IOException {
+		Vector3 position = new Vector3(chunkX * Chunk.CHUNK_SIZE, chunkY * Chunk.CHUNK_SIZE, chunkZ * Chunk.CHUNK_SIZE);
+		Chunk chunk = new Chunk(position, Cube.AIR);
+		if (!readCubes(chunkX, chunkY, chunkZ, chunk.getCubes()))
+			return null;
+		return chunk;
+	}
+
+	/**
+	 * Reads the cubes of a chunk into an existing storage
+	 * @param chunkX the chunk x coordinate
+	 * @param chunkY the chunk y coordinate
+	 * @param chunkZ the chunk z coordinate
+	 * @param cubes receives the cubes, it is left alone if the chunk was never saved
+	 * @return true if the chunk was read, false if it was never saved
+	 * @throws IOException if the chunk data is broken
+	 */
+	public synchronized boolean readCubes(int chunkX, int chunkY, int chunkZ, CubeStorage cubes) throws IOException {
+		int entry = getEntryOffset(chunkX, chunkY, chunkZ);
+		int sector = map.getInt(entry);
+		int length = map.getInt(entry + 4);
+		if (length == 0)
+			return false;
+
+		ByteBuffer data = map.duplicate();
+		data.limit(sector * SECTOR_SIZE + length).position(sector * SECTOR_SIZE);
+		try {
+			ChunkCodec.decode(data.slice(), cubes);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Chunk " + chunkX + ", " + chunkY + ", " + chunkZ + " in " + file + " is broken: " + e.getMessage());
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a chunk, replacing the one that was saved before
+	 * @param chunk the chunk, it has to be inside of this region
+	 * @throws IOException if the file can't grow
+	 */
+	public void writeChunk(Chunk chunk) throws IOException {
+		writeCubes(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ(), chunk.getCubes());
+	}
+
+	/**
+	 * Writes the cubes of a chunk, replacing the ones that were saved before
+	 * @param chunkX the chunk x coordinate, inside of this region
+	 * @param chunkY the chunk y coordinate, inside of this region
+	 * @param chunkZ the chunk z coordinate, inside of this region
+	 * @param cubes the cubes
+	 * @throws IOException if the file can't grow
+	 */
+	public synchronized void writeCubes(int chunkX, int chunkY, int chunkZ, CubeStorage cubes) throws IOException {
+		encodeBuffer.clear();
+		ChunkCodec.encode(cubes, encodeBuffer);
+		encodeBuffer.flip();
+		int length = encodeBuffer.remaining();
+		int sectors = getSectorCount(length);
+
+		int entry = getEntryOffset(chunkX, chunkY, chunkZ);
+		int oldSector = map.getInt(entry);
+		int oldLength = map.getInt(entry + 4);
+
+		// the old sectors are still used, so the new ones never overlap them.  Nothing
+		// is marked as used before the mapping has grown, in case it can't grow.
+		int sector = findFreeSectors(sectors);
+		long end = (long)(sector + sectors) * SECTOR_SIZE;
+		if (end > map.capacity())
+			map(Math.max(end, map.capacity() + (long)MAP_GROWTH));
+		usedSectors.set(sector, sector + sectors);
+
+		// the data first, so the header never points at a chunk that isn't there yet,
+		// then the sector and length at once, as one aligned 8 byte write
+		ByteBuffer target = map.duplicate();
+		target.position(sector * SECTOR_SIZE);
+		target.put(encodeBuffer);
+		map.putLong(entry, ((long)sector << 32) | length);
+
+		// the header on the disk may still point at the old chunk until the next flush
+		if (oldLength != 0)
+			replacedSectors.set(oldSector, oldSector + getSectorCount(oldLength));
+	}
+
+	/**
+	 * Writes every change to the disk.  The region can still be read and written
+	 * while the OS is busy with this, changes made in the meantime may or may not
+	 * be written by it.
+	 */
+	public void flush() {
+		MappedByteBuffer current;
+		BitSet replaced;
+		synchronized (this) {
+			current = map;
+			replaced = replacedSectors;
+			replacedSectors = new BitSet();
+		}
+		// forced outside of the lock, the mapping is only ever replaced by a larger one of the same file
+		current.force();
+
+		// the header on the disk doesn't point at the chunks that were replaced before anymore
+		synchronized (this) {
+			usedSectors.andNot(replaced);
+		}
+	}
+
+	/**
+	 * Flushes and closes the file.  The region can't be used afterwards.
+	 * @throws IOException if the file can't be closed
+	 */
+	public synchronized void close() throws IOException {
+		map.force();
+		usedSectors.andNot(replacedSectors);
+		replacedSectors.clear();
+		channel.close();
+		access.close();
+	}
+
+	/**
+	 * Gets the size of the file
+	 * @return the size in bytes, including space that isn't used yet
+	 */
+	public synchronized long getFileSize() {
+		return map.capacity();
+	}
+
+	/**
+	 * Gets the amount of space taken up by the header and the chunks, including
+	 * the chunks that were replaced since the last flush
+	 * @return the used size in bytes
+	 */
+	public synchronized long getUsedSize() {
+		return (long)usedSectors.cardinality() * SECTOR_SIZE;
+	}
+
+	/**
+	 * Finds the first run of free sectors that is long enough
+	 */
+	private int findFreeSectors(int count) {
+		int start = usedSectors.nextClearBit(HEADER_SECTORS);
+		while (true) {
+			int used = usedSectors.nextSetBit(start);
+			if (used == -1 || used - start >= count)
+				return start;
+			start = usedSectors.nextClearBit(used);
+		}
+	}
+
+	/**
+	 * Maps the file, growing it to the given size
+	 */
+	private void map(long size) throws IOException {
+		if (size > Integer.MAX_VALUE)
+			throw new IOException(file + " would grow past 2GB");
+		map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	private static int getSectorCount(int length) {
+		return (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+	}
+
+	/**
+	 * Gets the position of the header entry of a chunk
+	 */
+	private static int getEntryOffset(int chunkX, int chunkY, int chunkZ) {
+		int x = chunkX & (REGION_SIZE - 1);
+		int y = chunkY & (REGION_HEIGHT - 1);
+		int z = chunkZ & (REGION_SIZE - 1);
+		return TABLE_OFFSET + ((y * REGION_SIZE + z) * REGION_SIZE + x) * 8;
+	}
+}
@@ -0,0 +1,368 @@
+//-----------------------------------------------------------------------------
+// TerrainGenerator.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+
+import math.Noise;
+import math.Vector3;
+
+/**
+ * Generates terrain from a seed.
+ *
+ * Terrain is a heightmap: every column of cubes has a height from fractal noise,
+ * and a biome noise blends between flat plains and rocky hills.  Columns are
+ * grass on top, then a few cubes of dirt, then cobble.  Columns below the sea
+ * level are dirt on top and filled up with water.  A CaveCarver then carves
+ * caves and overhangs out of the solid cubes.
+ *
+ * Terrain is generated a column of chunks at a time, the noise of the whole
+ * column is evaluated in one batch and shared by its chunks.  Chunks that are
+ * completely above or below the surface are created uniform without looking at
+ * a single cube.  Generating is a pure function of the seed and the chunk
+ * position, so the same seed always gives the same chunks, no matter which
+ * thread or in what order they were generated.
+ */
+public class TerrainGenerator {
+	/**
+	 * The amount of chunks stacked on top of each other, the world is this * CHUNK_SIZE cubes tall
+	 */
+	public static final int HEIGHT_CHUNKS = 4;
+
+	/**
+	 * Columns lower than this are filled up with water
+	 */
+	public static final int SEA_LEVEL = 24;
+
+	private static final int SIZE = Chunk.CHUNK_SIZE;
+	private static final int MAX_HEIGHT = HEIGHT_CHUNKS * SIZE - 1;
+
+	/**
+	 * The distance in cubes between two samples of the lowest octave of each noise
+	 */
+	private static final double HEIGHT_SCALE = 1.0 / 96.0;
+	private static final double BIOME_SCALE = 1.0 / 256.0;
+	private static final double SOIL_SCALE = 1.0 / 16.0;
+
+	/**
+	 * The amount of chunk columns it takes to generate in parallel
+	 */
+	private static final int PARALLEL_COLUMNS = 4;
+
+	/**
+	 * The fork-join pool that generates large areas, one thread per core, started on first use
+	 */
+	private static ForkJoinPool workers = null;
+
+	/**
+	 * Scratch space for the noise of a chunk column, one per thread
+	 */
+	private static final ThreadLocal<Column> columns = new ThreadLocal<Column>() {
+		@Override
+		protected Column initialValue() {
+			return new Column();
+		}
+	};
+
+	private final long seed;
+	private final Noise heightNoise;
+	private final Noise biomeNoise;
+	private final Noise soilNoise;
+	private final CaveCarver caves;
+
+	/**
+	 * Creates a generator
+	 * @param seed the seed, the same seed always gives the same terrain
+	 */
+	public TerrainGenerator(long seed) {
+		this.seed = seed;
+		heightNoise = new Noise(seed);
+		biomeNoise = new Noise(seed * 31 + 1);
+		soilNoise = new Noise(seed * 31 + 2);
+		caves = new CaveCarver(seed * 31 + 3);
+	}
+
+	/**
+	 * Gets the seed of the generator
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Generates a column of chunks.  This can be called from any thread.
+	 * @param chunkX the chunk x coordinate of the column
+	 * @param chunkZ the chunk z coordinate of the column
+	 * @return the chunks from the bottom (chunk y 0) up, HEIGHT_CHUNKS of them
+	 */
+	public Chunk[] generateColumn(int chunkX, int chunkZ) {
+		Column column = columns.get();
+		computeColumn(column, chunkX, chunkZ);
+		caves.fillLattice(column.caves, chunkX, chunkZ);
+
+		Chunk chunks[] = new Chunk[HEIGHT_CHUNKS];
+		for (int chunkY = 0; chunkY < HEIGHT_CHUNKS; chunkY ++)
+			chunks[chunkY] = buildChunk(column, chunkX, chunkY, chunkZ);
+		return chunks;
+	}
+
+	/**
+	 * Generates a column of chunks on the worker threads
+	 * @param chunkX the chunk x coordinate of the column
+	 * @param chunkZ the chunk z coordinate of the column
+	 * @return the chunks once they are generated, see generateColumn
+	 */
+	public Future<Chunk[]> submitColumn(int chunkX, int chunkZ) {
+		return getWorkers().submit(new ColumnJob(chunkX, chunkZ));
+	}
+
+	/**
+	 * Generates every chunk column of an area, on the worker threads when there are
+	 * enough of them.  The chunks are not added to the world.
+	 * @param minX the lowest chunk x coordinate
+	 * @param minZ the lowest chunk z coordinate
+	 * @param maxX the highest chunk x coordinate (inclusive)
+	 * @param maxZ the highest chunk z coordinate (inclusive)
+	 * @return the chunks, column by column in x then z order
+	 */
+	public ArrayList<Chunk> generateArea(int minX, int minZ, int maxX, int maxZ) {
+		ArrayList<Callable<Chunk[]>> jobs = new ArrayList<Callable<Chunk[]>>();
+		for (int x = minX; x <= maxX; x ++) {
+			for (int z = minZ; z <= maxZ; z ++)
+				jobs.add(new ColumnJob(x, z));
+		}
+
+		ArrayList<Chunk> chunks = new ArrayList<Chunk>(jobs.size() * HEIGHT_CHUNKS);
+		if (jobs.size() < PARALLEL_COLUMNS) {
+			for (Callable<Chunk[]> job : jobs)
+				addAll(chunks, ((ColumnJob)job).call());
+			return chunks;
+		}
+
+		try {
+			for (Future<Chunk[]> result : getWorkers().invokeAll(jobs))
+				addAll(chunks, result.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while generating terrain", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Failed to generate terrain", e.getCause());
+		}
+		return chunks;
+	}
+
+	/**
+	 * Gets the height of the terrain at a world position
+	 * @param x the world x position
+	 * @param z the world z position
+	 * @return the y position of the highest cube of the column that isn't water
+	 */
+	public int getHeight(int x, int z) {
+		Column column = columns.get();
+		computeColumn(column, x >> Chunk.CHUNK_SHIFT, z >> Chunk.CHUNK_SHIFT);
+		return column.heights[(x & Chunk.CHUNK_MASK) + (z & Chunk.CHUNK_MASK) * SIZE];
+	}
+
+	/**
+	 * Gets the cave carver of the generator
+	 * @return the carver
+	 */
+	public CaveCarver getCaveCarver() {
+		return caves;
+	}
+
+	/**
+	 * Gets the amount of threads large areas are generated on
+	 * @return the thread count
+	 */
+	public static int getThreadCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Works out the surface of every column of cubes of a chunk column
+	 */
+	private void computeColumn(Column column, int chunkX, int chunkZ) {
+		double x = chunkX * SIZE;
+		double z = chunkZ * SIZE;
+		heightNoise.fill(column.height, SIZE, SIZE, x * HEIGHT_SCALE, z * HEIGHT_SCALE, HEIGHT_SCALE, 5, 0.5f);
+		biomeNoise.fill(column.biome, SIZE, SIZE, x * BIOME_SCALE, z * BIOME_SCALE, BIOME_SCALE, 2, 0.5f);
+		soilNoise.fill(column.soil, SIZE, SIZE, x * SOIL_SCALE, z * SOIL_SCALE, SOIL_SCALE, 1, 0.5f);
+
+		column.highest = 0;
+		column.lowestStone = MAX_HEIGHT;
+		for (int i = 0; i < SIZE * SIZE; i ++) {
+			// 0 for plains, 1 for hills
+			float hills = Math.min(Math.max(column.biome[i] * 2.5f + 0.4f, 0.0f), 1.0f);
+
+			float height = SEA_LEVEL + 2.0f + column.height[i] * (6.0f + 22.0f * hills);
+			int top = Math.min(Math.max((int)height, 1), MAX_HEIGHT);
+			int soil = 2 + (int)((column.soil[i] + 1.0f) * 1.5f);
+
+			short surface;
+			if (top < SEA_LEVEL)
+				surface = Cube.DIRT;
+			else if (hills > 0.6f && top > SEA_LEVEL + 12)
+				surface = Cube.COBBLE;
+			else
+				surface = Cube.GRASS;
+
+			// rocky surfaces have no soil at all
+			int stone = (surface == Cube.COBBLE) ? top : top - soil;
+
+			column.heights[i] = top;
+			column.surfaces[i] = surface;
+			column.stones[i] = stone;
+			column.highest = Math.max(column.highest, Math.max(top, SEA_LEVEL));
+			column.lowestStone = Math.min(column.lowestStone, stone);
+		}
+	}
+
+	/**
+	 * Builds one chunk of a chunk column
+	 */
+	private Chunk buildChunk(Column column, int chunkX, int chunkY, int chunkZ) {
+		Vector3 position = new Vector3(chunkX * SIZE, chunkY * SIZE, chunkZ * SIZE);
+		int bottom = chunkY * SIZE;
+		int top = bottom + SIZE - 1;
+
+		// completely above the terrain and the sea, or completely inside of the stone
+		if (bottom > column.highest)
+			return new Chunk(position, Cube.AIR);
+		boolean carved = caves.hasCaves(column.caves, chunkY);
+		if (top <= column.lowestStone) {
+			Chunk chunk = new Chunk(position, Cube.COBBLE);
+			if (carved)
+				caves.carve(column.caves, chunk.getCubes(), chunkY, column.heights);
+			return chunk;
+		}
+
+		Chunk chunk = new Chunk(position, Cube.AIR);
+		CubeStorage cubes = chunk.getCubes();
+		for (int z = 0; z < SIZE; z ++) {
+			for (int x = 0; x < SIZE; x ++) {
+				int i = x + z * SIZE;
+				int height = column.heights[i];
+				int stone = column.stones[i];
+				short surface = column.surfaces[i];
+
+				int end = Math.min(Math.max(height, SEA_LEVEL), top);
+				for (int y = bottom; y <= end; y ++) {
+					short material;
+					if (y <= stone)
+						material = Cube.COBBLE;
+					else if (y < height)
+						material = Cube.DIRT;
+					else if (y == height)
+						material = surface;
+					else
+						material = Cube.WATER;
+					cubes.set(x, y - bottom, z, material);
+				}
+			}
+		}
+		if (carved)
+			caves.carve(column.caves, cubes, chunkY, column.heights);
+		return chunk;
+	}
+
+	private static void addAll(ArrayList<Chunk> list, Chunk chunks[]) {
+		for (int i = 0; i < chunks.length; i ++)
+			list.add(chunks[i]);
+	}
+
+	private static synchronized ForkJoinPool getWorkers() {
+		if (workers == null) {
+			// fork-join threads are daemons, so they don't keep the game running
+			workers = new ForkJoinPool(getThreadCount(), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+				@Override
+				public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+					ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+					thread.setName("TerrainGenerator-" + thread.getPoolIndex());
+					return thread;
+				}
+			}, null, false);
+		}
+		return workers;
+	}
+
+	/**
+	 * Generates one chunk column on a worker thread
+	 */
+	private class ColumnJob implements Callable<Chunk[]> {
+		private final int chunkX;
+		private final int chunkZ;
+
+		ColumnJob(int chunkX, int chunkZ) {
+			this.chunkX = chunkX;
+			this.chunkZ = chunkZ;
+		}
+
+		@Override
+		public Chunk[] call() {
+			return generateColumn(chunkX, chunkZ);
+		}
+	}
+
+	/**
+	 * The noise and surface of every column of cubes of a chunk column
+	 */
+	private static class Column {
+		final float height[] = new float[SIZE * SIZE];
+		final float biome[] = new float[SIZE * SIZE];
+		final float soil[] = new float[SIZE * SIZE];
+
+		/**
+		 * The top cube, the surface material and the highest cobble of each column of cubes
+		 */
+		final int heights[] = new int[SIZE * SIZE];
+		final short surfaces[] = new short[SIZE * SIZE];
+		final int stones[] = new int[SIZE * SIZE];
+
+		/**
+		 * The highest cube over all columns of cubes including the sea, and the lowest cobble top
+		 */
+		int highest;
+		int lowestStone;
+
+		final CaveCarver.Lattice caves = new CaveCarver.Lattice();
+	}
+}
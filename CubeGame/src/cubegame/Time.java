@@ -91,7 +91,11 @@ public class Time {
 			nextSecond = lastTime + 1000;
 			
 			// show fps
-			Display.setTitle("JCraft Version 1.0.0 DEV FPS: " + Time.getFPS() + " mspf: " + (1000 / (float)Time.getFPS()));
+			Display.setTitle("JCraft Version 1.0.0 DEV FPS: " + Time.getFPS() + " mspf: " + (1000 / (float)Time.getFPS())
+					+ " chunks: " + World.getChunksDrawn() + "/" + World.getChunksTested() + " quads: " + World.getQuadsDrawn()
+					+ " mesh queue: " + ChunkBuilder.getQueueDepth() + " mesh latency: " + ChunkBuilder.getAverageLatency() + "ms"
+					+ " hot/cold: " + ChunkTiering.getHotChunks() + "/" + ChunkTiering.getColdChunks() + " saved: " + (ChunkTiering.getSavedMemory() >> 10) + "KB"
+					+ " meshes: " + (ChunkTiering.getMeshMemory() >> 10) + "KB dropped: " + (ChunkTiering.getDroppedMeshMemory() >> 10) + "KB");
 		}
 	}
 	
@@ -34,9 +34,11 @@
 
 package cubegame;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.IOException;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
@@ -88,4 +90,29 @@ public class Util {
 		}
 		return text;
 	}
+	
+	/**
+	 * Loads a text file, such as a shader
+	 * @param file the text file to load
+	 * @return the contents of the file, or null if it could not be read
+	 */
+	public static String loadTextFile(String file) {
+		StringBuilder text = new StringBuilder();
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			String line;
+			while ((line = reader.readLine()) != null)
+				text.append(line).append('\n');
+			reader.close();
+		} catch (FileNotFoundException e) {
+			e.printStackTrace();
+			System.err.println("File " + file + " is not found!");
+			return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.err.println("loadTextFile() io error.");
+			return null;
+		}
+		return text.toString();
+	}
 }
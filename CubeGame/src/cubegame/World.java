@@ -34,14 +34,41 @@
 
 package cubegame;
 
+import static org.lwjgl.opengl.GL11.GL_BLEND;
+import static org.lwjgl.opengl.GL11.GL_COLOR_ARRAY;
+import static org.lwjgl.opengl.GL11.GL_CULL_FACE;
 import static org.lwjgl.opengl.GL11.GL_NORMAL_ARRAY;
+import static org.lwjgl.opengl.GL11.GL_ONE_MINUS_SRC_ALPHA;
+import static org.lwjgl.opengl.GL11.GL_SRC_ALPHA;
 import static org.lwjgl.opengl.GL11.GL_TEXTURE_COORD_ARRAY;
 import static org.lwjgl.opengl.GL11.GL_VERTEX_ARRAY;
+import static org.lwjgl.opengl.GL11.glBlendFunc;
+import static org.lwjgl.opengl.GL11.glColor4f;
+import static org.lwjgl.opengl.GL11.glDepthMask;
+import static org.lwjgl.opengl.GL11.glDisable;
 import static org.lwjgl.opengl.GL11.glDisableClientState;
+import static org.lwjgl.opengl.GL11.glEnable;
 import static org.lwjgl.opengl.GL11.glEnableClientState;
+import static org.lwjgl.opengl.GL20.glDisableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL20.glUniform1f;
+import static org.lwjgl.opengl.GL20.glUniform1i;
+import static org.lwjgl.opengl.GL20.glUniform2f;
+import static org.lwjgl.opengl.GL20.glUniform3;
 import graphics.GL;
+import graphics.Graphics;
+import graphics.MegaBuffer;
+import graphics.MeshBuffer;
+import graphics.QuadIndexBuffer;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import math.Frustum;
+import math.Vector3;
+
+import org.lwjgl.util.vector.Vector3f;
 
 import org.newdawn.slick.opengl.Texture;
 
@@ -49,6 +76,18 @@ public class World {
 	
 	private static ArrayList<Chunk> chunkList = new ArrayList<Chunk>();
 	
+	/**
+	 * The chunks by their chunk coordinates, see getChunkKey
+	 */
+	private static ChunkMap chunkMap = new ChunkMap();
+	
+	/**
+	 * Chunks whose mesh is rebuilt on the next update, each chunk is listed once.
+	 * chunkRebuilds counts the rebuilds update has requested since starting.
+	 */
+	private static ArrayList<Chunk> dirtyChunks = new ArrayList<Chunk>();
+	private static long chunkRebuilds = 0;
+	
 	/**
 	 * Texture map used for texturing the world
 	 */
@@ -57,41 +96,595 @@ public class World {
 	public static final int mapTextureWidth = 16;
 	public static final int mapTextureHeight = 16;
 	
+	/**
+	 * Shader program that repeats texture map tiles across greedy meshed quads
+	 */
+	private static int chunkShader = -1;
+	
+	/**
+	 * Frustum culling counters of the last frame
+	 */
+	private static int chunksTested = 0;
+	private static int chunksCulled = 0;
+	private static int chunksDrawn = 0;
+	
+	/**
+	 * Walks the visibility graph of the chunks from the camera to find the chunks to draw.
+	 * When disabled, or when the camera isn't inside of a loaded chunk, only frustum culling is done.
+	 */
+	private static boolean occlusionCulling = true;
+	
+	/**
+	 * Skips the face directions of each chunk that face away from the camera.
+	 * quadsDrawn counts the quads that were submitted in the last frame.
+	 */
+	private static boolean faceCulling = true;
+	private static int quadsDrawn = 0;
+	
+	/**
+	 * The chunks that are drawn this frame, also the queue of the visibility walk
+	 */
+	private static ArrayList<Chunk> visibleChunks = new ArrayList<Chunk>();
+	private static int visibilityFrame = 0;
+	
+	/**
+	 * The opacity translucent cubes are drawn with, float vertices have it in their color
+	 */
+	static final float TRANSLUCENT_ALPHA = 0.6f;
+	
+	/**
+	 * Every loaded chunk in drawing order.  Opaque chunks are drawn grouped by their
+	 * MegaBuffer page, nearest first within a page, so the depth test rejects
+	 * the hidden parts of the chunks behind them early.  Translucent chunks are
+	 * drawn furthest first, so they blend over what is behind them.  The orders
+	 * only change when the camera moves into another chunk, or the chunks change.
+	 */
+	private static ArrayList<Chunk> opaqueOrder = new ArrayList<Chunk>();
+	private static ArrayList<Chunk> translucentOrder = new ArrayList<Chunk>();
+	private static boolean chunkOrderValid = false;
+	private static int orderX;
+	private static int orderY;
+	private static int orderZ;
+	private static int chunkOrderSorts = 0;
+	
+	/**
+	 * Counts the frames, chunks that are drawn in a frame are marked with it
+	 */
+	private static int drawFrame = 0;
+	
+	/**
+	 * Sorts chunks by MegaBuffer page, then nearest first
+	 */
+	private static final Comparator<Chunk> OPAQUE_ORDER = new Comparator<Chunk>() {
+		@Override
+		public int compare(Chunk a, Chunk b) {
+			if (a.getVertexPage() != b.getVertexPage())
+				return a.getVertexPage() - b.getVertexPage();
+			return a.sortDistance - b.sortDistance;
+		}
+	};
+	
+	/**
+	 * Sorts chunks furthest first
+	 */
+	private static final Comparator<Chunk> TRANSLUCENT_ORDER = new Comparator<Chunk>() {
+		@Override
+		public int compare(Chunk a, Chunk b) {
+			return b.sortDistance - a.sortDistance;
+		}
+	};
+	
 	public static void init() {
 		// map the texture
 		mapTexture = Util.loadTexture("res/textures/texturemap.png", "PNG");
+		
+		// packed vertices are decoded by the packed chunk shader
+		if (ChunkMesher.getVertexFormat() == MeshBuffer.FORMAT_PACKED) {
+			String attributes[] = new String[2];
+			attributes[MeshBuffer.POSITION_ATTRIBUTE] = "packedPosition";
+			attributes[MeshBuffer.TEXTURE_ATTRIBUTE] = "packedTexture";
+			chunkShader = GL.createShaderProgram(Util.loadTextFile("res/shaders/chunk_packed.vert"), Util.loadTextFile("res/shaders/chunk.frag"), attributes);
+			if (chunkShader == -1) {
+				System.err.println("Packed chunk shader is unavailable, falling back to float vertices with naive meshing.");
+				ChunkMesher.setVertexFormat(MeshBuffer.FORMAT_FLOAT);
+				ChunkMesher.setMode(ChunkMesher.MODE_NAIVE);
+			} else {
+				float normals[] = new float[6 * 3];
+				for (int side = 0; side < 6; side ++)
+					System.arraycopy(Cube.normals[side], 0, normals, side * 3, 3);
+				
+				GL.bindShaderProgram(chunkShader);
+				glUniform3(GL.getUniformLocation(chunkShader, "normals"), Util.createBuffer(normals));
+				glUniform2f(GL.getUniformLocation(chunkShader, "mapSize"), mapTextureWidth, mapTextureHeight);
+				glUniform1i(GL.getUniformLocation(chunkShader, "textureMap"), 0);
+				GL.bindShaderProgram(0);
+			}
+		}
+		
+		// greedy meshed chunks with float vertices need the chunk shader for their texture coordinates
+		if (ChunkMesher.getVertexFormat() == MeshBuffer.FORMAT_FLOAT && ChunkMesher.getMode() == ChunkMesher.MODE_GREEDY) {
+			chunkShader = GL.createShaderProgram(Util.loadTextFile("res/shaders/chunk.vert"), Util.loadTextFile("res/shaders/chunk.frag"));
+			GL.bindShaderProgram(chunkShader);
+			glUniform1f(GL.getUniformLocation(chunkShader, "tileStride"), ChunkMesher.TILE_STRIDE);
+			glUniform2f(GL.getUniformLocation(chunkShader, "mapSize"), mapTextureWidth, mapTextureHeight);
+			glUniform1i(GL.getUniformLocation(chunkShader, "textureMap"), 0);
+			GL.bindShaderProgram(0);
+		}
 	}
 
+	/**
+	 * Updates the world, call this once per frame before rendering.
+	 * Every chunk that was marked dirty since the last update gets its mesh rebuilt once.
+	 */
+	public static void update() {
+		for (int i = 0; i < dirtyChunks.size(); i ++) {
+			Chunk chunk = dirtyChunks.get(i);
+			chunk.setDirty(false);
+			if (!chunk.isDestroyed()) {
+				chunk.requestRebuild();
+				chunkRebuilds ++;
+			}
+		}
+		dirtyChunks.clear();
+	}
+	
+	/**
+	 * Gets the amount of chunk rebuilds that update has requested since starting
+	 * @return the rebuild count
+	 */
+	public static long getChunkRebuilds() {
+		return chunkRebuilds;
+	}
+	
+	/**
+	 * Marks a chunk to have its mesh rebuilt on the next update
+	 * @param chunk the chunk
+	 */
+	public static void markDirty(Chunk chunk) {
+		if (chunk.isDirty())
+			return;
+		chunk.setDirty(true);
+		dirtyChunks.add(chunk);
+	}
+	
+	/**
+	 * Marks the chunk at the given chunk coordinates dirty, if it is loaded
+	 * @param x the chunk x coordinate
+	 * @param y the chunk y coordinate
+	 * @param z the chunk z coordinate
+	 */
+	public static void markDirty(int x, int y, int z) {
+		Chunk chunk = chunkMap.get(getChunkKey(x, y, z));
+		if (chunk != null)
+			markDirty(chunk);
+	}
+	
 	/**
 	 * Renders the world chunks
 	 */
 	public static void render() {
 		// bind the opengl texture
 		mapTexture.bind();
+		if (chunkShader != -1)
+			GL.bindShaderProgram(chunkShader);
 
 		// enable drawing
-		glEnableClientState(GL_VERTEX_ARRAY);
-		//glEnableClientState(GL_NORMAL_ARRAY);
-		glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+		boolean packed = (ChunkMesher.getVertexFormat() == MeshBuffer.FORMAT_PACKED);
+		if (packed) {
+			glEnableVertexAttribArray(MeshBuffer.POSITION_ATTRIBUTE);
+			glEnableVertexAttribArray(MeshBuffer.TEXTURE_ATTRIBUTE);
+		} else {
+			glEnableClientState(GL_VERTEX_ARRAY);
+			//glEnableClientState(GL_NORMAL_ARRAY);
+			glEnableClientState(GL_TEXTURE_COORD_ARRAY);
+			glEnableClientState(GL_COLOR_ARRAY);
+		}
 		
-		// draw all chunks
-		for (Chunk chunk : chunkList) {
-			// TODO:
-			// check to see if chunk is inside of camera's view frustrum
-			chunk.render();
+		// every chunk is drawn with the shared quad indices
+		if (!GL.isLegacy())
+			QuadIndexBuffer.bind();
+		
+		// find the chunks that can be seen, and mark them
+		findVisibleChunks(Graphics.camera.getFrustum(), Graphics.camera.getEyePosition());
+		drawFrame ++;
+		for (int i = 0; i < visibleChunks.size(); i ++)
+			visibleChunks.get(i).drawFrame = drawFrame;
+		
+		Vector3f eye = Graphics.camera.getEyePosition();
+		updateChunkOrder(eye);
+		if (!GL.isLegacy())
+			MegaBuffer.beginFrame();
+		
+		// opaque cubes first, nearest chunks first
+		Vector3f faceEye = faceCulling ? eye : null;
+		quadsDrawn = 0;
+		for (int i = 0; i < opaqueOrder.size(); i ++) {
+			Chunk chunk = opaqueOrder.get(i);
+			if (chunk.drawFrame == drawFrame)
+				quadsDrawn += chunk.render(faceEye, MeshBuffer.LAYER_OPAQUE);
 		}
 		
+		// then translucent cubes, furthest chunks first.  They don't write depth, so
+		// translucent faces behind each other all show, and are seen from both sides.
+		// Float vertices carry the alpha in their color, the packed chunk shader takes it from here
+		glEnable(GL_BLEND);
+		glBlendFunc(GL_SRC_ALPHA, GL_ONE_MINUS_SRC_ALPHA);
+		glDepthMask(false);
+		glDisable(GL_CULL_FACE);
+		glColor4f(1.0f, 1.0f, 1.0f, TRANSLUCENT_ALPHA);
+		for (int i = 0; i < translucentOrder.size(); i ++) {
+			Chunk chunk = translucentOrder.get(i);
+			if (chunk.drawFrame == drawFrame)
+				quadsDrawn += chunk.render(null, MeshBuffer.LAYER_TRANSLUCENT);
+		}
+		glColor4f(1.0f, 1.0f, 1.0f, 1.0f);
+		glEnable(GL_CULL_FACE);
+		glDepthMask(true);
+		glDisable(GL_BLEND);
+		
 		// disable drawing
-		glDisableClientState(GL_TEXTURE_COORD_ARRAY);
-		//glDisableClientState(GL_NORMAL_ARRAY);
-		glDisableClientState(GL_VERTEX_ARRAY);			
+		if (packed) {
+			glDisableVertexAttribArray(MeshBuffer.TEXTURE_ATTRIBUTE);
+			glDisableVertexAttribArray(MeshBuffer.POSITION_ATTRIBUTE);
+		} else {
+			glDisableClientState(GL_COLOR_ARRAY);
+			glDisableClientState(GL_TEXTURE_COORD_ARRAY);
+			//glDisableClientState(GL_NORMAL_ARRAY);
+			glDisableClientState(GL_VERTEX_ARRAY);
+		}
+		
+		if (chunkShader != -1)
+			GL.bindShaderProgram(0);
+	}
+	
+	/**
+	 * Finds the chunks that a camera can see.  Render calls this with its camera,
+	 * it only needs the frustum and the eye so it also works without a GL context.
+	 * @param frustum the view frustum of the camera
+	 * @param eye the world position of the camera
+	 * @return the visible chunks, the list is reused by the next call
+	 */
+	public static ArrayList<Chunk> findVisibleChunks(Frustum frustum, Vector3f eye) {
+		chunksTested = 0;
+		chunksCulled = 0;
+		visibleChunks.clear();
+		
+		Chunk start = getChunk((int)Math.floor(eye.x) >> Chunk.CHUNK_SHIFT, (int)Math.floor(eye.y) >> Chunk.CHUNK_SHIFT, (int)Math.floor(eye.z) >> Chunk.CHUNK_SHIFT);
+		if (!occlusionCulling || start == null) {
+			// check each chunk against the view frustum
+			for (Chunk chunk : chunkList) {
+				chunksTested ++;
+				if (isChunkVisible(chunk, frustum))
+					visibleChunks.add(chunk);
+				else
+					chunksCulled ++;
+			}
+			chunksDrawn = visibleChunks.size();
+			return visibleChunks;
+		}
+		
+		// walk outwards from the chunk the camera is in, only ever moving away from it,
+		// and only through chunks that can be seen through from the side they were entered
+		visibilityFrame ++;
+		start.visitFrame = visibilityFrame;
+		start.visitFace = -1;
+		start.visitDirections = 0;
+		visibleChunks.add(start);
+		chunksTested ++;
+		for (int i = 0; i < visibleChunks.size(); i ++) {
+			Chunk chunk = visibleChunks.get(i);
+			for (int side = 0; side < 6; side ++) {
+				if ((chunk.visitDirections & (1 << Cube.getOppositeFace(side))) != 0)
+					continue;
+				if (chunk.visitFace != -1 && !ChunkVisibility.isConnected(chunk.getVisibility(), chunk.visitFace, side))
+					continue;
+				
+				int offset[] = Cube.offsets[side];
+				Chunk neighbour = getChunk(chunk.getChunkX() + offset[0], chunk.getChunkY() + offset[1], chunk.getChunkZ() + offset[2]);
+				if (neighbour == null || neighbour.visitFrame == visibilityFrame)
+					continue;
+				
+				neighbour.visitFrame = visibilityFrame;
+				chunksTested ++;
+				if (!isChunkVisible(neighbour, frustum)) {
+					chunksCulled ++;
+					continue;
+				}
+				neighbour.visitFace = Cube.getOppositeFace(side);
+				neighbour.visitDirections = chunk.visitDirections | (1 << side);
+				visibleChunks.add(neighbour);
+			}
+		}
+		chunksDrawn = visibleChunks.size();
+		return visibleChunks;
+	}
+	
+	/**
+	 * Sorts the chunks into drawing order again, if the camera moved into another chunk
+	 * or the chunks changed since the last time
+	 * @param eye the world position of the camera
+	 */
+	private static void updateChunkOrder(Vector3f eye) {
+		int x = (int)Math.floor(eye.x) >> Chunk.CHUNK_SHIFT;
+		int y = (int)Math.floor(eye.y) >> Chunk.CHUNK_SHIFT;
+		int z = (int)Math.floor(eye.z) >> Chunk.CHUNK_SHIFT;
+		if (chunkOrderValid && x == orderX && y == orderY && z == orderZ)
+			return;
+		
+		orderX = x;
+		orderY = y;
+		orderZ = z;
+		for (Chunk chunk : chunkList) {
+			int dx = chunk.getChunkX() - x;
+			int dy = chunk.getChunkY() - y;
+			int dz = chunk.getChunkZ() - z;
+			chunk.sortDistance = dx * dx + dy * dy + dz * dz;
+		}
+		
+		opaqueOrder.clear();
+		opaqueOrder.addAll(chunkList);
+		Collections.sort(opaqueOrder, OPAQUE_ORDER);
+		translucentOrder.clear();
+		translucentOrder.addAll(chunkList);
+		Collections.sort(translucentOrder, TRANSLUCENT_ORDER);
+		
+		chunkOrderValid = true;
+		chunkOrderSorts ++;
+	}
+	
+	/**
+	 * Makes the world sort the chunks into drawing order again before the next frame.
+	 * Called when chunks are added or removed, or a chunk mesh moves to another MegaBuffer page.
+	 */
+	static void invalidateChunkOrder() {
+		chunkOrderValid = false;
+	}
+	
+	/**
+	 * Gets the amount of times the chunks were sorted into drawing order
+	 * @return the sort count
+	 */
+	public static int getChunkOrderSorts() {
+		return chunkOrderSorts;
+	}
+	
+	/**
+	 * Turns walking the chunk visibility graph on or off
+	 * @param enabled false to only cull chunks against the view frustum
+	 */
+	public static void setOcclusionCulling(boolean enabled) {
+		occlusionCulling = enabled;
+	}
+	
+	/**
+	 * Turns skipping the face directions that face away from the camera on or off
+	 * @param enabled false to draw every face of the visible chunks
+	 */
+	public static void setFaceCulling(boolean enabled) {
+		faceCulling = enabled;
+	}
+	
+	/**
+	 * Checks to see if any part of a chunk is inside of a frustum
+	 * @param chunk the chunk
+	 * @param frustum the view frustum
+	 * @return true if the chunk may be visible
+	 */
+	public static boolean isChunkVisible(Chunk chunk, Frustum frustum) {
+		Vector3 position = chunk.getPosition();
+		return frustum.intersectsBox(position.x, position.y, position.z,
+				position.x + Chunk.CHUNK_SIZE, position.y + Chunk.CHUNK_SIZE, position.z + Chunk.CHUNK_SIZE);
+	}
+	
+	/**
+	 * Gets the amount of chunks that were tested against the frustum in the last frame.
+	 * Chunks that are hidden behind other chunks are never reached, and aren't tested.
+	 * @return the chunk count
+	 */
+	public static int getChunksTested() {
+		return chunksTested;
+	}
+	
+	/**
+	 * Gets the amount of chunks that were outside of the frustum in the last frame
+	 * @return the chunk count
+	 */
+	public static int getChunksCulled() {
+		return chunksCulled;
+	}
+	
+	/**
+	 * Gets the amount of chunks that were drawn in the last frame
+	 * @return the chunk count
+	 */
+	public static int getChunksDrawn() {
+		return chunksDrawn;
+	}
+	
+	/**
+	 * Gets the amount of quads that were drawn in the last frame
+	 * @return the quad count
+	 */
+	public static int getQuadsDrawn() {
+		return quadsDrawn;
 	}
 	
 	/**
 	 * Adds a chunk object into the world
+	 * The chunk is lit right away (see LightEngine), and built on the next update along with
+	 * the neighbouring chunks that it hides faces of or spread light into.
 	 * @param chunk the chunk object
 	 */
 	public static void addChunk(Chunk chunk) {
+		chunk.listIndex = chunkList.size();
 		chunkList.add(chunk);
+		chunkOrderValid = false;
+		chunkMap.put(getChunkKey(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ()), chunk);
+		LightEngine.addChunk(chunk);
+		
+		markDirty(chunk);
+		rebuildNeighbours(chunk);
+	}
+	
+	/**
+	 * Removes a chunk object from the world and frees it.
+	 * The neighbouring chunks that it was hiding faces of are rebuilt on the next update.
+	 * A cold chunk isn't decompressed to find out which ones those are.
+	 * @param chunk the chunk object
+	 */
+	public static void removeChunk(Chunk chunk) {
+		// the last chunk of the list takes its place, the list has no order
+		Chunk last = chunkList.remove(chunkList.size() - 1);
+		if (last != chunk) {
+			chunkList.set(chunk.listIndex, last);
+			last.listIndex = chunk.listIndex;
+		}
+		chunk.listIndex = -1;
+		chunkOrderValid = false;
+		chunkMap.remove(getChunkKey(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ()));
+		LightEngine.removeChunk(chunk);
+		
+		chunk.destroy();
+		rebuildNeighbours(chunk);
+	}
+	
+	/**
+	 * Gets the amount of heap memory used to store the cubes of every loaded chunk
+	 * @return the memory usage in bytes
+	 */
+	public static long getCubeMemoryUsage() {
+		long usage = 0;
+		for (Chunk chunk : chunkList)
+			usage += chunk.getCubeMemoryUsage();
+		return usage;
+	}
+	
+	/**
+	 * Gets the amount of loaded chunks
+	 * @return the chunk count
+	 */
+	public static int getChunkCount() {
+		return chunkList.size();
+	}
+	
+	/**
+	 * Gets every loaded chunk, the list must not be changed
+	 * @return the chunks
+	 */
+	static ArrayList<Chunk> getChunkList() {
+		return chunkList;
+	}
+	
+	/**
+	 * Gets the frame counter that drawn chunks are marked with
+	 * @return the current frame
+	 */
+	static int getDrawFrame() {
+		return drawFrame;
+	}
+	
+	/**
+	 * Gets the chunk at the given chunk coordinates
+	 * @param x the chunk x coordinate
+	 * @param y the chunk y coordinate
+	 * @param z the chunk z coordinate
+	 * @return the chunk, or null if there is no chunk loaded there
+	 */
+	public static Chunk getChunk(int x, int y, int z) {
+		return chunkMap.get(getChunkKey(x, y, z));
+	}
+	
+	/**
+	 * Gets the material of a cube in the world
+	 * @param x the world x position of the cube
+	 * @param y the world y position of the cube
+	 * @param z the world z position of the cube
+	 * @return the material, or Cube.AIR if the chunk isn't loaded
+	 */
+	public static short getCube(int x, int y, int z) {
+		Chunk chunk = chunkMap.get(getChunkKey(x >> Chunk.CHUNK_SHIFT, y >> Chunk.CHUNK_SHIFT, z >> Chunk.CHUNK_SHIFT));
+		if (chunk == null)
+			return Cube.AIR;
+		return chunk.getCube(x & Chunk.CHUNK_MASK, y & Chunk.CHUNK_MASK, z & Chunk.CHUNK_MASK);
+	}
+	
+	/**
+	 * Sets the material of a cube in the world.
+	 * The chunk and the neighbours whose faces change are rebuilt on the next update.
+	 * @param x the world x position of the cube
+	 * @param y the world y position of the cube
+	 * @param z the world z position of the cube
+	 * @param material the kind of material to use
+	 * @return true if the cube was set, false if the chunk isn't loaded
+	 */
+	public static boolean setCube(int x, int y, int z, short material) {
+		Chunk chunk = chunkMap.get(getChunkKey(x >> Chunk.CHUNK_SHIFT, y >> Chunk.CHUNK_SHIFT, z >> Chunk.CHUNK_SHIFT));
+		if (chunk == null)
+			return false;
+		int localX = x & Chunk.CHUNK_MASK;
+		int localY = y & Chunk.CHUNK_MASK;
+		int localZ = z & Chunk.CHUNK_MASK;
+		chunk.setCube(localX, localY, localZ, material);
+		
+		// a cube on the border of the chunk also changes the faces of the neighbour
+		if (localX == 0)
+			markDirty(chunk.getChunkX() - 1, chunk.getChunkY(), chunk.getChunkZ());
+		else if (localX == Chunk.CHUNK_MASK)
+			markDirty(chunk.getChunkX() + 1, chunk.getChunkY(), chunk.getChunkZ());
+		if (localY == 0)
+			markDirty(chunk.getChunkX(), chunk.getChunkY() - 1, chunk.getChunkZ());
+		else if (localY == Chunk.CHUNK_MASK)
+			markDirty(chunk.getChunkX(), chunk.getChunkY() + 1, chunk.getChunkZ());
+		if (localZ == 0)
+			markDirty(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ() - 1);
+		else if (localZ == Chunk.CHUNK_MASK)
+			markDirty(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ() + 1);
+		return true;
+	}
+	
+	/**
+	 * Fills a box of cubes in the world with a material, see WorldEdit.fill.
+	 * The edited chunks are rebuilt once, on the next update.
+	 * @param minX the lowest world x position of the box
+	 * @param minY the lowest world y position of the box
+	 * @param minZ the lowest world z position of the box
+	 * @param maxX the highest world x position of the box (inclusive)
+	 * @param maxY the highest world y position of the box (inclusive)
+	 * @param maxZ the highest world z position of the box (inclusive)
+	 * @param material the kind of material to use
+	 */
+	public static void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, short material) {
+		WorldEdit edit = new WorldEdit();
+		edit.fill(minX, minY, minZ, maxX, maxY, maxZ, material);
+		edit.commit();
+	}
+	
+	/**
+	 * Packs chunk coordinates into a single key, 21 bits per axis
+	 * @param x the chunk x coordinate
+	 * @param y the chunk y coordinate
+	 * @param z the chunk z coordinate
+	 * @return the key of the chunk
+	 */
+	public static long getChunkKey(int x, int y, int z) {
+		return ((long)(x & 0x1FFFFF) << 42) | ((long)(y & 0x1FFFFF) << 21) | (long)(z & 0x1FFFFF);
+	}
+	
+	/**
+	 * Marks the chunks next to a chunk that was added or removed dirty.
+	 * Only the sides of the chunk that have opaque cubes on them change
+	 * which border faces of the neighbour are visible.
+	 * @param chunk the chunk that was added or removed
+	 */
+	private static void rebuildNeighbours(Chunk chunk) {
+		for (int side = 0; side < 6; side ++) {
+			if (!chunk.hasOpaqueBorder(side))
+				continue;
+			
+			int offset[] = Cube.offsets[side];
+			Chunk neighbour = getChunk(chunk.getChunkX() + offset[0], chunk.getChunkY() + offset[1], chunk.getChunkZ() + offset[2]);
+			if (neighbour != null)
+				markDirty(neighbour);
+		}
 	}
 }
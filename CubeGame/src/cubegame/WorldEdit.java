@@ -0,0 +1,319 @@
+//-----------------------------------------------------------------------------
+// WorldEdit.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package cubegame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A batch of cube edits that is applied to the world at once.
+ *
+ * Edits are recorded per chunk and nothing changes until commit() is called.
+ * Committing applies the edits of every chunk (in parallel when there are
+ * enough of them), relights around the edited cubes in one go (see
+ * LightEngine), then marks the edited chunks, and the neighbours whose
+ * border faces or light changed, dirty.  Each of them is remeshed once on the next
+ * World.update, no matter how many of its cubes were edited.
+ *
+ * Edits have to be recorded and committed on the main thread.
+ */
+public class WorldEdit {
+	/**
+	 * The amount of edited chunks it takes to apply a commit in parallel
+	 */
+	private static final int PARALLEL_CHUNKS = 4;
+
+	/**
+	 * The threads that apply large commits, started on first use
+	 */
+	private static ExecutorService workers = null;
+
+	/**
+	 * The edits of each chunk, in the order the chunks were first edited
+	 */
+	private HashMap<Chunk, ChunkEdits> chunkEdits = new HashMap<Chunk, ChunkEdits>();
+	private ArrayList<ChunkEdits> editList = new ArrayList<ChunkEdits>();
+
+	/**
+	 * The edits of the last chunk that was edited, edits tend to be close together
+	 */
+	private ChunkEdits lastEdits = null;
+
+	/**
+	 * Records a cube edit
+	 * @param x the world x position of the cube
+	 * @param y the world y position of the cube
+	 * @param z the world z position of the cube
+	 * @param material the kind of material to use
+	 * @return true if the edit was recorded, false if the chunk isn't loaded
+	 */
+	public boolean setCube(int x, int y, int z, short material) {
+		ChunkEdits edits = getEdits(x >> Chunk.CHUNK_SHIFT, y >> Chunk.CHUNK_SHIFT, z >> Chunk.CHUNK_SHIFT);
+		if (edits == null)
+			return false;
+		edits.add(x & Chunk.CHUNK_MASK, y & Chunk.CHUNK_MASK, z & Chunk.CHUNK_MASK, material);
+		return true;
+	}
+
+	/**
+	 * Records filling a box of cubes with a material.  Chunks that are covered
+	 * completely become uniform instead of being set cube by cube.
+	 * Parts of the box in chunks that aren't loaded are skipped.
+	 * @param minX the lowest world x position of the box
+	 * @param minY the lowest world y position of the box
+	 * @param minZ the lowest world z position of the box
+	 * @param maxX the highest world x position of the box (inclusive)
+	 * @param maxY the highest world y position of the box (inclusive)
+	 * @param maxZ the highest world z position of the box (inclusive)
+	 * @param material the kind of material to use
+	 */
+	public void fill(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, short material) {
+		for (int chunkX = minX >> Chunk.CHUNK_SHIFT; chunkX <= maxX >> Chunk.CHUNK_SHIFT; chunkX ++) {
+			for (int chunkY = minY >> Chunk.CHUNK_SHIFT; chunkY <= maxY >> Chunk.CHUNK_SHIFT; chunkY ++) {
+				for (int chunkZ = minZ >> Chunk.CHUNK_SHIFT; chunkZ <= maxZ >> Chunk.CHUNK_SHIFT; chunkZ ++) {
+					ChunkEdits edits = getEdits(chunkX, chunkY, chunkZ);
+					if (edits == null)
+						continue;
+
+					// the part of the box inside of this chunk, in local positions
+					int x0 = Math.max(minX - (chunkX << Chunk.CHUNK_SHIFT), 0);
+					int y0 = Math.max(minY - (chunkY << Chunk.CHUNK_SHIFT), 0);
+					int z0 = Math.max(minZ - (chunkZ << Chunk.CHUNK_SHIFT), 0);
+					int x1 = Math.min(maxX - (chunkX << Chunk.CHUNK_SHIFT), Chunk.CHUNK_MASK);
+					int y1 = Math.min(maxY - (chunkY << Chunk.CHUNK_SHIFT), Chunk.CHUNK_MASK);
+					int z1 = Math.min(maxZ - (chunkZ << Chunk.CHUNK_SHIFT), Chunk.CHUNK_MASK);
+
+					if (x0 == 0 && y0 == 0 && z0 == 0 && x1 == Chunk.CHUNK_MASK && y1 == Chunk.CHUNK_MASK && z1 == Chunk.CHUNK_MASK) {
+						edits.fill(material);
+						continue;
+					}
+					for (int y = y0; y <= y1; y ++) {
+						for (int z = z0; z <= z1; z ++) {
+							for (int x = x0; x <= x1; x ++)
+								edits.add(x, y, z, material);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the amount of chunks that have edits recorded
+	 * @return the chunk count
+	 */
+	public int getChunkCount() {
+		return editList.size();
+	}
+
+	/**
+	 * Applies every recorded edit to the world and marks the chunks that changed dirty.
+	 * The edit is empty afterwards and can be reused.
+	 */
+	public void commit() {
+		if (editList.size() >= PARALLEL_CHUNKS)
+			applyParallel();
+		else {
+			for (int i = 0; i < editList.size(); i ++)
+				editList.get(i).call();
+		}
+
+		// relight around every edited cube at once
+		for (int i = 0; i < editList.size(); i ++) {
+			ChunkEdits edits = editList.get(i);
+			if (edits.filled) {
+				for (int index = 0; index < CubeStorage.VOLUME; index ++)
+					LightEngine.markChanged(edits.chunk, index);
+			}
+			for (int j = 0; j < edits.count; j ++)
+				LightEngine.markChanged(edits.chunk, edits.indices[j]);
+		}
+		LightEngine.relight(null);
+
+		for (int i = 0; i < editList.size(); i ++) {
+			ChunkEdits edits = editList.get(i);
+			Chunk chunk = edits.chunk;
+			World.markDirty(chunk);
+			ChunkSaver.markModified(chunk);
+
+			// the neighbours of the sides that had cubes edited
+			for (int side = 0; side < 6; side ++) {
+				if ((edits.borderSides & (1 << side)) == 0)
+					continue;
+				int offset[] = Cube.offsets[side];
+				World.markDirty(chunk.getChunkX() + offset[0], chunk.getChunkY() + offset[1], chunk.getChunkZ() + offset[2]);
+			}
+		}
+
+		chunkEdits.clear();
+		editList.clear();
+		lastEdits = null;
+	}
+
+	/**
+	 * Applies the edits of each chunk on the worker threads, and waits for them
+	 */
+	private void applyParallel() {
+		synchronized (WorldEdit.class) {
+			if (workers == null) {
+				workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+					private int count = 0;
+
+					@Override
+					public synchronized Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "WorldEdit-" + (count ++));
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+		}
+
+		try {
+			for (Future<Object> result : workers.invokeAll(editList))
+				result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while applying world edits", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Failed to apply world edits", e.getCause());
+		}
+	}
+
+	/**
+	 * Gets the edits of a chunk, creating them the first time the chunk is edited
+	 * @param x the chunk x coordinate
+	 * @param y the chunk y coordinate
+	 * @param z the chunk z coordinate
+	 * @return the edits, or null if the chunk isn't loaded
+	 */
+	private ChunkEdits getEdits(int x, int y, int z) {
+		if (lastEdits != null && lastEdits.chunk.getChunkX() == x && lastEdits.chunk.getChunkY() == y && lastEdits.chunk.getChunkZ() == z)
+			return lastEdits;
+
+		Chunk chunk = World.getChunk(x, y, z);
+		if (chunk == null)
+			return null;
+
+		ChunkEdits edits = chunkEdits.get(chunk);
+		if (edits == null) {
+			edits = new ChunkEdits(chunk);
+			chunkEdits.put(chunk, edits);
+			editList.add(edits);
+		}
+		lastEdits = edits;
+		return edits;
+	}
+
+	/**
+	 * The edits recorded for a single chunk, in order
+	 */
+	private static class ChunkEdits implements Callable<Object> {
+		final Chunk chunk;
+
+		/**
+		 * True if the whole chunk is filled with fillMaterial before the other edits are applied
+		 */
+		boolean filled = false;
+		short fillMaterial;
+
+		/**
+		 * The cube indices (see CubeStorage.getIndex) and their new materials
+		 */
+		int indices[] = new int[64];
+		short materials[] = new short[64];
+		int count = 0;
+
+		/**
+		 * Bit (1 << FACE_X) is set if a cube on that side of the chunk was edited
+		 */
+		int borderSides = 0;
+
+		ChunkEdits(Chunk chunk) {
+			this.chunk = chunk;
+		}
+
+		void add(int x, int y, int z, short material) {
+			if (count == indices.length) {
+				int grown[] = new int[count * 2];
+				System.arraycopy(indices, 0, grown, 0, count);
+				indices = grown;
+				short grownMaterials[] = new short[count * 2];
+				System.arraycopy(materials, 0, grownMaterials, 0, count);
+				materials = grownMaterials;
+			}
+			indices[count] = CubeStorage.getIndex(x, y, z);
+			materials[count] = material;
+			count ++;
+
+			if (x == 0)
+				borderSides |= 1 << Cube.FACE_LEFT;
+			else if (x == Chunk.CHUNK_MASK)
+				borderSides |= 1 << Cube.FACE_RIGHT;
+			if (y == 0)
+				borderSides |= 1 << Cube.FACE_BOTTOM;
+			else if (y == Chunk.CHUNK_MASK)
+				borderSides |= 1 << Cube.FACE_TOP;
+			if (z == 0)
+				borderSides |= 1 << Cube.FACE_BACK;
+			else if (z == Chunk.CHUNK_MASK)
+				borderSides |= 1 << Cube.FACE_FRONT;
+		}
+
+		void fill(short material) {
+			// everything recorded so far is overwritten
+			filled = true;
+			fillMaterial = material;
+			count = 0;
+			borderSides = 0x3F;
+		}
+
+		@Override
+		public Object call() {
+			CubeStorage cubes = chunk.getCubes();
+			if (filled)
+				cubes.fill(fillMaterial);
+			for (int i = 0; i < count; i ++)
+				cubes.set(indices[i], materials[i]);
+			return null;
+		}
+	}
+}
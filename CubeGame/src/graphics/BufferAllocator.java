@@ -0,0 +1,384 @@
+//-----------------------------------------------------------------------------
+// BufferAllocator.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package graphics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+/**
+ * Hands out ranges of a large buffer.
+ *
+ * The free ranges are kept in a list sorted by offset.  Allocating takes the
+ * smallest free range that fits (best fit), and freeing merges the range with
+ * the free ranges right before and after it, so the free list never holds two
+ * neighbouring ranges.  When the free space is split into too many small pieces,
+ * compact() slides every allocation down to the start of the buffer, leaving
+ * one free range at the end.
+ *
+ * This is plain bookkeeping, it never touches the buffer itself, so it works
+ * without a GL context.  See MegaBuffer for the GL side.
+ */
+public class BufferAllocator {
+	/**
+	 * A range handed out by the allocator.  The offset changes when the allocator is compacted.
+	 */
+	public static class Allocation {
+		private int offset;
+		private int size;
+		private int index;
+
+		Allocation(int offset, int size) {
+			this.offset = offset;
+			this.size = size;
+		}
+
+		/**
+		 * Gets the start of the range
+		 * @return the offset in bytes
+		 */
+		public int getOffset() {
+			return offset;
+		}
+
+		/**
+		 * Gets the size of the range, the requested size rounded up to the alignment
+		 * @return the size in bytes
+		 */
+		public int getSize() {
+			return size;
+		}
+
+		/**
+		 * Checks to see if the range was freed
+		 * @return true if the range is no longer allocated
+		 */
+		public boolean isFreed() {
+			return index == -1;
+		}
+	}
+
+	/**
+	 * Receives the ranges that are moved while compacting
+	 */
+	public interface MoveListener {
+		/**
+		 * Called for every allocation that moves, in order of increasing offset.
+		 * Ranges only ever move towards the start of the buffer.
+		 * @param from the old offset
+		 * @param to the new offset
+		 * @param size the size of the range
+		 */
+		public void move(int from, int to, int size);
+	}
+
+	/**
+	 * Sorts allocations by offset
+	 */
+	private static final Comparator<Allocation> BY_OFFSET = new Comparator<Allocation>() {
+		@Override
+		public int compare(Allocation a, Allocation b) {
+			return (a.offset < b.offset) ? -1 : ((a.offset == b.offset) ? 0 : 1);
+		}
+	};
+
+	private int capacity;
+	private final int alignment;
+
+	/**
+	 * The free ranges, sorted by offset
+	 */
+	private int freeOffsets[] = new int[16];
+	private int freeSizes[] = new int[16];
+	private int freeCount = 0;
+
+	/**
+	 * The live allocations, in no particular order
+	 */
+	private ArrayList<Allocation> allocations = new ArrayList<Allocation>();
+	private int used = 0;
+
+	/**
+	 * Creates an allocator for an empty buffer
+	 * @param capacity the size of the buffer in bytes
+	 * @param alignment every offset and size is a multiple of this, a power of two
+	 */
+	public BufferAllocator(int capacity, int alignment) {
+		if (Integer.bitCount(alignment) != 1)
+			throw new IllegalArgumentException("Alignment has to be a power of two: " + alignment);
+		this.alignment = alignment;
+		this.capacity = capacity & ~(alignment - 1);
+		addFreeRange(0, 0, this.capacity);
+	}
+
+	/**
+	 * Allocates a range
+	 * @param size the size in bytes
+	 * @return the allocation, or null if there is no free range large enough
+	 */
+	public Allocation allocate(int size) {
+		size = align(Math.max(size, 1));
+
+		// best fit
+		int best = -1;
+		for (int i = 0; i < freeCount; i ++) {
+			if (freeSizes[i] >= size && (best == -1 || freeSizes[i] < freeSizes[best])) {
+				best = i;
+				if (freeSizes[i] == size)
+					break;
+			}
+		}
+		if (best == -1)
+			return null;
+
+		Allocation allocation = new Allocation(freeOffsets[best], size);
+		if (freeSizes[best] == size) {
+			removeFreeRange(best);
+		} else {
+			freeOffsets[best] += size;
+			freeSizes[best] -= size;
+		}
+
+		allocation.index = allocations.size();
+		allocations.add(allocation);
+		used += size;
+		return allocation;
+	}
+
+	/**
+	 * Frees a range, merging it with the free ranges around it
+	 * @param allocation the allocation to free
+	 */
+	public void free(Allocation allocation) {
+		if (allocation.isFreed())
+			throw new IllegalStateException("Range at " + allocation.offset + " was already freed");
+
+		// swap remove from the live allocations
+		Allocation last = allocations.remove(allocations.size() - 1);
+		if (last != allocation) {
+			allocations.set(allocation.index, last);
+			last.index = allocation.index;
+		}
+		allocation.index = -1;
+		used -= allocation.size;
+
+		int offset = allocation.offset;
+		int size = allocation.size;
+
+		// the first free range after this one
+		int next = findFreeRange(offset);
+		boolean mergePrevious = next > 0 && freeOffsets[next - 1] + freeSizes[next - 1] == offset;
+		boolean mergeNext = next < freeCount && offset + size == freeOffsets[next];
+
+		if (mergePrevious && mergeNext) {
+			freeSizes[next - 1] += size + freeSizes[next];
+			removeFreeRange(next);
+		} else if (mergePrevious) {
+			freeSizes[next - 1] += size;
+		} else if (mergeNext) {
+			freeOffsets[next] = offset;
+			freeSizes[next] += size;
+		} else {
+			addFreeRange(next, offset, size);
+		}
+	}
+
+	/**
+	 * Slides every allocation down to the start of the buffer, so all of the free space
+	 * is one range at the end
+	 * @param listener receives every range that moved, may be null
+	 */
+	public void compact(MoveListener listener) {
+		Collections.sort(allocations, BY_OFFSET);
+
+		int offset = 0;
+		for (int i = 0; i < allocations.size(); i ++) {
+			Allocation allocation = allocations.get(i);
+			allocation.index = i;
+			if (allocation.offset != offset) {
+				if (listener != null)
+					listener.move(allocation.offset, offset, allocation.size);
+				allocation.offset = offset;
+			}
+			offset += allocation.size;
+		}
+
+		freeCount = 0;
+		if (offset < capacity)
+			addFreeRange(0, offset, capacity - offset);
+	}
+
+	/**
+	 * Makes the buffer larger, the new space is added at the end
+	 * @param newCapacity the new size of the buffer in bytes
+	 */
+	public void grow(int newCapacity) {
+		newCapacity &= ~(alignment - 1);
+		if (newCapacity <= capacity)
+			return;
+
+		int extra = newCapacity - capacity;
+		if (freeCount > 0 && freeOffsets[freeCount - 1] + freeSizes[freeCount - 1] == capacity)
+			freeSizes[freeCount - 1] += extra;
+		else
+			addFreeRange(freeCount, capacity, extra);
+		capacity = newCapacity;
+	}
+
+	/**
+	 * Checks to see if a range of a size could be allocated right now
+	 * @param size the size in bytes
+	 * @return true if a free range is large enough
+	 */
+	public boolean canAllocate(int size) {
+		return getLargestFreeRange() >= align(Math.max(size, 1));
+	}
+
+	/**
+	 * Gets the size of the buffer
+	 * @return the capacity in bytes
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Gets the amount of allocated space
+	 * @return the allocated bytes
+	 */
+	public int getUsed() {
+		return used;
+	}
+
+	/**
+	 * Gets the amount of free space, in all free ranges together
+	 * @return the free bytes
+	 */
+	public int getFree() {
+		return capacity - used;
+	}
+
+	/**
+	 * Gets the amount of live allocations
+	 * @return the allocation count
+	 */
+	public int getAllocationCount() {
+		return allocations.size();
+	}
+
+	/**
+	 * Gets the amount of separate free ranges
+	 * @return the free range count
+	 */
+	public int getFreeRangeCount() {
+		return freeCount;
+	}
+
+	/**
+	 * Gets the size of the largest free range
+	 * @return the size in bytes
+	 */
+	public int getLargestFreeRange() {
+		int largest = 0;
+		for (int i = 0; i < freeCount; i ++)
+			largest = Math.max(largest, freeSizes[i]);
+		return largest;
+	}
+
+	/**
+	 * Gets how fragmented the free space is: 0 when it is all one range, close to 1
+	 * when it is split into many small ranges
+	 * @return 1 - (largest free range / free space)
+	 */
+	public float getFragmentation() {
+		int free = getFree();
+		if (free == 0)
+			return 0.0f;
+		return 1.0f - (float)getLargestFreeRange() / (float)free;
+	}
+
+	/**
+	 * Rounds a size up to the alignment
+	 */
+	private int align(int size) {
+		return (size + alignment - 1) & ~(alignment - 1);
+	}
+
+	/**
+	 * Finds the first free range at or after an offset
+	 * @param offset the offset
+	 * @return the index in the free list, freeCount if there is none
+	 */
+	private int findFreeRange(int offset) {
+		int low = 0;
+		int high = freeCount;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (freeOffsets[middle] < offset)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Inserts a free range into the free list
+	 */
+	private void addFreeRange(int index, int offset, int size) {
+		if (freeCount == freeOffsets.length) {
+			int grownOffsets[] = new int[freeCount * 2];
+			int grownSizes[] = new int[freeCount * 2];
+			System.arraycopy(freeOffsets, 0, grownOffsets, 0, freeCount);
+			System.arraycopy(freeSizes, 0, grownSizes, 0, freeCount);
+			freeOffsets = grownOffsets;
+			freeSizes = grownSizes;
+		}
+		System.arraycopy(freeOffsets, index, freeOffsets, index + 1, freeCount - index);
+		System.arraycopy(freeSizes, index, freeSizes, index + 1, freeCount - index);
+		freeOffsets[index] = offset;
+		freeSizes[index] = size;
+		freeCount ++;
+	}
+
+	/**
+	 * Removes a free range from the free list
+	 */
+	private void removeFreeRange(int index) {
+		System.arraycopy(freeOffsets, index + 1, freeOffsets, index, freeCount - index - 1);
+		System.arraycopy(freeSizes, index + 1, freeSizes, index, freeCount - index - 1);
+		freeCount --;
+	}
+}
@@ -41,12 +41,15 @@ import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL11.*;
 
+import org.lwjgl.opengl.ARBCopyBuffer;
 import org.lwjgl.opengl.ARBVertexBufferObject;
 import org.lwjgl.opengl.GLContext;
 import org.lwjgl.util.glu.*;
 
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 
 import org.lwjgl.BufferUtils;
@@ -75,7 +78,6 @@ public final class GL {
 	 * Internal use only
 	 * True if the current context supports at least OpenGL 2.0
 	 */
-	@SuppressWarnings(value = { "unused" })
 	private static boolean supportsOpenGL20 = false;
 	
 	/**
@@ -97,6 +99,12 @@ public final class GL {
 	 */
 	private static boolean isLegacy = false;
 	
+	/**
+	 * Internal use only
+	 * True if buffer objects can be copied on the GPU, OpenGL 3.1 or the copy buffer ARB extension
+	 */
+	private static boolean supportsCopyBuffer = false;
+	
 	/**
 	 * Stores display lists and cleans them up at the end
 	 * Since the garbage collector doesn't interfere with native and GL code
@@ -109,6 +117,12 @@ public final class GL {
 	 */
 	private static ArrayList<Integer> vboGC;
 	
+	/**
+	 * Stores shader program ids and cleans them up at the end
+	 * Since the garbage collector doesn't interfere with native and GL code
+	 */
+	private static ArrayList<Integer> programGC;
+	
 	/**
 	 * Initializes the OpenGL system to be usable
 	 */
@@ -116,6 +130,7 @@ public final class GL {
 		initialized = true;
 		displayListGC = new ArrayList<Integer>();
 		vboGC = new ArrayList<Integer>();
+		programGC = new ArrayList<Integer>();
 		majorVersion = Integer.parseInt(getOpenGLVersion().substring(0,1).trim());
 		minorVersion = Integer.parseInt(getOpenGLVersion().substring(2,3).trim());
 		
@@ -152,6 +167,9 @@ public final class GL {
 				isLegacy = true;
 			}
 		}
+		
+		if (supportsOpenGL15)
+			supportsCopyBuffer = GLContext.getCapabilities().OpenGL31 || GLContext.getCapabilities().GL_ARB_copy_buffer;
 	}
 	
 	/**
@@ -173,6 +191,11 @@ public final class GL {
 				ARBVertexBufferObject.glDeleteBuffersARB(id);
 		}
 		vboGC.clear();
+		
+		// free all shader programs
+		for (int id : programGC)
+			glDeleteProgram(id);
+		programGC.clear();
 	}
 	
 	/**
@@ -200,14 +223,17 @@ public final class GL {
 	 * @return the ID of the VBO, or -1 if the VBO couldn't be created
 	 */
 	public static int genVBO() {
+		int id = -1;
 		if (supportsOpenGL15)
-			return glGenBuffers();
+			id = glGenBuffers();
 		else if (supportsARBVBO) {
 			IntBuffer buffer = BufferUtils.createIntBuffer(1);
 			ARBVertexBufferObject.glGenBuffersARB(buffer);
-			return buffer.get(0);
+			id = buffer.get(0);
 		}
-		return -1;
+		if (id != -1)
+			vboGC.add(id);
+		return id;
 	}
 	
 	/**
@@ -227,6 +253,23 @@ public final class GL {
 		}
 	}
 	
+	/**
+	 * prepares a static vertex buffer object of raw (interleaved) vertex data
+	 *
+	 * @param id the VBO id
+	 * @param data (bytes) the data to be pushed into the VBO
+	 * @see float method
+	 */
+	public static void prepareStaticVBO(int id, ByteBuffer buffer) {
+		if (supportsOpenGL15) {
+			glBindBuffer(GL_ARRAY_BUFFER, id);
+			glBufferData(GL_ARRAY_BUFFER, buffer, GL_STATIC_DRAW);
+		} else if (supportsARBVBO) {
+			ARBVertexBufferObject.glBindBufferARB(ARBVertexBufferObject.GL_ARRAY_BUFFER_ARB, id);
+			ARBVertexBufferObject.glBufferDataARB(ARBVertexBufferObject.GL_ARRAY_BUFFER_ARB, buffer, ARBVertexBufferObject.GL_STATIC_DRAW_ARB);
+		}
+	}
+
 	/**
 	 * prepares a static vertex buffer object of integers
 	 * 
@@ -244,6 +287,145 @@ public final class GL {
 		}
 	}
 	
+	/**
+	 * prepares a static vertex buffer object of shorts
+	 * 
+	 * @param id the VBO id
+	 * @param data (shorts) the data to be pushed into the VBO
+	 * @see int method
+	 */
+	public static void prepareStaticVBO(int id, ShortBuffer buffer) {
+		if (supportsOpenGL15) {
+			glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, id);
+			glBufferData(GL_ELEMENT_ARRAY_BUFFER, buffer, GL_STATIC_DRAW);
+		} else if (supportsARBVBO) {
+			ARBVertexBufferObject.glBindBufferARB(ARBVertexBufferObject.GL_ELEMENT_ARRAY_BUFFER_ARB, id);
+			ARBVertexBufferObject.glBufferDataARB(ARBVertexBufferObject.GL_ELEMENT_ARRAY_BUFFER_ARB, buffer, ARBVertexBufferObject.GL_STATIC_DRAW_ARB);
+		}
+	}
+	
+	/**
+	 * Gives a vertex buffer object new, uninitialized storage.  The old storage is
+	 * orphaned: the driver keeps it alive until the GPU is done drawing from it,
+	 * so this never waits on a frame that is still in flight.
+	 *
+	 * @param id the VBO id
+	 * @param size the size of the new storage in bytes
+	 */
+	public static void allocateStaticVBO(int id, int size) {
+		if (supportsOpenGL15) {
+			glBindBuffer(GL_ARRAY_BUFFER, id);
+			glBufferData(GL_ARRAY_BUFFER, size, GL_STATIC_DRAW);
+		} else if (supportsARBVBO) {
+			ARBVertexBufferObject.glBindBufferARB(ARBVertexBufferObject.GL_ARRAY_BUFFER_ARB, id);
+			ARBVertexBufferObject.glBufferDataARB(ARBVertexBufferObject.GL_ARRAY_BUFFER_ARB, size, ARBVertexBufferObject.GL_STATIC_DRAW_ARB);
+		}
+	}
+	
+	/**
+	 * Gives an index buffer object new, uninitialized storage
+	 * 
+	 * @param id the VBO id
+	 * @param size the size of the new storage in bytes
+	 * @see allocateStaticVBO
+	 */
+	public static void allocateStaticIndexVBO(int id, int size) {
+		if (supportsOpenGL15) {
+			glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, id);
+			glBufferData(GL_ELEMENT_ARRAY_BUFFER, size, GL_STATIC_DRAW);
+		} else if (supportsARBVBO) {
+			ARBVertexBufferObject.glBindBufferARB(ARBVertexBufferObject.GL_ELEMENT_ARRAY_BUFFER_ARB, id);
+			ARBVertexBufferObject.glBufferDataARB(ARBVertexBufferObject.GL_ELEMENT_ARRAY_BUFFER_ARB, size, ARBVertexBufferObject.GL_STATIC_DRAW_ARB);
+		}
+	}
+	
+	/**
+	 * Overwrites the start of a vertex buffer object with raw (interleaved) vertex data.
+	 * The data has to fit into the storage of the buffer, see allocateStaticVBO.
+	 * 
+	 * @param id the VBO id
+	 * @param buffer (bytes) the data to be pushed into the VBO
+	 */
+	public static void updateStaticVBO(int id, ByteBuffer buffer) {
+		if (supportsOpenGL15) {
+			glBindBuffer(GL_ARRAY_BUFFER, id);
+			glBufferSubData(GL_ARRAY_BUFFER, 0, buffer);
+		} else if (supportsARBVBO) {
+			ARBVertexBufferObject.glBindBufferARB(ARBVertexBufferObject.GL_ARRAY_BUFFER_ARB, id);
+			ARBVertexBufferObject.glBufferSubDataARB(ARBVertexBufferObject.GL_ARRAY_BUFFER_ARB, 0, buffer);
+		}
+	}
+	
+	/**
+	 * Overwrites part of a vertex buffer object with raw (interleaved) vertex data.
+	 * The data has to fit into the storage of the buffer after the offset.
+	 * 
+	 * @param id the VBO id
+	 * @param offset where to start writing in the VBO, in bytes
+	 * @param buffer (bytes) the data to be pushed into the VBO
+	 */
+	public static void updateStaticVBO(int id, int offset, ByteBuffer buffer) {
+		if (supportsOpenGL15) {
+			glBindBuffer(GL_ARRAY_BUFFER, id);
+			glBufferSubData(GL_ARRAY_BUFFER, offset, buffer);
+		} else if (supportsARBVBO) {
+			ARBVertexBufferObject.glBindBufferARB(ARBVertexBufferObject.GL_ARRAY_BUFFER_ARB, id);
+			ARBVertexBufferObject.glBufferSubDataARB(ARBVertexBufferObject.GL_ARRAY_BUFFER_ARB, offset, buffer);
+		}
+	}
+	
+	/**
+	 * Reads part of a vertex buffer object back into memory
+	 * 
+	 * @param id the VBO id
+	 * @param offset where to start reading in the VBO, in bytes
+	 * @param buffer (bytes) receives the data, as much as it has room for
+	 */
+	public static void readStaticVBO(int id, int offset, ByteBuffer buffer) {
+		if (supportsOpenGL15) {
+			glBindBuffer(GL_ARRAY_BUFFER, id);
+			glGetBufferSubData(GL_ARRAY_BUFFER, offset, buffer);
+		} else if (supportsARBVBO) {
+			ARBVertexBufferObject.glBindBufferARB(ARBVertexBufferObject.GL_ARRAY_BUFFER_ARB, id);
+			ARBVertexBufferObject.glGetBufferSubDataARB(ARBVertexBufferObject.GL_ARRAY_BUFFER_ARB, offset, buffer);
+		}
+	}
+	
+	/**
+	 * Copies part of one vertex buffer object into another on the GPU, see supportsCopyBuffer.
+	 * The parts may not overlap if both are the same buffer.
+	 * 
+	 * @param readId the VBO id to copy from
+	 * @param writeId the VBO id to copy into
+	 * @param readOffset where to start reading, in bytes
+	 * @param writeOffset where to start writing, in bytes
+	 * @param size the amount of bytes to copy
+	 */
+	public static void copyStaticVBO(int readId, int writeId, int readOffset, int writeOffset, int size) {
+		if (!supportsCopyBuffer)
+			return;
+		glBindBuffer(ARBCopyBuffer.GL_COPY_READ_BUFFER, readId);
+		glBindBuffer(ARBCopyBuffer.GL_COPY_WRITE_BUFFER, writeId);
+		ARBCopyBuffer.glCopyBufferSubData(ARBCopyBuffer.GL_COPY_READ_BUFFER, ARBCopyBuffer.GL_COPY_WRITE_BUFFER, readOffset, writeOffset, size);
+	}
+	
+	/**
+	 * Overwrites the start of an index buffer object with integers
+	 * 
+	 * @param id the VBO id
+	 * @param buffer (integers) the data to be pushed into the VBO
+	 * @see byte method
+	 */
+	public static void updateStaticVBO(int id, IntBuffer buffer) {
+		if (supportsOpenGL15) {
+			glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, id);
+			glBufferSubData(GL_ELEMENT_ARRAY_BUFFER, 0, buffer);
+		} else if (supportsARBVBO) {
+			ARBVertexBufferObject.glBindBufferARB(ARBVertexBufferObject.GL_ELEMENT_ARRAY_BUFFER_ARB, id);
+			ARBVertexBufferObject.glBufferSubDataARB(ARBVertexBufferObject.GL_ELEMENT_ARRAY_BUFFER_ARB, 0, buffer);
+		}
+	}
+	
 	/**
 	 * Binds a static VBO before submitting it to the graphics driver
 	 * @param id the VBO id
@@ -275,7 +457,109 @@ public final class GL {
 			glDeleteBuffers(id);
 		else if (supportsARBVBO)
 			ARBVertexBufferObject.glDeleteBuffersARB(id);
-		vboGC.remove(id);
+		vboGC.remove((Integer)id);
+	}
+	
+	/**
+	 * Compiles and links a GLSL shader program
+	 * @param vertexSource the source of the vertex shader
+	 * @param fragmentSource the source of the fragment shader
+	 * @return the program id, or -1 if the program couldn't be created
+	 */
+	public static int createShaderProgram(String vertexSource, String fragmentSource) {
+		return createShaderProgram(vertexSource, fragmentSource, new String[0]);
+	}
+	
+	/**
+	 * Compiles and links a GLSL shader program that reads generic vertex attributes
+	 * @param vertexSource the source of the vertex shader
+	 * @param fragmentSource the source of the fragment shader
+	 * @param attributes the names of the attributes, each is bound to its index in the array
+	 * @return the program id, or -1 if it couldn't be created
+	 */
+	public static int createShaderProgram(String vertexSource, String fragmentSource, String attributes[]) {
+		if (!supportsOpenGL20)
+			return -1;
+		
+		int vertexShader = compileShader(GL_VERTEX_SHADER, vertexSource);
+		int fragmentShader = compileShader(GL_FRAGMENT_SHADER, fragmentSource);
+		if (vertexShader == -1 || fragmentShader == -1)
+			return -1;
+		
+		int program = glCreateProgram();
+		glAttachShader(program, vertexShader);
+		glAttachShader(program, fragmentShader);
+		for (int i = 0; i < attributes.length; i ++)
+			glBindAttribLocation(program, i, attributes[i]);
+		glLinkProgram(program);
+		
+		// the program keeps what it needs, so the shaders can be flagged for deletion
+		glDeleteShader(vertexShader);
+		glDeleteShader(fragmentShader);
+		
+		if (glGetProgrami(program, GL_LINK_STATUS) == GL_FALSE) {
+			System.err.println("Shader program failed to link:");
+			System.err.println(glGetProgramInfoLog(program, glGetProgrami(program, GL_INFO_LOG_LENGTH)));
+			glDeleteProgram(program);
+			return -1;
+		}
+		
+		programGC.add(program);
+		return program;
+	}
+	
+	/**
+	 * Compiles a single shader stage
+	 * @param type GL_VERTEX_SHADER or GL_FRAGMENT_SHADER
+	 * @param source the GLSL source
+	 * @return the shader id, or -1 if it didn't compile
+	 */
+	private static int compileShader(int type, String source) {
+		int shader = glCreateShader(type);
+		glShaderSource(shader, source);
+		glCompileShader(shader);
+		
+		if (glGetShaderi(shader, GL_COMPILE_STATUS) == GL_FALSE) {
+			System.err.println("Shader failed to compile:");
+			System.err.println(glGetShaderInfoLog(shader, glGetShaderi(shader, GL_INFO_LOG_LENGTH)));
+			glDeleteShader(shader);
+			return -1;
+		}
+		return shader;
+	}
+	
+	/**
+	 * Binds a shader program, use 0 to go back to the fixed function pipeline
+	 * @param id the program id
+	 */
+	public static void bindShaderProgram(int id) {
+		glUseProgram(id);
+	}
+	
+	/**
+	 * Gets the location of a uniform inside of a shader program
+	 * @param id the program id
+	 * @param name the name of the uniform
+	 * @return the uniform location, or -1 if it doesn't exist
+	 */
+	public static int getUniformLocation(int id, String name) {
+		return glGetUniformLocation(id, name);
+	}
+	
+	/**
+	 * Checks to see if the GL context can run GLSL shader programs
+	 * @return true if the context supports at least OpenGL 2.0
+	 */
+	public static boolean supportsShaders() {
+		return supportsOpenGL20;
+	}
+	
+	/**
+	 * Checks to see if vertex buffer objects can be copied on the GPU, see copyStaticVBO
+	 * @return true if the context supports OpenGL 3.1 or the copy buffer ARB extension
+	 */
+	public static boolean supportsCopyBuffer() {
+		return supportsCopyBuffer;
 	}
 	
 	/**
@@ -34,16 +34,24 @@
 
 package graphics;
 
-import math.Vector3;
+import java.io.File;
+import java.io.IOException;
 
 import org.lwjgl.LWJGLException;
 import org.lwjgl.input.Mouse;
 import org.lwjgl.opengl.Display;
 import org.lwjgl.opengl.DisplayMode;
+import org.lwjgl.util.vector.Vector3f;
 
 import cubegame.Camera;
 import cubegame.Chunk;
+import cubegame.ChunkBuilder;
+import cubegame.ChunkMesher;
+import cubegame.ChunkSaver;
+import cubegame.ChunkStreamer;
+import cubegame.ChunkTiering;
 import cubegame.Input;
+import cubegame.TerrainGenerator;
 import cubegame.World;
 import test.GLTest;
 import static org.lwjgl.opengl.GL11.*;
@@ -54,6 +62,27 @@ public final class Graphics {
 	 */
 	public static Camera camera = null;
 	
+	/**
+	 * The seed of the terrain, and how many chunk columns around the camera are loaded and kept loaded
+	 */
+	private static final long TERRAIN_SEED = 1337;
+	private static final int LOAD_RADIUS = 8;
+	private static final int UNLOAD_RADIUS = 10;
+	
+	/**
+	 * Where edited chunks are saved, and how long closing the game waits for them to be written
+	 */
+	private static final String SAVE_DIRECTORY = "saves/world";
+	private static final long SAVE_TIMEOUT = 5000;
+	
+	/**
+	 * Chunks this many chunks away, or untouched for this long, have their cubes compressed,
+	 * and the cubes (and legacy GL meshes) of the loaded chunks may use up to this much of the heap
+	 */
+	private static final int COLD_DISTANCE = 6;
+	private static final float COLD_IDLE_SECONDS = 30.0f;
+	private static final long CUBE_HEAP_BUDGET = 32L * 1024 * 1024;
+	
 	/**
 	 * Initialize the graphics library
 	 * @param x the x resolution of the canvas
@@ -71,11 +100,39 @@ public final class Graphics {
 			// Check for GL 2.0 support (need that at least)
 			checkOpenGL();
 			
+			// greedy meshing needs a shader to repeat textures across merged quads
+			if (ChunkMesher.getMode() == ChunkMesher.MODE_GREEDY && !GL.supportsShaders()) {
+				System.err.println("Greedy meshing needs GLSL, falling back to naive meshing.");
+				ChunkMesher.setMode(ChunkMesher.MODE_NAIVE);
+			}
+			
+			// chunks are sent to the GPU as packed 8 byte vertices when they can be drawn with a shader
+			if (GL.supportsShaders() && !GL.isLegacy())
+				ChunkMesher.setVertexFormat(MeshBuffer.FORMAT_PACKED);
+			
+			// build the indices every chunk mesh is drawn with
+			QuadIndexBuffer.init(Chunk.MAX_QUADS);
+			
 			// initialize the camera
 			camera = new Camera();
 			
-			// create a chunk!
-			World.addChunk(new Chunk(new Vector3(0.0f, 0.0f, 0.0f)));
+			// start building chunk meshes in the background
+			ChunkBuilder.init(0);
+			
+			// save edited chunks in the background
+			try {
+				ChunkSaver.init(new File(SAVE_DIRECTORY));
+			} catch (IOException e) {
+				System.err.println("Edits won't be saved: " + e.getMessage());
+			}
+			
+			// compress the cubes of chunks that aren't used
+			ChunkTiering.setPolicy(COLD_DISTANCE, COLD_IDLE_SECONDS, CUBE_HEAP_BUDGET);
+			
+			// stream the terrain in around the camera, and put the camera above it
+			TerrainGenerator generator = new TerrainGenerator(TERRAIN_SEED);
+			ChunkStreamer.init(generator, LOAD_RADIUS, UNLOAD_RADIUS);
+			camera.setPosition(new Vector3f(0.0f, -(Math.max(generator.getHeight(0, 0), TerrainGenerator.SEA_LEVEL) + 4.0f), 0.0f));
 		} catch (LWJGLException e) {
 			destroy();
 			System.exit(1);
@@ -99,6 +156,19 @@ public final class Graphics {
 		camera.applyRotation(Input.getPitch(), Input.getYaw());
 		camera.update();
 		
+		// load the terrain around the camera and unload what it left behind
+		ChunkStreamer.update(camera.getEyePosition());
+		
+		// rebuild the chunks that were edited, and upload the chunk meshes that finished building
+		World.update();
+		ChunkBuilder.update();
+		
+		// queue the chunks that were edited this frame to be saved
+		ChunkSaver.update();
+		
+		// compress the cubes of the chunks that are far away or haven't been used in a while
+		ChunkTiering.update(camera.getEyePosition());
+		
 		// render the world
 		World.render();
 		
@@ -114,6 +184,13 @@ public final class Graphics {
 		// cleanup immediate mode
 		//GLTest.cleanUpImmediateMode();
 		
+		// stop streaming and the chunk builder threads
+		ChunkStreamer.shutdown();
+		ChunkBuilder.shutdown();
+		
+		// write the edits that are still queued, but don't hang on a slow disk forever
+		ChunkSaver.shutdown(SAVE_TIMEOUT);
+		
 		// cleanup the GL
 		GL.cleanup();
 		
@@ -0,0 +1,373 @@
+//-----------------------------------------------------------------------------
+// MegaBuffer.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package graphics;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * A few large vertex buffer objects that every chunk mesh is suballocated from.
+ *
+ * Instead of each mesh owning a buffer object, meshes get a Range of one of the
+ * pages, so drawing many meshes from the same page needs a single bind.  Each
+ * page keeps its ranges with a BufferAllocator.  When a page gets too fragmented
+ * to fit a mesh, its ranges are slid together on the GPU with glCopyBufferSubData
+ * (GL 3.1 or ARB_copy_buffer), through a temporary copy of the page as the ranges
+ * may overlap.  Without it, the page is read back into memory, slid together
+ * there and uploaded again.  Either copy only lives while the page is compacted,
+ * the meshes are never kept in memory.  A page that becomes empty is deleted,
+ * unless it is the last one left.
+ *
+ * Only the main thread may use this.
+ */
+public final class MegaBuffer {
+	/**
+	 * The size of a page in bytes, a mesh larger than this gets a page of its own
+	 */
+	public static final int PAGE_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * Every range starts at a multiple of this, so any vertex layout can start at the offset
+	 */
+	public static final int ALIGNMENT = 32;
+
+	/**
+	 * A page that is more fragmented than this is compacted instead of adding a new page
+	 */
+	private static final float COMPACT_FRAGMENTATION = 0.5f;
+
+	/**
+	 * A part of a page that holds one mesh
+	 */
+	public static class Range {
+		private final Page page;
+		private final BufferAllocator.Allocation allocation;
+
+		private Range(Page page, BufferAllocator.Allocation allocation) {
+			this.page = page;
+			this.allocation = allocation;
+		}
+
+		/**
+		 * Gets the start of the range inside of its page.  This changes when the page is compacted.
+		 * @return the offset in bytes
+		 */
+		public int getOffset() {
+			return allocation.getOffset();
+		}
+
+		/**
+		 * Gets the size of the range
+		 * @return the size in bytes
+		 */
+		public int getSize() {
+			return allocation.getSize();
+		}
+
+		/**
+		 * Gets the page the range belongs to
+		 * @return the page index
+		 */
+		public int getPage() {
+			return page.index;
+		}
+	}
+
+	/**
+	 * A single buffer object and the ranges allocated in it
+	 */
+	private static class Page implements BufferAllocator.MoveListener {
+		final int index;
+		final BufferAllocator allocator;
+		int bufferId = -1;
+
+		/**
+		 * The copy of the page the moved ranges are read from while it is compacted:
+		 * a buffer object on the GPU, or memory if buffers can't be copied on the GPU
+		 */
+		int stagingId = -1;
+		ByteBuffer staging = null;
+
+		Page(int index, int capacity) {
+			this.index = index;
+			allocator = new BufferAllocator(capacity, ALIGNMENT);
+			if (!GL.isLegacy()) {
+				bufferId = GL.genVBO();
+				GL.allocateStaticVBO(bufferId, capacity);
+			}
+		}
+
+		void compact() {
+			if (bufferId != -1 && !GL.supportsCopyBuffer()) {
+				staging = BufferUtils.createByteBuffer(allocator.getCapacity());
+				GL.readStaticVBO(bufferId, 0, staging);
+			}
+
+			allocator.compact(this);
+
+			if (staging != null) {
+				// upload everything in front of the free space at once
+				if (allocator.getUsed() > 0) {
+					staging.position(0).limit(allocator.getUsed());
+					GL.updateStaticVBO(bufferId, 0, staging);
+				}
+				staging = null;
+			}
+			if (stagingId != -1) {
+				GL.deleteVBO(stagingId);
+				stagingId = -1;
+			}
+		}
+
+		@Override
+		public void move(int from, int to, int size) {
+			if (bufferId == -1)
+				return;
+
+			if (staging != null) {
+				// the ranges may overlap, so copy through the scratch array
+				if (scratch.length < size)
+					scratch = new byte[size];
+				ByteBuffer source = staging.duplicate();
+				source.position(from);
+				source.get(scratch, 0, size);
+				ByteBuffer target = staging.duplicate();
+				target.position(to);
+				target.put(scratch, 0, size);
+				return;
+			}
+
+			// glCopyBufferSubData can't copy between overlapping parts of a buffer, so the
+			// ranges are copied out of a copy of the page.  Ranges only move down, nothing
+			// in front of the first one that moves is needed.
+			if (stagingId == -1) {
+				int capacity = allocator.getCapacity();
+				stagingId = GL.genVBO();
+				GL.allocateStaticVBO(stagingId, capacity);
+				GL.copyStaticVBO(bufferId, stagingId, from, from, capacity - from);
+			}
+			GL.copyStaticVBO(stagingId, bufferId, from, to, size);
+		}
+	}
+
+	/**
+	 * The pages by their index, deleted pages leave a null slot for the next new page
+	 */
+	private static ArrayList<Page> pages = new ArrayList<Page>();
+	private static int pageCount = 0;
+
+	/**
+	 * Scratch space for moving ranges while compacting a page in memory
+	 */
+	private static byte scratch[] = new byte[0];
+
+	/**
+	 * The page that is bound at the moment, null if unknown
+	 */
+	private static Page boundPage = null;
+
+	/**
+	 * Stats: binds since beginFrame, and the amount of compactions
+	 */
+	private static int bindCount = 0;
+	private static int compactions = 0;
+	private static int deletedPages = 0;
+
+	/**
+	 * Allocates a range for a mesh
+	 * @param size the size of the range in bytes
+	 * @return the range
+	 */
+	public static Range allocate(int size) {
+		size = (Math.max(size, 1) + ALIGNMENT - 1) & ~(ALIGNMENT - 1);
+
+		// a page with enough room in one piece
+		for (int i = 0; i < pages.size(); i ++) {
+			Page page = pages.get(i);
+			if (page != null && page.allocator.canAllocate(size))
+				return new Range(page, page.allocator.allocate(size));
+		}
+
+		// a page with enough room, but split into pieces
+		for (int i = 0; i < pages.size(); i ++) {
+			Page page = pages.get(i);
+			if (page == null)
+				continue;
+			BufferAllocator allocator = page.allocator;
+			if (allocator.getFree() >= size && allocator.getFragmentation() >= COMPACT_FRAGMENTATION) {
+				page.compact();
+				compactions ++;
+				boundPage = null;
+				return new Range(page, allocator.allocate(size));
+			}
+		}
+
+		int index = pages.indexOf(null);
+		if (index == -1) {
+			index = pages.size();
+			pages.add(null);
+		}
+		Page page = new Page(index, Math.max(size, PAGE_SIZE));
+		pages.set(index, page);
+		pageCount ++;
+		return new Range(page, page.allocator.allocate(size));
+	}
+
+	/**
+	 * Writes a mesh into a range
+	 * @param range the range
+	 * @param data the vertex data from its position to its limit, it has to fit into the range
+	 */
+	public static void write(Range range, ByteBuffer data) {
+		if (data.remaining() > range.getSize())
+			throw new IllegalArgumentException("Mesh of " + data.remaining() + " bytes doesn't fit into a range of " + range.getSize() + " bytes");
+
+		Page page = range.page;
+		if (page.bufferId != -1) {
+			GL.updateStaticVBO(page.bufferId, range.getOffset(), data);
+			boundPage = page;
+		}
+	}
+
+	/**
+	 * Frees a range, it can't be used afterwards
+	 * @param range the range
+	 */
+	public static void free(Range range) {
+		Page page = range.page;
+		page.allocator.free(range.allocation);
+
+		// give the memory of empty pages back, keeping one around for the next mesh
+		if (page.allocator.getUsed() == 0 && pageCount > 1) {
+			if (page.bufferId != -1)
+				GL.deleteVBO(page.bufferId);
+			if (boundPage == page)
+				boundPage = null;
+			pages.set(page.index, null);
+			pageCount --;
+			deletedPages ++;
+		}
+	}
+
+	/**
+	 * Binds the page of a range, unless it is bound already
+	 * @param range the range
+	 */
+	public static void bind(Range range) {
+		if (range.page == boundPage)
+			return;
+		GL.bindStaticBuffer(range.page.bufferId);
+		boundPage = range.page;
+		bindCount ++;
+	}
+
+	/**
+	 * Starts counting binds for a frame.  Call this before drawing any range.
+	 */
+	public static void beginFrame() {
+		boundPage = null;
+		bindCount = 0;
+	}
+
+	/**
+	 * Gets the amount of page binds since beginFrame
+	 * @return the bind count
+	 */
+	public static int getBindCount() {
+		return bindCount;
+	}
+
+	/**
+	 * Gets the amount of pages
+	 * @return the page count
+	 */
+	public static int getPageCount() {
+		return pageCount;
+	}
+
+	/**
+	 * Gets the size of all pages together
+	 * @return the capacity in bytes
+	 */
+	public static long getCapacity() {
+		long capacity = 0;
+		for (int i = 0; i < pages.size(); i ++)
+			if (pages.get(i) != null)
+				capacity += pages.get(i).allocator.getCapacity();
+		return capacity;
+	}
+
+	/**
+	 * Gets the amount of allocated space in all pages
+	 * @return the allocated bytes
+	 */
+	public static long getUsed() {
+		long used = 0;
+		for (int i = 0; i < pages.size(); i ++)
+			if (pages.get(i) != null)
+				used += pages.get(i).allocator.getUsed();
+		return used;
+	}
+
+	/**
+	 * Gets the fragmentation of the most fragmented page
+	 * @return the fragmentation, see BufferAllocator.getFragmentation
+	 */
+	public static float getFragmentation() {
+		float fragmentation = 0.0f;
+		for (int i = 0; i < pages.size(); i ++)
+			if (pages.get(i) != null)
+				fragmentation = Math.max(fragmentation, pages.get(i).allocator.getFragmentation());
+		return fragmentation;
+	}
+
+	/**
+	 * Gets the amount of times a page was compacted
+	 * @return the compaction count
+	 */
+	public static int getCompactions() {
+		return compactions;
+	}
+
+	/**
+	 * Gets the amount of pages that were deleted after becoming empty
+	 * @return the deleted page count
+	 */
+	public static int getDeletedPages() {
+		return deletedPages;
+	}
+}
@@ -0,0 +1,384 @@
+//-----------------------------------------------------------------------------
+// MeshBuffer.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package graphics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * A reusable, growable mesh that writes interleaved vertex data straight into
+ * a direct buffer.  Once the buffer has grown to fit the largest mesh that was
+ * built into it, rebuilding a mesh allocates nothing.
+ *
+ * Meshes are made of quads, every 4 vertices are one quad.  They have no indices
+ * of their own, they are drawn with the shared QuadIndexBuffer.  A mesher can
+ * split the quads into layers (opaque and translucent, see beginLayer) that are
+ * drawn in separate passes, and group the quads of each layer by the direction
+ * they face (see beginFace), so that a renderer can skip the directions that
+ * face away from the camera.
+ *
+ * Float vertex layout (FORMAT_FLOAT, 36 bytes per vertex):
+ *    - 3 floats position (offset 0)
+ *    - 3 floats normal   (offset 12)
+ *    - 2 floats texcoord (offset 24)
+ *    - 4 unsigned bytes color r, g, b, a (offset 32)
+ *
+ * Packed vertex layout (FORMAT_PACKED, 8 bytes per vertex), read by a shader
+ * through generic vertex attributes:
+ *    - 4 unsigned bytes x, y, z, face   (offset 0, POSITION_ATTRIBUTE)
+ *    - 4 unsigned bytes u, v, tile, light (offset 4, TEXTURE_ATTRIBUTE)
+ * The position is relative to the origin of the mesh and the normal is looked
+ * up from the face, so the mesh has to be drawn translated to where it belongs.
+ */
+public class MeshBuffer {
+	public static final int FORMAT_FLOAT = 0;
+	public static final int FORMAT_PACKED = 1;
+
+	/**
+	 * The layers of a mesh, in the order they are built
+	 */
+	public static final int LAYER_OPAQUE = 0;
+	public static final int LAYER_TRANSLUCENT = 1;
+	public static final int LAYERS = 2;
+
+	/**
+	 * The size of a single vertex in bytes
+	 */
+	public static final int VERTEX_STRIDE = 36;
+	public static final int PACKED_VERTEX_STRIDE = 8;
+
+	/**
+	 * Byte offset of the normal inside of a vertex
+	 */
+	public static final int NORMAL_OFFSET = 12;
+
+	/**
+	 * Byte offset of the texture coordinate inside of a vertex
+	 */
+	public static final int TEXCOORD_OFFSET = 24;
+
+	/**
+	 * Byte offset of the color inside of a vertex
+	 */
+	public static final int COLOR_OFFSET = 32;
+
+	/**
+	 * Byte offset of the texture bytes inside of a packed vertex
+	 */
+	public static final int PACKED_TEXTURE_OFFSET = 4;
+
+	/**
+	 * The generic vertex attributes the packed layout is read through
+	 */
+	public static final int POSITION_ATTRIBUTE = 0;
+	public static final int TEXTURE_ATTRIBUTE = 1;
+
+	/**
+	 * The vertex layout, FORMAT_X, and the size of a vertex in bytes
+	 */
+	private final int format;
+	private final int stride;
+
+	/**
+	 * Interleaved vertex data
+	 */
+	private ByteBuffer vertices;
+
+	/**
+	 * Views into the vertex data starting at the normal, texcoord and color offsets,
+	 * used for client side vertex arrays.  They are only recreated when the
+	 * vertex buffer has to grow.
+	 */
+	private ByteBuffer normalView;
+	private ByteBuffer textureView;
+	private ByteBuffer colorView;
+
+	/**
+	 * The amount of vertices written since the last clear
+	 */
+	private int vertexCount = 0;
+
+	/**
+	 * The first quad of each face direction (Cube.FACE_X) of each layer, at
+	 * layer * 6 + face.  The last entry is the end of the mesh.
+	 */
+	private int sectionStart[] = new int[LAYERS * 6 + 1];
+	private int currentSection = 0;
+	private boolean groupedByFace = false;
+
+	/**
+	 * Creates a mesh buffer with the float vertex layout
+	 * @param initialQuads the amount of quads to reserve space for
+	 */
+	public MeshBuffer(int initialQuads) {
+		this(initialQuads, FORMAT_FLOAT);
+	}
+
+	/**
+	 * Creates a mesh buffer
+	 * @param initialQuads the amount of quads to reserve space for
+	 * @param format the vertex layout, FORMAT_X
+	 */
+	public MeshBuffer(int initialQuads, int format) {
+		this.format = format;
+		this.stride = (format == FORMAT_PACKED) ? PACKED_VERTEX_STRIDE : VERTEX_STRIDE;
+		allocateVertices(Math.max(initialQuads, 1) * 4);
+	}
+
+	/**
+	 * Resets the mesh so that it can be rebuilt.  The buffer is kept.
+	 */
+	public void clear() {
+		vertices.clear();
+		vertexCount = 0;
+		currentSection = 0;
+		groupedByFace = false;
+	}
+
+	/**
+	 * Starts a layer.  Every quad written afterwards belongs to that layer, quads
+	 * written before the first call are opaque.  Layers have to be started in
+	 * increasing order.
+	 * @param layer the layer, LAYER_X
+	 */
+	public void beginLayer(int layer) {
+		beginSection(layer * 6);
+	}
+
+	/**
+	 * Starts the quads of a face direction of the current layer.  Every quad written
+	 * afterwards faces that direction, until the next call.  Directions have to be
+	 * started in increasing order, directions that are skipped have no quads.
+	 * @param face the face direction (Cube.FACE_X)
+	 */
+	public void beginFace(int face) {
+		beginSection(currentSection / 6 * 6 + face);
+		groupedByFace = true;
+	}
+
+	/**
+	 * Starts a face direction of a layer
+	 * @param section layer * 6 + face
+	 */
+	private void beginSection(int section) {
+		if (section < currentSection)
+			throw new IllegalArgumentException("Mesh section " + section + " started after section " + currentSection);
+
+		for (int i = currentSection + 1; i <= section; i ++)
+			sectionStart[i] = getQuadCount();
+		currentSection = section;
+	}
+
+	/**
+	 * Writes a vertex into the mesh
+	 * @param x position x
+	 * @param y position y
+	 * @param z position z
+	 * @param nx normal x
+	 * @param ny normal y
+	 * @param nz normal z
+	 * @param u texture coordinate u
+	 * @param v texture coordinate v
+	 * @param color the color as 0xRRGGBBAA
+	 */
+	public void putVertex(float x, float y, float z, float nx, float ny, float nz, float u, float v, int color) {
+		if (vertices.remaining() < stride)
+			growVertices();
+
+		vertices.putFloat(x).putFloat(y).putFloat(z);
+		vertices.putFloat(nx).putFloat(ny).putFloat(nz);
+		vertices.putFloat(u).putFloat(v);
+		vertices.put((byte)(color >>> 24)).put((byte)(color >>> 16)).put((byte)(color >>> 8)).put((byte)color);
+		vertexCount ++;
+	}
+
+	/**
+	 * Writes a vertex into a mesh with the packed layout
+	 * @param x position x, 0 to 255
+	 * @param y position y, 0 to 255
+	 * @param z position z, 0 to 255
+	 * @param face the face the vertex belongs to, selects the normal
+	 * @param u texture coordinate u inside of the tile, 0 to 255
+	 * @param v texture coordinate v inside of the tile, 0 to 255
+	 * @param tile the tile of the texture map, 0 to 255
+	 * @param light the light of the face, 0 to 255
+	 */
+	public void putPackedVertex(int x, int y, int z, int face, int u, int v, int tile, int light) {
+		if (vertices.remaining() < stride)
+			growVertices();
+
+		vertices.put((byte)x).put((byte)y).put((byte)z).put((byte)face);
+		vertices.put((byte)u).put((byte)v).put((byte)tile).put((byte)light);
+		vertexCount ++;
+	}
+
+	/**
+	 * Gets the amount of vertices in the mesh
+	 * @return the vertex count
+	 */
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/**
+	 * Gets the amount of quads in the mesh
+	 * @return the quad count
+	 */
+	public int getQuadCount() {
+		return vertexCount / 4;
+	}
+
+	/**
+	 * Gets the amount of indices needed to draw the mesh (6 per quad)
+	 * @return the index count
+	 */
+	public int getIndexCount() {
+		return (vertexCount / 4) * 6;
+	}
+
+	/**
+	 * Finishes building the mesh.  The vertex buffer is positioned at 0 and limited
+	 * to the written data so it can be handed to OpenGL.
+	 */
+	public void finish() {
+		vertices.flip();
+
+		// the directions and layers after the last one that was started are empty
+		for (int i = currentSection + 1; i < sectionStart.length; i ++)
+			sectionStart[i] = getQuadCount();
+	}
+
+	/**
+	 * Checks to see if the quads of the mesh were grouped by face direction
+	 * @return true if beginFace was used
+	 */
+	public boolean isGroupedByFace() {
+		return groupedByFace;
+	}
+
+	/**
+	 * Gets the first quad of a face direction of a layer, see beginFace
+	 * @param layer the layer, LAYER_X
+	 * @param face the face direction (Cube.FACE_X), 6 for the end of the layer
+	 * @return the index of the first quad
+	 */
+	public int getFaceStart(int layer, int face) {
+		return sectionStart[layer * 6 + face];
+	}
+
+	/**
+	 * Gets the vertex layout of the mesh
+	 * @return the format, FORMAT_X
+	 */
+	public int getFormat() {
+		return format;
+	}
+
+	/**
+	 * Gets the size of a vertex of the mesh
+	 * @return the vertex size in bytes
+	 */
+	public int getVertexStride() {
+		return stride;
+	}
+
+	/**
+	 * Gets the interleaved vertex data
+	 * @return the vertex buffer
+	 */
+	public ByteBuffer getVertices() {
+		return vertices;
+	}
+
+	/**
+	 * Gets a view of the vertex data that starts at the first normal.
+	 * Meant for client side vertex arrays, with a stride of VERTEX_STRIDE.
+	 * Only available with the float layout.
+	 * @return the normal view
+	 */
+	public ByteBuffer getNormalView() {
+		return normalView;
+	}
+
+	/**
+	 * Gets a view of the vertex data that starts at the first texture coordinate.
+	 * Meant for client side vertex arrays, with a stride of VERTEX_STRIDE.
+	 * Only available with the float layout.
+	 * @return the texcoord view
+	 */
+	public ByteBuffer getTextureView() {
+		return textureView;
+	}
+
+	/**
+	 * Gets a view of the vertex data that starts at the first color.
+	 * Meant for client side vertex arrays, with a stride of VERTEX_STRIDE.
+	 * Only available with the float layout.
+	 * @return the color view
+	 */
+	public ByteBuffer getColorView() {
+		return colorView;
+	}
+
+	/**
+	 * Doubles the vertex buffer, keeping what has been written so far
+	 */
+	private void growVertices() {
+		ByteBuffer old = vertices;
+		allocateVertices((old.capacity() / stride) * 2);
+		old.flip();
+		vertices.put(old);
+	}
+
+	/**
+	 * Allocates the vertex buffer and its views
+	 * @param vertexCapacity the amount of vertices the buffer can hold
+	 */
+	private void allocateVertices(int vertexCapacity) {
+		vertices = BufferUtils.createByteBuffer(vertexCapacity * stride);
+		if (format == FORMAT_PACKED)
+			return;
+
+		vertices.position(NORMAL_OFFSET);
+		normalView = vertices.slice().order(ByteOrder.nativeOrder());
+		vertices.position(TEXCOORD_OFFSET);
+		textureView = vertices.slice().order(ByteOrder.nativeOrder());
+		vertices.position(COLOR_OFFSET);
+		colorView = vertices.slice().order(ByteOrder.nativeOrder());
+		vertices.position(0);
+	}
+}
@@ -0,0 +1,120 @@
+//-----------------------------------------------------------------------------
+// QuadIndexBuffer.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package graphics;
+
+import java.nio.ShortBuffer;
+
+import org.lwjgl.BufferUtils;
+
+/**
+ * A single index buffer shared by every quad mesh.
+ *
+ * The indices of a quad mesh are always the same pattern, 0 1 2 2 3 0 offset
+ * by 4 for every quad, so instead of each mesh building and uploading its own
+ * indices, this buffer is built once, large enough for the largest mesh, and
+ * every mesh draws the first (quads * 6) indices of it.  Indices are 16 bit,
+ * which limits a mesh to MAX_QUADS quads.
+ */
+public final class QuadIndexBuffer {
+	/**
+	 * The most quads 16 bit indices can address
+	 */
+	public static final int MAX_QUADS = 65536 / 4;
+
+	/**
+	 * The indices, kept around for client side vertex arrays
+	 */
+	private static ShortBuffer indices = null;
+
+	/**
+	 * The index buffer object, -1 if VBOs are not used
+	 */
+	private static int bufferId = -1;
+
+	/**
+	 * The amount of quads the buffer holds
+	 */
+	private static int quadCount = 0;
+
+	/**
+	 * Builds the shared indices and uploads them.  Call this after GL.init.
+	 * @param quads the most quads a single mesh will have
+	 */
+	public static void init(int quads) {
+		if (quads > MAX_QUADS)
+			throw new IllegalArgumentException("Quad meshes are limited to " + MAX_QUADS + " quads with 16 bit indices, not " + quads);
+
+		quadCount = quads;
+		indices = BufferUtils.createShortBuffer(quads * 6);
+		for (int i = 0; i < quads; i ++) {
+			int base = i * 4;
+			indices.put((short)base).put((short)(base + 1)).put((short)(base + 2));
+			indices.put((short)(base + 2)).put((short)(base + 3)).put((short)base);
+		}
+		indices.flip();
+
+		if (!GL.isLegacy()) {
+			bufferId = GL.genVBO();
+			GL.prepareStaticVBO(bufferId, indices);
+		}
+	}
+
+	/**
+	 * Binds the shared index buffer object
+	 */
+	public static void bind() {
+		GL.bindStaticIndexBuffer(bufferId);
+	}
+
+	/**
+	 * Gets the indices for client side vertex arrays
+	 * @param firstQuad the first quad that will be drawn
+	 * @param quads the amount of quads that will be drawn
+	 * @return the indices of the quads, from the position to the limit
+	 */
+	public static ShortBuffer getIndices(int firstQuad, int quads) {
+		indices.limit((firstQuad + quads) * 6);
+		indices.position(firstQuad * 6);
+		return indices;
+	}
+
+	/**
+	 * Gets the amount of quads the buffer holds
+	 * @return the quad count
+	 */
+	public static int getQuadCount() {
+		return quadCount;
+	}
+}
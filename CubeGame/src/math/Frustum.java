@@ -0,0 +1,145 @@
+//-----------------------------------------------------------------------------
+// Frustum.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package math;
+
+import org.lwjgl.util.vector.Matrix4f;
+
+/**
+ * The view frustum of a camera, as six planes in world space.
+ *
+ * The planes are extracted from the combined projection * view matrix
+ * (Gribb & Hartmann), so this only does plain math and works without a
+ * GL context.  Each plane is stored as (a, b, c, d) with its normal facing
+ * into the frustum, a point p is inside of a plane if a*p.x + b*p.y + c*p.z + d >= 0.
+ */
+public class Frustum {
+	public static final int PLANE_LEFT = 0;
+	public static final int PLANE_RIGHT = 1;
+	public static final int PLANE_BOTTOM = 2;
+	public static final int PLANE_TOP = 3;
+	public static final int PLANE_NEAR = 4;
+	public static final int PLANE_FAR = 5;
+
+	/**
+	 * The planes, indexed by PLANE_X
+	 */
+	private float planes[][] = new float[6][4];
+
+	/**
+	 * Scratch matrix for the combined projection and view
+	 */
+	private Matrix4f clip = new Matrix4f();
+
+	/**
+	 * Updates the planes from the camera matrices
+	 * @param projection the projection matrix
+	 * @param view the view (modelview) matrix
+	 */
+	public void update(Matrix4f projection, Matrix4f view) {
+		Matrix4f.mul(projection, view, clip);
+		Matrix4f m = clip;
+
+		// Matrix4f fields are mColumnRow, the planes are sums of the rows
+		setPlane(PLANE_LEFT,   m.m03 + m.m00, m.m13 + m.m10, m.m23 + m.m20, m.m33 + m.m30);
+		setPlane(PLANE_RIGHT,  m.m03 - m.m00, m.m13 - m.m10, m.m23 - m.m20, m.m33 - m.m30);
+		setPlane(PLANE_BOTTOM, m.m03 + m.m01, m.m13 + m.m11, m.m23 + m.m21, m.m33 + m.m31);
+		setPlane(PLANE_TOP,    m.m03 - m.m01, m.m13 - m.m11, m.m23 - m.m21, m.m33 - m.m31);
+		setPlane(PLANE_NEAR,   m.m03 + m.m02, m.m13 + m.m12, m.m23 + m.m22, m.m33 + m.m32);
+		setPlane(PLANE_FAR,    m.m03 - m.m02, m.m13 - m.m12, m.m23 - m.m22, m.m33 - m.m32);
+	}
+
+	/**
+	 * Stores a plane, normalized so that plane distances are in world units
+	 */
+	private void setPlane(int plane, float a, float b, float c, float d) {
+		float length = (float)Math.sqrt(a * a + b * b + c * c);
+		float p[] = planes[plane];
+		p[0] = a / length;
+		p[1] = b / length;
+		p[2] = c / length;
+		p[3] = d / length;
+	}
+
+	/**
+	 * Checks to see if a point is inside of the frustum
+	 * @param x the x position of the point
+	 * @param y the y position of the point
+	 * @param z the z position of the point
+	 * @return true if the point is inside
+	 */
+	public boolean containsPoint(float x, float y, float z) {
+		for (int i = 0; i < 6; i ++) {
+			float p[] = planes[i];
+			if (p[0] * x + p[1] * y + p[2] * z + p[3] < 0.0f)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks to see if an axis aligned box is at least partly inside of the frustum.
+	 * This is conservative: a box near a corner of the frustum may be reported as
+	 * inside while it isn't, but a box that is inside is never reported as outside.
+	 * @param minX the lowest x position of the box
+	 * @param minY the lowest y position of the box
+	 * @param minZ the lowest z position of the box
+	 * @param maxX the highest x position of the box
+	 * @param maxY the highest y position of the box
+	 * @param maxZ the highest z position of the box
+	 * @return true if the box may be visible
+	 */
+	public boolean intersectsBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		for (int i = 0; i < 6; i ++) {
+			float p[] = planes[i];
+
+			// test the corner of the box that is furthest along the plane normal
+			float x = (p[0] >= 0.0f) ? maxX : minX;
+			float y = (p[1] >= 0.0f) ? maxY : minY;
+			float z = (p[2] >= 0.0f) ? maxZ : minZ;
+			if (p[0] * x + p[1] * y + p[2] * z + p[3] < 0.0f)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets a plane of the frustum
+	 * @param plane the plane (PLANE_X)
+	 * @return the plane as (a, b, c, d), do not modify it
+	 */
+	public float[] getPlane(int plane) {
+		return planes[plane];
+	}
+}
@@ -0,0 +1,265 @@
+//-----------------------------------------------------------------------------
+// Noise.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package math;
+
+import java.util.Random;
+
+/**
+ * Seeded 2D and 3D gradient (Perlin) noise.
+ *
+ * The permutation table is shuffled from the seed once, after that every
+ * sample is a pure function of its position, so one instance can be shared
+ * by any amount of threads and always gives the same values for the same seed.
+ *
+ * fill() evaluates fractal noise for a whole grid at once: the lattice cell and
+ * fade curve of each column and each row is worked out once per octave instead
+ * of once per sample.
+ */
+public class Noise {
+	/**
+	 * The permutation of 0 - 255, twice, so lookups never need to wrap
+	 */
+	private final int perm[] = new int[512];
+
+	/**
+	 * Scratch space of fill for the columns of the grid, one set per octave
+	 */
+	private static final ThreadLocal<int[]> columnCells = new ThreadLocal<int[]>();
+	private static final ThreadLocal<float[][]> columnOffsets = new ThreadLocal<float[][]>();
+
+	/**
+	 * Creates the noise for a seed
+	 * @param seed the seed
+	 */
+	public Noise(long seed) {
+		for (int i = 0; i < 256; i ++)
+			perm[i] = i;
+
+		Random random = new Random(seed);
+		for (int i = 255; i > 0; i --) {
+			int j = random.nextInt(i + 1);
+			int swap = perm[i];
+			perm[i] = perm[j];
+			perm[j] = swap;
+		}
+		for (int i = 0; i < 256; i ++)
+			perm[i + 256] = perm[i];
+	}
+
+	/**
+	 * Samples the noise at a single point
+	 * @param x the x position
+	 * @param z the z position
+	 * @return the noise value, roughly -1 to 1
+	 */
+	public float sample(double x, double z) {
+		int cellX = floor(x);
+		int cellZ = floor(z);
+		float offsetX = (float)(x - cellX);
+		float offsetZ = (float)(z - cellZ);
+		return sample(cellX & 255, offsetX, fade(offsetX), cellZ & 255, offsetZ, fade(offsetZ));
+	}
+
+	/**
+	 * Samples 3D noise at a single point
+	 * @param x the x position
+	 * @param y the y position
+	 * @param z the z position
+	 * @return the noise value, roughly -1 to 1
+	 */
+	public float sample(double x, double y, double z) {
+		int cellX = floor(x);
+		int cellY = floor(y);
+		int cellZ = floor(z);
+		float fx = (float)(x - cellX);
+		float fy = (float)(y - cellY);
+		float fz = (float)(z - cellZ);
+		float u = fade(fx);
+		float v = fade(fy);
+		float w = fade(fz);
+
+		int a = perm[cellX & 255] + (cellY & 255);
+		int b = perm[(cellX & 255) + 1] + (cellY & 255);
+		int aa = perm[a] + (cellZ & 255);
+		int ab = perm[a + 1] + (cellZ & 255);
+		int ba = perm[b] + (cellZ & 255);
+		int bb = perm[b + 1] + (cellZ & 255);
+
+		float x0 = lerp(u, grad(perm[aa], fx, fy, fz), grad(perm[ba], fx - 1.0f, fy, fz));
+		float x1 = lerp(u, grad(perm[ab], fx, fy - 1.0f, fz), grad(perm[bb], fx - 1.0f, fy - 1.0f, fz));
+		float x2 = lerp(u, grad(perm[aa + 1], fx, fy, fz - 1.0f), grad(perm[ba + 1], fx - 1.0f, fy, fz - 1.0f));
+		float x3 = lerp(u, grad(perm[ab + 1], fx, fy - 1.0f, fz - 1.0f), grad(perm[bb + 1], fx - 1.0f, fy - 1.0f, fz - 1.0f));
+		return lerp(w, lerp(v, x0, x1), lerp(v, x2, x3));
+	}
+
+	/**
+	 * Fills a grid with fractal noise: octaves of noise added together, each one
+	 * with twice the frequency and persistence times the amplitude of the last.
+	 * @param out receives the values, row by row (out[x + z * width])
+	 * @param width the amount of samples along x
+	 * @param depth the amount of samples along z
+	 * @param startX the x position of the first sample
+	 * @param startZ the z position of the first sample
+	 * @param step the distance between samples
+	 * @param octaves the amount of octaves
+	 * @param persistence the amplitude of each octave compared to the last
+	 */
+	public void fill(float out[], int width, int depth, double startX, double startZ, double step, int octaves, float persistence) {
+		int cells[] = columnCells.get();
+		float offsets[][] = columnOffsets.get();
+		if (cells == null || cells.length < width) {
+			cells = new int[width];
+			offsets = new float[2][width];
+			columnCells.set(cells);
+			columnOffsets.set(offsets);
+		}
+		float offsetsX[] = offsets[0];
+		float fadesX[] = offsets[1];
+
+		for (int i = 0; i < width * depth; i ++)
+			out[i] = 0.0f;
+
+		double frequency = 1.0;
+		float amplitude = 1.0f;
+		float total = 0.0f;
+		for (int octave = 0; octave < octaves; octave ++) {
+			// the lattice cell of every column only depends on x
+			for (int i = 0; i < width; i ++) {
+				double x = (startX + i * step) * frequency;
+				int cellX = floor(x);
+				cells[i] = cellX & 255;
+				offsetsX[i] = (float)(x - cellX);
+				fadesX[i] = fade(offsetsX[i]);
+			}
+
+			for (int j = 0; j < depth; j ++) {
+				double z = (startZ + j * step) * frequency;
+				int cellZ = floor(z);
+				int wrappedZ = cellZ & 255;
+				float offsetZ = (float)(z - cellZ);
+				float fadeZ = fade(offsetZ);
+
+				int row = j * width;
+				for (int i = 0; i < width; i ++)
+					out[row + i] += amplitude * sample(cells[i], offsetsX[i], fadesX[i], wrappedZ, offsetZ, fadeZ);
+			}
+
+			total += amplitude;
+			frequency *= 2.0;
+			amplitude *= persistence;
+		}
+
+		// keep the result roughly in -1 to 1
+		float scale = 1.0f / total;
+		for (int i = 0; i < width * depth; i ++)
+			out[i] *= scale;
+	}
+
+	/**
+	 * Samples the noise inside of a lattice cell
+	 * @param cellX the x lattice cell, 0 to 255
+	 * @param x the x position inside of the cell, 0 to 1
+	 * @param u fade(x)
+	 * @param cellZ the z lattice cell, 0 to 255
+	 * @param z the z position inside of the cell, 0 to 1
+	 * @param v fade(z)
+	 * @return the noise value
+	 */
+	private float sample(int cellX, float x, float u, int cellZ, float z, float v) {
+		int a = perm[cellX] + cellZ;
+		int b = perm[cellX + 1] + cellZ;
+
+		float bottom = lerp(u, grad(perm[a], x, z), grad(perm[b], x - 1.0f, z));
+		float top = lerp(u, grad(perm[a + 1], x, z - 1.0f), grad(perm[b + 1], x - 1.0f, z - 1.0f));
+		return lerp(v, bottom, top);
+	}
+
+	/**
+	 * The dot product of one of 8 gradients with the offset to the lattice point
+	 */
+	private static float grad(int hash, float x, float z) {
+		switch (hash & 7) {
+		case 0: return x + z;
+		case 1: return -x + z;
+		case 2: return x - z;
+		case 3: return -x - z;
+		case 4: return x;
+		case 5: return -x;
+		case 6: return z;
+		default: return -z;
+		}
+	}
+
+	/**
+	 * The dot product of one of the 12 edge gradients of a cube with the offset to the lattice point
+	 */
+	private static float grad(int hash, float x, float y, float z) {
+		switch (hash & 15) {
+		case 0: return x + y;
+		case 1: return -x + y;
+		case 2: return x - y;
+		case 3: return -x - y;
+		case 4: return x + z;
+		case 5: return -x + z;
+		case 6: return x - z;
+		case 7: return -x - z;
+		case 8: return y + z;
+		case 9: return -y + z;
+		case 10: return y - z;
+		case 11: return -y - z;
+		// padding to 16, repeats four of the gradients
+		case 12: return x + y;
+		case 13: return -y + z;
+		case 14: return -x + y;
+		default: return -y - z;
+		}
+	}
+
+	/**
+	 * Smooth step 6t^5 - 15t^4 + 10t^3
+	 */
+	private static float fade(float t) {
+		return t * t * t * (t * (t * 6.0f - 15.0f) + 10.0f);
+	}
+
+	private static float lerp(float t, float a, float b) {
+		return a + t * (b - a);
+	}
+
+	private static int floor(double value) {
+		int i = (int)value;
+		return (value < i) ? i - 1 : i;
+	}
+}
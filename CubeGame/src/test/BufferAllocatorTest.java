@@ -0,0 +1,275 @@
+//-----------------------------------------------------------------------------
+// BufferAllocatorTest.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import graphics.BufferAllocator;
+import graphics.BufferAllocator.Allocation;
+
+/**
+ * Checks the BufferAllocator that the MegaBuffer is built on, and prints
+ * fragmentation stats for chunk sized meshes coming and going.  Runs without
+ * a GL context, throws if a check fails.
+ */
+public class BufferAllocatorTest {
+	private static final int ALIGNMENT = 32;
+
+	public static void main(String[] args) {
+		testFillAndFree();
+		testCoalesce();
+		testCompact();
+		testGrow();
+		testRandom();
+		reportChurn();
+		System.out.println("All BufferAllocator checks passed");
+	}
+
+	private static void testFillAndFree() {
+		BufferAllocator allocator = new BufferAllocator(1024, ALIGNMENT);
+		Allocation a = allocator.allocate(1);
+		check(a.getOffset() == 0 && a.getSize() == ALIGNMENT, "sizes are rounded up to the alignment");
+
+		ArrayList<Allocation> list = new ArrayList<Allocation>();
+		list.add(a);
+		Allocation next;
+		while ((next = allocator.allocate(ALIGNMENT)) != null)
+			list.add(next);
+		check(list.size() == 1024 / ALIGNMENT, "the buffer fills up completely");
+		check(allocator.getFree() == 0 && allocator.getFreeRangeCount() == 0, "a full buffer has no free ranges");
+
+		for (Allocation allocation : list)
+			allocator.free(allocation);
+		check(allocator.getUsed() == 0 && allocator.getFreeRangeCount() == 1, "freeing everything leaves one range");
+		check(a.isFreed(), "freed allocations know they were freed");
+
+		boolean threw = false;
+		try {
+			allocator.free(a);
+		} catch (IllegalStateException e) {
+			threw = true;
+		}
+		check(threw, "freeing twice throws");
+	}
+
+	private static void testCoalesce() {
+		BufferAllocator allocator = new BufferAllocator(10 * ALIGNMENT, ALIGNMENT);
+		Allocation list[] = new Allocation[10];
+		for (int i = 0; i < list.length; i ++)
+			list[i] = allocator.allocate(ALIGNMENT);
+
+		// every other one leaves 5 separate holes
+		for (int i = 0; i < list.length; i += 2)
+			allocator.free(list[i]);
+		check(allocator.getFreeRangeCount() == 5, "separate holes stay separate");
+		check(allocator.getLargestFreeRange() == ALIGNMENT, "holes are not merged with used space");
+		check(allocator.allocate(2 * ALIGNMENT) == null, "no hole fits two");
+		check(Math.abs(allocator.getFragmentation() - 0.8f) < 0.001f, "fragmentation of 5 equal holes");
+
+		// freeing the ones in between merges with both neighbours
+		for (int i = 1; i < list.length; i += 2)
+			allocator.free(list[i]);
+		check(allocator.getFreeRangeCount() == 1, "neighbouring holes are merged");
+		check(allocator.getLargestFreeRange() == 10 * ALIGNMENT, "merged range covers the buffer");
+		check(allocator.getFragmentation() == 0.0f, "one range isn't fragmented");
+	}
+
+	private static void testCompact() {
+		final byte contents[] = new byte[64 * ALIGNMENT];
+		BufferAllocator allocator = new BufferAllocator(contents.length, ALIGNMENT);
+		ArrayList<Allocation> kept = new ArrayList<Allocation>();
+		Allocation list[] = new Allocation[64];
+		for (int i = 0; i < list.length; i ++)
+			list[i] = allocator.allocate(ALIGNMENT);
+		for (int i = 0; i < list.length; i ++) {
+			Allocation allocation = list[i];
+			if (i % 3 == 0) {
+				allocator.free(allocation);
+			} else {
+				// tag the range, so we can see that it moved along with its allocation
+				for (int j = 0; j < ALIGNMENT; j ++)
+					contents[allocation.getOffset() + j] = (byte)i;
+				kept.add(allocation);
+			}
+		}
+		check(allocator.getFragmentation() > 0.5f, "the buffer is fragmented before compacting");
+
+		final int moved[] = new int[1];
+		allocator.compact(new BufferAllocator.MoveListener() {
+			@Override
+			public void move(int from, int to, int size) {
+				check(to < from, "ranges only move down");
+				System.arraycopy(contents, from, contents, to, size);
+				moved[0] ++;
+			}
+		});
+
+		check(moved[0] > 0, "compacting moved ranges");
+		check(allocator.getFreeRangeCount() == 1, "compacting leaves one free range");
+		check(allocator.getLargestFreeRange() == allocator.getFree(), "the free range is all of the free space");
+		check(allocator.getUsed() == kept.size() * ALIGNMENT, "compacting keeps every allocation");
+
+		// the ranges keep their order and their contents
+		int offset = 0;
+		for (Allocation allocation : kept) {
+			check(allocation.getOffset() == offset, "ranges are packed in order");
+			check(contents[offset] == contents[offset + ALIGNMENT - 1], "range contents moved along");
+			offset += ALIGNMENT;
+		}
+		for (int i = 1; i < kept.size(); i ++)
+			check(contents[kept.get(i).getOffset()] > contents[kept.get(i - 1).getOffset()], "range tags are in order");
+
+		// compacted allocations can still be freed
+		for (Allocation allocation : kept)
+			allocator.free(allocation);
+		check(allocator.getUsed() == 0 && allocator.getFreeRangeCount() == 1, "compacted ranges free cleanly");
+	}
+
+	private static void testGrow() {
+		BufferAllocator allocator = new BufferAllocator(4 * ALIGNMENT, ALIGNMENT);
+		Allocation a = allocator.allocate(4 * ALIGNMENT);
+		allocator.grow(8 * ALIGNMENT);
+		check(allocator.getFreeRangeCount() == 1 && allocator.getFree() == 4 * ALIGNMENT, "growing adds a range at the end");
+		Allocation b = allocator.allocate(2 * ALIGNMENT);
+		check(b.getOffset() == 4 * ALIGNMENT, "the grown space is used");
+		allocator.free(b);
+		allocator.grow(16 * ALIGNMENT);
+		check(allocator.getFreeRangeCount() == 1 && allocator.getFree() == 12 * ALIGNMENT, "growing extends the last free range");
+		allocator.free(a);
+		check(allocator.getFreeRangeCount() == 1, "everything merges after growing");
+	}
+
+	/**
+	 * Random allocations and frees, checked against a map of which bytes are in use
+	 */
+	private static void testRandom() {
+		int capacity = 1 << 20;
+		BufferAllocator allocator = new BufferAllocator(capacity, ALIGNMENT);
+		int owner[] = new int[capacity / ALIGNMENT];
+		ArrayList<Allocation> live = new ArrayList<Allocation>();
+		ArrayList<Integer> ids = new ArrayList<Integer>();
+		Random random = new Random(1);
+		int nextId = 1;
+
+		for (int step = 0; step < 200000; step ++) {
+			if (live.isEmpty() || random.nextInt(100) < 55) {
+				Allocation allocation = allocator.allocate(1 + random.nextInt(8192));
+				if (allocation == null) {
+					check(allocator.getLargestFreeRange() < 8192 + ALIGNMENT, "allocation only fails without room");
+					continue;
+				}
+				int id = nextId ++;
+				for (int i = allocation.getOffset() / ALIGNMENT; i < (allocation.getOffset() + allocation.getSize()) / ALIGNMENT; i ++) {
+					check(owner[i] == 0, "allocations never overlap");
+					owner[i] = id;
+				}
+				live.add(allocation);
+				ids.add(id);
+			} else {
+				int index = random.nextInt(live.size());
+				Allocation allocation = live.get(index);
+				for (int i = allocation.getOffset() / ALIGNMENT; i < (allocation.getOffset() + allocation.getSize()) / ALIGNMENT; i ++)
+					owner[i] = 0;
+				allocator.free(allocation);
+				live.set(index, live.get(live.size() - 1));
+				live.remove(live.size() - 1);
+				ids.set(index, ids.get(ids.size() - 1));
+				ids.remove(ids.size() - 1);
+			}
+
+			if (step % 20000 == 0) {
+				allocator.compact(null);
+				for (int i = 0; i < owner.length; i ++)
+					owner[i] = 0;
+				for (int i = 0; i < live.size(); i ++) {
+					Allocation allocation = live.get(i);
+					for (int j = allocation.getOffset() / ALIGNMENT; j < (allocation.getOffset() + allocation.getSize()) / ALIGNMENT; j ++) {
+						check(owner[j] == 0, "compacted allocations never overlap");
+						owner[j] = ids.get(i);
+					}
+				}
+			}
+		}
+
+		int used = 0;
+		for (int i = 0; i < owner.length; i ++) {
+			if (owner[i] != 0)
+				used += ALIGNMENT;
+		}
+		check(used == allocator.getUsed(), "used space matches the live allocations");
+		check(allocator.getAllocationCount() == live.size(), "allocation count matches");
+	}
+
+	/**
+	 * Chunk meshes of different sizes being rebuilt over and over, like terrain being edited
+	 */
+	private static void reportChurn() {
+		BufferAllocator allocator = new BufferAllocator(4 * 1024 * 1024, ALIGNMENT);
+		Random random = new Random(2);
+		Allocation chunks[] = new Allocation[250];
+		int failed = 0;
+		int compactions = 0;
+
+		for (int step = 0; step < 100000; step ++) {
+			int chunk = random.nextInt(chunks.length);
+			if (chunks[chunk] != null)
+				allocator.free(chunks[chunk]);
+
+			// packed meshes, mostly small surface chunks with a few busy ones
+			int size = 8 * 4 * (64 + (random.nextInt(10) == 0 ? random.nextInt(3000) : random.nextInt(400)));
+			chunks[chunk] = allocator.allocate(size);
+			if (chunks[chunk] == null && allocator.getFree() >= size) {
+				allocator.compact(null);
+				compactions ++;
+				chunks[chunk] = allocator.allocate(size);
+			}
+			if (chunks[chunk] == null)
+				failed ++;
+
+			if (step % 20000 == 0) {
+				System.out.println("step " + step + ": " + allocator.getAllocationCount() + " meshes, " + (allocator.getUsed() >> 10) + "KB used, "
+						+ allocator.getFreeRangeCount() + " free ranges, largest " + (allocator.getLargestFreeRange() >> 10) + "KB, fragmentation "
+						+ allocator.getFragmentation());
+			}
+		}
+		System.out.println("churn: " + compactions + " compactions, " + failed + " failed allocations");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
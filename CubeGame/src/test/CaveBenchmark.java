@@ -0,0 +1,174 @@
+//-----------------------------------------------------------------------------
+// CaveBenchmark.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import cubegame.CaveCarver;
+import cubegame.CubeStorage;
+import cubegame.TerrainGenerator;
+
+/**
+ * Checks how far the lattice interpolated cave density is from sampling every
+ * cube, and measures how much faster it is.  Runs without a GL context, throws
+ * if a check fails.
+ */
+public class CaveBenchmark {
+	private static final long SEED = 1337;
+	private static final int COLUMNS = 16; // 16 * 16 chunk columns
+	private static final int ROUNDS = 5;
+
+	/**
+	 * The largest difference between the interpolated and the sampled density that is accepted
+	 */
+	private static final float MAX_ERROR = 0.1f;
+
+	/**
+	 * The largest share of cubes that may end up on the other side of the threshold
+	 */
+	private static final float MAX_MISCLASSIFIED = 0.02f;
+
+	public static void main(String[] args) {
+		checkLattice();
+		checkError();
+
+		for (int round = 0; round < ROUNDS; round ++) {
+			// every round somewhere else, so nothing is reused
+			int offset = (round + 1) * 4 * COLUMNS;
+			CaveCarver carver = new CaveCarver(SEED);
+			CaveCarver.Lattice lattice = new CaveCarver.Lattice();
+			float density[] = new float[CubeStorage.VOLUME];
+			int chunks = COLUMNS * COLUMNS * TerrainGenerator.HEIGHT_CHUNKS;
+
+			long t = System.nanoTime();
+			for (int x = 0; x < COLUMNS; x ++) {
+				for (int z = 0; z < COLUMNS; z ++) {
+					for (int y = 0; y < TerrainGenerator.HEIGHT_CHUNKS; y ++)
+						carver.fillFull(offset + x, y, z, density);
+				}
+			}
+			float full = report("every cube", t, chunks);
+
+			t = System.nanoTime();
+			for (int x = 0; x < COLUMNS; x ++) {
+				for (int z = 0; z < COLUMNS; z ++) {
+					carver.fillLattice(lattice, offset + x, z);
+					for (int y = 0; y < TerrainGenerator.HEIGHT_CHUNKS; y ++)
+						carver.fillInterpolated(lattice, y, density);
+				}
+			}
+			float interpolated = report("lattice", t, chunks);
+			System.out.println("  speedup " + (full / interpolated) + ", " + (carver.getLatticeSamples() / (float)chunks) + " samples per chunk, "
+					+ carver.getSharedSides() + " shared sides");
+		}
+	}
+
+	/**
+	 * The interpolated density is exact on the lattice, and shared sides match sampled ones
+	 */
+	private static void checkLattice() {
+		CaveCarver carver = new CaveCarver(SEED);
+		CaveCarver.Lattice lattice = new CaveCarver.Lattice();
+		float density[] = new float[CubeStorage.VOLUME];
+
+		// the neighbour first, so the west side of column 0 comes from the cache
+		carver.fillLattice(lattice, -1, 0);
+		carver.fillLattice(lattice, 0, 0);
+		check(carver.getSharedSides() == 1, "the side between two columns is shared");
+
+		for (int chunkY = 0; chunkY < TerrainGenerator.HEIGHT_CHUNKS; chunkY ++) {
+			carver.fillInterpolated(lattice, chunkY, density);
+			for (int y = 0; y < CubeStorage.SIZE; y += CaveCarver.LATTICE_STEP) {
+				for (int z = 0; z < CubeStorage.SIZE; z += CaveCarver.LATTICE_STEP) {
+					for (int x = 0; x < CubeStorage.SIZE; x += CaveCarver.LATTICE_STEP) {
+						float sampled = carver.getDensity(x, chunkY * CubeStorage.SIZE + y, z);
+						check(density[CubeStorage.getIndex(x, y, z)] == sampled, "the lattice points are the sampled density");
+					}
+				}
+			}
+		}
+	}
+
+	private static void checkError() {
+		CaveCarver carver = new CaveCarver(SEED);
+		CaveCarver.Lattice lattice = new CaveCarver.Lattice();
+		float full[] = new float[CubeStorage.VOLUME];
+		float interpolated[] = new float[CubeStorage.VOLUME];
+
+		float maxError = 0.0f;
+		double totalError = 0.0;
+		long cubes = 0;
+		long misclassified = 0;
+		long carved = 0;
+		for (int x = 0; x < COLUMNS; x ++) {
+			for (int z = 0; z < COLUMNS; z ++) {
+				carver.fillLattice(lattice, x, z);
+				for (int y = 0; y < TerrainGenerator.HEIGHT_CHUNKS; y ++) {
+					carver.fillFull(x, y, z, full);
+					carver.fillInterpolated(lattice, y, interpolated);
+					for (int i = 0; i < CubeStorage.VOLUME; i ++) {
+						float error = Math.abs(full[i] - interpolated[i]);
+						maxError = Math.max(maxError, error);
+						totalError += error;
+						if ((full[i] > CaveCarver.THRESHOLD) != (interpolated[i] > CaveCarver.THRESHOLD))
+							misclassified ++;
+						if (full[i] > CaveCarver.THRESHOLD)
+							carved ++;
+						cubes ++;
+					}
+				}
+			}
+		}
+
+		float share = misclassified / (float)cubes;
+		System.out.println("Error over " + cubes + " cubes: max " + maxError + ", mean " + (totalError / cubes) + ", " + (share * 100.0f)
+				+ "% on the other side of the threshold, " + (carved * 100.0f / cubes) + "% carved");
+		check(maxError < MAX_ERROR, "the interpolation error is bounded");
+		check(share < MAX_MISCLASSIFIED, "few cubes are carved differently");
+	}
+
+	/**
+	 * Prints the time of a run
+	 * @return microseconds per chunk
+	 */
+	private static float report(String name, long start, int chunks) {
+		float perChunk = (System.nanoTime() - start) / 1000.0f / chunks;
+		System.out.println(name + ": " + perChunk + "us per chunk");
+		return perChunk;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
@@ -0,0 +1,159 @@
+//-----------------------------------------------------------------------------
+// ChunkCodecBenchmark.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import cubegame.Chunk;
+import cubegame.ChunkCodec;
+import cubegame.Cube;
+import cubegame.CubeStorage;
+import cubegame.TerrainGenerator;
+
+/**
+ * Measures the ChunkCodec on generated terrain: bytes per chunk for both formats
+ * and how fast they encode and decode, in MB of raw cubes (a short per cube) per
+ * second.  Checks that every chunk decodes to the same cubes, and that broken data
+ * is rejected.  Runs without a GL context, throws if a check fails.
+ */
+public class ChunkCodecBenchmark {
+	private static final int COLUMNS = 16; // 16 * 16 chunk columns
+	private static final int ROUNDS = 5;
+	private static final int RAW_SIZE = CubeStorage.VOLUME * 2;
+
+	public static void main(String[] args) {
+		ArrayList<Chunk> chunks = new TerrainGenerator(1337).generateArea(0, 0, COLUMNS - 1, COLUMNS - 1);
+
+		// a few chunks with scattered edits, like a player building
+		Random random = new Random(1);
+		for (int i = 0; i < chunks.size(); i += 16) {
+			CubeStorage cubes = chunks.get(i).getCubes();
+			for (int j = 0; j < 64; j ++)
+				cubes.set(random.nextInt(CubeStorage.VOLUME), (short)random.nextInt(Cube.WATER + 1));
+		}
+
+		int uniform = 0;
+		for (Chunk chunk : chunks) {
+			if (chunk.getCubes().isUniform())
+				uniform ++;
+		}
+		System.out.println(chunks.size() + " chunks, " + uniform + " uniform, raw " + RAW_SIZE + " bytes per chunk");
+
+		ByteBuffer buffer = ByteBuffer.allocate(chunks.size() * ChunkCodec.MAX_ENCODED_SIZE);
+		CubeStorage decoded = new CubeStorage(Cube.AIR);
+		byte formats[] = { ChunkCodec.FORMAT_RLE, ChunkCodec.FORMAT_LZ };
+		String names[] = { "RLE", "RLE + LZ" };
+
+		for (int f = 0; f < formats.length; f ++) {
+			// sizes, and every chunk round trips
+			buffer.clear();
+			int mixedBytes = 0;
+			for (Chunk chunk : chunks) {
+				int start = buffer.position();
+				ChunkCodec.encode(chunk.getCubes(), buffer, formats[f]);
+				if (!chunk.getCubes().isUniform())
+					mixedBytes += buffer.position() - start;
+
+				ByteBuffer in = buffer.duplicate();
+				in.limit(buffer.position()).position(start);
+				ChunkCodec.decode(in, decoded);
+				check(!in.hasRemaining(), "decoding reads the whole chunk");
+				for (int i = 0; i < CubeStorage.VOLUME; i ++)
+					check(decoded.get(i) == chunk.getCubes().get(i), "chunks decode to the same cubes");
+			}
+			int total = buffer.position();
+			System.out.println(names[f] + ": " + (total / (float)chunks.size()) + " bytes per chunk, "
+					+ (mixedBytes / (float)(chunks.size() - uniform)) + " bytes per chunk that isn't uniform");
+
+			for (int round = 0; round < ROUNDS; round ++) {
+				long t = System.nanoTime();
+				buffer.clear();
+				for (Chunk chunk : chunks)
+					ChunkCodec.encode(chunk.getCubes(), buffer, formats[f]);
+				float encode = getMegabytesPerSecond(t, chunks.size());
+
+				buffer.flip();
+				t = System.nanoTime();
+				for (int i = 0; i < chunks.size(); i ++)
+					ChunkCodec.decode(buffer, decoded);
+				float decode = getMegabytesPerSecond(t, chunks.size());
+				System.out.println("  encode " + encode + "MB/s, decode " + decode + "MB/s");
+			}
+		}
+
+		checkBroken(chunks.get(chunks.size() / 2).getCubes());
+		System.out.println("All ChunkCodec checks passed");
+	}
+
+	/**
+	 * Cut off and corrupted chunks throw instead of decoding garbage
+	 */
+	private static void checkBroken(CubeStorage cubes) {
+		ByteBuffer buffer = ByteBuffer.allocate(ChunkCodec.MAX_ENCODED_SIZE);
+		ChunkCodec.encode(cubes, buffer);
+		buffer.flip();
+		CubeStorage decoded = new CubeStorage(Cube.AIR);
+
+		ByteBuffer cut = buffer.duplicate();
+		cut.limit(cut.limit() / 2);
+		check(throwsIllegalArgument(cut, decoded), "cut off chunks are rejected");
+
+		ByteBuffer format = ByteBuffer.allocate(buffer.remaining());
+		format.put(buffer.duplicate()).flip();
+		format.put(0, (byte)99);
+		check(throwsIllegalArgument(format, decoded), "unknown formats are rejected");
+	}
+
+	private static boolean throwsIllegalArgument(ByteBuffer in, CubeStorage cubes) {
+		try {
+			ChunkCodec.decode(in, cubes);
+			return false;
+		} catch (IllegalArgumentException e) {
+			return true;
+		}
+	}
+
+	private static float getMegabytesPerSecond(long start, int chunks) {
+		float seconds = (System.nanoTime() - start) / 1000000000.0f;
+		return (float)chunks * RAW_SIZE / (1024.0f * 1024.0f) / seconds;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
@@ -0,0 +1,136 @@
+//-----------------------------------------------------------------------------
+// ChunkMapBenchmark.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import math.Vector3;
+import cubegame.Chunk;
+import cubegame.ChunkMap;
+import cubegame.Cube;
+import cubegame.World;
+
+/**
+ * Microbenchmark for random access chunk lookups with 100k loaded chunks.
+ * Compares the ChunkMap against a boxed HashMap<Long, Chunk>, and measures
+ * World.getCube on top of it.  Every chunk is filled with one of the materials,
+ * and the sum of the cubes World.getCube reads is checked against the materials
+ * the chunks were filled with.  Runs without a GL context, throws if a check fails.
+ */
+public class ChunkMapBenchmark {
+	private static final int SIDE = 47; // 47^3 = 103823 chunks
+	private static final int LOOKUPS = 10000000;
+	private static final int ROUNDS = 5;
+	
+	public static void main(String[] args) {
+		ChunkMap chunkMap = new ChunkMap();
+		HashMap<Long, Chunk> hashMap = new HashMap<Long, Chunk>();
+		
+		// the world is never updated, so adding the chunks doesn't build any meshes
+		for (int x = 0; x < SIDE; x ++) {
+			for (int y = 0; y < SIDE; y ++) {
+				for (int z = 0; z < SIDE; z ++) {
+					Chunk chunk = new Chunk(new Vector3(x * Chunk.CHUNK_SIZE, y * Chunk.CHUNK_SIZE, z * Chunk.CHUNK_SIZE), getMaterial(x, y, z));
+					long key = World.getChunkKey(x, y, z);
+					chunkMap.put(key, chunk);
+					hashMap.put(key, chunk);
+					World.addChunk(chunk);
+				}
+			}
+		}
+		System.out.println("Loaded " + chunkMap.size() + " chunks");
+		
+		// random chunk coordinates, a quarter of them outside of the loaded area
+		Random random = new Random(1);
+		int coords[] = new int[LOOKUPS * 3];
+		for (int i = 0; i < coords.length; i ++)
+			coords[i] = random.nextInt(SIDE + SIDE / 3) - SIDE / 6;
+		
+		// the sum World.getCube has to come up with, each cube counted as its material + 1 so air is 0
+		long expected = 0;
+		for (int i = 0; i < coords.length; i += 3) {
+			if (isLoaded(coords[i]) && isLoaded(coords[i + 1]) && isLoaded(coords[i + 2]))
+				expected += getMaterial(coords[i], coords[i + 1], coords[i + 2]) + 1;
+		}
+		
+		for (int round = 0; round < ROUNDS; round ++) {
+			long t = System.nanoTime();
+			int found = 0;
+			for (int i = 0; i < coords.length; i += 3) {
+				if (chunkMap.get(World.getChunkKey(coords[i], coords[i + 1], coords[i + 2])) != null)
+					found ++;
+			}
+			report("ChunkMap", t, found);
+			
+			t = System.nanoTime();
+			found = 0;
+			for (int i = 0; i < coords.length; i += 3) {
+				if (hashMap.get(World.getChunkKey(coords[i], coords[i + 1], coords[i + 2])) != null)
+					found ++;
+			}
+			report("HashMap<Long, Chunk>", t, found);
+			
+			t = System.nanoTime();
+			long sum = 0;
+			for (int i = 0; i < coords.length; i += 3) {
+				// world cube coordinates, somewhere inside of the chunk
+				int x = (coords[i] << Chunk.CHUNK_SHIFT) | (i & Chunk.CHUNK_MASK);
+				int y = (coords[i + 1] << Chunk.CHUNK_SHIFT) | 7;
+				int z = (coords[i + 2] << Chunk.CHUNK_SHIFT) | 3;
+				sum += World.getCube(x, y, z) + 1;
+			}
+			report("World.getCube", t, sum);
+			if (sum != expected)
+				throw new RuntimeException("Check failed: World.getCube read " + sum + " instead of " + expected);
+		}
+	}
+	
+	/**
+	 * Gets the material a chunk is filled with, a mix of air, dirt, grass, cobble and water
+	 */
+	private static short getMaterial(int x, int y, int z) {
+		return (short)((x * 7 + y * 3 + z) % (Cube.WATER + 2) - 1);
+	}
+	
+	private static boolean isLoaded(int coord) {
+		return coord >= 0 && coord < SIDE;
+	}
+	
+	private static void report(String name, long start, long found) {
+		long elapsed = System.nanoTime() - start;
+		System.out.println(name + ": " + (elapsed / (float)LOOKUPS) + "ns per lookup (" + found + ")");
+	}
+}
@@ -0,0 +1,193 @@
+//-----------------------------------------------------------------------------
+// ChunkSaverTest.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import math.Vector3;
+
+import cubegame.Chunk;
+import cubegame.ChunkSaver;
+import cubegame.Cube;
+import cubegame.CubeStorage;
+import cubegame.RegionFile;
+
+/**
+ * Edits chunks like the game does, frame by frame, and checks that the
+ * ChunkSaver coalesces repeated edits, writes them in batches, loads back the
+ * newest version of a chunk at any point, and flushes or reports its queue on
+ * shutdown.  A writer that shutdown gave up on has to finish before the saver
+ * starts again.  Runs without a GL context, throws if a check fails.
+ */
+public class ChunkSaverTest {
+	private static final int CHUNKS = 24;
+	private static final int FRAMES = 20;
+	private static final int EDITS_PER_FRAME = 50;
+
+	public static void main(String[] args) throws IOException {
+		File directory = File.createTempFile("saves", "");
+		directory.delete();
+
+		// the chunks straddle two regions along x
+		Chunk chunks[] = new Chunk[CHUNKS];
+		for (int i = 0; i < CHUNKS; i ++) {
+			int x = RegionFile.REGION_SIZE - CHUNKS / 2 + i;
+			chunks[i] = new Chunk(new Vector3(x * Chunk.CHUNK_SIZE, 0, 0), Cube.DIRT);
+		}
+
+		ChunkSaver.init(directory);
+		Random random = new Random(1);
+		long updateTime = 0;
+		for (int frame = 0; frame < FRAMES; frame ++) {
+			for (int i = 0; i < EDITS_PER_FRAME; i ++)
+				edit(chunks[random.nextInt(CHUNKS)], random);
+			long t = System.nanoTime();
+			ChunkSaver.update();
+			updateTime += System.nanoTime() - t;
+
+			// the queue always holds the newest snapshot
+			Chunk chunk = chunks[random.nextInt(CHUNKS)];
+			checkLoads(chunk, "queued chunks load back their latest edits");
+		}
+		System.out.println("Queued " + ChunkSaver.getQueuedSnapshots() + " snapshots, " + ChunkSaver.getCoalescedSnapshots() + " coalesced, "
+				+ (updateTime / 1000000.0f / FRAMES) + "ms per update");
+		check(ChunkSaver.getCoalescedSnapshots() > 0, "chunks edited again before they are written coalesce");
+		check(ChunkSaver.getQueueDepth() <= CHUNKS, "the queue holds at most one snapshot per chunk");
+
+		waitForQueue();
+		System.out.println("Saved " + ChunkSaver.getSavedChunks() + " chunks in " + ChunkSaver.getBatches() + " batches with "
+				+ ChunkSaver.getFlushes() + " flushes");
+		check(ChunkSaver.getSavedChunks() < ChunkSaver.getQueuedSnapshots(), "fewer chunks are written than snapshots taken");
+		check(ChunkSaver.getFlushes() <= ChunkSaver.getBatches() * 2, "every batch flushes each region once");
+		for (Chunk chunk : chunks)
+			checkLoads(chunk, "written chunks load back from their region");
+
+		// a freshly generated chunk is replaced by the saved one
+		Chunk regenerated = new Chunk(new Vector3(chunks[0].getChunkX() * Chunk.CHUNK_SIZE, 0, 0), Cube.DIRT);
+		check(ChunkSaver.restore(regenerated), "saved chunks are restored");
+		checkSame(regenerated.getCubes(), chunks[0].getCubes(), "restored chunks have the saved cubes");
+		Chunk unsaved = new Chunk(new Vector3(0, Chunk.CHUNK_SIZE, 0), Cube.DIRT);
+		check(!ChunkSaver.restore(unsaved), "chunks that were never saved aren't restored");
+
+		// a clean shutdown writes the last edits of the frame
+		for (Chunk chunk : chunks)
+			edit(chunk, random);
+		int pending = ChunkSaver.shutdown(5000);
+		check(pending == 0, "a clean shutdown writes everything");
+		check(!ChunkSaver.isRunning(), "the saver stops");
+		for (Chunk chunk : chunks) {
+			RegionFile region = new RegionFile(new File(directory, RegionFile.getFileName(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ())));
+			Chunk loaded = region.readChunk(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ());
+			region.close();
+			check(loaded != null, "every edited chunk is on the disk after shutdown");
+			checkSame(loaded.getCubes(), chunk.getCubes(), "the disk has the last edits");
+		}
+
+		// edits while the saver is stopped aren't tracked
+		edit(chunks[0], random);
+		check(!chunks[0].isUnsaved(), "edits aren't tracked while the saver is stopped");
+
+		// giving up on the queue reports what is left
+		ChunkSaver.init(directory);
+		for (Chunk chunk : chunks)
+			edit(chunk, random);
+		pending = ChunkSaver.shutdown(0);
+		System.out.println("Shutdown without waiting left " + pending + " chunks");
+		check(pending == CHUNKS, "a shutdown that can't wait reports every chunk that is still queued");
+
+		// the writer that was given up on has to finish before the saver starts again
+		if (ChunkSaver.isWriting()) {
+			boolean refused = false;
+			try {
+				ChunkSaver.init(directory);
+			} catch (IllegalStateException e) {
+				refused = true;
+			}
+			check(refused && !ChunkSaver.isRunning(), "the saver doesn't start a second writer next to the old one");
+			System.out.println("Restarting while the old writer was busy was refused");
+		}
+		long start = System.currentTimeMillis();
+		while (ChunkSaver.isWriting()) {
+			check(System.currentTimeMillis() - start < 10000, "the old writer finishes within 10 seconds");
+			sleep(10);
+		}
+		ChunkSaver.init(directory);
+		check(ChunkSaver.isRunning(), "the saver starts again once the old writer is done");
+		for (Chunk chunk : chunks)
+			checkLoads(chunk, "the writer that was given up on still writes its queue");
+		check(ChunkSaver.shutdown(5000) == 0 && !ChunkSaver.isWriting(), "the restarted saver stops cleanly");
+
+		System.out.println("All ChunkSaver checks passed");
+	}
+
+	private static void edit(Chunk chunk, Random random) {
+		chunk.setCube(random.nextInt(Chunk.CHUNK_SIZE), random.nextInt(Chunk.CHUNK_SIZE), random.nextInt(Chunk.CHUNK_SIZE),
+				(short)(random.nextInt(Cube.WATER + 2) - 1));
+	}
+
+	private static void waitForQueue() {
+		long start = System.currentTimeMillis();
+		while (ChunkSaver.getQueueDepth() > 0) {
+			check(System.currentTimeMillis() - start < 10000, "the queue is written within 10 seconds");
+			sleep(10);
+		}
+	}
+
+	private static void sleep(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void checkLoads(Chunk chunk, String message) {
+		CubeStorage loaded = new CubeStorage(Cube.AIR);
+		check(ChunkSaver.loadChunk(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ(), loaded), message);
+		checkSame(loaded, chunk.getCubes(), message);
+	}
+
+	private static void checkSame(CubeStorage a, CubeStorage b, String message) {
+		for (int i = 0; i < CubeStorage.VOLUME; i ++)
+			check(a.get(i) == b.get(i), message);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
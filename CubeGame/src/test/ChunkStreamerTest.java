@@ -0,0 +1,170 @@
+//-----------------------------------------------------------------------------
+// ChunkStreamerTest.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import org.lwjgl.util.vector.Vector3f;
+
+import cubegame.Chunk;
+import cubegame.ChunkStreamer;
+import cubegame.TerrainGenerator;
+import cubegame.World;
+import graphics.MegaBuffer;
+
+/**
+ * Flies the camera along a scripted path and checks that the ChunkStreamer keeps
+ * the area around it loaded, never holds on to much more than the unload
+ * radius, sticks to its per frame limits and doesn't reload columns when the
+ * camera goes back and forth over a column edge.  Runs without a GL context,
+ * throws if a check fails.
+ */
+public class ChunkStreamerTest {
+	private static final int LOAD_RADIUS = 4;
+	private static final int UNLOAD_RADIUS = 6;
+	private static final int MAX_LOADS = 2;
+	private static final int MAX_UNLOADS = 4;
+
+	private static int peakChunks = 0;
+	private static int frames = 0;
+
+	public static void main(String[] args) {
+		ChunkStreamer.init(new TerrainGenerator(1337), LOAD_RADIUS, UNLOAD_RADIUS);
+		ChunkStreamer.setFrameLimits(MAX_LOADS, MAX_UNLOADS, 8);
+		Vector3f eye = new Vector3f(8.0f, 40.0f, 8.0f);
+
+		settle(eye);
+		checkLoaded(eye);
+		System.out.println("Start: " + World.getChunkCount() + " chunks after " + frames + " frames");
+
+		// fly along x, then diagonally back, a bit more than a cube per frame
+		for (int i = 0; i < 800; i ++) {
+			eye.x += 1.2f;
+			frame(eye);
+		}
+		for (int i = 0; i < 600; i ++) {
+			eye.x -= 1.0f;
+			eye.z -= 1.0f;
+			frame(eye);
+		}
+		settle(eye);
+		checkLoaded(eye);
+		System.out.println("Flight: " + ChunkStreamer.getTotalLoads() + " loads, " + ChunkStreamer.getTotalUnloads() + " unloads, "
+				+ World.getChunkCount() + " chunks, peak " + peakChunks + " after " + frames + " frames");
+
+		int limit = (countColumns(UNLOAD_RADIUS) + MAX_UNLOADS) * TerrainGenerator.HEIGHT_CHUNKS;
+		check(peakChunks <= limit, "the peak chunk count stays around the unload radius (" + peakChunks + " > " + limit + ")");
+		check(ChunkStreamer.getLoadedColumns() <= countColumns(UNLOAD_RADIUS), "settled columns are within the unload radius");
+		check(World.getChunkCount() == ChunkStreamer.getLoadedColumns() * TerrainGenerator.HEIGHT_CHUNKS, "only streamed chunks are in the world");
+
+		// wobble over a column edge, only the first crossing loads anything
+		float edge = (float)Math.floor(eye.x / Chunk.CHUNK_SIZE) * Chunk.CHUNK_SIZE;
+		eye.x = edge - 1.0f;
+		settle(eye);
+		eye.x = edge + 1.0f;
+		settle(eye);
+		long loads = ChunkStreamer.getTotalLoads();
+		long unloads = ChunkStreamer.getTotalUnloads();
+		for (int i = 0; i < 20; i ++) {
+			eye.x = edge + ((i & 1) == 0 ? -1.0f : 1.0f);
+			settle(eye);
+		}
+		check(ChunkStreamer.getTotalLoads() == loads && ChunkStreamer.getTotalUnloads() == unloads, "going back and forth over an edge doesn't reload columns");
+
+		System.out.println("MegaBuffer: " + MegaBuffer.getPageCount() + " pages, " + (MegaBuffer.getUsed() >> 10) + "KB used, "
+				+ MegaBuffer.getDeletedPages() + " pages deleted");
+		ChunkStreamer.shutdown();
+		System.out.println("All ChunkStreamer checks passed");
+	}
+
+	/**
+	 * Runs a single frame, like Graphics.render does
+	 */
+	private static void frame(Vector3f eye) {
+		ChunkStreamer.update(eye);
+		World.update();
+		frames ++;
+
+		check(ChunkStreamer.getLoadsLastFrame() <= MAX_LOADS, "loads per frame are capped");
+		check(ChunkStreamer.getUnloadsLastFrame() <= MAX_UNLOADS, "unloads per frame are capped");
+		peakChunks = Math.max(peakChunks, World.getChunkCount());
+	}
+
+	/**
+	 * Runs frames until the streamer has nothing left to do
+	 */
+	private static void settle(Vector3f eye) {
+		do {
+			frame(eye);
+			if (ChunkStreamer.getPendingColumns() > 0) {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		} while (!ChunkStreamer.isSettled());
+	}
+
+	/**
+	 * Checks that every column within the load radius is in the world
+	 */
+	private static void checkLoaded(Vector3f eye) {
+		int centerX = (int)Math.floor(eye.x) >> Chunk.CHUNK_SHIFT;
+		int centerZ = (int)Math.floor(eye.z) >> Chunk.CHUNK_SHIFT;
+		for (int x = -LOAD_RADIUS; x <= LOAD_RADIUS; x ++) {
+			for (int z = -LOAD_RADIUS; z <= LOAD_RADIUS; z ++) {
+				if (x * x + z * z > LOAD_RADIUS * LOAD_RADIUS)
+					continue;
+				for (int y = 0; y < TerrainGenerator.HEIGHT_CHUNKS; y ++)
+					check(World.getChunk(centerX + x, y, centerZ + z) != null, "every chunk within the load radius is loaded");
+			}
+		}
+	}
+
+	private static int countColumns(int radius) {
+		int count = 0;
+		for (int x = -radius; x <= radius; x ++) {
+			for (int z = -radius; z <= radius; z ++) {
+				if (x * x + z * z <= radius * radius)
+					count ++;
+			}
+		}
+		return count;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
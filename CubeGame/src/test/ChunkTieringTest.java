@@ -0,0 +1,235 @@
+//-----------------------------------------------------------------------------
+// ChunkTieringTest.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.util.ArrayList;
+
+import org.lwjgl.util.vector.Vector3f;
+
+import cubegame.Chunk;
+import cubegame.ChunkSnapshot;
+import cubegame.ChunkStreamer;
+import cubegame.ChunkTiering;
+import cubegame.Cube;
+import cubegame.CubeStorage;
+import cubegame.TerrainGenerator;
+import cubegame.World;
+
+/**
+ * Streams in terrain around the origin, then checks that the ChunkTiering
+ * compresses the far chunks, that cold chunks read back the same cubes and
+ * become hot again when they are accessed but not when they or their neighbours
+ * are meshed, and that the heap budget is kept by compressing the furthest chunks
+ * first.  Runs without a GL context, throws if a check fails.
+ */
+public class ChunkTieringTest {
+	private static final int LOAD_RADIUS = 6;
+	private static final int COLD_DISTANCE = 3;
+
+	public static void main(String[] args) throws InterruptedException {
+		ChunkStreamer.init(new TerrainGenerator(1337), LOAD_RADIUS, LOAD_RADIUS + 2);
+		Vector3f eye = new Vector3f(8.0f, 40.0f, 8.0f);
+		do {
+			ChunkStreamer.update(eye);
+			World.update();
+			Thread.sleep(1);
+		} while (!ChunkStreamer.isSettled());
+		ChunkStreamer.shutdown();
+
+		ArrayList<Chunk> chunks = getChunks();
+		ArrayList<CubeStorage> copies = new ArrayList<CubeStorage>();
+		for (Chunk chunk : chunks) {
+			CubeStorage copy = new CubeStorage(Cube.AIR);
+			copy.copyFrom(chunk.getCubes());
+			copies.add(copy);
+		}
+		long hotMemory = World.getCubeMemoryUsage();
+		System.out.println(chunks.size() + " chunks, " + (hotMemory >> 10) + "KB of cubes");
+
+		// nothing has been idle long enough yet
+		ChunkTiering.setPolicy(COLD_DISTANCE, 1000.0f, 0);
+		ChunkTiering.sweep(eye);
+		check(ChunkTiering.getColdChunks() == 0, "chunks that were just accessed stay hot");
+		check(ChunkTiering.getHotChunks() == chunks.size(), "every chunk is counted");
+
+		// far chunks go cold once they have been left alone for a moment
+		Thread.sleep(2100);
+		long t = System.nanoTime();
+		long freezes = ChunkTiering.getFreezes();
+		sweepUntilDone(eye);
+		float freezeTime = (System.nanoTime() - t) / 1000.0f / Math.max(ChunkTiering.getFreezes() - freezes, 1);
+		System.out.println("Distance: " + ChunkTiering.getHotChunks() + " hot, " + ChunkTiering.getColdChunks() + " cold, "
+				+ (ChunkTiering.getCubeMemory() >> 10) + "KB of cubes, " + (ChunkTiering.getSavedMemory() >> 10) + "KB saved, " + freezeTime + "us per chunk");
+		check(ChunkTiering.getColdChunks() > 0, "far chunks go cold");
+		check(ChunkTiering.getCubeMemory() == World.getCubeMemoryUsage(), "the memory stats match the world");
+		check(ChunkTiering.getCubeMemory() + ChunkTiering.getSavedMemory() == hotMemory, "the saved memory is what compressing saved");
+		check(ChunkTiering.getMeshMemory() == 0 && ChunkTiering.getDroppedMeshMemory() == 0, "only legacy GL keeps meshes in memory");
+		float limit = (COLD_DISTANCE * Chunk.CHUNK_SIZE) * (COLD_DISTANCE * Chunk.CHUNK_SIZE);
+		for (Chunk chunk : chunks) {
+			if (chunk.isCold())
+				check(getDistance(chunk, eye) > limit, "only far chunks go cold");
+			else
+				check(chunk.getCubes().isUniform() || getDistance(chunk, eye) <= limit, "every far chunk with more than one material goes cold");
+		}
+
+		// accessing a cold chunk decompresses it
+		t = System.nanoTime();
+		long thaws = ChunkTiering.getThaws();
+		int cold = 0;
+		for (int i = 0; i < chunks.size(); i ++) {
+			Chunk chunk = chunks.get(i);
+			if (!chunk.isCold())
+				continue;
+			cold ++;
+			short material = World.getCube((chunk.getChunkX() << Chunk.CHUNK_SHIFT) + 3, (chunk.getChunkY() << Chunk.CHUNK_SHIFT) + 5, chunk.getChunkZ() << Chunk.CHUNK_SHIFT);
+			check(material == copies.get(i).get(3, 5, 0), "cold chunks read back the same cubes");
+			check(!chunk.isCold(), "accessing a cold chunk makes it hot");
+			for (int j = 0; j < CubeStorage.VOLUME; j ++)
+				check(chunk.getCubes().get(j) == copies.get(i).get(j), "decompressed chunks have the same cubes");
+		}
+		System.out.println("Decompressed " + cold + " chunks in " + ((System.nanoTime() - t) / 1000.0f / Math.max(cold, 1)) + "us per chunk (including the checks)");
+		check(ChunkTiering.getThaws() - thaws == cold, "every cold chunk was decompressed once");
+
+		// a budget of half the cubes is kept by making the furthest chunks cold, however recently they were used
+		long budget = hotMemory / 2;
+		ChunkTiering.setPolicy(1000, 1000.0f, budget);
+		sweepUntilDone(eye);
+		System.out.println("Budget " + (budget >> 10) + "KB: " + ChunkTiering.getHotChunks() + " hot, " + ChunkTiering.getColdChunks() + " cold, "
+				+ (ChunkTiering.getCubeMemory() >> 10) + "KB of cubes");
+		check(!ChunkTiering.isOverBudget() && World.getCubeMemoryUsage() <= budget, "the cubes fit into the budget");
+		float nearestCold = Float.MAX_VALUE;
+		float furthestHot = 0.0f;
+		for (Chunk chunk : chunks) {
+			if (chunk.isCold())
+				nearestCold = Math.min(nearestCold, getDistance(chunk, eye));
+			else if (!chunk.getCubes().isUniform())
+				furthestHot = Math.max(furthestHot, getDistance(chunk, eye));
+		}
+		check(nearestCold >= furthestHot, "the furthest chunks go cold first");
+
+		// meshing next to a cold chunk, or the cold chunk itself, leaves it cold
+		thaws = ChunkTiering.getThaws();
+		long peeks = ChunkTiering.getPeeks();
+		int remeshed = 0;
+		ChunkSnapshot snapshot = new ChunkSnapshot();
+		for (Chunk chunk : chunks) {
+			if (!chunk.isCold())
+				continue;
+			for (int side = 0; side < 6; side ++) {
+				int offset[] = Cube.offsets[side];
+				Chunk neighbour = World.getChunk(chunk.getChunkX() + offset[0], chunk.getChunkY() + offset[1], chunk.getChunkZ() + offset[2]);
+				if (neighbour == null || neighbour.isCold())
+					continue;
+				neighbour.rebuild();
+				remeshed ++;
+
+				// the layer of the cold chunk that touches the neighbour is captured as it is
+				snapshot.capture(neighbour);
+				CubeStorage copy = copies.get(chunks.indexOf(chunk));
+				for (int i = 0; i < Chunk.CHUNK_SIZE; i ++) {
+					for (int j = 0; j < Chunk.CHUNK_SIZE; j ++) {
+						// the cold chunk is on the opposite side of the neighbour
+						int x = (offset[0] != 0) ? ((offset[0] > 0) ? -1 : Chunk.CHUNK_SIZE) : i;
+						int y = (offset[1] != 0) ? ((offset[1] > 0) ? -1 : Chunk.CHUNK_SIZE) : ((offset[0] != 0) ? i : j);
+						int z = (offset[2] != 0) ? ((offset[2] > 0) ? -1 : Chunk.CHUNK_SIZE) : j;
+						check(snapshot.getCube(x, y, z) == copy.get(x & Chunk.CHUNK_MASK, y & Chunk.CHUNK_MASK, z & Chunk.CHUNK_MASK), "the border of a cold chunk is captured");
+					}
+				}
+				snapshot.release();
+			}
+			chunk.rebuild();
+			check(chunk.isCold(), "remeshing a cold chunk and its neighbours leaves it cold");
+		}
+		System.out.println("Remeshed " + remeshed + " hot chunks next to cold ones, " + (ChunkTiering.getPeeks() - peeks) + " peeks");
+		check(remeshed > 0 && ChunkTiering.getThaws() == thaws, "remeshing next to cold chunks doesn't decompress them for good");
+		check(ChunkTiering.getPeeks() > peeks, "the cubes of cold chunks are peeked at instead");
+
+		// unloading cold chunks doesn't decompress them
+		thaws = ChunkTiering.getThaws();
+		int count = World.getChunkCount();
+		int removed = 0;
+		for (Chunk chunk : chunks) {
+			if (chunk.isCold()) {
+				World.removeChunk(chunk);
+				removed ++;
+			}
+		}
+		System.out.println("Unloaded " + removed + " cold chunks");
+		check(removed > 0 && ChunkTiering.getThaws() == thaws, "unloading cold chunks doesn't decompress them");
+		check(World.getChunkCount() == count - removed, "unloaded chunks leave the chunk list");
+		for (Chunk chunk : chunks)
+			check((World.getChunk(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ()) == chunk) != chunk.isCold(), "only the unloaded chunks are gone");
+
+		System.out.println("All ChunkTiering checks passed");
+	}
+
+	/**
+	 * Sweeps until a sweep doesn't make any more chunks cold
+	 */
+	private static void sweepUntilDone(Vector3f eye) {
+		long freezes;
+		do {
+			freezes = ChunkTiering.getFreezes();
+			ChunkTiering.sweep(eye);
+		} while (ChunkTiering.getFreezes() != freezes);
+	}
+
+	private static ArrayList<Chunk> getChunks() {
+		ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+		for (int x = -LOAD_RADIUS; x <= LOAD_RADIUS; x ++) {
+			for (int z = -LOAD_RADIUS; z <= LOAD_RADIUS; z ++) {
+				for (int y = 0; y < TerrainGenerator.HEIGHT_CHUNKS; y ++) {
+					Chunk chunk = World.getChunk(x, y, z);
+					if (chunk != null)
+						chunks.add(chunk);
+				}
+			}
+		}
+		check(chunks.size() == World.getChunkCount(), "every chunk is within the load radius");
+		return chunks;
+	}
+
+	private static float getDistance(Chunk chunk, Vector3f eye) {
+		float dx = (chunk.getChunkX() << Chunk.CHUNK_SHIFT) + Chunk.CHUNK_SIZE / 2 - eye.x;
+		float dy = (chunk.getChunkY() << Chunk.CHUNK_SHIFT) + Chunk.CHUNK_SIZE / 2 - eye.y;
+		float dz = (chunk.getChunkZ() << Chunk.CHUNK_SHIFT) + Chunk.CHUNK_SIZE / 2 - eye.z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
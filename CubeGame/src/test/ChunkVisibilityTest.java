@@ -0,0 +1,200 @@
+//-----------------------------------------------------------------------------
+// ChunkVisibilityTest.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.util.ArrayList;
+
+import org.lwjgl.util.vector.Matrix4f;
+import org.lwjgl.util.vector.Vector3f;
+
+import math.Frustum;
+import math.Vector3;
+
+import cubegame.Chunk;
+import cubegame.ChunkVisibility;
+import cubegame.Cube;
+import cubegame.CubeStorage;
+import cubegame.World;
+
+/**
+ * Checks which faces ChunkVisibility connects for solid chunks, sealed caves,
+ * tunnels and separate pockets, and that the walk in World.findVisibleChunks only
+ * reaches chunks that can be seen through the chunks in front of them.  Runs
+ * without a GL context, throws if a check fails.
+ */
+public class ChunkVisibilityTest {
+	private static final int SIZE = Chunk.CHUNK_SIZE;
+
+	public static void main(String[] args) {
+		testGraph();
+		testWalk();
+		System.out.println("All ChunkVisibility checks passed");
+	}
+
+	private static void testGraph() {
+		ChunkVisibility graph = new ChunkVisibility();
+		check(graph.compute(new CubeStorage(Cube.AIR)) == ChunkVisibility.ALL, "an air chunk connects every face");
+		check(graph.compute(new CubeStorage(Cube.WATER)) == ChunkVisibility.ALL, "water can be seen through");
+		check(graph.compute(new CubeStorage(Cube.COBBLE)) == ChunkVisibility.NONE, "a solid chunk connects nothing");
+		check(graph.compute(getCave()) == ChunkVisibility.NONE, "a sealed cave connects nothing");
+
+		long tunnel = graph.compute(getTunnel(Cube.FACE_LEFT, Cube.AIR));
+		check(tunnel == getConnected(Cube.FACE_LEFT, Cube.FACE_RIGHT), "a straight tunnel connects only its two ends");
+		check(ChunkVisibility.isConnected(tunnel, Cube.FACE_LEFT, Cube.FACE_RIGHT) && ChunkVisibility.isConnected(tunnel, Cube.FACE_RIGHT, Cube.FACE_LEFT), "the connection goes both ways");
+		check(graph.compute(getTunnel(Cube.FACE_BACK, Cube.WATER)) == getConnected(Cube.FACE_BACK, Cube.FACE_FRONT), "a flooded tunnel can be seen through");
+
+		// a tunnel that bends from the bottom to the front
+		CubeStorage bend = new CubeStorage(Cube.COBBLE);
+		for (int y = 0; y <= 8; y ++)
+			bend.set(8, y, 8, Cube.AIR);
+		for (int z = 8; z < SIZE; z ++)
+			bend.set(8, 8, z, Cube.AIR);
+		check(graph.compute(bend) == getConnected(Cube.FACE_BOTTOM, Cube.FACE_FRONT), "a bent tunnel connects the faces it ends on");
+
+		// two tunnels that pass each other without meeting
+		CubeStorage apart = getTunnel(Cube.FACE_LEFT, Cube.AIR);
+		for (int y = 0; y < SIZE; y ++)
+			apart.set(2, y, 2, Cube.AIR);
+		long separate = graph.compute(apart);
+		check(separate == (getConnected(Cube.FACE_LEFT, Cube.FACE_RIGHT) | getConnected(Cube.FACE_BOTTOM, Cube.FACE_TOP)), "separate tunnels only connect their own ends");
+		check(!ChunkVisibility.isConnected(separate, Cube.FACE_LEFT, Cube.FACE_TOP), "faces of different tunnels don't see each other");
+	}
+
+	private static void testWalk() {
+		// a camera in the middle of chunk 0, 0, 0 looking down -z at a row of chunks
+		Matrix4f view = new Matrix4f();
+		Matrix4f.translate(new Vector3f(-8.0f, -8.0f, -8.0f), view, view);
+		Frustum frustum = new Frustum();
+		frustum.update(getProjection(), view);
+		Vector3f eye = new Vector3f(8.0f, 8.0f, 8.0f);
+
+		// the chunk in front of the camera decides if the one behind it is reached
+		check(walk(frustum, eye, new CubeStorage(Cube.COBBLE)) == 2, "a solid chunk hides the chunks behind it");
+		check(walk(frustum, eye, getCave()) == 2, "a sealed cave hides the chunks behind it");
+		check(walk(frustum, eye, getTunnel(Cube.FACE_BACK, Cube.AIR)) == 4, "a tunnel towards the camera lets it see through");
+		check(walk(frustum, eye, getTunnel(Cube.FACE_LEFT, Cube.AIR)) == 2, "a tunnel across the view doesn't");
+
+		// without the walk only the frustum culls, which still drops the chunk behind the camera
+		World.setOcclusionCulling(false);
+		check(walk(frustum, eye, new CubeStorage(Cube.COBBLE)) == 4, "frustum culling alone draws the hidden chunks");
+		World.setOcclusionCulling(true);
+	}
+
+	/**
+	 * Loads chunks 0 to -3 along z plus one behind the camera, with the given cubes
+	 * in chunk -1 and air everywhere else, and walks them
+	 * @return how many of the chunks 0 to -3 are found visible
+	 */
+	private static int walk(Frustum frustum, Vector3f eye, CubeStorage middle) {
+		ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+		for (int z = 1; z >= -3; z --) {
+			Chunk chunk = new Chunk(new Vector3(0, 0, z * SIZE), Cube.AIR);
+			if (z == -1)
+				chunk.getCubes().copyFrom(middle);
+			World.addChunk(chunk);
+			chunks.add(chunk);
+		}
+		// builds the meshes, and with them the visibility of the chunks
+		World.update();
+
+		ArrayList<Chunk> visible = World.findVisibleChunks(frustum, eye);
+		check(World.getChunksDrawn() == visible.size(), "the drawn chunks are counted");
+		check(!visible.contains(chunks.get(0)), "the chunk behind the camera isn't visible");
+		check(visible.contains(chunks.get(1)) && visible.contains(chunks.get(2)), "the chunk of the camera and the one in front of it are visible");
+		check(visible.contains(chunks.get(3)) == visible.contains(chunks.get(4)), "the walk reaches both chunks behind the middle one or neither");
+		int count = 0;
+		for (int i = 1; i < chunks.size(); i ++) {
+			if (visible.contains(chunks.get(i)))
+				count ++;
+		}
+
+		for (Chunk chunk : chunks)
+			World.removeChunk(chunk);
+		return count;
+	}
+
+	/**
+	 * Gets a solid chunk with a 4x4x4 pocket of air in the middle, that doesn't touch any face
+	 */
+	private static CubeStorage getCave() {
+		CubeStorage cubes = new CubeStorage(Cube.COBBLE);
+		for (int x = 6; x < 10; x ++) {
+			for (int y = 6; y < 10; y ++) {
+				for (int z = 6; z < 10; z ++)
+					cubes.set(x, y, z, Cube.AIR);
+			}
+		}
+		return cubes;
+	}
+
+	/**
+	 * Gets a solid chunk with a straight tunnel through the middle, from a face to the opposite one
+	 */
+	private static CubeStorage getTunnel(int face, short material) {
+		CubeStorage cubes = new CubeStorage(Cube.COBBLE);
+		int offset[] = Cube.offsets[face];
+		for (int i = 0; i < SIZE; i ++)
+			cubes.set((offset[0] != 0) ? i : 8, (offset[1] != 0) ? i : 8, (offset[2] != 0) ? i : 8, material);
+		return cubes;
+	}
+
+	/**
+	 * Gets the visibility bits of a single pocket of cubes that touches two faces
+	 */
+	private static long getConnected(int a, int b) {
+		return (1L << (a * 6 + a)) | (1L << (a * 6 + b)) | (1L << (b * 6 + a)) | (1L << (b * 6 + b));
+	}
+
+	/**
+	 * Builds a perspective projection with a 90 degree field of view that reaches far past the chunks
+	 */
+	private static Matrix4f getProjection() {
+		float near = 0.1f;
+		float far = 1000.0f;
+		Matrix4f p = new Matrix4f();
+		p.setZero();
+		p.m00 = 1.0f;
+		p.m11 = 1.0f;
+		p.m22 = (far + near) / (near - far);
+		p.m23 = -1.0f;
+		p.m32 = (2.0f * far * near) / (near - far);
+		return p;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
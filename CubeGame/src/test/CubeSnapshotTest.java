@@ -0,0 +1,207 @@
+//-----------------------------------------------------------------------------
+// CubeSnapshotTest.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import math.Vector3;
+
+import cubegame.Chunk;
+import cubegame.ChunkBuilder;
+import cubegame.ChunkCodec;
+import cubegame.Cube;
+import cubegame.CubeStorage;
+import cubegame.TerrainGenerator;
+import cubegame.World;
+
+/**
+ * Checks the copy on write snapshots of CubeStorage: snapshots never see later
+ * changes (also while another thread reads them), can't be changed themselves,
+ * carry the version they were taken at, and the ChunkBuilder throws away a mesh
+ * whose snapshot is out of date.  Also compares taking a snapshot with copying
+ * the cubes.  Runs without a GL context, throws if a check fails.
+ */
+public class CubeSnapshotTest {
+	private static final int ROUNDS = 2000;
+
+	public static void main(String[] args) throws InterruptedException {
+		Random random = new Random(1);
+		Chunk terrain[] = new TerrainGenerator(1337).generateColumn(0, 0);
+		CubeStorage cubes = new CubeStorage(Cube.AIR);
+		for (Chunk chunk : terrain) {
+			if (!chunk.getCubes().isUniform())
+				cubes.copyFrom(chunk.getCubes());
+		}
+		check(!cubes.isUniform(), "the test starts with mixed cubes");
+
+		// snapshots keep what the cubes were, whatever happens to the storage afterwards
+		for (int round = 0; round < 200; round ++) {
+			short expected[] = read(cubes);
+			long version = cubes.getVersion();
+			CubeStorage snapshot = cubes.snapshot();
+			check(snapshot.isSnapshot() && snapshot.getVersion() == version, "snapshots carry the version they were taken at");
+			check(snapshot.snapshot() == snapshot, "a snapshot of a snapshot is itself");
+
+			switch (random.nextInt(5)) {
+			case 0:
+				cubes.fill((short)(random.nextInt(Cube.WATER + 2) - 1));
+				break;
+			case 1:
+				cubes.setRun(random.nextInt(CubeStorage.VOLUME / 2), random.nextInt(CubeStorage.VOLUME / 2) + 1, (short)(random.nextInt(Cube.WATER + 2) - 1));
+				break;
+			case 2:
+				cubes.copyRun(random.nextInt(1000), 1000 + random.nextInt(1000), random.nextInt(1000) + 1);
+				break;
+			default:
+				// new materials grow the palette and the bits per cube
+				for (int i = 0; i < 50; i ++)
+					cubes.set(random.nextInt(CubeStorage.VOLUME), (short)random.nextInt(20 + round));
+				break;
+			}
+			check(cubes.getVersion() > version || same(read(cubes), expected), "every change counts up the version");
+			check(same(read(snapshot), expected), "snapshots don't see later changes");
+		}
+		System.out.println("Snapshots stay the same through fills, runs, copies and palette growth");
+
+		try {
+			cubes.snapshot().set(0, Cube.DIRT);
+			check(false, "snapshots can't be changed");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		// a reader thread reads snapshots while this thread keeps editing
+		cubes.copyFrom(terrain[1].getCubes());
+		final CubeStorage shared[] = new CubeStorage[1];
+		final short expected[][] = new short[1][];
+		final String failure[] = new String[1];
+		final Object lock = new Object();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				for (int i = 0; i < ROUNDS; i ++) {
+					CubeStorage snapshot;
+					short cubes[];
+					synchronized (lock) {
+						snapshot = shared[0];
+						cubes = expected[0];
+					}
+					for (int j = 0; j < 4; j ++) {
+						if (!same(read(snapshot), cubes))
+							failure[0] = "a snapshot changed while it was read";
+					}
+				}
+			}
+		}, "SnapshotReader");
+		synchronized (lock) {
+			expected[0] = read(cubes);
+			shared[0] = cubes.snapshot();
+		}
+		reader.start();
+		while (reader.isAlive()) {
+			for (int i = 0; i < 20; i ++)
+				cubes.set(random.nextInt(CubeStorage.VOLUME), (short)(random.nextInt(Cube.WATER + 2) - 1));
+			synchronized (lock) {
+				expected[0] = read(cubes);
+				shared[0] = cubes.snapshot();
+			}
+		}
+		check(failure[0] == null, failure[0]);
+		System.out.println("Snapshots stay the same while another thread reads them");
+
+		// a snapshot only copies references, the first edit of a section copies that section
+		int sets = 0;
+		long t = System.nanoTime();
+		for (int i = 0; i < ROUNDS * 10; i ++) {
+			cubes.snapshot();
+			cubes.set(random.nextInt(CubeStorage.VOLUME), Cube.DIRT);
+			sets ++;
+		}
+		float snapshotTime = (System.nanoTime() - t) / 1000.0f / sets;
+		CubeStorage copy = new CubeStorage(Cube.AIR);
+		ByteBuffer buffer = ByteBuffer.allocate(ChunkCodec.MAX_ENCODED_SIZE);
+		t = System.nanoTime();
+		for (int i = 0; i < ROUNDS * 10; i ++) {
+			// a full copy, like before snapshots
+			buffer.clear();
+			ChunkCodec.encode(cubes, buffer);
+			buffer.flip();
+			ChunkCodec.decode(buffer, copy);
+			cubes.set(random.nextInt(CubeStorage.VOLUME), Cube.DIRT);
+		}
+		float copyTime = (System.nanoTime() - t) / 1000.0f / (ROUNDS * 10);
+		System.out.println("Snapshot and edit: " + snapshotTime + "us, full copy and edit: " + copyTime + "us");
+
+		// a mesh built from a snapshot that is out of date is thrown away, and the chunk is meshed again
+		ChunkBuilder.init(1);
+		Chunk chunk = new Chunk(new Vector3(0, 0, 0), Cube.AIR);
+		chunk.getCubes().copyFrom(terrain[1].getCubes());
+		World.addChunk(chunk);
+		World.update();
+		chunk.getCubes().set(0, Cube.WATER);
+		int stale = ChunkBuilder.getStaleMeshes();
+		long start = System.currentTimeMillis();
+		while (ChunkBuilder.getQueueDepth() > 0 && System.currentTimeMillis() - start < 10000) {
+			ChunkBuilder.update();
+			Thread.sleep(1);
+		}
+		check(ChunkBuilder.getStaleMeshes() == stale + 1, "a mesh of cubes that changed since the snapshot is thrown away");
+		check(chunk.isDirty(), "the chunk is meshed again");
+		ChunkBuilder.shutdown();
+
+		System.out.println("All snapshot checks passed");
+	}
+
+	private static short[] read(CubeStorage cubes) {
+		short materials[] = new short[CubeStorage.VOLUME];
+		for (int i = 0; i < CubeStorage.VOLUME; i ++)
+			materials[i] = cubes.get(i);
+		return materials;
+	}
+
+	private static boolean same(short a[], short b[]) {
+		for (int i = 0; i < a.length; i ++) {
+			if (a[i] != b[i])
+				return false;
+		}
+		return true;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
@@ -0,0 +1,166 @@
+//-----------------------------------------------------------------------------
+// FaceCullingTest.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.util.vector.Vector3f;
+
+import math.Vector3;
+
+import graphics.MeshBuffer;
+
+import cubegame.Chunk;
+import cubegame.ChunkMesher;
+import cubegame.ChunkSnapshot;
+import cubegame.Cube;
+import cubegame.World;
+
+/**
+ * Checks which face directions Chunk.getFacesTowards lets Chunk.render skip, for
+ * an eye outside, level with and inside of the chunk on each axis.  The chunk is a
+ * checkerboard, so it has faces of every direction on every plane, and every quad
+ * of the mesh that faces the eye has to be in a direction that is kept.  Runs
+ * without a GL context, throws if a check fails.
+ */
+public class FaceCullingTest {
+	private static final int SIZE = Chunk.CHUNK_SIZE;
+
+	/**
+	 * Eye positions relative to the chunk along the tested axis: outside, level with
+	 * the low side, just inside, the middle, just inside the high side, level with it, outside
+	 */
+	private static final float POSITIONS[] = { -5.0f, -0.5f, 0.0f, 0.5f, 1.0f, 8.0f, 15.0f, 15.5f, 16.0f, 16.5f, 21.0f };
+
+	public static void main(String[] args) {
+		// away from the origin, so the chunk position has to be taken into account
+		Chunk chunk = new Chunk(new Vector3(2 * SIZE, -SIZE, -3 * SIZE), Cube.AIR);
+		for (int x = 0; x < SIZE; x ++) {
+			for (int y = 0; y < SIZE; y ++) {
+				for (int z = 0; z < SIZE; z ++) {
+					if (((x + y + z) & 1) == 0)
+						chunk.getCubes().set(x, y, z, Cube.COBBLE);
+				}
+			}
+		}
+		check(chunk.getFacesTowards(new Vector3f(-100.0f, 0.0f, 0.0f)) == 0x3F, "a chunk that wasn't built draws every direction");
+		check(chunk.getFacesTowards(null) == 0x3F, "without an eye every direction is drawn");
+
+		ChunkMesher.setMode(ChunkMesher.MODE_NAIVE);
+		World.addChunk(chunk);
+		World.update();
+		ChunkSnapshot snapshot = new ChunkSnapshot();
+		snapshot.capture(chunk);
+		MeshBuffer mesh = new MeshBuffer(1);
+		new ChunkMesher().build(snapshot, mesh);
+		snapshot.release();
+		for (int face = 0; face < 6; face ++)
+			check(getQuads(mesh, face) > 0, "the checkerboard has faces of every direction");
+
+		Vector3 position = chunk.getPosition();
+		int low[] = { Cube.FACE_LEFT, Cube.FACE_BOTTOM, Cube.FACE_BACK };
+		int high[] = { Cube.FACE_RIGHT, Cube.FACE_TOP, Cube.FACE_FRONT };
+		for (int axis = 0; axis < 3; axis ++) {
+			for (int i = 0; i < POSITIONS.length; i ++) {
+				float p = POSITIONS[i];
+				float coords[] = { position.x + 8.5f, position.y + 8.5f, position.z + 8.5f };
+				coords[axis] = getAxis(position, axis) + p;
+				Vector3f eye = new Vector3f(coords[0], coords[1], coords[2]);
+				int faces = chunk.getFacesTowards(eye);
+				String where = "the eye at " + p + " on axis " + axis;
+
+				// the other two axes go through the middle of the chunk, so both of their directions are kept
+				for (int other = 0; other < 3; other ++) {
+					if (other != axis)
+						check(isSet(faces, low[other]) && isSet(faces, high[other]), "both directions of another axis are kept for " + where);
+				}
+
+				// faces that point away from the low side of the chunk can't be seen from below it, and the other way around
+				check(isSet(faces, low[axis]) == (p < SIZE), "the low facing direction is kept only below the high side, for " + where);
+				check(isSet(faces, high[axis]) == (p > 0.0f), "the high facing direction is kept only above the low side, for " + where);
+
+				// every quad that faces the eye has to be drawn
+				int facing = getFacingQuads(mesh, position, eye, faces);
+				check(facing == 0, facing + " quads that face " + where + " are in a skipped direction");
+			}
+		}
+
+		World.removeChunk(chunk);
+		System.out.println("All face culling checks passed");
+	}
+
+	/**
+	 * Counts the quads of the skipped directions that face the eye
+	 */
+	private static int getFacingQuads(MeshBuffer mesh, Vector3 position, Vector3f eye, int faces) {
+		ByteBuffer vertices = mesh.getVertices();
+		int count = 0;
+		for (int face = 0; face < 6; face ++) {
+			if (isSet(faces, face))
+				continue;
+			int end = mesh.getFaceStart(MeshBuffer.LAYER_OPAQUE, face) + getQuads(mesh, face);
+			for (int quad = mesh.getFaceStart(MeshBuffer.LAYER_OPAQUE, face); quad < end; quad ++) {
+				int vertex = quad * 4 * MeshBuffer.VERTEX_STRIDE;
+				float dx = eye.x - (position.x + vertices.getFloat(vertex));
+				float dy = eye.y - (position.y + vertices.getFloat(vertex + 4));
+				float dz = eye.z - (position.z + vertices.getFloat(vertex + 8));
+				float nx = vertices.getFloat(vertex + MeshBuffer.NORMAL_OFFSET);
+				float ny = vertices.getFloat(vertex + MeshBuffer.NORMAL_OFFSET + 4);
+				float nz = vertices.getFloat(vertex + MeshBuffer.NORMAL_OFFSET + 8);
+				if (nx * dx + ny * dy + nz * dz > 0.0f)
+					count ++;
+			}
+		}
+		return count;
+	}
+
+	private static int getQuads(MeshBuffer mesh, int face) {
+		int end = (face == 5) ? mesh.getFaceStart(MeshBuffer.LAYER_TRANSLUCENT, 0) : mesh.getFaceStart(MeshBuffer.LAYER_OPAQUE, face + 1);
+		return end - mesh.getFaceStart(MeshBuffer.LAYER_OPAQUE, face);
+	}
+
+	private static float getAxis(Vector3 position, int axis) {
+		return (axis == 0) ? position.x : ((axis == 1) ? position.y : position.z);
+	}
+
+	private static boolean isSet(int faces, int face) {
+		return (faces & (1 << face)) != 0;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
@@ -0,0 +1,158 @@
+//-----------------------------------------------------------------------------
+// FrustumTest.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import org.lwjgl.util.vector.Matrix4f;
+import org.lwjgl.util.vector.Vector3f;
+
+import math.Frustum;
+
+import cubegame.Camera;
+
+/**
+ * Checks the planes a Frustum extracts from a known 90 degree projection, and
+ * which boxes it reports as visible: inside, outside, crossing a plane, behind
+ * the camera and past the far plane, for a camera at the origin, a moved one
+ * and a turned one.  Runs without a GL context, throws if a check fails.
+ */
+public class FrustumTest {
+	private static final float EPSILON = 0.0001f;
+	private static final float HALF_SQRT2 = (float)Math.sqrt(0.5);
+
+	public static void main(String[] args) {
+		testPlanes();
+		testBoxes();
+		testMovedCamera();
+		testTurnedCamera();
+		testCameraProjection();
+		System.out.println("All Frustum checks passed");
+	}
+
+	private static void testPlanes() {
+		Frustum frustum = new Frustum();
+		frustum.update(getProjection(1.0f, 100.0f), new Matrix4f());
+
+		// a 90 degree frustum looking down -z, every normal faces into it
+		checkPlane(frustum, Frustum.PLANE_LEFT, HALF_SQRT2, 0.0f, -HALF_SQRT2, 0.0f, "left");
+		checkPlane(frustum, Frustum.PLANE_RIGHT, -HALF_SQRT2, 0.0f, -HALF_SQRT2, 0.0f, "right");
+		checkPlane(frustum, Frustum.PLANE_BOTTOM, 0.0f, HALF_SQRT2, -HALF_SQRT2, 0.0f, "bottom");
+		checkPlane(frustum, Frustum.PLANE_TOP, 0.0f, -HALF_SQRT2, -HALF_SQRT2, 0.0f, "top");
+		checkPlane(frustum, Frustum.PLANE_NEAR, 0.0f, 0.0f, -1.0f, -1.0f, "near");
+		checkPlane(frustum, Frustum.PLANE_FAR, 0.0f, 0.0f, 1.0f, 100.0f, "far");
+	}
+
+	private static void testBoxes() {
+		Frustum frustum = new Frustum();
+		frustum.update(getProjection(1.0f, 100.0f), new Matrix4f());
+
+		check(frustum.intersectsBox(-1, -1, -11, 1, 1, -9), "a box in front of the camera is visible");
+		check(frustum.containsPoint(0, 0, -10), "the center of that box is inside");
+		check(!frustum.intersectsBox(-30, -1, -11, -20, 1, -9), "a box left of the frustum isn't visible");
+		check(!frustum.intersectsBox(-1, 20, -11, 1, 30, -9), "a box above the frustum isn't visible");
+
+		// the left plane is x = z at this depth, so the box sticks out of it
+		check(frustum.intersectsBox(-15, -1, -11, -5, 1, -9), "a box crossing the left plane is visible");
+		check(!frustum.containsPoint(-15, 0, -10) && frustum.containsPoint(-5, 0, -10), "only part of that box is inside");
+
+		check(!frustum.intersectsBox(-1, -1, 5, 1, 1, 7), "a box behind the camera isn't visible");
+		check(!frustum.intersectsBox(-100, -100, 0.5f, 100, 100, 10), "a wide box behind the near plane isn't visible");
+		check(frustum.intersectsBox(-1, -1, -2, 1, 1, 2), "a box around the near plane is visible");
+		check(!frustum.intersectsBox(-1, -1, -150, 1, 1, -120), "a box past the far plane isn't visible");
+		check(frustum.intersectsBox(-1, -1, -150, 1, 1, -50), "a box crossing the far plane is visible");
+	}
+
+	private static void testMovedCamera() {
+		// the view of a camera at x = 50 moves the world the other way
+		Matrix4f view = new Matrix4f();
+		Matrix4f.translate(new Vector3f(-50.0f, 0.0f, 0.0f), view, view);
+		Frustum frustum = new Frustum();
+		frustum.update(getProjection(1.0f, 100.0f), view);
+
+		checkPlane(frustum, Frustum.PLANE_LEFT, HALF_SQRT2, 0.0f, -HALF_SQRT2, -50.0f * HALF_SQRT2, "moved left");
+		check(frustum.intersectsBox(49, -1, -11, 51, 1, -9), "a box in front of the moved camera is visible");
+		check(!frustum.intersectsBox(-1, -1, -11, 1, 1, -9), "a box in front of the origin isn't visible from x = 50");
+		check(!frustum.intersectsBox(49, -1, 5, 51, 1, 7), "a box behind the moved camera isn't visible");
+	}
+
+	private static void testTurnedCamera() {
+		// turned around, the camera looks down +z
+		Matrix4f view = new Matrix4f();
+		Matrix4f.rotate((float)Math.PI, new Vector3f(0.0f, 1.0f, 0.0f), view, view);
+		Frustum frustum = new Frustum();
+		frustum.update(getProjection(1.0f, 100.0f), view);
+
+		checkPlane(frustum, Frustum.PLANE_NEAR, 0.0f, 0.0f, 1.0f, -1.0f, "turned near");
+		check(frustum.intersectsBox(-1, -1, 9, 1, 1, 11), "a box on +z is in front of the turned camera");
+		check(!frustum.intersectsBox(-1, -1, -11, 1, 1, -9), "a box on -z is behind the turned camera");
+	}
+
+	private static void testCameraProjection() {
+		// the planes of the projection the game draws with are as far away as the camera says
+		Frustum frustum = new Frustum();
+		frustum.update(Camera.getProjectionMatrix(16.0f / 9.0f), new Matrix4f());
+		float near[] = frustum.getPlane(Frustum.PLANE_NEAR);
+		float far[] = frustum.getPlane(Frustum.PLANE_FAR);
+		check(Math.abs(-near[3] - Camera.nearPlane) < 0.001f && near[2] < 0.0f, "the near plane is at Camera.nearPlane");
+		// with near and far 1:20000 apart the far plane loses some float precision, it comes out at about 200.2
+		check(Math.abs(far[3] - Camera.farPlane) < Camera.farPlane * 0.01f && far[2] > 0.0f, "the far plane is at Camera.farPlane");
+		check(frustum.containsPoint(0, 0, -Camera.farPlane / 2) && !frustum.containsPoint(0, 0, -Camera.farPlane * 2), "the game draws up to the far plane");
+	}
+
+	/**
+	 * Builds a perspective projection with a 90 degree field of view and a square aspect, like gluPerspective
+	 */
+	private static Matrix4f getProjection(float near, float far) {
+		Matrix4f p = new Matrix4f();
+		p.setZero();
+		p.m00 = 1.0f;
+		p.m11 = 1.0f;
+		p.m22 = (far + near) / (near - far);
+		p.m23 = -1.0f;
+		p.m32 = (2.0f * far * near) / (near - far);
+		return p;
+	}
+
+	private static void checkPlane(Frustum frustum, int plane, float a, float b, float c, float d, String name) {
+		float p[] = frustum.getPlane(plane);
+		check(Math.abs(p[0] - a) < EPSILON && Math.abs(p[1] - b) < EPSILON && Math.abs(p[2] - c) < EPSILON,
+				"the " + name + " plane has the normal <" + a + ", " + b + ", " + c + ">, not <" + p[0] + ", " + p[1] + ", " + p[2] + ">");
+		check(Math.abs(p[3] - d) < EPSILON * Math.max(1.0f, Math.abs(d)), "the " + name + " plane is at " + d + ", not " + p[3]);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
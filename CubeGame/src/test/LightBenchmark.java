@@ -0,0 +1,233 @@
+//-----------------------------------------------------------------------------
+// LightBenchmark.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import math.Vector3;
+
+import cubegame.Chunk;
+import cubegame.Cube;
+import cubegame.CubeStorage;
+import cubegame.LightEngine;
+import cubegame.TerrainGenerator;
+import cubegame.World;
+
+/**
+ * Measures how long the LightEngine takes to relight a single cube edit at the
+ * center of a 3x3x3 neighbourhood of terrain chunks: digging out the surface,
+ * filling it back in, casting a shadow, and placing and removing a lamp.  The
+ * same is compared with relighting all 27 chunks from scratch.  Checks that the
+ * light after many random incremental edits is the same as lighting the chunks
+ * from scratch.  Runs without a GL context, throws if a check fails.
+ */
+public class LightBenchmark {
+	private static final int ROUNDS = 2000;
+	private static final int RANDOM_EDITS = 500;
+
+	/**
+	 * The chunk coordinates of the center chunk, and the world position of the edited cube
+	 */
+	private static int centerY;
+	private static int cubeX;
+	private static int cubeY;
+	private static int cubeZ;
+
+	public static void main(String[] args) {
+		TerrainGenerator generator = new TerrainGenerator(1337);
+		findSurface(generator);
+		centerY = Math.max(Math.min(cubeY >> Chunk.CHUNK_SHIFT, TerrainGenerator.HEIGHT_CHUNKS - 2), 1);
+
+		ArrayList<CubeStorage> terrain = new ArrayList<CubeStorage>();
+		for (int x = -1; x <= 1; x ++) {
+			for (int z = -1; z <= 1; z ++) {
+				Chunk column[] = generator.generateColumn(x, z);
+				for (int y = centerY + 1; y >= centerY - 1; y --)
+					terrain.add(column[y].getCubes());
+			}
+		}
+
+		// lighting the neighbourhood from scratch
+		ArrayList<Chunk> chunks = null;
+		long t = System.nanoTime();
+		for (int round = 0; round < 20; round ++) {
+			if (chunks != null)
+				removeChunks(chunks);
+			chunks = addChunks(terrain);
+		}
+		float scratchTime = (System.nanoTime() - t) / 1000.0f / 20;
+		System.out.println("Lighting 27 chunks from scratch: " + scratchTime + "us");
+		check(World.getCube(cubeX, cubeY, cubeZ) != Cube.AIR && World.getCube(cubeX, cubeY + 1, cubeZ) == Cube.AIR, "the edited cube is on the surface");
+		check(getSky(cubeX, cubeY + 1, cubeZ) == LightEngine.MAX_LIGHT, "the surface is under the open sky");
+
+		// single cube edits at the center
+		short surface = World.getCube(cubeX, cubeY, cubeZ);
+		String names[] = { "dig out the surface", "fill it back in", "cast a shadow", "remove the shadow", "place a lamp", "remove the lamp" };
+		long times[] = new long[names.length];
+		long visited[] = new long[names.length];
+		for (int round = 0; round < ROUNDS; round ++) {
+			time(0, cubeX, cubeY, cubeZ, Cube.AIR, times, visited);
+			time(1, cubeX, cubeY, cubeZ, surface, times, visited);
+			time(2, cubeX, cubeY + 2, cubeZ, Cube.COBBLE, times, visited);
+			if (round == 0)
+				check(getSky(cubeX, cubeY + 1, cubeZ) < LightEngine.MAX_LIGHT, "a cube in the air casts a shadow");
+			time(3, cubeX, cubeY + 2, cubeZ, Cube.AIR, times, visited);
+			time(4, cubeX, cubeY + 1, cubeZ, Cube.LAMP, times, visited);
+			if (round == 0)
+				check(getBlock(cubeX + 1, cubeY + 1, cubeZ) == LightEngine.MAX_LIGHT - 1, "lamps light up their neighbours");
+			time(5, cubeX, cubeY + 1, cubeZ, Cube.AIR, times, visited);
+			if (round == 0)
+				check(getBlock(cubeX + 1, cubeY + 1, cubeZ) == 0, "removing a lamp takes its light away");
+		}
+		float total = 0.0f;
+		for (int i = 0; i < names.length; i ++) {
+			float time = times[i] / 1000.0f / ROUNDS;
+			total += time;
+			System.out.println("Relight to " + names[i] + ": " + time + "us, " + (visited[i] / ROUNDS) + " cubes visited");
+		}
+		System.out.println("Average single cube relight: " + (total / names.length) + "us, " + (scratchTime * names.length / total) + "x faster than from scratch");
+
+		// random edits all over the neighbourhood, then compare with lighting from scratch
+		Random random = new Random(1);
+		short materials[] = { Cube.AIR, Cube.AIR, Cube.DIRT, Cube.COBBLE, Cube.WATER, Cube.LAMP };
+		for (int i = 0; i < RANDOM_EDITS; i ++) {
+			int x = random.nextInt(Chunk.CHUNK_SIZE * 3) - Chunk.CHUNK_SIZE;
+			int y = random.nextInt(Chunk.CHUNK_SIZE * 3) + ((centerY - 1) << Chunk.CHUNK_SHIFT);
+			int z = random.nextInt(Chunk.CHUNK_SIZE * 3) - Chunk.CHUNK_SIZE;
+			setCube(x, y, z, materials[random.nextInt(materials.length)]);
+		}
+		ArrayList<Chunk> edited = chunks;
+		ArrayList<CubeStorage> editedCubes = new ArrayList<CubeStorage>();
+		for (Chunk chunk : edited)
+			editedCubes.add(chunk.getCubes());
+		removeChunks(edited);
+		ArrayList<Chunk> relit = addChunks(editedCubes);
+		for (int i = 0; i < relit.size(); i ++) {
+			for (int index = 0; index < CubeStorage.VOLUME; index ++)
+				check(edited.get(i).getLight(index) == relit.get(i).getLight(index), "incremental relighting ends up where lighting from scratch does");
+		}
+		System.out.println("Light after " + RANDOM_EDITS + " random edits matches lighting from scratch");
+
+		System.out.println("All light checks passed");
+	}
+
+	/**
+	 * Finds the dry surface cube closest to the center of the center column, the edits are made there
+	 */
+	private static void findSurface(TerrainGenerator generator) {
+		Chunk column[] = generator.generateColumn(0, 0);
+		int best = Integer.MAX_VALUE;
+		for (int x = 0; x < Chunk.CHUNK_SIZE; x ++) {
+			for (int z = 0; z < Chunk.CHUNK_SIZE; z ++) {
+				int y = generator.getHeight(x, z);
+				int above = y + 1;
+				if (above >= column.length << Chunk.CHUNK_SHIFT || column[above >> Chunk.CHUNK_SHIFT].getCube(x, above & Chunk.CHUNK_MASK, z) != Cube.AIR)
+					continue;
+				int distance = Math.abs(x - Chunk.CHUNK_SIZE / 2) + Math.abs(z - Chunk.CHUNK_SIZE / 2);
+				if (distance < best) {
+					best = distance;
+					cubeX = x;
+					cubeY = y;
+					cubeZ = z;
+				}
+			}
+		}
+		check(best != Integer.MAX_VALUE, "the center column has dry land");
+	}
+
+	/**
+	 * Adds chunks with the given cubes to the world, top down like the ChunkStreamer
+	 */
+	private static ArrayList<Chunk> addChunks(ArrayList<CubeStorage> terrain) {
+		ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+		int i = 0;
+		for (int x = -1; x <= 1; x ++) {
+			for (int z = -1; z <= 1; z ++) {
+				for (int y = centerY + 1; y >= centerY - 1; y --) {
+					Chunk chunk = new Chunk(new Vector3(x * Chunk.CHUNK_SIZE, y * Chunk.CHUNK_SIZE, z * Chunk.CHUNK_SIZE), Cube.AIR);
+					chunk.getCubes().copyFrom(terrain.get(i ++));
+					World.addChunk(chunk);
+					chunks.add(chunk);
+				}
+			}
+		}
+		return chunks;
+	}
+
+	private static void removeChunks(ArrayList<Chunk> chunks) {
+		for (Chunk chunk : chunks)
+			World.removeChunk(chunk);
+	}
+
+	/**
+	 * Sets a cube and relights around it, timing only the relight
+	 */
+	private static void time(int edit, int x, int y, int z, short material, long times[], long visited[]) {
+		long cubes = LightEngine.getVisitedCubes();
+		long t = System.nanoTime();
+		setCube(x, y, z, material);
+		times[edit] += System.nanoTime() - t;
+		visited[edit] += LightEngine.getVisitedCubes() - cubes;
+	}
+
+	/**
+	 * Sets a cube and relights around it, without building any meshes
+	 */
+	private static void setCube(int x, int y, int z, short material) {
+		Chunk chunk = World.getChunk(x >> Chunk.CHUNK_SHIFT, y >> Chunk.CHUNK_SHIFT, z >> Chunk.CHUNK_SHIFT);
+		int index = CubeStorage.getIndex(x & Chunk.CHUNK_MASK, y & Chunk.CHUNK_MASK, z & Chunk.CHUNK_MASK);
+		chunk.getCubes().set(index, material);
+		LightEngine.relight(chunk, index);
+	}
+
+	private static int getSky(int x, int y, int z) {
+		return getLight(x, y, z) >>> LightEngine.SKY_SHIFT;
+	}
+
+	private static int getBlock(int x, int y, int z) {
+		return getLight(x, y, z) & LightEngine.MAX_LIGHT;
+	}
+
+	private static int getLight(int x, int y, int z) {
+		Chunk chunk = World.getChunk(x >> Chunk.CHUNK_SHIFT, y >> Chunk.CHUNK_SHIFT, z >> Chunk.CHUNK_SHIFT);
+		return chunk.getLight(CubeStorage.getIndex(x & Chunk.CHUNK_MASK, y & Chunk.CHUNK_MASK, z & Chunk.CHUNK_MASK));
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
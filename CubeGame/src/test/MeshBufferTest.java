@@ -0,0 +1,241 @@
+//-----------------------------------------------------------------------------
+// MeshBufferTest.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.util.vector.Vector2f;
+
+import math.Vector3;
+
+import graphics.MegaBuffer;
+import graphics.MeshBuffer;
+
+import cubegame.Chunk;
+import cubegame.ChunkMesher;
+import cubegame.ChunkSnapshot;
+import cubegame.Cube;
+import cubegame.LightEngine;
+import cubegame.World;
+
+/**
+ * Checks the bytes a MeshBuffer writes against the vertex layouts the chunk
+ * VBOs are drawn with: the float layout (position, normal, texcoord, color) and
+ * the packed 8 byte layout.  A known quad is written by hand, then a single cube
+ * is meshed by the ChunkMesher and read back, and compared with the 32 byte
+ * position, normal, texcoord vertices the boxing mesher used to upload.  Runs
+ * without a GL context, throws if a check fails.
+ */
+public class MeshBufferTest {
+	public static void main(String[] args) {
+		testFloatLayout();
+		testPackedLayout();
+		testGrow();
+		testMeshedCube();
+		testBoxedLayout();
+		testEmptiedChunk();
+		System.out.println("All MeshBuffer checks passed");
+	}
+
+	private static void testFloatLayout() {
+		check(MeshBuffer.VERTEX_STRIDE == 36, "float vertices are 36 bytes");
+		check(MeshBuffer.NORMAL_OFFSET == 12 && MeshBuffer.TEXCOORD_OFFSET == 24 && MeshBuffer.COLOR_OFFSET == 32, "position, normal, texcoord and color are at 0, 12, 24 and 32");
+
+		MeshBuffer mesh = new MeshBuffer(1);
+		check(mesh.getFormat() == MeshBuffer.FORMAT_FLOAT && mesh.getVertexStride() == MeshBuffer.VERTEX_STRIDE, "the default layout is the float layout");
+		putQuad(mesh);
+		mesh.finish();
+		check(mesh.getVertexCount() == 4 && mesh.getQuadCount() == 1 && mesh.getIndexCount() == 6, "a quad is 4 vertices and 6 indices");
+
+		ByteBuffer vertices = mesh.getVertices();
+		check(vertices.position() == 0 && vertices.limit() == 4 * MeshBuffer.VERTEX_STRIDE, "finish limits the buffer to the vertices");
+		for (int i = 0; i < 4; i ++) {
+			int vertex = i * MeshBuffer.VERTEX_STRIDE;
+			float corner[] = getCorner(i);
+			check(vertices.getFloat(vertex) == corner[0] && vertices.getFloat(vertex + 4) == corner[1] && vertices.getFloat(vertex + 8) == corner[2], "the position is at offset 0");
+			check(vertices.getFloat(vertex + 12) == 0.0f && vertices.getFloat(vertex + 16) == 1.0f && vertices.getFloat(vertex + 20) == 0.0f, "the normal is at offset 12");
+			check(vertices.getFloat(vertex + 24) == corner[0] * 0.25f && vertices.getFloat(vertex + 28) == corner[2] * 0.5f, "the texcoord is at offset 24");
+			check(vertices.get(vertex + 32) == (byte)0x11 && vertices.get(vertex + 33) == (byte)0x22 && vertices.get(vertex + 34) == (byte)0x33 && vertices.get(vertex + 35) == (byte)(0x40 + i), "the color bytes are r, g, b, a at offset 32");
+
+			// the views client side vertex arrays are pointed at
+			check(mesh.getNormalView().getFloat(vertex + 4) == 1.0f, "the normal view starts at the normal");
+			check(mesh.getTextureView().getFloat(vertex) == corner[0] * 0.25f, "the texcoord view starts at the texcoord");
+			check(mesh.getColorView().get(vertex + 3) == (byte)(0x40 + i), "the color view starts at the color");
+		}
+	}
+
+	private static void testPackedLayout() {
+		check(MeshBuffer.PACKED_VERTEX_STRIDE == 8 && MeshBuffer.PACKED_TEXTURE_OFFSET == 4, "packed vertices are 8 bytes, the texture bytes at 4");
+
+		MeshBuffer mesh = new MeshBuffer(1, MeshBuffer.FORMAT_PACKED);
+		check(mesh.getVertexStride() == MeshBuffer.PACKED_VERTEX_STRIDE, "packed meshes use the packed stride");
+		mesh.putPackedVertex(16, 255, 3, Cube.FACE_TOP, 16, 1, 200, 0xF7);
+		mesh.putPackedVertex(0, 1, 2, Cube.FACE_BACK, 3, 4, 5, 6);
+		mesh.finish();
+
+		ByteBuffer vertices = mesh.getVertices();
+		check(vertices.limit() == 2 * MeshBuffer.PACKED_VERTEX_STRIDE, "finish limits the buffer to the vertices");
+		int expected[] = { 16, 255, 3, Cube.FACE_TOP, 16, 1, 200, 0xF7, 0, 1, 2, Cube.FACE_BACK, 3, 4, 5, 6 };
+		for (int i = 0; i < expected.length; i ++)
+			check((vertices.get(i) & 0xFF) == expected[i], "packed byte " + i + " is x, y, z, face, u, v, tile, light");
+	}
+
+	private static void testGrow() {
+		MeshBuffer mesh = new MeshBuffer(1);
+		for (int i = 0; i < 100; i ++)
+			putQuad(mesh);
+		mesh.finish();
+		check(mesh.getQuadCount() == 100 && mesh.getVertices().limit() == 400 * MeshBuffer.VERTEX_STRIDE, "growing keeps every vertex");
+		int last = 399 * MeshBuffer.VERTEX_STRIDE;
+		check(mesh.getVertices().getFloat(last) == getCorner(3)[0] && mesh.getColorView().get(last + 3) == (byte)0x43, "growing keeps the layout");
+	}
+
+	private static void testMeshedCube() {
+		// a lone dirt cube under the open sky
+		Chunk chunk = new Chunk(new Vector3(0, 0, 0), Cube.AIR);
+		chunk.getCubes().set(1, 2, 3, Cube.DIRT);
+		World.addChunk(chunk);
+		ChunkSnapshot snapshot = new ChunkSnapshot();
+		snapshot.capture(chunk);
+		MeshBuffer mesh = new MeshBuffer(1);
+		ChunkMesher.setMode(ChunkMesher.MODE_NAIVE);
+		new ChunkMesher().build(snapshot, mesh);
+		World.removeChunk(chunk);
+		snapshot.release();
+
+		check(mesh.getQuadCount() == 6 && mesh.isGroupedByFace(), "a lone cube has 6 faces, grouped by direction");
+		ByteBuffer vertices = mesh.getVertices();
+		for (int face = 0; face < 6; face ++) {
+			check(mesh.getFaceStart(MeshBuffer.LAYER_OPAQUE, face) == face, "one quad per direction");
+			for (int i = 0; i < 4; i ++) {
+				int vertex = (face * 4 + i) * MeshBuffer.VERTEX_STRIDE;
+				float corner[] = Cube.vertices[face];
+				check(vertices.getFloat(vertex) == 1 + corner[i * 3] && vertices.getFloat(vertex + 4) == 2 + corner[i * 3 + 1] && vertices.getFloat(vertex + 8) == 3 + corner[i * 3 + 2], "positions are the cube corners, relative to the chunk");
+				float normal[] = Cube.normals[face];
+				check(vertices.getFloat(vertex + 12) == normal[0] && vertices.getFloat(vertex + 16) == normal[1] && vertices.getFloat(vertex + 20) == normal[2], "normals are the face normals");
+				float u = vertices.getFloat(vertex + 24);
+				float v = vertices.getFloat(vertex + 28);
+				check(u >= 0.0f && u <= 1.0f / World.mapTextureWidth && v >= 0.0f && v <= 1.0f / World.mapTextureHeight, "texcoords are in the dirt tile");
+				// the cube under the dirt is in its shadow, sky light only reaches it from the side
+				int light = (face == Cube.FACE_BOTTOM) ? (LightEngine.MAX_LIGHT - 1) << LightEngine.SKY_SHIFT : LightEngine.OPEN_SKY;
+				byte gray = (byte)Math.round(LightEngine.getBrightness(light) * 255.0f);
+				check(vertices.get(vertex + 32) == gray && vertices.get(vertex + 33) == gray && vertices.get(vertex + 34) == gray, "the color is the light in front of the face");
+				check(vertices.get(vertex + 35) == (byte)255, "opaque faces have an opaque color");
+			}
+		}
+	}
+
+	/**
+	 * Builds the vertices of a lone grass cube the way the mesher did before the MeshBuffer,
+	 * 8 floats per vertex out of boxed lists, and checks that the first 32 bytes of every
+	 * vertex the ChunkMesher writes are the same floats
+	 */
+	private static void testBoxedLayout() {
+		Chunk chunk = new Chunk(new Vector3(0, 0, 0), Cube.AIR);
+		chunk.getCubes().set(4, 5, 6, Cube.GRASS);
+		World.addChunk(chunk);
+		ChunkSnapshot snapshot = new ChunkSnapshot();
+		snapshot.capture(chunk);
+		MeshBuffer mesh = new MeshBuffer(1);
+		ChunkMesher.setMode(ChunkMesher.MODE_NAIVE);
+		new ChunkMesher().build(snapshot, mesh);
+		World.removeChunk(chunk);
+		snapshot.release();
+
+		check(MeshBuffer.NORMAL_OFFSET == 12 && MeshBuffer.TEXCOORD_OFFSET == 24, "glNormalPointer and glTexCoordPointer still point at 12 and 24");
+		ByteBuffer vertices = mesh.getVertices();
+		for (int face = 0; face < 6; face ++) {
+			// the old buildFace and preRenderChunk, with the chunk at the origin so world and chunk positions are the same
+			float corners[] = Cube.vertices[face];
+			float normal[] = Cube.normals[face];
+			Vector2f uvs[] = Cube.getUVTextureMapD(Cube.GRASS, World.mapTextureWidth, World.mapTextureHeight);
+			int quad = mesh.getFaceStart(MeshBuffer.LAYER_OPAQUE, face);
+			for (int i = 0; i < 4; i ++) {
+				float boxed[] = {
+					corners[i * 3] + 4.0f, corners[i * 3 + 1] + 5.0f, corners[i * 3 + 2] + 6.0f,
+					normal[0], normal[1], normal[2],
+					uvs[i].x, uvs[i].y
+				};
+				int vertex = (quad * 4 + i) * MeshBuffer.VERTEX_STRIDE;
+				for (int j = 0; j < boxed.length; j ++)
+					check(Float.floatToRawIntBits(vertices.getFloat(vertex + j * 4)) == Float.floatToRawIntBits(boxed[j]), "float " + j + " of vertex " + i + " of face " + face + " is what the boxing mesher uploaded");
+			}
+		}
+	}
+
+	private static void testEmptiedChunk() {
+		long used = MegaBuffer.getUsed();
+		Chunk chunk = new Chunk(new Vector3(0, 0, 0), Cube.AIR);
+		chunk.getCubes().set(1, 2, 3, Cube.DIRT);
+		World.addChunk(chunk);
+		World.update();
+		check(MegaBuffer.getUsed() > used, "a chunk with a cube gets a range of the MegaBuffer");
+
+		// digging out the last cube gives the range back before the chunk is removed
+		World.setCube(1, 2, 3, Cube.AIR);
+		check(chunk.isDirty() && MegaBuffer.getUsed() > used, "setting a cube leaves the rebuild to the next update");
+		World.update();
+		check(MegaBuffer.getUsed() == used, "a chunk without faces gives its range back");
+
+		// as does a chunk that is nothing but air, which isn't meshed at all
+		World.setCube(1, 2, 3, Cube.DIRT);
+		World.update();
+		check(MegaBuffer.getUsed() > used, "the range comes back with the cube");
+		chunk.getCubes().fill(Cube.AIR);
+		chunk.rebuild();
+		check(chunk.isEmpty() && MegaBuffer.getUsed() == used, "an all air chunk gives its range back");
+		World.removeChunk(chunk);
+	}
+
+	/**
+	 * Writes a quad facing up, with the u and v texcoords a quarter and a half of x and z
+	 */
+	private static void putQuad(MeshBuffer mesh) {
+		for (int i = 0; i < 4; i ++) {
+			float corner[] = getCorner(i);
+			mesh.putVertex(corner[0], corner[1], corner[2], 0.0f, 1.0f, 0.0f, corner[0] * 0.25f, corner[2] * 0.5f, 0x11223340 + i);
+		}
+	}
+
+	private static float[] getCorner(int i) {
+		float top[] = Cube.vertices[Cube.FACE_TOP];
+		return new float[] { top[i * 3] + 5.0f, top[i * 3 + 1] + 6.0f, top[i * 3 + 2] + 7.0f };
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
@@ -0,0 +1,205 @@
+//-----------------------------------------------------------------------------
+// RegionFileBenchmark.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Random;
+
+import cubegame.Chunk;
+import cubegame.Cube;
+import cubegame.CubeStorage;
+import cubegame.RegionFile;
+import cubegame.TerrainGenerator;
+
+/**
+ * Saves a region of generated terrain, checks that every chunk reads back the
+ * same (also after a simulated crash in the middle of rewriting chunks), and measures random chunk loads per second from a freshly opened
+ * (cold) file and from one that has been read before (warm).  Runs without a
+ * GL context, throws if a check fails.
+ *
+ * The cold numbers are for a new mapping of the file, whose pages are faulted
+ * in on first touch.  The file was just written, so the OS most likely still has
+ * it cached; they don't include seeking on a disk.
+ */
+public class RegionFileBenchmark {
+	private static final int READS = 200000;
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws IOException {
+		File file = File.createTempFile("benchmark", ".region");
+		file.deleteOnExit();
+		file.delete();
+
+		int size = RegionFile.REGION_SIZE - 1;
+		ArrayList<Chunk> chunks = new TerrainGenerator(1337).generateArea(0, 0, size, size);
+
+		// save everything
+		RegionFile region = new RegionFile(file);
+		long t = System.nanoTime();
+		for (Chunk chunk : chunks)
+			region.writeChunk(chunk);
+		region.flush();
+		float elapsed = (System.nanoTime() - t) / 1000000.0f;
+		System.out.println("Wrote " + chunks.size() + " chunks in " + elapsed + "ms, " + (region.getUsedSize() / chunks.size()) + " bytes per chunk, file "
+				+ (region.getFileSize() >> 10) + "KB");
+		checkAll(region, chunks);
+
+		// edits make some chunks larger, so they move, and the rest still has to read back the same
+		Random random = new Random(1);
+		for (int i = 0; i < 200; i ++) {
+			Chunk chunk = chunks.get(random.nextInt(chunks.size()));
+			for (int j = 0; j < 200; j ++)
+				chunk.getCubes().set(random.nextInt(CubeStorage.VOLUME), (short)random.nextInt(Cube.WATER + 1));
+			region.writeChunk(chunk);
+		}
+		checkAll(region, chunks);
+		checkCrash(region, file, chunks, random);
+		region.flush();
+		long used = region.getUsedSize();
+		region.close();
+
+		// reopening rebuilds the free sectors from the header
+		region = new RegionFile(file);
+		check(region.getUsedSize() == used, "the used sectors are the same after reopening");
+		checkAll(region, chunks);
+		region.close();
+
+		int order[] = new int[chunks.size()];
+		for (int i = 0; i < order.length; i ++)
+			order[i] = i;
+		int reads[] = new int[READS];
+		for (int i = 0; i < READS; i ++)
+			reads[i] = random.nextInt(chunks.size());
+
+		for (int round = 0; round < ROUNDS; round ++) {
+			// every chunk once in random order, right after opening
+			for (int i = order.length - 1; i > 0; i --) {
+				int j = random.nextInt(i + 1);
+				int swap = order[i];
+				order[i] = order[j];
+				order[j] = swap;
+			}
+			region = new RegionFile(file);
+			t = System.nanoTime();
+			int solid = 0;
+			for (int i = 0; i < order.length; i ++)
+				solid += read(region, chunks.get(order[i]));
+			report("cold", t, order.length, solid);
+
+			t = System.nanoTime();
+			solid = 0;
+			for (int i = 0; i < READS; i ++)
+				solid += read(region, chunks.get(reads[i]));
+			report("warm", t, READS, solid);
+			region.close();
+		}
+	}
+
+	private static int read(RegionFile region, Chunk chunk) throws IOException {
+		Chunk loaded = region.readChunk(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ());
+		return loaded.getCubes().get(0) == Cube.AIR ? 0 : 1;
+	}
+
+	private static void checkAll(RegionFile region, ArrayList<Chunk> chunks) throws IOException {
+		for (Chunk chunk : chunks) {
+			Chunk loaded = region.readChunk(chunk.getChunkX(), chunk.getChunkY(), chunk.getChunkZ());
+			check(loaded != null, "every saved chunk can be read");
+			check(loaded.getChunkX() == chunk.getChunkX() && loaded.getChunkY() == chunk.getChunkY() && loaded.getChunkZ() == chunk.getChunkZ(),
+					"chunks are read at their position");
+			for (int i = 0; i < CubeStorage.VOLUME; i ++)
+				check(loaded.getCubes().get(i) == chunk.getCubes().get(i), "chunks read back the same cubes");
+		}
+		check(!region.hasChunk(0, RegionFile.REGION_HEIGHT - 1, 0), "chunks that were never saved aren't there");
+		check(region.readChunk(0, RegionFile.REGION_HEIGHT - 1, 0) == null, "chunks that were never saved read as null");
+	}
+
+	/**
+	 * Rewrites chunks, then puts the header from the last flush back, as if the game died
+	 * before the header entries were written.  The old chunks have to be intact.
+	 */
+	private static void checkCrash(RegionFile region, File file, ArrayList<Chunk> chunks, Random random) throws IOException {
+		region.flush();
+		byte before[] = readFile(file);
+		ArrayList<Chunk> old = new ArrayList<Chunk>();
+		for (Chunk chunk : chunks) {
+			Chunk copy = new Chunk(chunk.getPosition(), Cube.AIR);
+			copy.getCubes().copyFrom(chunk.getCubes());
+			old.add(copy);
+		}
+
+		// small edits, so most chunks still fit into as many sectors as before
+		for (int i = 0; i < 50; i ++) {
+			Chunk chunk = chunks.get(random.nextInt(chunks.size()));
+			chunk.getCubes().set(random.nextInt(CubeStorage.VOLUME), (short)random.nextInt(Cube.WATER + 1));
+			region.writeChunk(chunk);
+		}
+		region.flush();
+		byte crashed[] = readFile(file);
+		int header = 8 + RegionFile.REGION_SIZE * RegionFile.REGION_HEIGHT * RegionFile.REGION_SIZE * 8;
+		System.arraycopy(before, 0, crashed, 0, header);
+
+		File crashFile = File.createTempFile("crash", ".region");
+		crashFile.deleteOnExit();
+		RandomAccessFile access = new RandomAccessFile(crashFile, "rw");
+		access.write(crashed);
+		access.close();
+		RegionFile crashRegion = new RegionFile(crashFile);
+		checkAll(crashRegion, old);
+		crashRegion.close();
+		crashFile.delete();
+		checkAll(region, chunks);
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile access = new RandomAccessFile(file, "r");
+		byte data[] = new byte[(int)access.length()];
+		access.readFully(data);
+		access.close();
+		return data;
+	}
+
+	private static void report(String name, long start, int count, int solid) {
+		float seconds = (System.nanoTime() - start) / 1000000000.0f;
+		System.out.println(name + ": " + count + " loads, " + (count / seconds) + " loads per second, " + (seconds * 1000000.0f / count) + "us per load (" + solid + ")");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
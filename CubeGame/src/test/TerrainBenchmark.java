@@ -0,0 +1,145 @@
+//-----------------------------------------------------------------------------
+// TerrainBenchmark.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.util.ArrayList;
+
+import cubegame.Chunk;
+import cubegame.Cube;
+import cubegame.CubeStorage;
+import cubegame.TerrainGenerator;
+
+/**
+ * Checks that the TerrainGenerator gives the same chunks for the same seed, no
+ * matter if they are generated on one thread or on the workers, and measures
+ * how many chunks it generates per second per core, on one thread and on the
+ * workers.  The scaling run is skipped on a single core, where the workers can't
+ * be any faster.  Runs without a GL context, throws if a check fails.
+ */
+public class TerrainBenchmark {
+	private static final long SEED = 1337;
+	private static final int RADIUS = 12; // 24 * 24 columns
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) {
+		checkDeterministic();
+
+		TerrainGenerator generator = new TerrainGenerator(SEED);
+		int cores = Runtime.getRuntime().availableProcessors();
+		int threads = TerrainGenerator.getThreadCount();
+		System.out.println("Generating " + (2 * RADIUS) * (2 * RADIUS) * TerrainGenerator.HEIGHT_CHUNKS + " chunks per round, " + threads + " workers on " + cores + " cores");
+		if (cores < 2)
+			System.out.println("Only one core is available, skipping the scaling run");
+
+		for (int round = 0; round < ROUNDS; round ++) {
+			// every round somewhere else, so nothing is reused
+			int offset = round * 4 * RADIUS;
+
+			long t = System.nanoTime();
+			int count = generateSequential(generator, offset).size();
+			report("one thread", t, count, 1);
+			if (cores < 2)
+				continue;
+
+			t = System.nanoTime();
+			count = generator.generateArea(offset - RADIUS, -RADIUS, offset + RADIUS - 1, RADIUS - 1).size();
+			report(threads + " workers", t, count, Math.min(threads, cores));
+		}
+	}
+
+	private static void checkDeterministic() {
+		TerrainGenerator first = new TerrainGenerator(SEED);
+		TerrainGenerator second = new TerrainGenerator(SEED);
+
+		ArrayList<Chunk> sequential = generateSequential(first, 0);
+		ArrayList<Chunk> parallel = second.generateArea(-RADIUS, -RADIUS, RADIUS - 1, RADIUS - 1);
+		check(sequential.size() == parallel.size(), "the same amount of chunks");
+
+		int solid = 0;
+		int water = 0;
+		for (int i = 0; i < sequential.size(); i ++) {
+			Chunk a = sequential.get(i);
+			Chunk b = parallel.get(i);
+			check(a.getPosition().x == b.getPosition().x && a.getPosition().y == b.getPosition().y && a.getPosition().z == b.getPosition().z,
+					"chunks come in the same order");
+
+			CubeStorage cubesA = a.getCubes();
+			CubeStorage cubesB = b.getCubes();
+			for (int j = 0; j < CubeStorage.VOLUME; j ++) {
+				short material = cubesA.get(j);
+				check(material == cubesB.get(j), "the same seed gives the same cubes");
+				if (material == Cube.WATER)
+					water ++;
+				else if (material != Cube.AIR)
+					solid ++;
+			}
+		}
+
+		// a different seed gives a different world
+		TerrainGenerator other = new TerrainGenerator(SEED + 1);
+		boolean differs = false;
+		for (int x = 0; x < 64 && !differs; x ++)
+			differs = other.getHeight(x, 0) != first.getHeight(x, 0);
+		check(differs, "a different seed gives different terrain");
+
+		System.out.println("Deterministic: " + sequential.size() + " chunks, " + solid + " solid and " + water + " water cubes");
+	}
+
+	private static ArrayList<Chunk> generateSequential(TerrainGenerator generator, int offset) {
+		ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+		for (int x = offset - RADIUS; x < offset + RADIUS; x ++) {
+			for (int z = -RADIUS; z < RADIUS; z ++) {
+				Chunk column[] = generator.generateColumn(x, z);
+				for (int i = 0; i < column.length; i ++)
+					chunks.add(column[i]);
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Prints the throughput of a run
+	 * @param cores the amount of cores the run could use
+	 */
+	private static void report(String name, long start, int count, int cores) {
+		float seconds = (System.nanoTime() - start) / 1000000000.0f;
+		System.out.println(name + ": " + count + " chunks in " + (seconds * 1000.0f) + "ms, " + (count / seconds / cores) + " chunks/s per core");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}
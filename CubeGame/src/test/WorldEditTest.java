@@ -0,0 +1,156 @@
+//-----------------------------------------------------------------------------
+// WorldEditTest.java
+//
+// Copyright (c) 2014 Jeff Hutchinson
+// Copyright (c) 2014 Glenn Smith
+// All rights reserved.
+//
+// Redistribution and use in source and binary forms, with or without 
+// modification, are permitted provided that the following conditions are met:
+//
+// 1. Redistributions of source code must retain the above copyright notice, 
+//    this list of conditions and the following disclaimer.
+//
+// 2. Redistributions in binary form must reproduce the above copyright notice,
+//    this list of conditions and the following disclaimer in the documentation 
+//    and/or other materials provided with the distribution.
+//
+// 3. Neither the name of the copyright holder nor the names of its 
+//    contributors may be used to endorse or promote products derived from this
+//    software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+// AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE 
+// IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE 
+// ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE 
+// LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR 
+// CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF 
+// SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS 
+// INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN 
+// CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) 
+// ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+// POSSIBILITY OF SUCH DAMAGE.
+//-----------------------------------------------------------------------------
+
+package test;
+
+import java.util.ArrayList;
+
+import math.Vector3;
+
+import cubegame.Chunk;
+import cubegame.Cube;
+import cubegame.CubeStorage;
+import cubegame.LightEngine;
+import cubegame.World;
+import cubegame.WorldEdit;
+
+/**
+ * Checks that a WorldEdit relights once per commit and rebuilds each chunk it
+ * touches once, however many of its cubes were edited, and that the neighbours
+ * of an edited chunk are only rebuilt when a cube on their side changed.  Runs
+ * without a GL context, throws if a check fails.
+ */
+public class WorldEditTest {
+	private static final int SIZE = Chunk.CHUNK_SIZE;
+
+	/**
+	 * A row of air chunks along x, from chunk -1 to chunk 2
+	 */
+	private static ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+
+	public static void main(String[] args) {
+		for (int x = -1; x <= 2; x ++) {
+			Chunk chunk = new Chunk(new Vector3(x * SIZE, 0, 0), Cube.AIR);
+			World.addChunk(chunk);
+			chunks.add(chunk);
+		}
+		World.update();
+
+		WorldEdit edit = new WorldEdit();
+
+		// a box across the border of chunks 0 and 1, with some cubes set more than once
+		edit.fill(12, 6, 6, 19, 9, 9, Cube.DIRT);
+		edit.fill(12, 6, 6, 19, 9, 9, Cube.COBBLE);
+		for (int x = 12; x <= 19; x ++)
+			edit.setCube(x, 9, 9, Cube.GRASS);
+		check(edit.getChunkCount() == 2, "the box is recorded for the two chunks it is in");
+		commit(edit, 2, "a box across a chunk border");
+		check(World.getCube(15, 8, 8) == Cube.COBBLE && World.getCube(16, 9, 9) == Cube.GRASS, "the last edit of a cube wins");
+		check(getSky(14, 5, 8) < LightEngine.MAX_LIGHT && getSky(17, 5, 8) < LightEngine.MAX_LIGHT, "the box casts a shadow into both chunks");
+
+		// cubes away from the borders of chunk 0 don't touch its neighbours
+		for (int x = 3; x <= 6; x ++)
+			edit.setCube(x, 12, 8, Cube.COBBLE);
+		commit(edit, 1, "an edit inside of a chunk");
+
+		// a single cube on the low side of chunk 0 changes the faces of chunk -1
+		edit.setCube(0, 12, 8, Cube.COBBLE);
+		edit.setCube(0, 12, 8, Cube.LAMP);
+		commit(edit, 2, "an edit on the border of a chunk");
+		check(getBlock(-1, 12, 8) == Cube.getLightEmission(Cube.LAMP) - 1, "the lamp lights up the neighbouring chunk");
+
+		// enough chunks to be applied in parallel
+		edit.fill(-SIZE, 2, 2, 3 * SIZE - 1, 3, 3, Cube.COBBLE);
+		check(edit.getChunkCount() == 4, "the line is recorded for every chunk");
+		commit(edit, 4, "an edit across every chunk");
+		check(World.getCube(-SIZE, 2, 2) == Cube.COBBLE && World.getCube(3 * SIZE - 1, 3, 3) == Cube.COBBLE, "every chunk was edited");
+
+		// committing twice before the next update still rebuilds once
+		long rebuilds = World.getChunkRebuilds();
+		edit.setCube(8, 14, 8, Cube.DIRT);
+		edit.commit();
+		edit.setCube(8, 14, 8, Cube.AIR);
+		edit.commit();
+		World.update();
+		check(World.getChunkRebuilds() - rebuilds == 1, "two commits before an update rebuild the chunk once");
+
+		// an empty commit does nothing
+		commit(edit, 0, "an empty edit");
+
+		for (Chunk chunk : chunks)
+			World.removeChunk(chunk);
+		System.out.println("All WorldEdit checks passed");
+	}
+
+	/**
+	 * Commits an edit and updates the world, and checks how many relights and rebuilds it took
+	 * @param rebuilt the amount of chunks that should be rebuilt
+	 */
+	private static void commit(WorldEdit edit, int rebuilt, String name) {
+		long relights = LightEngine.getRelights();
+		long rebuilds = World.getChunkRebuilds();
+		edit.commit();
+		check(edit.getChunkCount() == 0, "the edit is empty after " + name);
+
+		int dirty = 0;
+		for (Chunk chunk : chunks) {
+			if (chunk.isDirty())
+				dirty ++;
+		}
+		check(dirty == rebuilt, dirty + " chunks are marked dirty by " + name + ", not " + rebuilt);
+		World.update();
+		long count = World.getChunkRebuilds() - rebuilds;
+		check(count == rebuilt, name + " rebuilds " + count + " chunks, not " + rebuilt);
+		long relit = LightEngine.getRelights() - relights;
+		check(relit == ((rebuilt > 0) ? 1 : 0), name + " relights " + relit + " times");
+	}
+
+	private static int getSky(int x, int y, int z) {
+		return getLight(x, y, z) >>> LightEngine.SKY_SHIFT;
+	}
+
+	private static int getBlock(int x, int y, int z) {
+		return getLight(x, y, z) & LightEngine.MAX_LIGHT;
+	}
+
+	private static int getLight(int x, int y, int z) {
+		Chunk chunk = World.getChunk(x >> Chunk.CHUNK_SHIFT, y >> Chunk.CHUNK_SHIFT, z >> Chunk.CHUNK_SHIFT);
+		return chunk.getLight(CubeStorage.getIndex(x & Chunk.CHUNK_MASK, y & Chunk.CHUNK_MASK, z & Chunk.CHUNK_MASK));
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition)
+			throw new RuntimeException("Check failed: " + message);
+	}
+}